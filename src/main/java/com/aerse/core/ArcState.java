@@ -5,37 +5,39 @@ import java.io.IOException;
 /**
  * Class to represent internal RRD archive state for a single datasource. Objects of this
  * class are never manipulated directly, it's up to Rrd4j to manage internal archive states.
+ * <p>
+ * An ArcState is a view of the state of one datasource in the columns of its archive, it holds no value itself.
  *
  * @author Sasa Markovic
  */
 public class ArcState implements RrdUpdater {
-    private Archive parentArc;
+    private final Archive parentArc;
 
-    private RrdDouble accumValue;
-    private RrdLong nanSteps;
+    private final RrdDoubleColumn accumValues;
+    private final RrdLongColumn nanSteps;
+    private final int dsIndex;
 
-    ArcState(Archive parentArc, boolean shouldInitialize) throws IOException {
+    ArcState(Archive parentArc, RrdDoubleColumn accumValues, RrdLongColumn nanSteps, int dsIndex) {
         this.parentArc = parentArc;
-        accumValue = new RrdDouble(this);
-        nanSteps = new RrdLong(this);
-        if (shouldInitialize) {
-            Header header = parentArc.getParentDb().getHeader();
-            long step = header.getStep();
-            long lastUpdateTime = header.getLastUpdateTime();
-            long arcStep = parentArc.getArcStep();
-            long initNanSteps = (Util.normalize(lastUpdateTime, step) -
-                    Util.normalize(lastUpdateTime, arcStep)) / step;
-            accumValue.set(Double.NaN);
-            nanSteps.set(initNanSteps);
-        }
+        this.accumValues = accumValues;
+        this.nanSteps = nanSteps;
+        this.dsIndex = dsIndex;
+    }
+
+    static long initialNanSteps(long lastUpdateTime, long step, long arcStep) {
+        return (Util.normalize(lastUpdateTime, step) - Util.normalize(lastUpdateTime, arcStep)) / step;
+    }
+
+    long getNanStepsOffset() {
+        return nanSteps.getPointer(dsIndex);
     }
 
     String dump() throws IOException {
-        return "accumValue:" + accumValue.get() + " nanSteps:" + nanSteps.get() + "\n";
+        return "accumValue:" + getAccumValue() + " nanSteps:" + getNanSteps() + "\n";
     }
 
     void setNanSteps(long value) throws IOException {
-        nanSteps.set(value);
+        nanSteps.set(dsIndex, value);
     }
 
     /**
@@ -45,11 +47,11 @@ public class ArcState implements RrdUpdater {
      * @throws java.io.IOException Thrown in case of I/O error
      */
     public long getNanSteps() throws IOException {
-        return nanSteps.get();
+        return nanSteps.get(dsIndex);
     }
 
     void setAccumValue(double value) throws IOException {
-        accumValue.set(value);
+        accumValues.set(dsIndex, value);
     }
 
     /**
@@ -59,7 +61,7 @@ public class ArcState implements RrdUpdater {
      * @throws java.io.IOException Thrown in case of I/O error
      */
     public double getAccumValue() throws IOException {
-        return accumValue.get();
+        return accumValues.get(dsIndex);
     }
 
     /**
@@ -81,8 +83,8 @@ public class ArcState implements RrdUpdater {
             throw new IllegalArgumentException("Cannot copy ArcState object to " + other.getClass().getName());
         }
         ArcState arcState = (ArcState) other;
-        arcState.accumValue.set(accumValue.get());
-        arcState.nanSteps.set(nanSteps.get());
+        arcState.setAccumValue(getAccumValue());
+        arcState.setNanSteps(getNanSteps());
     }
 
     /**
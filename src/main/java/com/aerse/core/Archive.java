@@ -3,6 +3,7 @@ package com.aerse.core;
 import com.aerse.ConsolFun;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Class to represent single RRD archive in a RRD with its internal state.
@@ -24,9 +25,20 @@ public class Archive implements RrdUpdater {
     protected final RrdInt steps;
     protected final RrdInt rows;
 
-    // state
-    private final Robin[] robins;
-    private final ArcState[] states;
+    // state, created on first use when the archive is opened: for each datasource a robin pointer, an archive
+    // state and the robin values, held in columns
+    private volatile RrdIntColumn pointers;
+    private RrdDoubleColumn accumValues;
+    private RrdLongColumn nanSteps;
+    private RrdDoubleMatrix values;
+    private RrdDoubleArray[] arrays;
+    // the immutable views of the columns, created on first use
+    private Robin[] robins;
+    private ArcState[] states;
+    private final int version;
+    // the offset of the state of an opened archive, and the allocator while it is created
+    private long statePointer;
+    private RrdAllocator stateAllocator;
 
     Archive(RrdDb parentDb, ArcDef arcDef) throws IOException {
         this.parentDb = parentDb;
@@ -34,37 +46,124 @@ public class Archive implements RrdUpdater {
         xff = new RrdDouble(this);
         steps = new RrdInt(this, true);            // constant, may be cached
         rows = new RrdInt(this, true);             // constant, may be cached
+        version = parentDb.getHeader().getVersion();
         boolean shouldInitialize = arcDef != null;
         if (shouldInitialize) {
             consolFun.set(arcDef.getConsolFun().name());
             xff.set(arcDef.getXff());
             steps.set(arcDef.getSteps());
             rows.set(arcDef.getRows());
+            createState(true);
         }
+        else {
+            // the definition is read at once, the states and robins of an archive that is never used are not created
+            RrdBackend backend = getRrdBackend();
+            long definitionEnd = rows.getPointer() + RrdPrimitive.RRD_PRIM_SIZES[RrdPrimitive.RRD_INT];
+            backend.readAhead(consolFun.getPointer(), definitionEnd - consolFun.getPointer());
+            try {
+                consolFun.get();
+                xff.get();
+                steps.get();
+                rows.get();
+            }
+            finally {
+                backend.endReadAhead();
+            }
+            statePointer = parentDb.getRrdAllocator().allocate(getStateSize());
+        }
+    }
+
+    // the bytes allocated by createState: for each datasource an int pointer, an ArcState and its robin values
+    private long getStateSize() throws IOException {
+        int n = parentDb.getHeader().getDsCount();
+        long size = n * (long) (RrdPrimitive.RRD_PRIM_SIZES[RrdPrimitive.RRD_INT] + 2 * RrdPrimitive.RRD_PRIM_SIZES[RrdPrimitive.RRD_LONG])
+                + n * (long) rows.get() * RrdPrimitive.RRD_PRIM_SIZES[RrdPrimitive.RRD_DOUBLE];
+        if (version >= 3) {
+            // the number of rows written
+            size += RrdPrimitive.RRD_PRIM_SIZES[RrdPrimitive.RRD_INT];
+        }
+        return size;
+    }
+
+    private void createState(boolean shouldInitialize) throws IOException {
         int n = parentDb.getHeader().getDsCount();
         int numRows = rows.get();
-        states = new ArcState[n];
-        int version = parentDb.getHeader().getVersion();
+        int intSize = RrdPrimitive.RRD_PRIM_SIZES[RrdPrimitive.RRD_INT];
+        int longSize = RrdPrimitive.RRD_PRIM_SIZES[RrdPrimitive.RRD_LONG];
+        int doubleSize = RrdPrimitive.RRD_PRIM_SIZES[RrdPrimitive.RRD_DOUBLE];
+        RrdIntColumn pointers;
         if (version == 1) {
-            robins = new RobinArray[n];
+            // for each datasource, the archive state, the robin pointer and the robin values
+            int stateSize = doubleSize + longSize + intSize;
+            int stride = stateSize + numRows * doubleSize;
+            long start = 0;
+            arrays = new RrdDoubleArray[n];
             for (int i = 0; i < n; i++) {
-                states[i] = new ArcState(this, shouldInitialize);
-                robins[i] = new RobinArray(this, numRows, shouldInitialize);
+                long pointer = getRrdAllocator().allocate(stateSize);
+                if (i == 0) {
+                    start = pointer;
+                }
+                arrays[i] = new RrdDoubleArray(this, numRows);
+            }
+            accumValues = new RrdDoubleColumn(this, start, stride, n);
+            nanSteps = new RrdLongColumn(this, start + doubleSize, stride, n);
+            pointers = new RrdIntColumn(this, start + doubleSize + longSize, stride, n);
+            if (shouldInitialize) {
+                for (RrdDoubleArray array : arrays) {
+                    array.set(0, Double.NaN, numRows);
+                }
             }
         } else {
-            RrdInt[] pointers = new RrdInt[n];
-            robins = new RobinMatrix[n];
-            for (int i = 0; i < n; i++) {
-                pointers[i] = new RrdInt(this);
-                //Purge old pointers content, avoid problems with file reuse
-                if(shouldInitialize) {
-                    pointers[i].set(0);
+            // for each datasource, the robin pointer and the archive state, then the values of all the robins
+            int stride = intSize + doubleSize + longSize;
+            long start = getRrdAllocator().allocate((long) n * stride);
+            pointers = new RrdIntColumn(this, start, stride, n);
+            accumValues = new RrdDoubleColumn(this, start + intSize, stride, n);
+            nanSteps = new RrdLongColumn(this, start + intSize + doubleSize, stride, n);
+            if (version >= 3) {
+                // the rows are initialized as they are first written
+                RrdInt written = new RrdInt(this);
+                if (shouldInitialize) {
+                    written.set(0);
                 }
-                states[i] = new ArcState(this, shouldInitialize);
+                values = new RrdDoubleMatrix(this, numRows, n, written);
+            }
+            else {
+                values = new RrdDoubleMatrix(this, numRows, n, shouldInitialize);
             }
-            RrdDoubleMatrix values = new RrdDoubleMatrix(this, numRows, n, shouldInitialize);
+        }
+        if (shouldInitialize) {
+            Header header = parentDb.getHeader();
+            long initialNanSteps = ArcState.initialNanSteps(header.getLastUpdateTime(), header.getStep(), getArcStep());
             for (int i = 0; i < n; i++) {
-                robins[i] = new RobinMatrix(this, values, pointers[i], i);
+                //Purge old pointers content, avoid problems with file reuse
+                pointers.set(i, 0);
+                accumValues.set(i, Double.NaN);
+                nanSteps.set(i, initialNanSteps);
+            }
+        }
+        robins = new Robin[n];
+        states = new ArcState[n];
+        this.pointers = pointers;
+    }
+
+    private void openState() {
+        if (pointers == null) {
+            synchronized (this) {
+                if (pointers == null) {
+                    stateAllocator = new RrdAllocator(statePointer);
+                    try {
+                        createState(false);
+                        assert stateAllocator.getAllocationPointer() == statePointer + getStateSize() : "Invalid archive state size";
+                    }
+                    catch (IOException e) {
+                        // nothing is read to create the state
+                        throw new IllegalStateException("Could not open the archive state", e);
+                    }
+                    finally {
+                        stateAllocator = null;
+                    }
+                }
             }
         }
     }
@@ -77,11 +176,12 @@ public class Archive implements RrdUpdater {
         int n = parentDb.getHeader().getDsCount();
         for (int i = 0; i < n; i++) {
             // restore state
-            states[i].setAccumValue(reader.getStateAccumValue(arcIndex, i));
-            states[i].setNanSteps(reader.getStateNanSteps(arcIndex, i));
+            ArcState state = getArcState(i);
+            state.setAccumValue(reader.getStateAccumValue(arcIndex, i));
+            state.setNanSteps(reader.getStateNanSteps(arcIndex, i));
             // restore robins
             double[] values = reader.getValues(arcIndex, i);
-            robins[i].update(values);
+            getRobin(i).update(values);
         }
     }
 
@@ -96,6 +196,12 @@ public class Archive implements RrdUpdater {
         return parentDb.getHeader().getStep() * steps.get();
     }
 
+    // the offset of the values of all the robins, after their states, in a version 2 or later archive
+    long getValuesOffset() {
+        openState();
+        return values.getPointer();
+    }
+
     String dump() throws IOException {
         StringBuilder sb = new StringBuilder("== ARCHIVE ==\n");
         sb.append("RRA:")
@@ -112,9 +218,10 @@ public class Archive implements RrdUpdater {
           .append(", ")
           .append(getEndTime())
           .append("]" + "\n");
-        for (int i = 0; i < robins.length; i++) {
-            sb.append(states[i].dump());
-            sb.append(robins[i].dump());
+        int n = parentDb.getHeader().getDsCount();
+        for (int i = 0; i < n; i++) {
+            sb.append(getArcState(i).dump());
+            sb.append(getRobin(i).dump());
         }
         return sb.toString();
     }
@@ -124,8 +231,8 @@ public class Archive implements RrdUpdater {
     }
 
     void archive(int dsIndex, double value, long numUpdates) throws IOException {
-        Robin robin = robins[dsIndex];
-        ArcState state = states[dsIndex];
+        Robin robin = getRobin(dsIndex);
+        ArcState state = getArcState(dsIndex);
         long step = parentDb.getHeader().getStep();
         long lastUpdateTime = parentDb.getHeader().getLastUpdateTime();
         long updateTime = Util.normalize(lastUpdateTime, step) + step;
@@ -271,7 +378,13 @@ public class Archive implements RrdUpdater {
      * @return Underlying archive state object
      */
     public ArcState getArcState(int dsIndex) {
-        return states[dsIndex];
+        openState();
+        ArcState state = states[dsIndex];
+        if (state == null) {
+            state = new ArcState(this, accumValues, nanSteps, dsIndex);
+            states[dsIndex] = state;
+        }
+        return state;
     }
 
     /**
@@ -282,57 +395,137 @@ public class Archive implements RrdUpdater {
      * @return Underlying round robin archive for the given datasource.
      */
     public Robin getRobin(int dsIndex) {
-        return robins[dsIndex];
+        openState();
+        Robin robin = robins[dsIndex];
+        if (robin == null) {
+            if (version == 1) {
+                robin = new RobinArray(this, arrays[dsIndex], pointers, dsIndex);
+            }
+            else {
+                robin = new RobinMatrix(this, values, pointers, dsIndex);
+            }
+            robins[dsIndex] = robin;
+        }
+        return robin;
     }
 
     FetchData fetchData(FetchRequest request) throws IOException {
+        return fetchData(request, null);
+    }
+
+    FetchData fetchData(FetchRequest request, FetchData reuse) throws IOException {
         long arcStep = getArcStep();
-        long fetchStart = Util.normalize(request.getFetchStart(), arcStep);
-        long fetchEnd = Util.normalize(request.getFetchEnd(), arcStep);
+        // rows are consolidated into buckets of the requested resolution, when it spans several of them
+        int factor = 1;
+        if (request.isConsolidated() && request.getResolution() > arcStep) {
+            factor = (int) (request.getResolution() / arcStep);
+        }
+        long fetchStep = factor * arcStep;
+        long fetchStart = Util.normalize(request.getFetchStart(), fetchStep);
+        long fetchEnd = Util.normalize(request.getFetchEnd(), fetchStep);
         if (fetchEnd < request.getFetchEnd()) {
-            fetchEnd += arcStep;
+            fetchEnd += fetchStep;
         }
-        long startTime = getStartTime();
-        long endTime = getEndTime();
-        String[] dsToFetch = request.getFilter();
-        if (dsToFetch == null) {
-            dsToFetch = parentDb.getDsNames();
+        FetchData fetchData = reuse;
+        if (fetchData == null) {
+            fetchData = new FetchData(this, request);
         }
-        int dsCount = dsToFetch.length;
-        int ptsCount = (int) ((fetchEnd - fetchStart) / arcStep + 1);
-        long[] timestamps = new long[ptsCount];
-        double[][] values = new double[dsCount][ptsCount];
-        long matchStartTime = Math.max(fetchStart, startTime);
-        long matchEndTime = Math.min(fetchEnd, endTime);
-        double[][] robinValues = null;
-        if (matchStartTime <= matchEndTime) {
-            // preload robin values
-            int matchCount = (int) ((matchEndTime - matchStartTime) / arcStep + 1);
-            int matchStartIndex = (int) ((matchStartTime - startTime) / arcStep);
-            robinValues = new double[dsCount][];
-            for (int i = 0; i < dsCount; i++) {
-                int dsIndex = parentDb.getDsIndex(dsToFetch[i]);
-                robinValues[i] = robins[dsIndex].getValues(matchStartIndex, matchCount);
+        else {
+            fetchData.reset(this, request);
+        }
+        String[] dsToFetch = fetchData.getDsNames();
+        int ptsCount = (int) ((fetchEnd - fetchStart) / fetchStep + 1);
+        double[][] values = fetchData.getValuesBuffer(dsToFetch.length, ptsCount);
+        if (factor == 1) {
+            readValues(dsToFetch, fetchStart, ptsCount, values, 0, fetchData.getReadBuffer(8 * ptsCount));
+        }
+        else {
+            // a bucket holds the rows ending at its timestamp
+            int rowCount = ptsCount * factor;
+            long rowStart = fetchStart - (factor - 1) * arcStep;
+            double[] rows = fetchData.getConsolidationBuffer(rowCount);
+            byte[] buffer = fetchData.getReadBuffer(8 * rowCount);
+            for (int i = 0; i < dsToFetch.length; i++) {
+                readValues(dsToFetch[i], rowStart, rowCount, rows, 0, buffer);
+                consolidate(rows, factor, values[i], ptsCount);
             }
         }
-        for (int ptIndex = 0; ptIndex < ptsCount; ptIndex++) {
-            long time = fetchStart + ptIndex * arcStep;
-            timestamps[ptIndex] = time;
-            for (int i = 0; i < dsCount; i++) {
-                double value = Double.NaN;
-                if (time >= matchStartTime && time <= matchEndTime) {
-                    // inbound time
-                    int robinValueIndex = (int) ((time - matchStartTime) / arcStep);
-                    assert robinValues != null;
-                    value = robinValues[i][robinValueIndex];
+        fetchData.setTimeline(fetchStart, fetchStep, ptsCount);
+        return fetchData;
+    }
+
+    // consolidates each run of factor rows like the steps of an archive are
+    private void consolidate(double[] rows, int factor, double[] values, int count) throws IOException {
+        ConsolFun fun = getConsolFun();
+        double arcXff = xff.get();
+        for (int bucket = 0, k = 0; bucket < count; bucket++) {
+            double accumValue = Double.NaN;
+            int nanSteps = 0;
+            for (int end = k + factor; k < end; k++) {
+                double value = rows[k];
+                if (Double.isNaN(value)) {
+                    nanSteps++;
+                    continue;
+                }
+                switch (fun) {
+                    case MIN:
+                        accumValue = Util.min(accumValue, value);
+                        break;
+                    case MAX:
+                        accumValue = Util.max(accumValue, value);
+                        break;
+                    case FIRST:
+                        if (Double.isNaN(accumValue)) {
+                            accumValue = value;
+                        }
+                        break;
+                    case LAST:
+                        accumValue = value;
+                        break;
+                    case AVERAGE:
+                    case TOTAL:
+                        accumValue = Util.sum(accumValue, value);
+                        break;
                 }
-                values[i][ptIndex] = value;
+            }
+            if (nanSteps <= arcXff * factor && !Double.isNaN(accumValue)) {
+                if (fun == ConsolFun.AVERAGE) {
+                    accumValue /= (factor - nanSteps);
+                }
+                values[bucket] = accumValue;
+            } else {
+                values[bucket] = Double.NaN;
             }
         }
-        FetchData fetchData = new FetchData(this, request);
-        fetchData.setTimestamps(timestamps);
-        fetchData.setValues(values);
-        return fetchData;
+    }
+
+    // reads count rows starting at start, a timestamp of this archive, into values from pos;
+    // the rows outside of the archive are unknown and the buffer holds at least 8 * count bytes
+    void readValues(String[] dsNames, long start, int count, double[][] values, int pos, byte[] buffer) throws IOException {
+        for (int i = 0; i < dsNames.length; i++) {
+            readValues(dsNames[i], start, count, values[i], pos, buffer);
+        }
+    }
+
+    void readValues(String dsName, long start, int count, double[] values, int pos, byte[] buffer) throws IOException {
+        long arcStep = getArcStep();
+        long end = start + (count - 1) * arcStep;
+        long startTime = getStartTime();
+        long matchStartTime = Math.max(start, startTime);
+        long matchEndTime = Math.min(end, getEndTime());
+        // the robin values are read in place
+        int matchCount = 0;
+        int matchPos = 0;
+        if (matchStartTime <= matchEndTime) {
+            matchCount = (int) ((matchEndTime - matchStartTime) / arcStep + 1);
+            matchPos = (int) ((matchStartTime - start) / arcStep);
+        }
+        Arrays.fill(values, pos, pos + matchPos, Double.NaN);
+        if (matchCount > 0) {
+            int matchStartIndex = (int) ((matchStartTime - startTime) / arcStep);
+            getRobin(parentDb.getDsIndex(dsName)).getValues(matchStartIndex, matchCount, values, pos + matchPos, buffer);
+        }
+        Arrays.fill(values, pos + matchPos + matchCount, pos + count, Double.NaN);
     }
 
     /**
@@ -356,8 +549,8 @@ public class Archive implements RrdUpdater {
         for (int i = 0; i < count; i++) {
             int j = Util.getMatchingDatasourceIndex(parentDb, i, arc.parentDb);
             if (j >= 0) {
-                states[i].copyStateTo(arc.states[j]);
-                robins[i].copyStateTo(arc.robins[j]);
+                getArcState(i).copyStateTo(arc.getArcState(j));
+                getRobin(i).copyStateTo(arc.getRobin(j));
             }
         }
     }
@@ -391,6 +584,7 @@ public class Archive implements RrdUpdater {
      * @return Allocator object
      */
     public RrdAllocator getRrdAllocator() {
-        return parentDb.getRrdAllocator();
+        RrdAllocator allocator = stateAllocator;
+        return allocator != null ? allocator : parentDb.getRrdAllocator();
     }
 }
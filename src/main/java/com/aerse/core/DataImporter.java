@@ -62,7 +62,8 @@ abstract class DataImporter {
         for (int i = 0 ; i < dsNames.length; i++) {
             dsNames[i] = getDsName(i);
         }
-        return RrdDef.calculateSize(dsCount, arcCount, rowCount, dsNames);
+        // imported RRDs have a version 1 header
+        return RrdDef.calculateSize(1, dsCount, arcCount, rowCount, dsNames);
     }
 
     void release() throws IOException {
@@ -50,10 +50,27 @@ public class Datasource implements RrdUpdater {
             lastValue.set(Double.NaN);
             accumValue.set(0.0);
             Header header = parentDb.getHeader();
-            nanSeconds.set(header.getLastUpdateTime() % header.getStep());
+            nanSeconds.set(initialNanSeconds(header.getLastUpdateTime(), header.getStep()));
         }
     }
 
+    static long initialNanSeconds(long lastUpdateTime, long step) {
+        return lastUpdateTime % step;
+    }
+
+    // reads the definition, to be cached if the backend allows it
+    void readDefinition() throws IOException {
+        dsName.get();
+        dsType.get();
+        heartbeat.get();
+        minValue.get();
+        maxValue.get();
+    }
+
+    long getNanSecondsOffset() {
+        return nanSeconds.getPointer();
+    }
+
     Datasource(RrdDb parentDb, DataImporter reader, int dsIndex) throws IOException {
         this(parentDb, null);
         dsName.set(reader.getDsName(dsIndex));
@@ -8,6 +8,7 @@ import java.io.OutputStream;
 import com.aerse.ConsolFun;
 import com.aerse.data.Aggregates;
 import com.aerse.data.DataProcessor;
+import com.aerse.data.PercentileSketch;
 
 /**
  * Class used to represent data fetched from the RRD.
@@ -43,32 +44,84 @@ public class FetchData {
 
     private FetchRequest request;
     private String[] dsNames;
-    private long[] timestamps;
+    private Timeline timeline;
     private double[][] values;
 
     private Archive matchingArchive;
     private long arcStep;
     private long arcEndTime;
 
+    // scratch space for the raw bytes read from the backend
+    private byte[] readBuffer;
+    // rows of the archive before they are consolidated to the requested resolution
+    private double[] consolidationBuffer;
+
     FetchData(Archive matchingArchive, FetchRequest request) throws IOException {
+        reset(matchingArchive, request);
+    }
+
+    // prepares this object for another fetch, the names of the previous fetch are kept when they did not change
+    void reset(Archive matchingArchive, FetchRequest request) throws IOException {
         this.matchingArchive = matchingArchive;
         this.arcStep = matchingArchive.getArcStep();
         this.arcEndTime = matchingArchive.getEndTime();
-        this.dsNames = request.getFilter();
-        if (this.dsNames == null) {
-            this.dsNames = matchingArchive.getParentDb().getDsNames();
+        String[] names = request.getFilter();
+        if (names == null) {
+            RrdDb parentDb = matchingArchive.getParentDb();
+            names = hasDsNames(parentDb) ? dsNames : parentDb.getDsNames();
         }
+        this.dsNames = names;
         this.request = request;
     }
 
-    void setTimestamps(long[] timestamps) {
-        this.timestamps = timestamps;
+    private boolean hasDsNames(RrdDb parentDb) throws IOException {
+        if (dsNames == null || dsNames.length != parentDb.getDsCount()) {
+            return false;
+        }
+        for (int i = 0; i < dsNames.length; i++) {
+            if (!dsNames[i].equals(parentDb.getDatasource(i).getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void setTimeline(Timeline timeline) {
+        this.timeline = timeline;
+    }
+
+    void setTimeline(long start, long step, int count) {
+        if (timeline == null || timeline.getStart() != start || timeline.getStep() != step || timeline.getCount() != count) {
+            timeline = new Timeline(start, step, count);
+        }
     }
 
     void setValues(double[][] values) {
         this.values = values;
     }
 
+    // the arrays of the previous fetch are filled again when they have the right size
+    double[][] getValuesBuffer(int columnCount, int rowCount) {
+        if (values == null || values.length != columnCount || (columnCount > 0 && values[0].length != rowCount)) {
+            values = new double[columnCount][rowCount];
+        }
+        return values;
+    }
+
+    double[] getConsolidationBuffer(int length) {
+        if (consolidationBuffer == null || consolidationBuffer.length < length) {
+            consolidationBuffer = new double[length];
+        }
+        return consolidationBuffer;
+    }
+
+    byte[] getReadBuffer(int length) {
+        if (readBuffer == null || readBuffer.length < length) {
+            readBuffer = new byte[length];
+        }
+        return readBuffer;
+    }
+
     /**
      * Returns the number of rows fetched from the corresponding RRD.
      * Each row represents datasource values for the specific timestamp.
@@ -76,7 +129,7 @@ public class FetchData {
      * @return Number of rows.
      */
     public int getRowCount() {
-        return timestamps.length;
+        return timeline.getCount();
     }
 
     /**
@@ -97,7 +150,17 @@ public class FetchData {
      * @return Array of equidistant timestamps.
      */
     public long[] getTimestamps() {
-        return timestamps;
+        return timeline.getTimestamps();
+    }
+
+    /**
+     * Returns the timestamps covering the whole range specified in the
+     * {@link FetchRequest FetchReguest} object, without creating an array.
+     *
+     * @return Equidistant timestamps.
+     */
+    public Timeline getTimeline() {
+        return timeline;
     }
 
     /**
@@ -106,7 +169,7 @@ public class FetchData {
      * @return Step as long.
      */
     public long getStep() {
-        return timestamps[1] - timestamps[0];
+        return timeline.getStep();
     }
 
     /**
@@ -180,7 +243,7 @@ public class FetchData {
      * @return The smallest timestamp.
      */
     public long getFirstTimestamp() {
-        return timestamps[0];
+        return timeline.getStart();
     }
 
     /**
@@ -189,7 +252,7 @@ public class FetchData {
      * @return The biggest timestamp.
      */
     public long getLastTimestamp() {
-        return timestamps[timestamps.length - 1];
+        return timeline.getEnd();
     }
 
     /**
@@ -238,7 +301,7 @@ public class FetchData {
     public String dump() {
         StringBuilder buffer = new StringBuilder();
         for (int row = 0; row < getRowCount(); row++) {
-            buffer.append(timestamps[row]);
+            buffer.append(timeline.get(row));
             buffer.append(":  ");
             for (int dsIndex = 0; dsIndex < getColumnCount(); dsIndex++) {
                 buffer.append(Util.formatDouble(values[dsIndex][row], true));
@@ -263,8 +326,8 @@ public class FetchData {
             buff.append(padWithBlanks(dsName, 18));
         }
         buff.append("\n \n");
-        for (int i = 0; i < timestamps.length; i++) {
-            buff.append(padWithBlanks(Long.toString(timestamps[i]), 10));
+        for (int i = 0; i < timeline.getCount(); i++) {
+            buff.append(padWithBlanks(Long.toString(timeline.get(i)), 10));
             buff.append(":");
             for (int j = 0; j < dsNames.length; j++) {
                 double value = values[j][i];
@@ -381,6 +444,31 @@ public class FetchData {
         return dataProcessor.get95Percentile(dsName);
     }
 
+    /**
+     * Same as {@link #get95Percentile(String)}, but approximated with a {@link PercentileSketch}: the
+     * values are counted as they are read, without being copied or sorted. NaN values are ignored, and like
+     * the exact percentile, NaN is returned for less than two values.
+     *
+     * @param dsName Datasource name
+     * @param accuracy Relative accuracy of the result, {@link PercentileSketch#DEFAULT_ACCURACY} is 1%
+     * @return approximate 95th percentile of fetched source values
+     * @throws java.lang.IllegalArgumentException Thrown if invalid source name is supplied
+     */
+    public double get95Percentile(String dsName, double accuracy) {
+        double[] dsValues = getValues(dsName);
+        long step = getStep();
+        long fetchStart = request.getFetchStart();
+        long fetchEnd = request.getFetchEnd();
+        PercentileSketch sketch = new PercentileSketch(accuracy);
+        for (int i = 0; i < timeline.getCount(); i++) {
+            long t = timeline.get(i);
+            if (Math.min(t, fetchEnd) > Math.max(t - step, fetchStart)) {
+                sketch.add(dsValues[i]);
+            }
+        }
+        return sketch.getPercentileDiscardingTop(95);
+    }
+
     /**
      * Same as {@link #get95Percentile(String)}, but for a set of values calculated with the given
      * RPN expression.
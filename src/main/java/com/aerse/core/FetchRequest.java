@@ -3,6 +3,7 @@ package com.aerse.core;
 import com.aerse.ConsolFun;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -23,6 +24,7 @@ public class FetchRequest {
     private long fetchEnd;
     private long resolution;
     private String[] filter;
+    private boolean consolidated;
 
     FetchRequest(RrdDb parentDb, ConsolFun consolFun, long fetchStart, long fetchEnd, long resolution) {
         if (consolFun == null) {
@@ -91,6 +93,31 @@ public class FetchRequest {
         this.filter = (filter == null) ? null : (new String[]{filter});
     }
 
+    /**
+     * Sets whether the fetched rows are consolidated to the resolution of this request. When the
+     * matching archive is finer than the resolution, the rows it holds are then consolidated while
+     * being read, with the consolidation function of the archive, into rows as close to the
+     * resolution as the archive step allows. As for the rows of an archive, a consolidated row is
+     * unknown when the ratio of unknown rows it spans exceeds the X-files factor of the archive.
+     * <p>
+     * Not set by default: the rows are returned with the step of the matching archive.
+     *
+     * @param consolidated true to consolidate the rows to the resolution
+     */
+    public void setConsolidated(boolean consolidated) {
+        this.consolidated = consolidated;
+    }
+
+    /**
+     * Returns whether the fetched rows are consolidated to the resolution of this request. See
+     * {@link #setConsolidated(boolean) setConsolidated()} for complete explanation.
+     *
+     * @return true if the rows are consolidated
+     */
+    public boolean isConsolidated() {
+        return consolidated;
+    }
+
     /**
      * Returns request filter. See {@link #setFilter(String...) setFilter()} for
      * complete explanation.
@@ -163,6 +190,60 @@ public class FetchRequest {
         return parentDb.fetchData(this);
     }
 
+    /**
+     * Returns data from the underlying RRD, filling the arrays of a previously returned
+     * {@link com.aerse.core.FetchData FetchData} object instead of creating new ones. The values are read
+     * from the archive directly into place, so fetching ranges of the same length again and again does not
+     * allocate. The arrays are created again only when the number of rows or datasources changes.
+     * <p>
+     * The given object is returned; the values it held before, as well as the arrays obtained from
+     * it, are overwritten.
+     *
+     * @param reuse FetchData object to fill, from this or another RRD, may be null to create a new one.
+     * @return FetchData object filled with timestamps and datasource values.
+     * @throws java.io.IOException Thrown in case of I/O error.
+     */
+    public FetchData fetchData(FetchData reuse) throws IOException {
+        return parentDb.fetchData(this, reuse);
+    }
+
+    /**
+     * Returns data from the underlying RRD for several consolidation functions at once, for
+     * example to draw the AVERAGE, MIN and MAX of a datasource. The consolidation function of this
+     * request is ignored, the range, resolution, filter and consolidation are used for each of the
+     * given ones. All the archives are read while the RRD is locked once.
+     * <p>
+     * The first consolidation function selects an archive as {@link #fetchData() fetchData()} does, the
+     * archives of the next ones are selected for the step of that archive. The rows are then aligned,
+     * unless some consolidation function has no archive with the same step covering the range.
+     *
+     * @param consolFun First consolidation function to fetch data for.
+     * @param consolFuns Other consolidation functions to fetch data for.
+     * @return FetchData objects filled with timestamps and datasource values, for each consolidation function.
+     * @throws java.io.IOException Thrown in case of I/O error.
+     */
+    public Map<ConsolFun, FetchData> fetchData(ConsolFun consolFun, ConsolFun... consolFuns) throws IOException {
+        ConsolFun[] all = new ConsolFun[consolFuns.length + 1];
+        all[0] = consolFun;
+        System.arraycopy(consolFuns, 0, all, 1, consolFuns.length);
+        return parentDb.fetchData(this, all);
+    }
+
+    /**
+     * Returns data from the underlying RRD, each part of the requested range being read from
+     * the finest archive holding it. Recent rows then come from a fine archive and older rows from
+     * coarser ones, instead of a single archive being used for the whole range. Archives finer
+     * than the resolution of this request are not used, unless no archive is coarse enough.
+     * <p>
+     * All the archives are read in a single pass, while the RRD is locked.
+     *
+     * @return StitchedFetchData object filled with timestamps, steps and datasource values.
+     * @throws java.io.IOException Thrown in case of I/O error.
+     */
+    public StitchedFetchData fetchStitchedData() throws IOException {
+        return parentDb.fetchStitchedData(this);
+    }
+
     /**
      * Returns the underlying RrdDb object.
      *
@@ -149,4 +149,17 @@ public interface Robin extends RrdUpdater {
      * @throws java.io.IOException if any.
      */
     double[] getValues(int index, int count) throws IOException;
+
+    /**
+     * Reads archived values into a caller supplied array, without allocating. When the values
+     * wrap around the end of the underlying storage, both parts are read in place.
+     *
+     * @param index Index of the first value, 0 being the oldest one
+     * @param count Number of values to read
+     * @param values Array which receives the values
+     * @param pos Index in <code>values</code> of the first value read
+     * @param buffer Scratch space for the raw bytes, at least <code>8 * count</code> long
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    void getValues(int index, int count, double[] values, int pos, byte[] buffer) throws IOException;
 }
@@ -16,19 +16,17 @@ import java.io.IOException;
  */
 class RobinArray implements Robin {
     private final Archive parentArc;
-    private final RrdInt pointer;
+    private final RrdIntColumn pointers;
     private final RrdDoubleArray values;
-    private int rows;
+    private final int dsIndex;
+    private final int rows;
 
-    RobinArray(Archive parentArc, int rows, boolean shouldInitialize) throws IOException {
+    RobinArray(Archive parentArc, RrdDoubleArray values, RrdIntColumn pointers, int dsIndex) {
         this.parentArc = parentArc;
-        this.pointer = new RrdInt(this);
-        this.values = new RrdDoubleArray(this, rows);
-        this.rows = rows;
-        if (shouldInitialize) {
-            pointer.set(0);
-            values.set(0, Double.NaN, rows);
-        }
+        this.pointers = pointers;
+        this.values = values;
+        this.dsIndex = dsIndex;
+        this.rows = values.getLength();
     }
 
     /* (non-Javadoc)
@@ -47,9 +45,9 @@ class RobinArray implements Robin {
     // stores single value
     /** {@inheritDoc} */
     public void store(double newValue) throws IOException {
-        int position = pointer.get();
+        int position = pointers.get(dsIndex);
         values.set(position, newValue);
-        pointer.set((position + 1) % rows);
+        pointers.set(dsIndex, (position + 1) % rows);
     }
 
     // stores the same value several times
@@ -57,19 +55,19 @@ class RobinArray implements Robin {
     public void bulkStore(double newValue, int bulkCount) throws IOException {
         assert bulkCount <= rows: "Invalid number of bulk updates: " + bulkCount + " rows=" + rows;
 
-        int position = pointer.get();
+        int position = pointers.get(dsIndex);
 
         // update tail
         int tailUpdateCount = Math.min(rows - position, bulkCount);
 
         values.set(position, newValue, tailUpdateCount);
-        pointer.set((position + tailUpdateCount) % rows);
+        pointers.set(dsIndex, (position + tailUpdateCount) % rows);
 
         // do we need to update from the start?
         int headUpdateCount = bulkCount - tailUpdateCount;
         if (headUpdateCount > 0) {
             values.set(0, newValue, headUpdateCount);
-            pointer.set(headUpdateCount);
+            pointers.set(dsIndex, headUpdateCount);
         }
     }
 
@@ -82,7 +80,7 @@ class RobinArray implements Robin {
     public void update(double[] newValues) throws IOException {
         assert rows == newValues.length: "Invalid number of robin values supplied (" + newValues.length +
         "), exactly " + rows + " needed";
-        pointer.set(0);
+        pointers.set(dsIndex, 0);
         values.writeDouble(0, newValues);
     }
 
@@ -117,7 +115,7 @@ class RobinArray implements Robin {
      * @throws java.io.IOException if any.
      */
     public String dump() throws IOException {
-        StringBuilder buffer = new StringBuilder("Robin " + pointer.get() + "/" + rows + ": ");
+        StringBuilder buffer = new StringBuilder("Robin " + pointers.get(dsIndex) + "/" + rows + ": ");
         double[] values = getValues();
         for (double value : values) {
             buffer.append(Util.formatDouble(value, true)).append(" ");
@@ -131,7 +129,7 @@ class RobinArray implements Robin {
      */
     /** {@inheritDoc} */
     public double getValue(int index) throws IOException {
-        int arrayIndex = (pointer.get() + index) % rows;
+        int arrayIndex = (pointers.get(dsIndex) + index) % rows;
         return values.get(arrayIndex);
     }
 
@@ -140,7 +138,7 @@ class RobinArray implements Robin {
      */
     /** {@inheritDoc} */
     public void setValue(int index, double value) throws IOException {
-        int arrayIndex = (pointer.get() + index) % rows;
+        int arrayIndex = (pointers.get(dsIndex) + index) % rows;
         values.set(arrayIndex, value);
     }
 
@@ -148,7 +146,7 @@ class RobinArray implements Robin {
     public double[] getValues(int index, int count) throws IOException {
         assert count <= rows: "Too many values requested: " + count + " rows=" + rows;
 
-        int startIndex = (pointer.get() + index) % rows;
+        int startIndex = (pointers.get(dsIndex) + index) % rows;
         int tailReadCount = Math.min(rows - startIndex, count);
         double[] tailValues = values.get(startIndex, tailReadCount);
         if (tailReadCount < count) {
@@ -169,6 +167,18 @@ class RobinArray implements Robin {
         }
     }
 
+    /** {@inheritDoc} */
+    public void getValues(int index, int count, double[] values, int pos, byte[] buffer) throws IOException {
+        assert count <= rows: "Too many values requested: " + count + " rows=" + rows;
+
+        int startIndex = (pointers.get(dsIndex) + index) % rows;
+        int tailReadCount = Math.min(rows - startIndex, count);
+        this.values.get(startIndex, tailReadCount, values, pos, buffer);
+        if (tailReadCount < count) {
+            this.values.get(0, count - tailReadCount, values, pos + tailReadCount, buffer);
+        }
+    }
+
     /* (non-Javadoc)
      * @see org.rrd4j.core.Robin#getParent()
      */
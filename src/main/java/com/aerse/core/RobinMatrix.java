@@ -16,14 +16,14 @@ import java.io.IOException;
  */
 class RobinMatrix implements Robin {
     private final Archive parentArc;
-    private final RrdInt pointer;
+    private final RrdIntColumn pointers;
     private final RrdDoubleMatrix values;
-    private int rows;
-    private int column;
+    private final int rows;
+    private final int column;
 
-    RobinMatrix(Archive parentArc, RrdDoubleMatrix values, RrdInt pointer, int column) throws IOException {
+    RobinMatrix(Archive parentArc, RrdDoubleMatrix values, RrdIntColumn pointers, int column) {
         this.parentArc = parentArc;
-        this.pointer = pointer; 
+        this.pointers = pointers;
         this.values = values;
         this.rows = values.getRows();
         this.column = column;
@@ -42,9 +42,9 @@ class RobinMatrix implements Robin {
     // stores single value
     /** {@inheritDoc} */
     public void store(double newValue) throws IOException {
-        int position = pointer.get();
+        int position = pointers.get(column);
         values.set(column, position, newValue);
-        pointer.set((position + 1) % rows);
+        pointers.set(column, (position + 1) % rows);
     }
 
     // stores the same value several times
@@ -52,19 +52,19 @@ class RobinMatrix implements Robin {
     public void bulkStore(double newValue, int bulkCount) throws IOException {
         assert bulkCount <= rows: "Invalid number of bulk updates: " + bulkCount + " rows=" + rows;
 
-        int position = pointer.get();
+        int position = pointers.get(column);
 
         // update tail
         int tailUpdateCount = Math.min(rows - position, bulkCount);
 
         values.set(column, position, newValue, tailUpdateCount);
-        pointer.set((position + tailUpdateCount) % rows);
+        pointers.set(column, (position + tailUpdateCount) % rows);
 
         // do we need to update from the start?
         int headUpdateCount = bulkCount - tailUpdateCount;
         if (headUpdateCount > 0) {
             values.set(column, 0, newValue, headUpdateCount);
-            pointer.set(headUpdateCount);
+            pointers.set(column, headUpdateCount);
         }
     }
 
@@ -77,7 +77,7 @@ class RobinMatrix implements Robin {
     public void update(double[] newValues) throws IOException {
         assert rows == newValues.length: "Invalid number of robin values supplied (" + newValues.length +
         "), exactly " + rows + " needed";
-        pointer.set(0);
+        pointers.set(column, 0);
         values.set(column, 0, newValues);
     }
 
@@ -114,7 +114,7 @@ class RobinMatrix implements Robin {
      * @throws java.io.IOException if any.
      */
     public String dump() throws IOException {
-        StringBuilder buffer = new StringBuilder("Robin " + pointer.get() + "/" + rows + ": ");
+        StringBuilder buffer = new StringBuilder("Robin " + pointers.get(column) + "/" + rows + ": ");
         double[] values = getValues();
         for (double value : values) {
             buffer.append(Util.formatDouble(value, true)).append(" ");
@@ -129,7 +129,7 @@ class RobinMatrix implements Robin {
      * Returns the i-th value from the Robin archive.
      */
     public double getValue(int index) throws IOException {
-        int arrayIndex = (pointer.get() + index) % rows;
+        int arrayIndex = (pointers.get(column) + index) % rows;
         return values.get(column, arrayIndex);
     }
 
@@ -139,7 +139,7 @@ class RobinMatrix implements Robin {
      * Sets the i-th value in the Robin archive.
      */
     public void setValue(int index, double value) throws IOException {
-        int arrayIndex = (pointer.get() + index) % rows;
+        int arrayIndex = (pointers.get(column) + index) % rows;
         values.set(column, arrayIndex, value);
     }
 
@@ -147,7 +147,7 @@ class RobinMatrix implements Robin {
     public double[] getValues(int index, int count) throws IOException {
         assert count <= rows: "Too many values requested: " + count + " rows=" + rows;
 
-        int startIndex = (pointer.get() + index) % rows;
+        int startIndex = (pointers.get(column) + index) % rows;
         int tailReadCount = Math.min(rows - startIndex, count);
         double[] tailValues = values.get(column, startIndex, tailReadCount);
         if (tailReadCount < count) {
@@ -168,6 +168,18 @@ class RobinMatrix implements Robin {
         }
     }
 
+    /** {@inheritDoc} */
+    public void getValues(int index, int count, double[] values, int pos, byte[] buffer) throws IOException {
+        assert count <= rows: "Too many values requested: " + count + " rows=" + rows;
+
+        int startIndex = (pointers.get(column) + index) % rows;
+        int tailReadCount = Math.min(rows - startIndex, count);
+        this.values.get(column, startIndex, tailReadCount, values, pos, buffer);
+        if (tailReadCount < count) {
+            this.values.get(column, 0, count - tailReadCount, values, pos + tailReadCount, buffer);
+        }
+    }
+
     /**
      * Returns the Archive object to which this Robin object belongs.
      *
@@ -14,6 +14,14 @@ public class RrdAllocator {
         super();
     }
 
+    RrdAllocator(long allocationPointer) {
+        this.allocationPointer = allocationPointer;
+    }
+
+    long getAllocationPointer() {
+        return allocationPointer;
+    }
+
     long allocate(long byteCount) throws IOException {
         long pointer = allocationPointer;
         allocationPointer += byteCount;
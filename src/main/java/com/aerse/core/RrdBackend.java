@@ -5,6 +5,7 @@ import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.CharBuffer;
+import java.util.Arrays;
 
 /**
  * <p>Base implementation class for all backend classes. Each Round Robin Database object
@@ -51,6 +52,7 @@ import java.nio.CharBuffer;
 public abstract class RrdBackend {
 
     private static final ByteOrder BYTEORDER = ByteOrder.BIG_ENDIAN;
+    private static final int FILL_CHUNK_SIZE = 8192;
     private static final char STARTPRIVATEAREA = '\ue000';
     private static final char ENDPRIVATEAREA = '\uf8ff';
     private static final int STARTPRIVATEAREACODEPOINT = Character.codePointAt(new char[]{STARTPRIVATEAREA}, 0);
@@ -62,6 +64,9 @@ public abstract class RrdBackend {
     private final String path;
     private RrdBackendFactory factory;
     private long nextBigStringOffset = -1;
+    // a region read at once, the small reads inside it are served from memory
+    private byte[] readAhead;
+    private long readAheadOffset;
 
     /**
      * Creates backend for a RRD storage with the given path.
@@ -113,6 +118,28 @@ public abstract class RrdBackend {
      */
     protected abstract void read(long offset, byte[] b) throws IOException;
 
+    /**
+     * Reads bytes from the underlying storage starting from the given storage offset into a part
+     * of an array. The default implementation reads into a temporary array, backends override it
+     * to read in place.
+     *
+     * @param offset Storage offset.
+     * @param b      Array which receives bytes from the underlying storage
+     * @param off    Index of the first byte to set in the array
+     * @param len    Number of bytes to read
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    protected void read(long offset, byte[] b, int off, int len) throws IOException {
+        if (off == 0 && len == b.length) {
+            read(offset, b);
+        }
+        else {
+            byte[] part = new byte[len];
+            read(offset, part);
+            System.arraycopy(part, 0, b, off, len);
+        }
+    }
+
     /**
      * Returns the number of RRD bytes in the underlying storage.
      *
@@ -170,6 +197,41 @@ public abstract class RrdBackend {
         write(offset, b);
     }
 
+    /**
+     * Reads a region at once, so that the reads of the primitives inside it, until {@link #endReadAhead()},
+     * don't need an access to the storage each. It is used while a RRD is opened, as its definition is made of
+     * many small primitives. Writes are not allowed meanwhile.
+     *
+     * @param offset Storage offset
+     * @param length Number of bytes, less if the storage is shorter
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    final void readAhead(long offset, long length) throws IOException {
+        int count = (int) Math.max(0, Math.min(length, getLength() - offset));
+        byte[] b = new byte[count];
+        read(offset, b);
+        readAhead = b;
+        readAheadOffset = offset;
+    }
+
+    private boolean isReadAhead(long offset, long length) {
+        return readAhead != null && offset >= readAheadOffset && offset + length <= readAheadOffset + readAhead.length;
+    }
+
+    final void endReadAhead() {
+        readAhead = null;
+    }
+
+    // reads the primitives, from the read-ahead region when possible
+    private void readPrimitive(long offset, byte[] b) throws IOException {
+        if (isReadAhead(offset, b.length)) {
+            System.arraycopy(readAhead, (int) (offset - readAheadOffset), b, 0, b.length);
+        }
+        else {
+            read(offset, b);
+        }
+    }
+
     final void writeInt(long offset, int value) throws IOException {
         write(offset, getIntBytes(value));
     }
@@ -184,8 +246,10 @@ public abstract class RrdBackend {
 
     final void writeDouble(long offset, double value, int count) throws IOException {
         byte[] b = getDoubleBytes(value);
-        byte[] image = new byte[8 * count];
-        for (int i = 0, k = 0; i < count; i++) {
+        // written by chunks, a large count doesn't need as large a buffer
+        int chunk = Math.min(count, FILL_CHUNK_SIZE);
+        byte[] image = new byte[8 * chunk];
+        for (int i = 0, k = 0; i < chunk; i++) {
             image[k++] = b[0];
             image[k++] = b[1];
             image[k++] = b[2];
@@ -195,7 +259,15 @@ public abstract class RrdBackend {
             image[k++] = b[6];
             image[k++] = b[7];
         }
-        write(offset, image);
+        for (int done = 0; done < count; done += chunk) {
+            int length = Math.min(chunk, count - done);
+            if (length == chunk) {
+                write(offset + 8L * done, image);
+            }
+            else {
+                write(offset + 8L * done, Arrays.copyOf(image, 8 * length));
+            }
+        }
     }
 
     final void writeDouble(long offset, double[] values) throws IOException {
@@ -260,26 +332,26 @@ public abstract class RrdBackend {
 
     private short readShort(long offset) throws IOException {
         byte[] b = new byte[2];
-        read(offset, b);
+        readPrimitive(offset, b);
         return (short) (((b[0] << 8) & 0x0000FF00) + ((b[1] << 0) & 0x000000FF));
 
     }
 
     final int readInt(long offset) throws IOException {
         byte[] b = new byte[4];
-        read(offset, b);
+        readPrimitive(offset, b);
         return getInt(b);
     }
 
     final long readLong(long offset) throws IOException {
         byte[] b = new byte[8];
-        read(offset, b);
+        readPrimitive(offset, b);
         return getLong(b);
     }
 
     final double readDouble(long offset) throws IOException {
         byte[] b = new byte[8];
-        read(offset, b);
+        readPrimitive(offset, b);
         return getDouble(b);
     }
 
@@ -288,20 +360,24 @@ public abstract class RrdBackend {
         byte[] image = new byte[byteCount];
         read(offset, image);
         double[] values = new double[count];
-        for (int i = 0, k = -1; i < count; i++) {
-            byte[] b = new byte[]{
-                    image[++k], image[++k], image[++k], image[++k],
-                    image[++k], image[++k], image[++k], image[++k]
-            };
-            values[i] = getDouble(b);
+        for (int i = 0; i < count; i++) {
+            values[i] = getDouble(image, 8 * i);
         }
         return values;
     }
 
+    // reads count doubles into values, using image (at least 8 * count bytes) as scratch space
+    final void readDouble(long offset, int count, double[] values, int pos, byte[] image) throws IOException {
+        read(offset, image, 0, 8 * count);
+        for (int i = 0; i < count; i++) {
+            values[pos + i] = getDouble(image, 8 * i);
+        }
+    }
+
     final String readString(long offset) throws IOException {
         ByteBuffer bbuf = ByteBuffer.allocate(RrdPrimitive.STRING_LENGTH * 2);
         bbuf.order(BYTEORDER);
-        read(offset, bbuf.array());
+        readPrimitive(offset, bbuf.array());
         bbuf.position(0);
         bbuf.limit(RrdPrimitive.STRING_LENGTH * 2);
         CharBuffer cbuf = bbuf.asCharBuffer();
@@ -324,7 +400,7 @@ public abstract class RrdBackend {
             }
             ByteBuffer realStringbuf = ByteBuffer.allocate(bigStringSize * 2);
             bbuf.order(BYTEORDER);
-            read(realStringOffset - bigStringSize * 2, realStringbuf.array());
+            readPrimitive(realStringOffset - bigStringSize * 2, realStringbuf.array());
             return realStringbuf.asCharBuffer().toString().trim();
         } else {
             return cbuf.toString().trim();
@@ -363,20 +439,32 @@ public abstract class RrdBackend {
 
     private static int getInt(byte[] b) {
         assert b.length == 4 : "Invalid number of bytes for integer conversion";
-        return ((b[0] << 24) & 0xFF000000) + ((b[1] << 16) & 0x00FF0000) +
-                ((b[2] << 8) & 0x0000FF00) + ((b[3] << 0) & 0x000000FF);
+        return getInt(b, 0);
+    }
+
+    private static int getInt(byte[] b, int k) {
+        return ((b[k] << 24) & 0xFF000000) + ((b[k + 1] << 16) & 0x00FF0000) +
+                ((b[k + 2] << 8) & 0x0000FF00) + ((b[k + 3] << 0) & 0x000000FF);
     }
 
     private static long getLong(byte[] b) {
         assert b.length == 8 : "Invalid number of bytes for long conversion";
-        int high = getInt(new byte[]{b[0], b[1], b[2], b[3]});
-        int low = getInt(new byte[]{b[4], b[5], b[6], b[7]});
+        return getLong(b, 0);
+    }
+
+    private static long getLong(byte[] b, int k) {
+        int high = getInt(b, k);
+        int low = getInt(b, k + 4);
         return ((long) (high) << 32) + (low & 0xFFFFFFFFL);
     }
 
     private static double getDouble(byte[] b) {
         assert b.length == 8 : "Invalid number of bytes for double conversion";
-        return Double.longBitsToDouble(getLong(b));
+        return getDouble(b, 0);
+    }
+
+    private static double getDouble(byte[] b, int k) {
+        return Double.longBitsToDouble(getLong(b, k));
     }
 
     static boolean isInstanceCreated() {
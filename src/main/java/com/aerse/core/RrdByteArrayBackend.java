@@ -47,6 +47,17 @@ public abstract class RrdByteArrayBackend extends RrdBackend {
         }
     }
 
+    /** {@inheritDoc} */
+    protected synchronized void read(long offset, byte[] bytes, int off, int len) throws IOException {
+        int pos = (int) offset;
+        if (pos + len <= buffer.length) {
+            System.arraycopy(buffer, pos, bytes, off, len);
+        }
+        else {
+            throw new IOException("Not enough bytes available in memory; RRD " + getPath());
+        }
+    }
+
     /**
      * Returns the number of RRD bytes held in memory.
      *
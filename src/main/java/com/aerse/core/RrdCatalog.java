@@ -0,0 +1,658 @@
+package com.aerse.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.aerse.ConsolFun;
+import com.aerse.DsType;
+
+/**
+ * A catalog of the RRD files of a directory: for each file, its definition (step, datasources and archives) and
+ * its last update time, so that the files with some datasource can be found without opening all of them:
+ * <pre>
+ * RrdCatalog catalog = new RrdCatalog("/var/rrd", ".rrd", true);
+ * catalog.load(indexPath);
+ * catalog.refresh();
+ * catalog.save(indexPath);
+ * catalog.watch();
+ * ...
+ * for (RrdCatalog.Entry entry : catalog.findByDatasource("bytes_in")) {
+ *     ...
+ * }
+ * </pre>
+ * A refresh walks the directory and only opens the files that were added or modified since they were cataloged,
+ * in parallel. The catalog can be saved and loaded again, so that only the files modified since are opened at the
+ * next startup. Once watched, the catalog is updated as the files are created, modified or deleted, by a daemon
+ * thread, until it is closed. A refresh and the updates of the watcher are done one after the other, so the
+ * directory can still be refreshed periodically while it is watched.
+ * <p>
+ * The files are opened read only, with the default backend factory. A file that can't be read, as one being
+ * created, is not cataloged until it is modified again.
+ */
+public class RrdCatalog implements Closeable {
+    /**
+     * Default number of files opened at the same time by a refresh.
+     */
+    public static final int DEFAULT_CONCURRENCY = 8;
+
+    private static final int MAGIC = 0x52524443; // "RRDC"
+    private static final int FORMAT_VERSION = 2;
+
+    /**
+     * The description of a cataloged file.
+     */
+    public static final class Entry {
+        private final String path;
+        private final long lastModified;
+        private final long size;
+        private final long step;
+        private final int version;
+        private final DsDef[] dsDefs;
+        private final ArcDef[] arcDefs;
+        private final long lastUpdateTime;
+
+        Entry(String path, long lastModified, long size, long step, int version, DsDef[] dsDefs, ArcDef[] arcDefs, long lastUpdateTime) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.step = step;
+            this.version = version;
+            this.dsDefs = dsDefs;
+            this.arcDefs = arcDefs;
+            this.lastUpdateTime = lastUpdateTime;
+        }
+
+        /**
+         * @return the absolute path of the file
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the modification time of the file when it was cataloged, in milliseconds
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return the step of the file, in seconds
+         */
+        public long getStep() {
+            return step;
+        }
+
+        /**
+         * @return the version of the file format, as {@link RrdDef#getVersion()}
+         */
+        public int getVersion() {
+            return version;
+        }
+
+        /**
+         * @return the definitions of the datasources
+         */
+        public DsDef[] getDsDefs() {
+            return dsDefs.clone();
+        }
+
+        /**
+         * @return the names of the datasources
+         */
+        public String[] getDsNames() {
+            String[] dsNames = new String[dsDefs.length];
+            for (int i = 0; i < dsNames.length; i++) {
+                dsNames[i] = dsDefs[i].getDsName();
+            }
+            return dsNames;
+        }
+
+        /**
+         * @param dsName a datasource name
+         * @return true if the file has this datasource
+         */
+        public boolean hasDatasource(String dsName) {
+            for (DsDef dsDef : dsDefs) {
+                if (dsDef.getDsName().equals(dsName)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the definitions of the archives
+         */
+        public ArcDef[] getArcDefs() {
+            return arcDefs.clone();
+        }
+
+        /**
+         * @return the last update time of the file when it was cataloged, in seconds
+         */
+        public long getLastUpdateTime() {
+            return lastUpdateTime;
+        }
+
+        /**
+         * Returns the definition of the file, as {@link RrdDb#getRrdDef()}, but for the start time which is the
+         * last update time.
+         *
+         * @return the definition of the file
+         */
+        public RrdDef getRrdDef() {
+            RrdDef rrdDef = new RrdDef(path, lastUpdateTime, step, version);
+            rrdDef.addDatasource(dsDefs);
+            rrdDef.addArchive(arcDefs);
+            return rrdDef;
+        }
+
+        boolean isFor(long lastModified, long size) {
+            return this.lastModified == lastModified && this.size == size;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(path);
+            out.writeLong(lastModified);
+            out.writeLong(size);
+            out.writeLong(step);
+            out.writeInt(version);
+            out.writeLong(lastUpdateTime);
+            out.writeInt(dsDefs.length);
+            for (DsDef dsDef : dsDefs) {
+                out.writeUTF(dsDef.getDsName());
+                out.writeUTF(dsDef.getDsType().name());
+                out.writeLong(dsDef.getHeartbeat());
+                out.writeDouble(dsDef.getMinValue());
+                out.writeDouble(dsDef.getMaxValue());
+            }
+            out.writeInt(arcDefs.length);
+            for (ArcDef arcDef : arcDefs) {
+                out.writeUTF(arcDef.getConsolFun().name());
+                out.writeDouble(arcDef.getXff());
+                out.writeInt(arcDef.getSteps());
+                out.writeInt(arcDef.getRows());
+            }
+        }
+
+        static Entry read(DataInputStream in) throws IOException {
+            String path = in.readUTF();
+            long lastModified = in.readLong();
+            long size = in.readLong();
+            long step = in.readLong();
+            int version = in.readInt();
+            long lastUpdateTime = in.readLong();
+            DsDef[] dsDefs = new DsDef[in.readInt()];
+            for (int i = 0; i < dsDefs.length; i++) {
+                dsDefs[i] = new DsDef(in.readUTF(), DsType.valueOf(in.readUTF()), in.readLong(), in.readDouble(), in.readDouble());
+            }
+            ArcDef[] arcDefs = new ArcDef[in.readInt()];
+            for (int i = 0; i < arcDefs.length; i++) {
+                arcDefs[i] = new ArcDef(ConsolFun.valueOf(in.readUTF()), in.readDouble(), in.readInt(), in.readInt());
+            }
+            return new Entry(path, lastModified, size, step, version, dsDefs, arcDefs, lastUpdateTime);
+        }
+    }
+
+    private final Path directory;
+    private final String extension;
+    private final boolean recursive;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    // the paths of the files of each datasource name
+    private final Map<String, Set<String>> paths = new ConcurrentHashMap<String, Set<String>>();
+    private int concurrency = DEFAULT_CONCURRENCY;
+    // serializes the refreshes and the updates of the watcher, so that an older view of a file doesn't replace
+    // a newer one
+    private final Object updateLock = new Object();
+
+    private WatchService watchService;
+    private Thread watcher;
+
+    /**
+     * Creates an empty catalog of a directory.
+     *
+     * @param directory the directory of the RRD files
+     * @param extension the extension of the RRD files, as ".rrd"
+     * @param recursive true if the files of the subdirectories are cataloged
+     */
+    public RrdCatalog(String directory, String extension, boolean recursive) {
+        this.directory = Paths.get(directory).toAbsolutePath().normalize();
+        this.extension = extension;
+        this.recursive = recursive;
+    }
+
+    /**
+     * Sets the number of files opened at the same time by a refresh.
+     *
+     * @param concurrency number of threads, {@link #DEFAULT_CONCURRENCY} by default
+     */
+    public void setConcurrency(int concurrency) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("Invalid concurrency: " + concurrency);
+        }
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Returns the entry of a file.
+     *
+     * @param path the path of the file
+     * @return its entry, null if it is not cataloged
+     */
+    public Entry getEntry(String path) {
+        return entries.get(normalize(Paths.get(path)));
+    }
+
+    /**
+     * @return all the entries, in no particular order
+     */
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * @return the number of cataloged files
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the entries of the files with a datasource.
+     *
+     * @param dsName the datasource name
+     * @return the entries, in no particular order
+     */
+    public List<Entry> findByDatasource(String dsName) {
+        Set<String> dsPaths = paths.get(dsName);
+        if (dsPaths == null) {
+            return Collections.emptyList();
+        }
+        List<Entry> result = new ArrayList<Entry>(dsPaths.size());
+        for (String path : dsPaths) {
+            Entry entry = entries.get(path);
+            if (entry != null) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    private String normalize(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+    private synchronized void put(Entry entry) {
+        Entry previous = entries.put(entry.path, entry);
+        if (previous != null) {
+            unindex(previous);
+        }
+        for (DsDef dsDef : entry.dsDefs) {
+            Set<String> dsPaths = paths.get(dsDef.getDsName());
+            if (dsPaths == null) {
+                dsPaths = ConcurrentHashMap.newKeySet();
+                paths.put(dsDef.getDsName(), dsPaths);
+            }
+            dsPaths.add(entry.path);
+        }
+    }
+
+    private synchronized void remove(String path) {
+        Entry previous = entries.remove(path);
+        if (previous != null) {
+            unindex(previous);
+        }
+    }
+
+    private void unindex(Entry entry) {
+        for (DsDef dsDef : entry.dsDefs) {
+            Set<String> dsPaths = paths.get(dsDef.getDsName());
+            if (dsPaths != null) {
+                dsPaths.remove(entry.path);
+                if (dsPaths.isEmpty()) {
+                    paths.remove(dsDef.getDsName());
+                }
+            }
+        }
+    }
+
+    private boolean isRrd(Path file) {
+        return file.getFileName().toString().endsWith(extension);
+    }
+
+    // opens the file to catalog it, null if it can't be read
+    private Entry read(String path, long lastModified, long size) {
+        try (RrdDb rrdDb = new RrdDb(path, true)) {
+            RrdDef rrdDef = rrdDb.getRrdDef();
+            return new Entry(path, lastModified, size, rrdDef.getStep(), rrdDef.getVersion(), rrdDef.getDsDefs(), rrdDef.getArcDefs(),
+                    rrdDb.getLastUpdateTime());
+        }
+        catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void update(Path file) {
+        String path = normalize(file);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            Entry entry = entries.get(path);
+            if (entry != null && entry.isFor(attributes.lastModifiedTime().toMillis(), attributes.size())) {
+                return;
+            }
+            entry = read(path, attributes.lastModifiedTime().toMillis(), attributes.size());
+            if (entry != null) {
+                put(entry);
+            }
+            else {
+                remove(path);
+            }
+        }
+        catch (IOException e) {
+            remove(path);
+        }
+    }
+
+    /**
+     * Walks the directory to catalog the new and modified files, and to forget the deleted ones. Only the new and
+     * modified files are opened, by a bounded number of threads.
+     *
+     * @return the number of files that were opened
+     * @throws java.io.IOException Thrown if the directory can't be walked
+     */
+    public int refresh() throws IOException {
+        synchronized (updateLock) {
+            return walk();
+        }
+    }
+
+    private int walk() throws IOException {
+        final List<String> changedPaths = new ArrayList<String>();
+        final List<long[]> changedAttributes = new ArrayList<long[]>();
+        final Set<String> found = new LinkedHashSet<String>();
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return recursive || dir.equals(directory) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && isRrd(file)) {
+                    String path = normalize(file);
+                    found.add(path);
+                    Entry entry = entries.get(path);
+                    long lastModified = attrs.lastModifiedTime().toMillis();
+                    if (entry == null || !entry.isFor(lastModified, attrs.size())) {
+                        changedPaths.add(path);
+                        changedAttributes.add(new long[] {lastModified, attrs.size()});
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        for (String path : new ArrayList<String>(entries.keySet())) {
+            if (!found.contains(path)) {
+                remove(path);
+            }
+        }
+        read(changedPaths, changedAttributes);
+        return changedPaths.size();
+    }
+
+    private void read(final List<String> changedPaths, final List<long[]> changedAttributes) throws IOException {
+        final AtomicInteger next = new AtomicInteger();
+        int threads = Math.min(concurrency, changedPaths.size());
+        if (threads <= 1) {
+            read(changedPaths, changedAttributes, next);
+            return;
+        }
+        Callable<Void> reader = new Callable<Void>() {
+            public Void call() {
+                read(changedPaths, changedAttributes, next);
+                return null;
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new RrdSyncThreadPool.DaemonThreadFactory("RrdCatalog refresh"));
+        try {
+            List<Future<Void>> readers = new ArrayList<Future<Void>>();
+            for (int i = 0; i < threads; i++) {
+                readers.add(executor.submit(reader));
+            }
+            for (Future<Void> future : readers) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while cataloging " + directory, e);
+        }
+        catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void read(List<String> changedPaths, List<long[]> changedAttributes, AtomicInteger next) {
+        for (int i = next.getAndIncrement(); i < changedPaths.size(); i = next.getAndIncrement()) {
+            long[] attributes = changedAttributes.get(i);
+            Entry entry = read(changedPaths.get(i), attributes[0], attributes[1]);
+            if (entry != null) {
+                put(entry);
+            }
+            else {
+                remove(changedPaths.get(i));
+            }
+        }
+    }
+
+    /**
+     * Saves the catalog to a file, replaced atomically.
+     *
+     * @param file the path of the file
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    public void save(String file) throws IOException {
+        Path target = Paths.get(file);
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            Collection<Entry> saved = new ArrayList<Entry>(entries.values());
+            out.writeInt(saved.size());
+            for (Entry entry : saved) {
+                entry.write(out);
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Adds the entries of a saved catalog. They are checked against the files by the next refresh.
+     *
+     * @param file the path of the file
+     * @return false if there is no such file
+     * @throws java.io.IOException Thrown in case of I/O error, or if the file is not a saved catalog
+     */
+    public boolean load(String file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(file))))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a RRD catalog: " + file);
+            }
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported RRD catalog version " + version + ": " + file);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                put(Entry.read(in));
+            }
+            return true;
+        }
+        catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Keeps the catalog updated as the files are created, modified or deleted, until it is closed. The events are
+     * handled by a daemon thread, so the catalog lags behind the files. When events are lost, the directory is
+     * refreshed.
+     *
+     * @throws java.io.IOException Thrown if the directory can't be watched
+     */
+    public synchronized void watch() throws IOException {
+        if (watchService != null) {
+            return;
+        }
+        final WatchService service = directory.getFileSystem().newWatchService();
+        register(directory, service);
+        watchService = service;
+        watcher = new RrdSyncThreadPool.DaemonThreadFactory("RrdCatalog watcher " + directory).newThread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        handle(service.take(), service);
+                    }
+                }
+                catch (InterruptedException | ClosedWatchServiceException e) {
+                    // closed
+                }
+            }
+        });
+        watcher.start();
+    }
+
+    private void register(Path dir, final WatchService service) throws IOException {
+        if (!recursive) {
+            registerDirectory(dir, service);
+            return;
+        }
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path subdir, BasicFileAttributes attrs) throws IOException {
+                registerDirectory(subdir, service);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void registerDirectory(Path dir, WatchService service) throws IOException {
+        dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    // the events of the available keys are handled together, a file modified many times is read once
+    private void handle(WatchKey key, WatchService service) {
+        Set<Path> changed = new LinkedHashSet<Path>();
+        boolean overflow = false;
+        while (key != null) {
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    overflow = true;
+                    continue;
+                }
+                Path child = dir.resolve((Path) event.context());
+                if (recursive && event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child)) {
+                    try {
+                        register(child, service);
+                    }
+                    catch (IOException e) {
+                        // deleted meanwhile
+                    }
+                    overflow = true;
+                }
+                else if (isRrd(child)) {
+                    changed.add(child);
+                }
+            }
+            key.reset();
+            key = service.poll();
+        }
+        if (overflow) {
+            try {
+                refresh();
+            }
+            catch (IOException e) {
+                // the directory is no longer there
+            }
+        }
+        else {
+            synchronized (updateLock) {
+                for (Path file : changed) {
+                    update(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops watching the directory, the entries are kept.
+     *
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    public void close() throws IOException {
+        WatchService service;
+        Thread thread;
+        synchronized (this) {
+            service = watchService;
+            thread = watcher;
+            watchService = null;
+            watcher = null;
+        }
+        if (service != null) {
+            service.close();
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.aerse.core;
+
+import java.util.BitSet;
+
+/**
+ * The same primitive of a fixed number of records, stored at a fixed stride, as the state of each datasource
+ * in an archive. A column holds the offsets and the cached values of all the records in a few arrays, instead
+ * of one {@link RrdPrimitive} object for each record.
+ */
+abstract class RrdColumn {
+    private final RrdBackend backend;
+    private final long pointer;
+    private final int stride;
+    private final int count;
+    private final boolean cachingAllowed;
+    // the records whose value is cached, when caching is allowed
+    private final BitSet cached;
+
+    RrdColumn(RrdUpdater updater, long pointer, int stride, int count) {
+        this.backend = updater.getRrdBackend();
+        this.pointer = pointer;
+        this.stride = stride;
+        this.count = count;
+        this.cachingAllowed = backend.isCachingAllowed();
+        this.cached = cachingAllowed ? new BitSet(count) : null;
+    }
+
+    final long getPointer(int index) {
+        assert index >= 0 && index < count : "Invalid index supplied: " + index + ", count=" + count;
+        return pointer + (long) index * stride;
+    }
+
+    final RrdBackend getBackend() {
+        return backend;
+    }
+
+    final boolean isCachingAllowed() {
+        return cachingAllowed;
+    }
+
+    final boolean isCached(int index) {
+        return cached.get(index);
+    }
+
+    final void setCached(int index) {
+        cached.set(index);
+    }
+}
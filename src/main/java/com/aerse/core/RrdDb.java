@@ -4,7 +4,11 @@ import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 
 import com.aerse.ConsolFun;
 
@@ -60,6 +64,9 @@ public class RrdDb implements RrdUpdater, Closeable {
 	// static final String RRDTOOL = "rrdtool";
 	static final int XML_BUFFER_CAPACITY = 100000; // bytes
 
+	// the bytes read at once when a RRD is opened, enough for the header and a few datasources
+	private static final int DEFINITION_READ_AHEAD = 4096;
+
 	private RrdBackend backend;
 	private RrdAllocator allocator = new RrdAllocator();
 
@@ -345,20 +352,34 @@ public class RrdDb implements RrdUpdater, Closeable {
 		backend = factory.open(rrdUri, readOnly);
 		backend.setFactory(factory);
 		try {
-			// restore header
-			header = new Header(this, (RrdDef) null);
+			// the header and the datasources are read at once
+			backend.readAhead(0, DEFINITION_READ_AHEAD);
+			try {
+				// restore header
+				header = new Header(this, (RrdDef) null);
+
+				if (factory.shouldValidateHeader(rrdUri)) {
+					header.validateHeader();
+				}
 
-			if (factory.shouldValidateHeader(rrdUri)) {
-				header.validateHeader();
+				// restore datasources
+				int dsCount = header.getDsCount();
+				datasources = new Datasource[dsCount];
+				for (int i = 0; i < dsCount; i++) {
+					datasources[i] = new Datasource(this, null);
+				}
+				if (allocator.getAllocationPointer() > DEFINITION_READ_AHEAD) {
+					backend.readAhead(0, allocator.getAllocationPointer());
+				}
+				header.readDefinition();
+				for (Datasource datasource : datasources) {
+					datasource.readDefinition();
+				}
 			}
-
-			// restore datasources
-			int dsCount = header.getDsCount();
-			datasources = new Datasource[dsCount];
-			for (int i = 0; i < dsCount; i++) {
-				datasources[i] = new Datasource(this, null);
+			finally {
+				backend.endReadAhead();
 			}
-			// restore archives
+			// restore archives, their states are created on first use
 			int arcCount = header.getArcCount();
 			archives = new Archive[arcCount];
 			for (int i = 0; i < arcCount; i++) {
@@ -814,6 +835,147 @@ public class RrdDb implements RrdUpdater, Closeable {
 		return archive.fetchData(request);
 	}
 
+	synchronized FetchData fetchData(FetchRequest request, FetchData reuse) throws IOException {
+		if (closed) {
+			throw new IllegalStateException("RRD already closed, cannot fetch data");
+		}
+		Archive archive = findMatchingArchive(request);
+		return archive.fetchData(request, reuse);
+	}
+
+	synchronized Map<ConsolFun, FetchData> fetchData(FetchRequest request, ConsolFun... consolFuns) throws IOException {
+		if (closed) {
+			throw new IllegalStateException("RRD already closed, cannot fetch data");
+		}
+		Map<ConsolFun, FetchData> fetched = new EnumMap<>(ConsolFun.class);
+		// the other archives are chosen with the step of the first one, so that the rows are aligned when possible
+		long alignedResolution = -1;
+		for (ConsolFun consolFun : consolFuns) {
+			if (fetched.containsKey(consolFun)) {
+				continue;
+			}
+			FetchRequest consolFunRequest = new FetchRequest(this, consolFun, request.getFetchStart(),
+					request.getFetchEnd(), request.getResolution());
+			consolFunRequest.setFilter(request.getFilter());
+			consolFunRequest.setConsolidated(request.isConsolidated());
+			Archive archive;
+			if (alignedResolution < 0) {
+				archive = findMatchingArchive(consolFunRequest);
+				alignedResolution = archive.getArcStep();
+			} else {
+				archive = findMatchingArchive(new FetchRequest(this, consolFun, request.getFetchStart(),
+						request.getFetchEnd(), alignedResolution));
+			}
+			fetched.put(consolFun, archive.fetchData(consolFunRequest));
+		}
+		return fetched;
+	}
+
+	synchronized StitchedFetchData fetchStitchedData(FetchRequest request) throws IOException {
+		if (closed) {
+			throw new IllegalStateException("RRD already closed, cannot fetch data");
+		}
+		List<Archive> stitched = findStitchedArchives(request);
+		long fetchStart = request.getFetchStart();
+		long fetchEnd = request.getFetchEnd();
+		// segments are planned from the most recent one, each ending where the finer one begins
+		List<Archive> segmentArchives = new ArrayList<>();
+		List<Timeline> segments = new ArrayList<>();
+		long coverageStart = -1;
+		for (int i = 0; i < stitched.size(); i++) {
+			Archive archive = stitched.get(i);
+			long arcStep = archive.getArcStep();
+			long end;
+			if (segments.isEmpty()) {
+				end = Util.normalize(fetchEnd, arcStep);
+				if (end < fetchEnd) {
+					end += arcStep;
+				}
+			} else {
+				end = Util.normalize(coverageStart, arcStep);
+			}
+			long start = Util.normalize(fetchStart, arcStep);
+			if (i < stitched.size() - 1) {
+				// the first row begins where a row of the coarser archive ends
+				long coarserStep = stitched.get(i + 1).getArcStep();
+				long boundary = archive.getStartTime() - arcStep;
+				if (boundary % coarserStep != 0) {
+					boundary = Util.normalize(boundary, coarserStep) + coarserStep;
+				}
+				long first = Util.normalize(boundary + arcStep, arcStep);
+				if (first < boundary + arcStep) {
+					first += arcStep;
+				}
+				start = Math.max(start, first);
+			}
+			if (start <= end) {
+				segmentArchives.add(0, archive);
+				segments.add(0, new Timeline(start, arcStep, (int) ((end - start) / arcStep + 1)));
+				coverageStart = start - arcStep;
+			}
+		}
+		StitchedFetchData fetchData = new StitchedFetchData(request,
+				segmentArchives.toArray(new Archive[segmentArchives.size()]),
+				segments.toArray(new Timeline[segments.size()]));
+		String[] dsNames = fetchData.getDsNames();
+		double[][] values = fetchData.getValues();
+		byte[] buffer = new byte[8 * fetchData.getRowCount()];
+		int pos = 0;
+		for (int i = 0; i < segments.size(); i++) {
+			Timeline segment = segments.get(i);
+			segmentArchives.get(i).readValues(dsNames, segment.getStart(), segment.getCount(), values, pos, buffer);
+			pos += segment.getCount();
+		}
+		return fetchData;
+	}
+
+	/**
+	 * Returns the archives used to stitch a fetch: starting from the finest one, an archive is used if it goes
+	 * further back in time than the finer archives, until the start of the request is covered.
+	 *
+	 * @param request
+	 *            a {@link com.aerse.core.FetchRequest} object.
+	 * @return the archives, from the finest to the coarsest.
+	 * @throws java.io.IOException
+	 *             if any.
+	 */
+	public List<Archive> findStitchedArchives(FetchRequest request) throws IOException {
+		ConsolFun consolFun = request.getConsolFun();
+		List<Archive> candidates = new ArrayList<>();
+		for (Archive archive : archives) {
+			if (archive.getConsolFun() == consolFun) {
+				int i = candidates.size();
+				while (i > 0 && candidates.get(i - 1).getArcStep() > archive.getArcStep()) {
+					i--;
+				}
+				candidates.add(i, archive);
+			}
+		}
+		if (candidates.isEmpty()) {
+			throw new IllegalStateException("RRD file does not contain RRA: " + consolFun + " archive");
+		}
+		// archives finer than the requested resolution are skipped, unless none is coarse enough
+		long coarsest = candidates.get(candidates.size() - 1).getArcStep();
+		long minStep = Math.min(request.getResolution(), coarsest);
+		List<Archive> stitched = new ArrayList<>();
+		long oldest = Long.MAX_VALUE;
+		for (Archive archive : candidates) {
+			long arcStep = archive.getArcStep();
+			if (arcStep < minStep) {
+				continue;
+			}
+			long arcStart = archive.getStartTime() - arcStep;
+			if (arcStart < oldest) {
+				stitched.add(archive);
+				oldest = arcStart;
+				if (arcStart <= Util.normalize(request.getFetchStart(), arcStep) - arcStep) {
+					break;
+				}
+			}
+		}
+		return stitched;
+	}
+
 	/**
 	 * findMatchingArchive.
 	 *
@@ -25,7 +25,8 @@ import com.aerse.DsType;
  * <li> path to RRD that will be created
  * <li> starting timestamp
  * <li> step
- * <li> version, 1 for linear disposition of archives, 2 for matrix disposition
+ * <li> version, 1 for linear disposition of archives, 2 for matrix disposition, 3 for matrix disposition
+ * with the rows of the archives initialized only when they are first written
  * <li> one or more datasource definitions
  * <li> one or more archive definitions
  * </ul>
@@ -288,7 +289,10 @@ public class RrdDef {
     }
 
     /**
-     * Sets RRD's file version.
+     * Sets RRD's file version. With version 3, the archives are not filled with <code>NaN</code> when the RRD is
+     * created: each archive keeps the number of rows written so far and the others are read as <code>NaN</code>.
+     * Creating a RRD file only writes its header, and a file backend allocates the disk blocks of an archive as
+     * its rows are first written, as the file is sparse on most file systems.
      *
      * @param version the version to set
      */
@@ -622,10 +626,10 @@ public class RrdDef {
         for (int i = 0; i < dsNames.length ; i++) {
             dsNames[i] = dsDefs.get(i).getDsName();
         }
-        return calculateSize(dsCount, arcCount, rowsCount, dsNames);
+        return calculateSize(version, dsCount, arcCount, rowsCount, dsNames);
     }
 
-    static long calculateSize(int dsCount, int arcCount, int rowsCount, String[] dsNames) {
+    static long calculateSize(int version, int dsCount, int arcCount, int rowsCount, String[] dsNames) {
         int postStorePayload = 0;
         for(String n: dsNames) {
             if (n.length() > RrdPrimitive.STRING_LENGTH) {
@@ -635,7 +639,8 @@ public class RrdDef {
         return (24L + 48L * dsCount + 16L * arcCount +
                 20L * dsCount * arcCount + 8L * dsCount * rowsCount) +
                 (1L + 2L * dsCount + arcCount) * 2L * RrdPrimitive.STRING_LENGTH +
-                postStorePayload;
+                postStorePayload +
+                (version >= 3 ? 4L * arcCount : 0L);
     }
 
     /**
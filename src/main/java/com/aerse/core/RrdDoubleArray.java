@@ -10,6 +10,10 @@ class RrdDoubleArray extends RrdPrimitive {
         this.length = length;
     }
 
+    int getLength() {
+        return length;
+    }
+
     void set(int index, double value) throws IOException {
         set(index, value, 1);
     }
@@ -32,4 +36,10 @@ class RrdDoubleArray extends RrdPrimitive {
         return readDouble(index, count);
     }
 
+    void get(int index, int count, double[] values, int pos, byte[] image) throws IOException {
+        assert index + count <= length : "Invalid index/count supplied: " + index +
+                "/" + count + " (length=" + length + ")";
+        readDouble(index, count, values, pos, image);
+    }
+
 }
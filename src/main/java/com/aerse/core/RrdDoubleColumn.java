@@ -0,0 +1,37 @@
+package com.aerse.core;
+
+import java.io.IOException;
+
+class RrdDoubleColumn extends RrdColumn {
+    private final double[] cache;
+
+    RrdDoubleColumn(RrdUpdater updater, long pointer, int stride, int count) {
+        super(updater, pointer, stride, count);
+        cache = isCachingAllowed() ? new double[count] : null;
+    }
+
+    void set(int index, double value) throws IOException {
+        if (!isCachingAllowed()) {
+            getBackend().writeDouble(getPointer(index), value);
+        }
+        // caching allowed
+        else if (!isCached(index) || !Util.equal(cache[index], value)) {
+            // update cache
+            getBackend().writeDouble(getPointer(index), cache[index] = value);
+            setCached(index);
+        }
+    }
+
+    double get(int index) throws IOException {
+        if (!isCachingAllowed()) {
+            return getBackend().readDouble(getPointer(index));
+        }
+        else {
+            if (!isCached(index)) {
+                cache[index] = getBackend().readDouble(getPointer(index));
+                setCached(index);
+            }
+            return cache[index];
+        }
+    }
+}
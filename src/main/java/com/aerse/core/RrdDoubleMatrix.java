@@ -1,21 +1,54 @@
 package com.aerse.core;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 class RrdDoubleMatrix extends RrdPrimitive {
     private static final String LENGTH = ", length=";
     private final int rows;
     private final int columns;
+    // the number of rows initialized, the others are NaN; null when all of them are initialized
+    private final RrdInt written;
 
     RrdDoubleMatrix(RrdUpdater updater, int row, int column, boolean shouldInitialize) throws IOException {
         super(updater, RrdPrimitive.RRD_DOUBLE, row * column, false);
         this.rows = row;
         this.columns = column;
+        this.written = null;
         if (shouldInitialize)
             writeDouble(0, Double.NaN, rows * columns);
     }
 
+    /**
+     * A matrix whose rows are initialized as they are written, in order, from the first one.
+     *
+     * @param written the number of rows initialized, allocated before the matrix
+     */
+    RrdDoubleMatrix(RrdUpdater updater, int row, int column, RrdInt written) throws IOException {
+        super(updater, RrdPrimitive.RRD_DOUBLE, row * column, false);
+        this.rows = row;
+        this.columns = column;
+        this.written = written;
+    }
+
+    // the number of rows that can be read, from index
+    private int readable(int index, int count) throws IOException {
+        return written == null ? count : Math.max(0, Math.min(count, written.get() - index));
+    }
+
+    // the rows before the last written one are filled with NaN, for all the columns
+    private void initialize(int lastIndex) throws IOException {
+        if (written != null) {
+            int initialized = written.get();
+            if (lastIndex >= initialized) {
+                writeDouble(columns * initialized, Double.NaN, (lastIndex + 1 - initialized) * columns);
+                written.set(lastIndex + 1);
+            }
+        }
+    }
+
     void set(int column, int index, double value) throws IOException {
+        initialize(index);
         writeDouble(columns * index + column, value);
     }
 
@@ -23,6 +56,7 @@ class RrdDoubleMatrix extends RrdPrimitive {
         // rollovers not allowed!
         assert index + count <= rows : "Invalid robin index supplied: index=" + index +
                 ", count=" + count + LENGTH + rows;
+        initialize(index + count - 1);
         for (int i = columns * index + column, c = 0; c < count; i += columns, c++)
             writeDouble(i, value);
     }
@@ -40,12 +74,16 @@ class RrdDoubleMatrix extends RrdPrimitive {
         // rollovers not allowed!
         assert index + count <= rows : "Invalid robin index supplied: index=" + index +
                 ", count=" + count + LENGTH + rows;
+        initialize(index + count - 1);
         for (int i = columns * index + column, c = 0; c < count; i += columns, c++)
             writeDouble(i, newValues[c]);
     }
 
     double get(int column, int index) throws IOException {
         assert index < rows : "Invalid index supplied: " + index + LENGTH + rows;
+        if (readable(index, 1) == 0) {
+            return Double.NaN;
+        }
         return readDouble(columns * index + column);
     }
 
@@ -53,12 +91,24 @@ class RrdDoubleMatrix extends RrdPrimitive {
         assert index + count <= rows : "Invalid index/count supplied: " + index +
                 "/" + count + " (length=" + rows + ")";
         double[] values = new double[count];
-        for (int i = columns * index + column, c = 0; c < count; i += columns, c++) {
+        int readable = readable(index, count);
+        for (int i = columns * index + column, c = 0; c < readable; i += columns, c++) {
             values[c] = readDouble(i);
         }
+        Arrays.fill(values, readable, count, Double.NaN);
         return values;
     }
 
+    void get(int column, int index, int count, double[] values, int pos, byte[] image) throws IOException {
+        assert index + count <= rows : "Invalid index/count supplied: " + index +
+                "/" + count + " (length=" + rows + ")";
+        int readable = readable(index, count);
+        for (int i = columns * index + column, c = 0; c < readable; i += columns, c++) {
+            readDouble(i, 1, values, pos + c, image);
+        }
+        Arrays.fill(values, pos + readable, pos + count, Double.NaN);
+    }
+
     /**
      * <p>Getter for the field <code>columns</code>.</p>
      *
@@ -0,0 +1,37 @@
+package com.aerse.core;
+
+import java.io.IOException;
+
+class RrdIntColumn extends RrdColumn {
+    private final int[] cache;
+
+    RrdIntColumn(RrdUpdater updater, long pointer, int stride, int count) {
+        super(updater, pointer, stride, count);
+        cache = isCachingAllowed() ? new int[count] : null;
+    }
+
+    void set(int index, int value) throws IOException {
+        if (!isCachingAllowed()) {
+            getBackend().writeInt(getPointer(index), value);
+        }
+        // caching allowed
+        else if (!isCached(index) || cache[index] != value) {
+            // update cache
+            getBackend().writeInt(getPointer(index), cache[index] = value);
+            setCached(index);
+        }
+    }
+
+    int get(int index) throws IOException {
+        if (!isCachingAllowed()) {
+            return getBackend().readInt(getPointer(index));
+        }
+        else {
+            if (!isCached(index)) {
+                cache[index] = getBackend().readInt(getPointer(index));
+                setCached(index);
+            }
+            return cache[index];
+        }
+    }
+}
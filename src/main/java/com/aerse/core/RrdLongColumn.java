@@ -0,0 +1,37 @@
+package com.aerse.core;
+
+import java.io.IOException;
+
+class RrdLongColumn extends RrdColumn {
+    private final long[] cache;
+
+    RrdLongColumn(RrdUpdater updater, long pointer, int stride, int count) {
+        super(updater, pointer, stride, count);
+        cache = isCachingAllowed() ? new long[count] : null;
+    }
+
+    void set(int index, long value) throws IOException {
+        if (!isCachingAllowed()) {
+            getBackend().writeLong(getPointer(index), value);
+        }
+        // caching allowed
+        else if (!isCached(index) || cache[index] != value) {
+            // update cache
+            getBackend().writeLong(getPointer(index), cache[index] = value);
+            setCached(index);
+        }
+    }
+
+    long get(int index) throws IOException {
+        if (!isCachingAllowed()) {
+            return getBackend().readLong(getPointer(index));
+        }
+        else {
+            if (!isCached(index)) {
+                cache[index] = getBackend().readLong(getPointer(index));
+                setCached(index);
+            }
+            return cache[index];
+        }
+    }
+}
@@ -117,6 +117,17 @@ public class RrdNioBackend extends RrdRandomAccessFileBackend {
         }
     }
 
+    /** {@inheritDoc} */
+    protected synchronized void read(long offset, byte[] b, int off, int len) throws IOException {
+        if (byteBuffer != null) {
+            byteBuffer.position((int) offset);
+            byteBuffer.get(b, off, len);
+        }
+        else {
+            throw new IOException("Read failed, file " + getPath() + " not mapped for I/O");
+        }
+    }
+
     /**
      * Closes the underlying RRD file.
      *
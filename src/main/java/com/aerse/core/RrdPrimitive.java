@@ -23,6 +23,10 @@ abstract class RrdPrimitive {
         this.cachingAllowed = isConstant || backend.isCachingAllowed();
     }
 
+    final long getPointer() {
+        return pointer;
+    }
+
     final byte[] readBytes() throws IOException {
         byte[] b = new byte[byteCount];
         backend.read(pointer, b);
@@ -64,6 +68,11 @@ abstract class RrdPrimitive {
         return backend.readDouble(offset, count);
     }
 
+    final void readDouble(int index, int count, double[] values, int pos, byte[] image) throws IOException {
+        long offset = pointer + index * RRD_PRIM_SIZES[RRD_DOUBLE];
+        backend.readDouble(offset, count, values, pos, image);
+    }
+
     final void writeDouble(double value) throws IOException {
         backend.writeDouble(pointer, value);
     }
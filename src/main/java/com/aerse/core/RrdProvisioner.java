@@ -0,0 +1,223 @@
+package com.aerse.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates many RRD files with the same definition, much faster than a <code>new RrdDb(rrdDef)</code> for each of
+ * them:
+ * <pre>
+ * try (RrdProvisioner provisioner = new RrdProvisioner(rrdDef)) {
+ *     provisioner.create(paths, startTime, 8);
+ * }
+ * </pre>
+ * The content of a new RRD file only depends on its definition, but for a few fields which depend on its start
+ * time: the last update time, the unknown seconds of each datasource and the unknown steps of each archive state.
+ * The provisioner renders the content once, in memory, and saves it to a temporary template file. Each RRD file
+ * is then a copy of the template, done by the file system with {@link FileChannel#transferTo}, and only the fields
+ * depending on the start time are written. The values of version 3 archives are initialized as they are first
+ * written, they are not copied and the files stay sparse, as when they are created by a {@link RrdDb}.
+ * <p>
+ * The files are written directly, as by the file backends: the definition must not use another backend, and the
+ * files must not be open, as in a {@link RrdDbPool}, while they are created.
+ */
+public class RrdProvisioner implements Closeable {
+    private final long step;
+    private final long[] arcSteps;
+    private final int dsCount;
+    private final long lastUpdateTimeOffset;
+    private final long[] nanSecondsOffsets;
+    // for each archive, the offsets of the states of all the datasources
+    private final long[][] nanStepsOffsets;
+    private final Path template;
+    private final FileChannel templateChannel;
+    private final long size;
+    // the start and the end of each region copied from the template, the values of version 3 archives are skipped
+    private final long[] copied;
+
+    /**
+     * Renders the content of the RRD files. The path and the start time of the definition are not used.
+     *
+     * @param rrdDef the definition of the RRD files
+     * @throws java.io.IOException Thrown in case of I/O error, when saving the template file
+     */
+    public RrdProvisioner(RrdDef rrdDef) throws IOException {
+        RrdMemoryBackendFactory factory = new RrdMemoryBackendFactory();
+        RrdDef templateDef = new RrdDef("template", rrdDef.getStartTime(), rrdDef.getStep(), rrdDef.getVersion());
+        templateDef.addDatasource(rrdDef.getDsDefs());
+        templateDef.addArchive(rrdDef.getArcDefs());
+        byte[] image;
+        try (RrdDb rrdDb = new RrdDb(templateDef, factory)) {
+            image = rrdDb.getBytes();
+            step = rrdDb.getHeader().getStep();
+            dsCount = rrdDb.getDsCount();
+            lastUpdateTimeOffset = rrdDb.getHeader().getLastUpdateTimeOffset();
+            nanSecondsOffsets = new long[dsCount];
+            for (int i = 0; i < dsCount; i++) {
+                nanSecondsOffsets[i] = rrdDb.getDatasource(i).getNanSecondsOffset();
+            }
+            arcSteps = new long[rrdDb.getArcCount()];
+            nanStepsOffsets = new long[arcSteps.length][dsCount];
+            boolean sparse = templateDef.getVersion() >= 3;
+            copied = new long[sparse ? 2 * arcSteps.length + 2 : 2];
+            for (int a = 0; a < arcSteps.length; a++) {
+                Archive archive = rrdDb.getArchive(a);
+                arcSteps[a] = archive.getArcStep();
+                for (int i = 0; i < dsCount; i++) {
+                    nanStepsOffsets[a][i] = archive.getArcState(i).getNanStepsOffset();
+                }
+                if (sparse) {
+                    long valuesOffset = archive.getValuesOffset();
+                    copied[2 * a + 1] = valuesOffset;
+                    copied[2 * a + 2] = valuesOffset + (long) archive.getRows() * dsCount
+                            * RrdPrimitive.RRD_PRIM_SIZES[RrdPrimitive.RRD_DOUBLE];
+                }
+            }
+        }
+        size = image.length;
+        copied[copied.length - 1] = size;
+        template = Files.createTempFile("rrd", ".template");
+        try {
+            Files.write(template, image);
+            templateChannel = FileChannel.open(template, StandardOpenOption.READ);
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(template);
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a RRD file, replacing any existing file.
+     *
+     * @param path      the path of the RRD file
+     * @param startTime the start time of the RRD file, in seconds
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    public void create(String path, long startTime) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            // the existing content is dropped, the regions that are not copied are holes
+            file.setLength(0);
+            file.setLength(size);
+            FileChannel channel = file.getChannel();
+            for (int r = 0; r < copied.length; r += 2) {
+                for (long position = copied[r]; position < copied[r + 1]; ) {
+                    channel.position(position);
+                    position += templateChannel.transferTo(position, copied[r + 1] - position, channel);
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(RrdPrimitive.RRD_PRIM_SIZES[RrdPrimitive.RRD_LONG]);
+            write(channel, buffer, lastUpdateTimeOffset, startTime);
+            long nanSeconds = Datasource.initialNanSeconds(startTime, step);
+            for (long offset : nanSecondsOffsets) {
+                write(channel, buffer, offset, nanSeconds);
+            }
+            for (int a = 0; a < arcSteps.length; a++) {
+                long nanSteps = ArcState.initialNanSteps(startTime, step, arcSteps[a]);
+                for (long offset : nanStepsOffsets[a]) {
+                    write(channel, buffer, offset, nanSteps);
+                }
+            }
+        }
+    }
+
+    // RRD primitives are big endian, as the default order of a ByteBuffer
+    private static void write(FileChannel channel, ByteBuffer buffer, long offset, long value) throws IOException {
+        buffer.clear();
+        buffer.putLong(value);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+    }
+
+    /**
+     * Creates RRD files, replacing any existing file, with a bounded number of threads.
+     *
+     * @param paths       the paths of the RRD files
+     * @param startTime   the start time of the RRD files, in seconds
+     * @param concurrency the number of files created at the same time
+     * @throws java.io.IOException the first error, the other threads stop after their current file
+     */
+    public void create(Collection<String> paths, final long startTime, int concurrency) throws IOException {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("Invalid concurrency: " + concurrency);
+        }
+        final List<String> files = new ArrayList<String>(paths);
+        final AtomicInteger next = new AtomicInteger();
+        int threads = Math.min(concurrency, files.size());
+        if (threads <= 1) {
+            create(files, startTime, next);
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new RrdSyncThreadPool.DaemonThreadFactory("RrdProvisioner"));
+        try {
+            List<Future<Void>> workers = new ArrayList<Future<Void>>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        try {
+                            create(files, startTime, next);
+                        }
+                        catch (IOException | RuntimeException e) {
+                            next.set(files.size());
+                            throw e;
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> worker : workers) {
+                worker.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating " + files.size() + " files", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void create(List<String> files, long startTime, AtomicInteger next) throws IOException {
+        for (int i = next.getAndIncrement(); i < files.size(); i = next.getAndIncrement()) {
+            create(files.get(i), startTime);
+        }
+    }
+
+    /**
+     * Deletes the template file.
+     *
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    public void close() throws IOException {
+        templateChannel.close();
+        Files.deleteIfExists(template);
+    }
+}
@@ -61,6 +61,14 @@ public class RrdRandomAccessFileBackend extends  RrdFileBackend {
         }
     }
 
+    /** {@inheritDoc} */
+    protected void read(long offset, byte[] b, int off, int len) throws IOException {
+        rafile.seek(offset);
+        if (rafile.read(b, off, len) != len) {
+            throw new IOException("Not enough bytes available in file " + getPath());
+        }
+    }
+
     /**
      * {@inheritDoc}
      *
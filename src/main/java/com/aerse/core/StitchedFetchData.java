@@ -0,0 +1,190 @@
+package com.aerse.core;
+
+import java.io.IOException;
+
+/**
+ * Class used to represent data fetched from several archives of the RRD at once.
+ * Object of this class is created when the method
+ * {@link com.aerse.core.FetchRequest#fetchStitchedData() fetchStitchedData()} is
+ * called on a {@link com.aerse.core.FetchRequest FetchRequest} object.
+ * <p>
+ *
+ * Each part of the requested range comes from the finest archive holding it: recent rows from
+ * a fine archive, older rows from coarser ones. The rows are returned as a single table, but the
+ * time between consecutive timestamps changes from one segment to the next. Use
+ * {@link #getSegments() getSegments()} to find out the timestamps and step of each segment, and
+ * {@link #getArchives() getArchives()} for the archive it was read from.
+ * <p>
+ *
+ * A row holds the values consolidated over the step of its segment, ending at its timestamp.
+ */
+public class StitchedFetchData {
+    private final FetchRequest request;
+    private final String[] dsNames;
+    private final Archive[] archives;
+    private final Timeline[] segments;
+    private final int rowCount;
+    private final double[][] values;
+    private long[] timestamps;
+
+    StitchedFetchData(FetchRequest request, Archive[] archives, Timeline[] segments) throws IOException {
+        this.request = request;
+        String[] filter = request.getFilter();
+        this.dsNames = filter != null ? filter : request.getParentDb().getDsNames();
+        this.archives = archives;
+        this.segments = segments;
+        int count = 0;
+        for (Timeline segment : segments) {
+            count += segment.getCount();
+        }
+        this.rowCount = count;
+        this.values = new double[dsNames.length][rowCount];
+    }
+
+    /**
+     * Returns the number of rows fetched from the corresponding RRD, in all the segments.
+     *
+     * @return Number of rows.
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Returns the number of columns fetched from the corresponding RRD.
+     *
+     * @return Number of columns (datasources).
+     */
+    public int getColumnCount() {
+        return dsNames.length;
+    }
+
+    /**
+     * Returns the segments of the fetched rows, from the oldest to the most recent one. Each segment
+     * holds equidistant timestamps read from a single archive.
+     *
+     * @return Segments of the rows.
+     */
+    public Timeline[] getSegments() {
+        return segments;
+    }
+
+    /**
+     * Returns the archive each segment was read from.
+     *
+     * @return Archives, in the order of the segments.
+     */
+    public Archive[] getArchives() {
+        return archives;
+    }
+
+    /**
+     * Returns the timestamps of all the rows, in ascending order. Time intervals between
+     * consecutive timestamps are equal within a segment only.
+     *
+     * @return Array of timestamps.
+     */
+    public long[] getTimestamps() {
+        if (timestamps == null) {
+            long[] result = new long[rowCount];
+            int pos = 0;
+            for (Timeline segment : segments) {
+                for (int i = 0; i < segment.getCount(); i++) {
+                    result[pos++] = segment.get(i);
+                }
+            }
+            timestamps = result;
+        }
+        return timestamps;
+    }
+
+    /**
+     * Returns the step of a row, the time over which its values were consolidated.
+     *
+     * @param row Row index.
+     * @return Step of the segment holding the row, in seconds.
+     */
+    public long getStep(int row) {
+        int first = 0;
+        for (Timeline segment : segments) {
+            first += segment.getCount();
+            if (row < first) {
+                return segment.getStep();
+            }
+        }
+        throw new IndexOutOfBoundsException("Invalid row: " + row);
+    }
+
+    /**
+     * Returns all the values for a single datasource, matching the timestamps returned by
+     * {@link #getTimestamps() getTimestamps()}.
+     *
+     * @param dsIndex Datasource index.
+     * @return Array of single datasource values.
+     */
+    public double[] getValues(int dsIndex) {
+        return values[dsIndex];
+    }
+
+    /**
+     * Returns all the values for all datasources.
+     *
+     * @return Two-dimensional array of all datasource values.
+     */
+    public double[][] getValues() {
+        return values;
+    }
+
+    /**
+     * Returns all the values for a single datasource.
+     *
+     * @param dsName Datasource name.
+     * @return Array of single datasource values.
+     */
+    public double[] getValues(String dsName) {
+        for (int dsIndex = 0; dsIndex < dsNames.length; dsIndex++) {
+            if (dsName.equals(dsNames[dsIndex])) {
+                return values[dsIndex];
+            }
+        }
+        throw new IllegalArgumentException("Datasource [" + dsName + "] not found");
+    }
+
+    /**
+     * Returns array of datasource names fetched, only the datasources selected for
+     * fetching if the request was filtered.
+     *
+     * @return Array of datasource names.
+     */
+    public String[] getDsNames() {
+        return dsNames;
+    }
+
+    /**
+     * Returns {@link FetchRequest FetchRequest} object used to create this object.
+     *
+     * @return Fetch request object.
+     */
+    public FetchRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Dumps the content of the whole object. Useful for debugging.
+     *
+     * @return a {@link java.lang.String} containing the contents of this object, for debugging.
+     */
+    public String dump() {
+        StringBuilder buffer = new StringBuilder();
+        long[] t = getTimestamps();
+        for (int row = 0; row < rowCount; row++) {
+            buffer.append(t[row]).append(" (").append(getStep(row)).append("):  ");
+            for (int dsIndex = 0; dsIndex < dsNames.length; dsIndex++) {
+                buffer.append(Util.formatDouble(values[dsIndex][row], true));
+                buffer.append("  ");
+            }
+            buffer.append("\n");
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,83 @@
+package com.aerse.core;
+
+/**
+ * Equidistant timestamps, as fetched from an archive or processed by a {@link com.aerse.data.DataProcessor}:
+ * the timestamp at index i is <code>start + i * step</code>. Only the bounds are stored, the array of all the
+ * timestamps is created on the first call to {@link #getTimestamps()}.
+ */
+public final class Timeline {
+    private final long start;
+    private final long step;
+    private final int count;
+    private volatile long[] timestamps;
+
+    /**
+     * @param start the first timestamp
+     * @param step the time between two timestamps, in seconds
+     * @param count the number of timestamps
+     */
+    public Timeline(long start, long step, int count) {
+        if (step <= 0) {
+            throw new IllegalArgumentException("Invalid step: " + step);
+        }
+        if (count < 0) {
+            throw new IllegalArgumentException("Invalid count: " + count);
+        }
+        this.start = start;
+        this.step = step;
+        this.count = count;
+    }
+
+    /**
+     * @return the first timestamp
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @return the last timestamp
+     */
+    public long getEnd() {
+        return start + (count - 1) * step;
+    }
+
+    /**
+     * @return the time between two timestamps, in seconds
+     */
+    public long getStep() {
+        return step;
+    }
+
+    /**
+     * @return the number of timestamps
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @param index the index of a timestamp
+     * @return the timestamp
+     */
+    public long get(int index) {
+        return start + index * step;
+    }
+
+    /**
+     * Returns all the timestamps. The array is created once and returned by each call, it should not be modified.
+     *
+     * @return the timestamps
+     */
+    public long[] getTimestamps() {
+        long[] result = timestamps;
+        if (result == null) {
+            result = new long[count];
+            for (int i = 0; i < count; i++) {
+                result[i] = start + i * step;
+            }
+            timestamps = result;
+        }
+        return result;
+    }
+}
@@ -1,9 +1,5 @@
 package com.aerse.data;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-
 class Aggregator {
     private final long timestamps[], step;
     private final double[] values;
@@ -59,34 +55,6 @@ class Aggregator {
     }
 
     double getPercentile(long tStart, long tEnd, double percentile) {
-        List<Double> valueList = new ArrayList<Double>();
-        // create a list of included datasource values (different from NaN)
-        for (int i = 0; i < timestamps.length; i++) {
-            long left = Math.max(timestamps[i] - step, tStart);
-            long right = Math.min(timestamps[i], tEnd);
-            if (right > left && !Double.isNaN(values[i])) {
-                valueList.add(new Double(values[i]));
-            }
-        }
-        // create an array to work with
-        int count = valueList.size();
-        if (count > 1) {
-            double[] valuesCopy = new double[count];
-            for (int i = 0; i < count; i++) {
-                valuesCopy[i] = valueList.get(i).doubleValue();
-            }
-            // sort array
-            Arrays.sort(valuesCopy);
-            // skip top (100% - percentile) values
-            double topPercentile = (100.0 - percentile) / 100.0;
-            count -= (int) Math.ceil(count * topPercentile);
-            // if we have anything left...
-            if (count > 0) {
-                return valuesCopy[count - 1];
-            }
-        }
-        // not enough data available
-        return Double.NaN;
+        return new Percentiles(timestamps, values, tStart, tEnd).getPercentile(percentile);
     }
 }
-
@@ -1,20 +1,117 @@
 package com.aerse.data;
 
+import java.util.Map;
+import java.util.Set;
+
+import com.aerse.data.RpnCalculator.Token_Symbol;
+
 class CDef extends Source implements NonRrdSource {
-    private final String rpnExpression;
+    private final RpnExpression expression;
 
     CDef(String name, String rpnExpression) {
+        this(name, new RpnExpression(rpnExpression));
+    }
+
+    CDef(String name, RpnExpression expression) {
         super(name);
-        this.rpnExpression = rpnExpression;
+        this.expression = expression;
     }
 
     String getRpnExpression() {
-        return rpnExpression;
+        return expression.text;
+    }
+
+    RpnExpression getExpression() {
+        return expression;
     }
     
     /** {@inheritDoc} */
     public void calculate(long tStart, long tEnd, DataProcessor dataProcessor) {
-        RpnCalculator calc = new RpnCalculator(rpnExpression, getName(), dataProcessor);
+        RpnCalculator calc = new RpnCalculator(expression, getName(), dataProcessor);
         setValues(calc.calculateValues());
     }
+
+    /**
+     * Calculates the last values only, the first ones didn't change.
+     *
+     * @param known the values until from
+     * @param from the first value to calculate
+     * @param dataProcessor the processor of the sources
+     */
+    void calculate(double[] known, int from, DataProcessor dataProcessor) {
+        RpnCalculator calc = new RpnCalculator(expression, getName(), dataProcessor);
+        setValues(calc.calculateValues(known, from));
+    }
+
+    /**
+     * @param firstChanged the first changed value of the sources that changed from another position
+     * @param from the first changed value of the other sources
+     * @return the first value of this CDEF that changes with them, 0 when it depends on the position in the span or
+     * on the time it is calculated
+     */
+    int getFirstChanged(Map<String, Integer> firstChanged, int from) {
+        if (isPositional() || isVolatile()) {
+            return 0;
+        }
+        int first = Integer.MAX_VALUE;
+        boolean lookAhead = false;
+        for (int i = 0; i < expression.tokens.length; i++) {
+            Token_Symbol symbol = expression.symbols[i];
+            String token = expression.tokens[i];
+            // the trend of a slot uses the next one too
+            lookAhead |= symbol == Token_Symbol.TKN_TREND || symbol == Token_Symbol.TKN_TRENDNAN;
+            if (symbol == null) {
+                if (token.startsWith("PREV(") && token.endsWith(")")) {
+                    token = token.substring(5, token.length() - 1);
+                }
+                Integer changed = firstChanged.get(token);
+                first = Math.min(first, changed != null ? changed : from);
+            }
+        }
+        first = Math.min(first, from);
+        return Math.max(0, lookAhead ? first - 1 : first);
+    }
+
+    /**
+     * @param names the names of some sources
+     * @return true if the expression uses one of the sources, or its previous values
+     */
+    boolean uses(Set<String> names) {
+        for (int i = 0; i < expression.tokens.length; i++) {
+            String token = expression.tokens[i];
+            if (expression.symbols[i] == null) {
+                if (token.startsWith("PREV(") && token.endsWith(")")) {
+                    token = token.substring(5, token.length() - 1);
+                }
+                if (names.contains(token)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the values depend on their position in the span, not only on their timestamp and history
+     */
+    boolean isPositional() {
+        for (Token_Symbol symbol : expression.symbols) {
+            if (symbol == Token_Symbol.TKN_COUNT || symbol == Token_Symbol.TKN_PREDICT || symbol == Token_Symbol.TKN_PREDICTSIGMA) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the values change each time they are calculated, with NOW, RANDOM or RND
+     */
+    boolean isVolatile() {
+        for (Token_Symbol symbol : expression.symbols) {
+            if (symbol == Token_Symbol.TKN_NOW || symbol == Token_Symbol.TKN_RANDOM || symbol == Token_Symbol.TKN_RND) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
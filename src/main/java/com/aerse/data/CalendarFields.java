@@ -0,0 +1,115 @@
+package com.aerse.data;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.temporal.TemporalField;
+import java.time.temporal.WeekFields;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Calendar fields of timestamps in a time zone, as used by the calendar RPN operators. The fields of a
+ * processor's timestamps are computed in one pass and cached, without allocating a calendar per slot: the
+ * zone offset is only looked up again when a transition is crossed, and the date fields when the day changes.
+ * <p>
+ * Fields are identified by the {@link Calendar} constants and have the same values, so MONTH is zero-based
+ * and WEEK_OF_YEAR uses the default locale's week definition.
+ */
+class CalendarFields {
+    private final long[] timestamps;
+    private final TimeZone tz;
+    private final ZoneRules rules;
+    private final TemporalField weekOfYear;
+    private final Map<Integer, double[]> cache = new HashMap<Integer, double[]>();
+
+    // the zone offset, valid for timestamps in [validFrom, validUntil[
+    private long validFrom = 1;
+    private long validUntil = 0;
+    private int offset;
+
+    // the date fields of the last local day used
+    private long day = Long.MIN_VALUE;
+    private int year;
+    private int month;
+    private int dayOfMonth;
+    private int week;
+
+    CalendarFields(long[] timestamps, TimeZone tz) {
+        this.timestamps = timestamps;
+        this.tz = tz;
+        this.rules = tz.toZoneId().getRules();
+        this.weekOfYear = WeekFields.of(Locale.getDefault(Locale.Category.FORMAT)).weekOfWeekBasedYear();
+    }
+
+    boolean isFor(long[] timestamps, TimeZone tz) {
+        return this.timestamps == timestamps && this.tz.equals(tz);
+    }
+
+    /**
+     * @param field a calendar field
+     * @return the field for each of the timestamps
+     */
+    double[] get(int field) {
+        double[] values = cache.get(field);
+        if (values == null) {
+            values = new double[timestamps.length];
+            for (int i = 0; i < timestamps.length; i++) {
+                values[i] = get(timestamps[i], field);
+            }
+            cache.put(field, values);
+        }
+        return values;
+    }
+
+    /**
+     * @param timestamp a timestamp in seconds
+     * @param field a calendar field
+     * @return the field for the timestamp
+     */
+    int get(long timestamp, int field) {
+        if (timestamp < validFrom || timestamp >= validUntil) {
+            Instant instant = Instant.ofEpochSecond(timestamp);
+            offset = rules.getOffset(instant).getTotalSeconds();
+            ZoneOffsetTransition previous = rules.previousTransition(instant.plusSeconds(1));
+            ZoneOffsetTransition next = rules.nextTransition(instant);
+            validFrom = previous == null ? Long.MIN_VALUE : previous.toEpochSecond();
+            validUntil = next == null ? Long.MAX_VALUE : next.toEpochSecond();
+        }
+        long local = timestamp + offset;
+        int secondOfDay = (int) Math.floorMod(local, 86400L);
+        switch (field) {
+        case Calendar.HOUR_OF_DAY:
+            return secondOfDay / 3600;
+        case Calendar.MINUTE:
+            return secondOfDay / 60 % 60;
+        case Calendar.SECOND:
+            return secondOfDay % 60;
+        }
+        long localDay = Math.floorDiv(local, 86400L);
+        if (localDay != day) {
+            LocalDate date = LocalDate.ofEpochDay(localDay);
+            day = localDay;
+            year = date.getYear();
+            month = date.getMonthValue() - 1;
+            dayOfMonth = date.getDayOfMonth();
+            week = date.get(weekOfYear);
+        }
+        switch (field) {
+        case Calendar.YEAR:
+            return year;
+        case Calendar.MONTH:
+            return month;
+        case Calendar.DAY_OF_MONTH:
+            return dayOfMonth;
+        case Calendar.WEEK_OF_YEAR:
+            return week;
+        default:
+            throw new IllegalArgumentException("Unsupported calendar field " + field);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.aerse.data;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Receives the values of a time span processed in chunks, see {@link DataProcessor#processData(long, ChunkListener)}.
+ */
+public interface ChunkListener {
+    /**
+     * Called for each chunk, in order. The arrays belong to the listener.
+     *
+     * @param timestamps the timestamps of the chunk
+     * @param values the values of each source but the VDEFs at those timestamps, in the order the sources were
+     * defined
+     * @throws java.io.IOException to stop the processing
+     */
+    void chunk(long[] timestamps, Map<String, double[]> values) throws IOException;
+
+    /**
+     * Called once the last chunk was given, with the VDEFs calculated over the whole span from the values of the
+     * chunks.
+     *
+     * @param variables the value of each VDEF, in the order the sources were defined
+     * @throws java.io.IOException to report an error
+     */
+    default void end(Map<String, Variable.Value> variables) throws IOException {
+    }
+}
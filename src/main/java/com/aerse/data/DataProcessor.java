@@ -6,6 +6,7 @@ import com.aerse.core.FetchRequest;
 import com.aerse.core.RrdBackendFactory;
 import com.aerse.core.RrdDb;
 import com.aerse.core.RrdDbPool;
+import com.aerse.core.Timeline;
 import com.aerse.core.Util;
 
 import java.io.IOException;
@@ -13,12 +14,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.stream.Stream;
 
 /**
  * <p>Class which should be used for all calculations based on the data fetched from RRD files. This class
@@ -61,8 +64,11 @@ public class DataProcessor {
     public static final boolean DEFAULT_POOL_USAGE_POLICY = false;
     private boolean poolUsed = DEFAULT_POOL_USAGE_POLICY;
 
-    private final long tStart;
-    private long tEnd, timestamps[];
+    // the number of fetched values above which DEFs are normalized in parallel
+    private static final int PARALLEL_NORMALIZATION_THRESHOLD = 1 << 16;
+
+    private long tStart, tEnd;
+    private Timeline timeline;
     private long lastRrdArchiveUpdateTime = 0;
     // this will be adjusted later
     private long step = 0;
@@ -76,6 +82,9 @@ public class DataProcessor {
 
     private Def[] defSources;
 
+    // calendar fields of the timestamps, shared by all CDEFs
+    private CalendarFields calendarFields;
+
     /**
      * Creates new DataProcessor object for the given time span. Ending timestamp may be set to zero.
      * In that case, the class will try to find the optimal ending timestamp based on the last update time of
@@ -246,11 +255,15 @@ public class DataProcessor {
      * @return array of timestamps in seconds
      */
     public long[] getTimestamps() {
-        if (timestamps == null) {
+        return getTimeline().getTimestamps();
+    }
+
+    Timeline getTimeline() {
+        if (timeline == null) {
             throw new IllegalArgumentException("Timestamps not calculated yet");
         }
         else {
-            return timestamps;
+            return timeline;
         }
     }
 
@@ -310,6 +323,32 @@ public class DataProcessor {
         return source.getAggregates(tStart, tEnd);
     }
     
+    /**
+     * Returns the aggregated values of a datasource for many time ranges, like per day totals or per hour
+     * averages. An index of the datasource values is built on the first call, so each range is then
+     * aggregated without scanning its values.
+     *
+     * @param sourceName Datasource name
+     * @param starts     Start of each range, in seconds
+     * @param ends       End of each range, in seconds
+     * @return Object containing all aggregated values, for each range
+     * @throws java.lang.IllegalArgumentException Thrown if invalid datasource name is specified,
+     *                                  if the arrays don't have the same length, or if datasource values
+     *                                  are not yet calculated (method {@link #processData()} was not called)
+     */
+    public Aggregates[] getWindowAggregates(String sourceName, long[] starts, long[] ends) {
+        if (starts.length != ends.length) {
+            throw new IllegalArgumentException("Unequal number of range starts and ends: " + starts.length + " and " + ends.length);
+        }
+        Source source = getSource(sourceName);
+        RangeIndex index = source.getRangeIndex(source.getTimestamps(), getValues(sourceName));
+        Aggregates[] aggregates = new Aggregates[starts.length];
+        for (int i = 0; i < starts.length; i++) {
+            aggregates[i] = index.getAggregates(starts[i], ends[i]);
+        }
+        return aggregates;
+    }
+
     /**
      * Extract the variable value from an already define Variable datasource (a VDEF)
      * 
@@ -400,6 +439,24 @@ public class DataProcessor {
         return source.getPercentile(tStart, tEnd, percentile);
     }
 
+    /**
+     * Counts the values of one or more sources in a single {@link PercentileSketch}, so that approximate
+     * percentiles of all of them can be computed without storing or sorting the values.
+     *
+     * @param accuracy the relative accuracy of the sketch
+     * @param sourceNames the names of the sources
+     * @return a sketch of the values of the sources over the processing range
+     */
+    public PercentileSketch getPercentileSketch(double accuracy, String... sourceNames) {
+        PercentileSketch sketch = new PercentileSketch(accuracy);
+        for (String sourceName : sourceNames) {
+            Variable.SKETCHPERCENTILE var = new Variable.SKETCHPERCENTILE(DEFAULT_PERCENTILE, accuracy);
+            var.calculate(getSource(sourceName), tStart, tEnd);
+            sketch.merge(var.getSketch());
+        }
+        return sketch;
+    }
+
     /**
      * Returns array of datasource names defined in this DataProcessor.
      *
@@ -430,6 +487,14 @@ public class DataProcessor {
         return values;
     }
 
+    CalendarFields getCalendarFields() {
+        long[] timestamps = getTimestamps();
+        if (calendarFields == null || !calendarFields.isFor(timestamps, tz)) {
+            calendarFields = new CalendarFields(timestamps, tz);
+        }
+        return calendarFields;
+    }
+
     Source getSource(String sourceName) {
         Source source = sources.get(sourceName);
         if (source != null) {
@@ -596,6 +661,10 @@ public class DataProcessor {
         sources.put(name, def);
     }
 
+    void addSource(Source source) {
+        sources.put(source.getName(), source);
+    }
+
     /////////////////////////////////////////////////////////////////
     // CALCULATIONS
     /////////////////////////////////////////////////////////////////
@@ -617,6 +686,217 @@ public class DataProcessor {
         calculateNonRrdSources();
     }
 
+    /**
+     * Moves the processed time span forward, keeping its length, for live graphs that are refreshed often. It
+     * should be called after {@link #processData()}, only the values that may have changed are then processed
+     * again:
+     * <ul>
+     * <li>the rows of the RRD files that were not archived yet are fetched and normalized, the other ones are
+     * shifted;</li>
+     * <li>CDEFs are calculated from the first changed value, with the values before it as history, so that
+     * PREV or TREND look back beyond the start of the span as they did when those values were calculated;</li>
+     * <li>CDEFs using NOW, RANDOM or RND, and the CDEFs using them, are calculated again over the whole span;</li>
+     * <li>VDEFs, and the CDEFs using them, COUNT or PREDICT, are calculated again over the whole span.</li>
+     * </ul>
+     * The values are copied in new arrays, the arrays returned before are not modified. If the step changes or
+     * the span moves by more than its length, all the data is processed again.
+     * <p>
+     * The DEFs added with their {@link FetchData} can't be fetched again, the span can't be moved with them.
+     *
+     * @param tEnd the new ending timestamp, not before the current one
+     * @throws java.io.IOException Thrown in case of I/O error (while fetching data from RRD files)
+     * @throws java.lang.IllegalStateException Thrown if a DEF was added with its FetchData
+     */
+    public void slideTo(long tEnd) throws IOException {
+        if (timeline == null) {
+            throw new IllegalStateException("Data not processed yet");
+        }
+        if (tEnd < this.tEnd) {
+            throw new IllegalArgumentException("Invalid ending timestamp, before the current one: " + tEnd);
+        }
+        checkRefetchable();
+        Timeline previous = timeline;
+        // the rows before the end of all the archives won't change anymore
+        long stable = previous.getEnd();
+        long[] archiveSteps = new long[defSources.length];
+        long maxArchiveStep = 0;
+        for (int i = 0; i < defSources.length; i++) {
+            stable = Math.min(stable, defSources[i].getArchiveEndTime());
+            archiveSteps[i] = defSources[i].getFetchStep();
+            maxArchiveStep = Math.max(maxArchiveStep, archiveSteps[i]);
+        }
+        tStart += tEnd - this.tEnd;
+        this.tEnd = tEnd;
+        createTimestamps();
+        int count = timeline.getCount();
+        long shift = (timeline.getStart() - previous.getStart()) / step;
+        if (count != previous.getCount() || shift >= count - 2) {
+            reprocessData();
+            return;
+        }
+        int from = (int) (count - shift);
+        while (from > 0 && timeline.get(from - 1) > stable) {
+            from--;
+        }
+        from = Math.min(from, count - 2);
+        FetchData[] fetched = fetchRrdData(timeline.get(from) - step - maxArchiveStep, tEnd, archiveSteps);
+        for (int i = 0; i < defSources.length; i++) {
+            if (fetched[i].getStep() != archiveSteps[i]) {
+                reprocessData();
+                return;
+            }
+        }
+        Normalizer normalizer = new Normalizer(new Timeline(timeline.get(from), step, count - from));
+        for (int i = 0; i < defSources.length; i++) {
+            Def def = defSources[i];
+            double[] values = shift(def.getValues(), (int) shift, from);
+            double[] tail = normalizer.normalize(fetched[i].getTimeline(), fetched[i].getValues(def.getDsName()));
+            System.arraycopy(tail, 0, values, from, tail.length);
+            def.appendFetchData(fetched[i], tStart);
+            def.setValues(values);
+        }
+        // the first changed value of the sources that didn't change from the first row fetched again
+        Map<String, Integer> firstChanged = new HashMap<String, Integer>();
+        for (Source source : sources.values()) {
+            int first = source instanceof CDef ? ((CDef) source).getFirstChanged(firstChanged, from) : from;
+            if (source instanceof CDef && first > 0) {
+                double[] known = shift(source.getValues(), (int) shift, first);
+                source.setTimeline(timeline);
+                ((CDef) source).calculate(known, first, this);
+                firstChanged.put(source.getName(), first);
+                continue;
+            }
+            if (source instanceof PDef) {
+                double[] known = shift(source.getValues(), (int) shift, from);
+                source.setTimeline(timeline);
+                ((PDef) source).calculate(known, from);
+                continue;
+            }
+            source.setTimeline(timeline);
+            if (source instanceof NonRrdSource) {
+                ((NonRrdSource) source).calculate(tStart, tEnd, this);
+                firstChanged.put(source.getName(), 0);
+            }
+        }
+    }
+
+    /**
+     * Processes the time span in chunks, for spans too long to hold all their values at once. The values of each
+     * chunk are given to the listener, and the processor holds two chunks at a time: the one being processed and
+     * the previous one, as history for PREV or TREND. So TREND windows should not be longer than a chunk.
+     * <p>
+     * VDEFs are not given with the chunks. Those calculated from the moments of the values (MIN, MAX, AVERAGE,
+     * STDDEV and the least squares line), TOTAL and the approximate percentile of a {@link PercentileSketch} are
+     * accumulated from the values of each chunk, and given to the listener at the end, over the whole span.
+     * <p>
+     * The other VDEFs, the CDEFs using a VDEF, COUNT or PREDICT, depend on the whole span and can't be processed in
+     * chunks. Neither can the DEFs added with their {@link FetchData}, that can't be fetched chunk by chunk. Once
+     * this method returns, the processor holds the values of the last two chunks, and the VDEFs their value over
+     * the whole span.
+     *
+     * @param chunkSpan the time covered by each chunk, in seconds, it should be many steps long
+     * @param listener receives the values of each chunk, then the VDEFs
+     * @throws java.io.IOException Thrown in case of I/O error (while fetching data from RRD files)
+     */
+    public void processData(long chunkSpan, ChunkListener listener) throws IOException {
+        if (tEnd == 0) {
+            throw new IllegalStateException("The ending timestamp is needed to process data in chunks");
+        }
+        if (chunkSpan <= 0) {
+            throw new IllegalArgumentException("Invalid chunk span: " + chunkSpan);
+        }
+        // the VDEFs are accumulated from the values of their source in each chunk
+        Map<String, Variable.Accumulator> accumulators = new LinkedHashMap<String, Variable.Accumulator>();
+        for (Source source : sources.values()) {
+            if (source instanceof VDef) {
+                Variable.Accumulator accumulator = ((VDef) source).accumulator();
+                if (accumulator != null && !(getSource(((VDef) source).getDefName()) instanceof VDef)) {
+                    accumulators.put(source.getName(), accumulator);
+                }
+            }
+        }
+        for (Source source : sources.values()) {
+            boolean wholeSpan = source instanceof VDef ? !accumulators.containsKey(source.getName()) :
+                    source instanceof CDef && (((CDef) source).isPositional() || ((CDef) source).uses(accumulators.keySet()));
+            if (wholeSpan) {
+                throw new IllegalArgumentException("Source " + source.getName() +
+                        " depends on the whole span, it can't be processed in chunks");
+            }
+        }
+        for (Source source : sources.values()) {
+            if (source instanceof Def && ((Def) source).isSupplied()) {
+                throw new IllegalArgumentException("Source " + source.getName() +
+                        " was added with its fetched data, it can't be processed in chunks");
+            }
+        }
+        long start = tStart;
+        long end = tEnd;
+        tEnd = Math.min(tStart + 2 * chunkSpan, end);
+        processData();
+        long emitted = Long.MIN_VALUE;
+        while (true) {
+            boolean last = tEnd == end;
+            int from = 0;
+            while (timeline.get(from) <= emitted) {
+                from++;
+            }
+            // the last value waits for the next chunk, as TREND looks ahead
+            int to = last ? timeline.getCount() : timeline.getCount() - 1;
+            Map<String, double[]> values = new LinkedHashMap<String, double[]>();
+            for (Source source : sources.values()) {
+                if (!(source instanceof VDef)) {
+                    values.put(source.getName(), Arrays.copyOfRange(source.getValues(), from, to));
+                }
+            }
+            long[] timestamps = new Timeline(timeline.get(from), step, to - from).getTimestamps();
+            for (Map.Entry<String, Variable.Accumulator> entry : accumulators.entrySet()) {
+                double[] sourceValues = values.get(((VDef) sources.get(entry.getKey())).getDefName());
+                for (int i = 0; i < timestamps.length; i++) {
+                    // the points of the period, as found by Variable.calculate
+                    if (Math.min(timestamps[i], end) > Math.max(timestamps[i] - step, start)) {
+                        entry.getValue().add(timestamps[i], sourceValues[i]);
+                    }
+                }
+            }
+            listener.chunk(timestamps, values);
+            if (last) {
+                Map<String, Variable.Value> variables = new LinkedHashMap<String, Variable.Value>();
+                for (Map.Entry<String, Variable.Accumulator> entry : accumulators.entrySet()) {
+                    entry.getValue().end();
+                    variables.put(entry.getKey(), getVariable(entry.getKey()));
+                }
+                listener.end(variables);
+                return;
+            }
+            emitted = timeline.get(to - 1);
+            slideTo(Math.min(tEnd + chunkSpan, end));
+        }
+    }
+
+    // the DEFs given their fetched data have no request to fetch them again
+    private void checkRefetchable() {
+        for (Def def : defSources) {
+            if (def.isSupplied()) {
+                throw new IllegalStateException("Source " + def.getName() +
+                        " was added with its fetched data, it can't be fetched again");
+            }
+        }
+    }
+
+    // the first values, until from, shifted by the moved rows
+    private static double[] shift(double[] values, int shift, int from) {
+        double[] shifted = new double[values.length];
+        System.arraycopy(values, shift, shifted, 0, from);
+        return shifted;
+    }
+
+    private void reprocessData() throws IOException {
+        for (Def def : defSources) {
+            def.setFetchData(null);
+        }
+        processData();
+    }
+
     /**
      * Method used to calculate datasource values which should be presented on the graph
      * based on the desired graph width. Each value returned represents a single pixel on the graph.
@@ -653,12 +933,12 @@ public class DataProcessor {
         // this is the ugliest nested loop I have ever made
         for (int pix = 0, ref = 0; pix < pixelCount; pix++) {
             double t = tStart + (double) (span * pix) / (double) (pixelCount - 1);
-            while (ref < timestamps.length) {
-                if (t <= timestamps[ref] - step) {
+            while (ref < timeline.getCount()) {
+                if (t <= timeline.get(ref) - step) {
                     // too left, nothing to do, already NaN
                     break;
                 }
-                else if (t <= timestamps[ref]) {
+                else if (t <= timeline.get(ref)) {
                     // in brackets, get this value
                     pixelValues[pix] = values[ref];
                     break;
@@ -672,6 +952,46 @@ public class DataProcessor {
         return pixelValues;
     }
 
+    /**
+     * Method used to consolidate datasource values per pixel, based on the graph width set with a
+     * {@link #setPixelCount(int)} method call. Instead of the single value found at the pixel timestamp,
+     * each pixel consolidates all the values since the previous pixel, so that spikes are not lost when
+     * there are more values than pixels. Calling it with MIN, AVERAGE and MAX gives an envelope of the values.
+     * Corresponding timestamps can be found in the array returned from {@link #getTimestampsPerPixel()} method.
+     *
+     * @param sourceName Datasource name
+     * @param consolFun  Consolidation function applied to the values of each pixel. AVERAGE and TOTAL weight
+     *                   the values by the time they overlap the pixel
+     * @return Per-pixel datasource values
+     * @throws java.lang.IllegalArgumentException Thrown if datasource values are not yet calculated (method {@link #processData()}
+     *                                  was not called)
+     */
+    public double[] getValuesPerPixel(String sourceName, ConsolFun consolFun) {
+        double[] values = getValues(sourceName);
+        return new Downsampler(getTimestamps(), values).consolidate(getTimestampsPerPixel(), consolFun);
+    }
+
+    /**
+     * Method used to select the datasource values which should be presented on the graph, with the
+     * Largest-Triangle-Three-Buckets algorithm. At most as many values as pixels are selected (see
+     * {@link #setPixelCount(int)}), each with its own timestamp, chosen so that the shape of the values,
+     * peaks included, is kept.
+     *
+     * @param sourceName Datasource name
+     * @return The selected values and their timestamps, in ascending time order
+     * @throws java.lang.IllegalArgumentException Thrown if datasource values are not yet calculated (method {@link #processData()}
+     *                                  was not called)
+     */
+    public Variable.Value[] getPointsPerPixel(String sourceName) {
+        double[] values = getValues(sourceName);
+        int[] selected = new Downsampler(getTimestamps(), values).largestTriangles(pixelCount);
+        Variable.Value[] points = new Variable.Value[selected.length];
+        for (int i = 0; i < selected.length; i++) {
+            points[i] = new Variable.Value(timeline.get(selected[i]), values[selected[i]]);
+        }
+        return points;
+    }
+
     /**
      * Calculates timestamps which correspond to individual pixels on the graph.
      *
@@ -712,8 +1032,8 @@ public class DataProcessor {
             buffer.append(format(name, 20));
         }
         buffer.append("\n");
-        for (int i = 0; i < timestamps.length; i++) {
-            buffer.append(format(Long.toString(timestamps[i]), 12));
+        for (int i = 0; i < timeline.getCount(); i++) {
+            buffer.append(format(Long.toString(timeline.get(i)), 12));
             for (int j = 0; j < names.length; j++) {
                 buffer.append(format(Util.formatDouble(values[j][i]), 20));
             }
@@ -745,8 +1065,26 @@ public class DataProcessor {
 
     private void fetchRrdData() throws IOException {
         long tEndFixed = (tEnd == 0) ? Util.getTime() : tEnd;
+        FetchData[] fetched = fetchRrdData(tStart, tEndFixed, null);
         for (int i = 0; i < defSources.length; i++) {
-            if (!defSources[i].isLoaded()) {
+            if (fetched[i] != null) {
+                defSources[i].setFetchData(fetched[i]);
+            }
+        }
+    }
+
+    /**
+     * Fetches the DEFs that are not loaded yet, or all of them when archive steps are given, each RRD file once.
+     *
+     * @param fetchStart the start of the fetch requests
+     * @param fetchEnd the end of the fetch requests
+     * @param archiveSteps the step of the archive to fetch for each DEF, or null for the fetch request resolution
+     * @return the fetched data for each DEF, null for those already loaded
+     */
+    private FetchData[] fetchRrdData(long fetchStart, long fetchEnd, long[] archiveSteps) throws IOException {
+        FetchData[] fetched = new FetchData[defSources.length];
+        for (int i = 0; i < defSources.length; i++) {
+            if (fetched[i] == null && (archiveSteps != null || !defSources[i].isLoaded())) {
                 // not fetched yet
                 Set<String> dsNames = new HashSet<String>();
                 dsNames.add(defSources[i].getDsName());
@@ -762,13 +1100,13 @@ public class DataProcessor {
                     rrd = getRrd(defSources[i]);
                     lastRrdArchiveUpdateTime = Math.max(lastRrdArchiveUpdateTime, rrd.getLastArchiveUpdateTime());
                     FetchRequest req = rrd.createFetchRequest(defSources[i].getConsolFun(),
-                            tStart, tEndFixed, fetchRequestResolution);
+                            fetchStart, fetchEnd, archiveSteps != null ? archiveSteps[i] : fetchRequestResolution);
                     req.setFilter(dsNames);
                     FetchData data = req.fetchData();
-                    defSources[i].setFetchData(data);
+                    fetched[i] = data;
                     for (int j = i + 1; j < defSources.length; j++) {
                         if (defSources[i].isCompatibleWith(defSources[j])) {
-                            defSources[j].setFetchData(data);
+                            fetched[j] = data;
                         }
                     }
                 }
@@ -779,6 +1117,7 @@ public class DataProcessor {
                 }
             }
         }
+        return fetched;
     }
 
     private void fixZeroEndingTimestamp() {
@@ -823,34 +1162,42 @@ public class DataProcessor {
             t2 += step;
         }
         int count = (int) (((t2 - t1) / step) + 1);
-        timestamps = new long[count];
-        for (int i = 0; i < count; i++) {
-            timestamps[i] = t1;
-            t1 += step;
-        }
+        timeline = new Timeline(t1, step, count);
     }
 
     private void assignTimestampsToSources() {
         for (Source src : sources.values()) {
-            src.setTimestamps(timestamps);
+            src.setTimeline(timeline);
         }
     }
 
     private void normalizeRrdValues() {
-        Normalizer normalizer = new Normalizer(timestamps);
+        Normalizer normalizer = new Normalizer(timeline);
+        // the normalizer holds no state, many long DEFs are worth normalizing in parallel
+        long rrdCount = 0;
         for (Def def : defSources) {
-            long[] rrdTimestamps = def.getRrdTimestamps();
-            double[] rrdValues = def.getRrdValues();
-            def.setValues(normalizer.normalize(rrdTimestamps, rrdValues));
+            rrdCount += def.getRrdTimeline().getCount();
+        }
+        Stream<Def> defs = Arrays.stream(defSources);
+        if (defSources.length > 1 && rrdCount >= PARALLEL_NORMALIZATION_THRESHOLD) {
+            defs = defs.parallel();
         }
+        defs.forEach(def -> def.setValues(normalizer.normalize(def.getRrdTimeline(), def.getRrdValues())));
     }
 
     private void calculateNonRrdSources() {
+        // consecutive element-wise CDEFs are evaluated together, sharing common sub-expressions
+        RpnPlanner planner = new RpnPlanner(this);
         for (Source source : sources.values()) {
+            if (source instanceof CDef && planner.add((CDef) source)) {
+                continue;
+            }
             if (source instanceof NonRrdSource) {
+                planner.calculate();
                 ((NonRrdSource)source).calculate(tStart, tEnd, this);
             }
         }
+        planner.calculate();
     }
 
     private RrdDb getRrd(Def def) throws IOException {
@@ -2,6 +2,7 @@ package com.aerse.data;
 
 import com.aerse.ConsolFun;
 import com.aerse.core.FetchData;
+import com.aerse.core.Timeline;
 import com.aerse.core.Util;
 
 import java.io.IOException;
@@ -10,6 +11,13 @@ class Def extends Source {
     private final String path, dsName, backend;
     private final ConsolFun consolFun;
     private FetchData fetchData;
+    // the fetched data was given, there is no request to fetch it again
+    private final boolean supplied;
+    // resolved on first use, it's needed for each pair of DEFs when fetching
+    private String canonicalPath;
+    // the fetched rows, when they were not fetched at once
+    private Timeline rrdTimeline;
+    private double[] rrdValues;
 
     Def(String name, FetchData fetchData) {
         this(name, name, fetchData);
@@ -19,8 +27,8 @@ class Def extends Source {
         this(name,
                 fetchData.getRequest().getParentDb().getPath(),
                 dsName, fetchData.getRequest().getConsolFun(),
-                fetchData.getRequest().getParentDb().getRrdBackend().getFactory().getName()
-                );
+                fetchData.getRequest().getParentDb().getRrdBackend().getFactory().getName(),
+                true);
         this.fetchData = fetchData;
     }
 
@@ -29,11 +37,21 @@ class Def extends Source {
     }
 
     Def(String name, String path, String dsName, ConsolFun consolFunc, String backend) {
+        this(name, path, dsName, consolFunc, backend, false);
+    }
+
+    private Def(String name, String path, String dsName, ConsolFun consolFunc, String backend, boolean supplied) {
         super(name);
         this.path = path;
         this.dsName = dsName;
         this.consolFun = consolFunc;
         this.backend = backend;
+        this.supplied = supplied;
+    }
+
+    Def(String name, String path, String dsName, ConsolFun consolFunc, String backend, String canonicalPath) {
+        this(name, path, dsName, consolFunc, backend);
+        this.canonicalPath = canonicalPath;
     }
 
     String getPath() {
@@ -41,7 +59,10 @@ class Def extends Source {
     }
 
     String getCanonicalPath() throws IOException {
-        return Util.getCanonicalPath(path);
+        if (canonicalPath == null) {
+            canonicalPath = Util.getCanonicalPath(path);
+        }
+        return canonicalPath;
     }
 
     String getDsName() {
@@ -65,14 +86,53 @@ class Def extends Source {
 
     void setFetchData(FetchData fetchData) {
         this.fetchData = fetchData;
+        this.rrdTimeline = null;
+        this.rrdValues = null;
+    }
+
+    /**
+     * Appends the rows fetched for a span moved forward to the rows fetched before, that were already archived
+     * and are still in the span.
+     *
+     * @param fetchData the rows fetched from the end of the archived rows, with the same step
+     * @param tStart the start of the span
+     */
+    void appendFetchData(FetchData fetchData, long tStart) {
+        Timeline rows = getRrdTimeline();
+        double[] v = getRrdValues();
+        Timeline tail = fetchData.getTimeline();
+        double[] tailValues = fetchData.getValues(dsName);
+        long step = rows.getStep();
+        long first = Util.normalize(tStart, step);
+        int from = indexAtOrAfter(rows, first);
+        int to = Math.max(from, Math.min(rows.getCount(), (int) Math.floorDiv(getArchiveEndTime() - rows.getStart(), step) + 1));
+        long next = to > from ? rows.get(to - 1) + step : first;
+        int tailFrom = indexAtOrAfter(tail, next);
+        int count = to - from + tail.getCount() - tailFrom;
+        double[] values = new double[count];
+        System.arraycopy(v, from, values, 0, to - from);
+        System.arraycopy(tailValues, tailFrom, values, to - from, tail.getCount() - tailFrom);
+        this.fetchData = fetchData;
+        this.rrdTimeline = new Timeline(to > from ? rows.get(from) : tail.get(tailFrom), step, count);
+        this.rrdValues = values;
+    }
+
+    // the index of the first timestamp at or after t
+    private static int indexAtOrAfter(Timeline timeline, long t) {
+        long index = -Math.floorDiv(timeline.getStart() - t, timeline.getStep());
+        return (int) Math.max(0, Math.min(timeline.getCount(), index));
+    }
+
+    Timeline getRrdTimeline() {
+        return rrdTimeline != null ? rrdTimeline : fetchData.getTimeline();
     }
 
     long[] getRrdTimestamps() {
-        return fetchData.getTimestamps();
+        return getRrdTimeline().getTimestamps();
     }
 
     double[] getRrdValues() {
-        return fetchData.getValues(dsName);
+        return rrdValues != null ? rrdValues : fetchData.getValues(dsName);
     }
 
     long getArchiveEndTime() {
@@ -86,16 +146,20 @@ class Def extends Source {
     Aggregates getAggregates(long tStart, long tEnd) {
         long[] t = getRrdTimestamps();
         double[] v = getRrdValues();
-        return new Aggregator(t, v).getAggregates(tStart, tEnd);
+        return getRangeIndex(t, v).getAggregates(tStart, tEnd);
     }
 
     double getPercentile(long tStart, long tEnd, double percentile) {
         long[] t = getRrdTimestamps();
         double[] v = getRrdValues();
-        return new Aggregator(t, v).getPercentile(tStart, tEnd, percentile);
+        return getPercentiles(t, v, tStart, tEnd).getPercentile(percentile);
     }
 
     boolean isLoaded() {
         return fetchData != null;
     }
+
+    boolean isSupplied() {
+        return supplied;
+    }
 }
@@ -0,0 +1,163 @@
+package com.aerse.data;
+
+import com.aerse.ConsolFun;
+import com.aerse.core.Util;
+
+/**
+ * Reductions of a source to the pixels of a graph, that keep its peaks visible unlike picking one value
+ * per pixel. Both run in a single linear pass over the values.
+ */
+class Downsampler {
+    private final long[] timestamps;
+    private final double[] values;
+    private final long step;
+
+    Downsampler(long[] timestamps, double[] values) {
+        this.timestamps = timestamps;
+        this.values = values;
+        this.step = timestamps[1] - timestamps[0];
+    }
+
+    /**
+     * Consolidates, for each pixel, the steps that overlap the time since the previous pixel. The first
+     * pixel covers as much time before it as the second one. AVERAGE and TOTAL weight each value by the
+     * seconds it overlaps the pixel, NaN are ignored.
+     *
+     * @param pixelTimestamps the timestamp of each pixel, in ascending order
+     * @param consolFun the consolidation function
+     * @return the consolidated value for each pixel, NaN if no value overlaps it
+     */
+    double[] consolidate(long[] pixelTimestamps, ConsolFun consolFun) {
+        int pixelCount = pixelTimestamps.length;
+        double[] pixelValues = new double[pixelCount];
+        long previous = pixelCount > 1 ? 2 * pixelTimestamps[0] - pixelTimestamps[1] : pixelTimestamps[0] - step;
+        for (int pix = 0, first = 0; pix < pixelCount; pix++) {
+            long right = pixelTimestamps[pix];
+            // at least one second, so that close pixels still get the value at their timestamp
+            long left = Math.min(previous, right - 1);
+            previous = right;
+            while (first < timestamps.length && timestamps[first] <= left) {
+                first++;
+            }
+            double value = Double.NaN;
+            long seconds = 0;
+            for (int i = first; i < timestamps.length && timestamps[i] - step < right; i++) {
+                double v = values[i];
+                if (Double.isNaN(v)) {
+                    continue;
+                }
+                long overlap = Math.min(timestamps[i], right) - Math.max(timestamps[i] - step, left);
+                switch (consolFun) {
+                case MIN:
+                    value = Double.isNaN(value) ? v : Math.min(value, v);
+                    break;
+                case MAX:
+                    value = Double.isNaN(value) ? v : Math.max(value, v);
+                    break;
+                case FIRST:
+                    if (Double.isNaN(value)) {
+                        value = v;
+                    }
+                    break;
+                case LAST:
+                    value = v;
+                    break;
+                case AVERAGE:
+                case TOTAL:
+                    value = Util.sum(value, v * overlap);
+                    seconds += overlap;
+                    break;
+                }
+            }
+            pixelValues[pix] = consolFun == ConsolFun.AVERAGE && seconds > 0 ? value / seconds : value;
+        }
+        return pixelValues;
+    }
+
+    /**
+     * Selects at most threshold points with the Largest-Triangle-Three-Buckets algorithm: the first and last
+     * points are kept and, in each bucket between them, the point that makes the largest triangle with the
+     * point selected in the previous bucket and the average of the next bucket.
+     * <p>
+     * NaN are never selected, unless a bucket only holds NaN: its first point is then kept, so that the gap
+     * stays visible.
+     *
+     * @param threshold the maximum number of points
+     * @return the indexes of the selected points, in ascending order
+     */
+    int[] largestTriangles(int threshold) {
+        int count = values.length;
+        if (threshold >= count) {
+            int[] all = new int[count];
+            for (int i = 0; i < count; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        if (threshold < 3) {
+            throw new IllegalArgumentException("Can't reduce to less than 3 points: " + threshold);
+        }
+        int[] selected = new int[threshold];
+        selected[0] = 0;
+        int a = 0;
+        // the points between the first and last ones are split in threshold - 2 buckets
+        int buckets = threshold - 2;
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            int from = bucketStart(bucket, count, buckets);
+            int to = bucketStart(bucket + 1, count, buckets);
+            // the average point of the next bucket, the last point for the last bucket
+            int nextFrom = to;
+            int nextTo = bucket + 1 < buckets ? bucketStart(bucket + 2, count, buckets) : count;
+            double cx = 0;
+            double cy = 0;
+            int cn = 0;
+            for (int i = nextFrom; i < nextTo; i++) {
+                if (!Double.isNaN(values[i])) {
+                    cx += timestamps[i];
+                    cy += values[i];
+                    cn++;
+                }
+            }
+            if (cn > 0) {
+                cx /= cn;
+                cy /= cn;
+            }
+            else {
+                cx = (timestamps[nextFrom] + timestamps[nextTo - 1]) / 2.0;
+                cy = Double.NaN;
+            }
+            double ax = timestamps[a];
+            double ay = values[a];
+            // without one of the other corners, the point farthest from the other one is kept
+            if (Double.isNaN(ay)) {
+                ay = cy;
+            }
+            if (Double.isNaN(cy)) {
+                cy = ay;
+            }
+            if (Double.isNaN(ay)) {
+                ay = cy = 0;
+            }
+            int best = from;
+            double bestArea = -1;
+            for (int i = from; i < to; i++) {
+                if (Double.isNaN(values[i])) {
+                    continue;
+                }
+                double area = Math.abs((ax - cx) * (values[i] - ay) - (ax - timestamps[i]) * (cy - ay));
+                if (area > bestArea) {
+                    bestArea = area;
+                    best = i;
+                }
+            }
+            selected[bucket + 1] = best;
+            a = best;
+        }
+        selected[threshold - 1] = count - 1;
+        return selected;
+    }
+
+    private static int bucketStart(int bucket, int count, int buckets) {
+        return 1 + (int) ((long) bucket * (count - 2) / buckets);
+    }
+}
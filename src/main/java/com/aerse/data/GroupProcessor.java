@@ -0,0 +1,253 @@
+package com.aerse.data;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.aerse.ConsolFun;
+import com.aerse.core.FetchData;
+import com.aerse.core.FetchRequest;
+import com.aerse.core.RrdDb;
+import com.aerse.core.RrdDbPool;
+import com.aerse.core.Timeline;
+import com.aerse.core.Util;
+
+/**
+ * Aggregates a datasource over many RRD files, grouped by a key, as "the sum of bytes_in of all the hosts of each
+ * rack". Each file is added to a group, and each group is reduced with the same {@link GroupReducer}s:
+ * <pre>
+ * GroupProcessor gp = new GroupProcessor(start, end, 300, "bytes_in", ConsolFun.AVERAGE);
+ * gp.addFile("rack1", "host1.rrd");
+ * gp.addFile("rack1", "host2.rrd");
+ * gp.addFile("rack2", "host3.rrd");
+ * gp.addReducer("total", new GroupReducer.SUM());
+ * gp.addReducer("p95", new GroupReducer.PERCENTILE(95));
+ * gp.processData();
+ * double[] total = gp.getValues("rack1", "total");
+ * </pre>
+ * The files are opened through the {@link RrdDbPool}, by a bounded number of threads. The values of each file
+ * are normalized to the timestamps of the processor, as for a {@link DataProcessor}, and added to the
+ * accumulators of its group before the next file is fetched, so that the memory used depends on the number of
+ * groups and not on the number of files.
+ */
+public class GroupProcessor {
+    /**
+     * Default number of files fetched at the same time.
+     */
+    public static final int DEFAULT_CONCURRENCY = 8;
+
+    private static final class Group {
+        private final GroupReducer.Accumulator[] accumulators;
+        private int fileCount;
+
+        Group(List<GroupReducer> reducers, int count) {
+            accumulators = new GroupReducer.Accumulator[reducers.size()];
+            for (int i = 0; i < accumulators.length; i++) {
+                accumulators[i] = reducers.get(i).createAccumulator(count);
+            }
+        }
+
+        synchronized void add(double[] values) {
+            for (GroupReducer.Accumulator accumulator : accumulators) {
+                accumulator.add(values);
+            }
+            fileCount++;
+        }
+    }
+
+    private final long tStart;
+    private final long tEnd;
+    private final long step;
+    private final String dsName;
+    private final ConsolFun consolFun;
+    private final RrdFileSet files = new RrdFileSet();
+    private final List<String> fileGroups = new ArrayList<String>();
+    private final Map<String, GroupReducer> reducers = new LinkedHashMap<String, GroupReducer>();
+    private int concurrency = DEFAULT_CONCURRENCY;
+
+    private Timeline timeline;
+    private Map<String, Group> groups;
+    private Map<String, Map<String, double[]>> values;
+
+    /**
+     * Creates a processor for the given time span and datasource.
+     *
+     * @param tStart    Starting timestamp in seconds
+     * @param tEnd      Ending timestamp in seconds
+     * @param step      Time between two consecutive values, in seconds
+     * @param dsName    Datasource name defined in each RRD file
+     * @param consolFun Consolidation function used to fetch the datasource
+     */
+    public GroupProcessor(long tStart, long tEnd, long step, String dsName, ConsolFun consolFun) {
+        if (tStart < 0 || tStart >= tEnd) {
+            throw new IllegalArgumentException("Invalid timestamps specified: " + tStart + ", " + tEnd);
+        }
+        if (step <= 0) {
+            throw new IllegalArgumentException("Invalid step: " + step);
+        }
+        this.tStart = tStart;
+        this.tEnd = tEnd;
+        this.step = step;
+        this.dsName = dsName;
+        this.consolFun = consolFun;
+    }
+
+    /**
+     * Adds a RRD file to a group.
+     *
+     * @param group name of the group
+     * @param path  path to the RRD file, opened with the default factory of the pool
+     */
+    public void addFile(String group, String path) {
+        files.add(path);
+        fileGroups.add(group);
+    }
+
+    /**
+     * Adds a RRD file to a group.
+     *
+     * @param group name of the group
+     * @param uri   URI of the RRD file
+     */
+    public void addFile(String group, URI uri) {
+        files.add(uri);
+        fileGroups.add(group);
+    }
+
+    /**
+     * Adds a reduction calculated for each group.
+     *
+     * @param name    name of the reduction, to get its values
+     * @param reducer how the values of the files are combined
+     */
+    public void addReducer(String name, GroupReducer reducer) {
+        reducers.put(name, reducer);
+    }
+
+    /**
+     * Sets the number of files fetched at the same time, each one by its own thread. It should not be more
+     * than the capacity of the {@link RrdDbPool}.
+     *
+     * @param concurrency number of threads, {@link #DEFAULT_CONCURRENCY} by default
+     */
+    public void setConcurrency(int concurrency) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("Invalid concurrency: " + concurrency);
+        }
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Fetches all the files and reduces the values of each group.
+     *
+     * @throws java.io.IOException Thrown in case of I/O error, while fetching data from some RRD file
+     */
+    public void processData() throws IOException {
+        if (reducers.isEmpty()) {
+            throw new IllegalStateException("No reducer defined");
+        }
+        long t1 = Util.normalize(tStart, step);
+        long t2 = Util.normalize(tEnd, step);
+        if (t2 < tEnd) {
+            t2 += step;
+        }
+        timeline = new Timeline(t1, step, (int) ((t2 - t1) / step + 1));
+        List<String> reducerNames = new ArrayList<String>(reducers.keySet());
+        List<GroupReducer> reducerList = new ArrayList<GroupReducer>(reducers.values());
+        groups = new LinkedHashMap<String, Group>();
+        for (String group : fileGroups) {
+            if (!groups.containsKey(group)) {
+                groups.put(group, new Group(reducerList, timeline.getCount()));
+            }
+        }
+        final Normalizer normalizer = new Normalizer(timeline);
+        files.process(concurrency, new RrdFileSet.Task() {
+            @Override
+            FetchRequest createRequest(int index, RrdDb rrdDb) {
+                FetchRequest request = rrdDb.createFetchRequest(consolFun, tStart, tEnd, step);
+                request.setFilter(dsName);
+                return request;
+            }
+
+            @Override
+            void process(int index, FetchData fetchData) {
+                groups.get(fileGroups.get(index)).add(normalizer.normalize(fetchData.getTimeline(), fetchData.getValues(0)));
+            }
+        });
+        values = new LinkedHashMap<String, Map<String, double[]>>();
+        for (Map.Entry<String, Group> entry : groups.entrySet()) {
+            Map<String, double[]> groupValues = new LinkedHashMap<String, double[]>();
+            for (int i = 0; i < reducerNames.size(); i++) {
+                groupValues.put(reducerNames.get(i), entry.getValue().accumulators[i].getValues());
+            }
+            values.put(entry.getKey(), groupValues);
+        }
+    }
+
+    private void checkProcessed() {
+        if (values == null) {
+            throw new IllegalStateException("Data not processed yet");
+        }
+    }
+
+    /**
+     * Returns the timestamps of the reduced values.
+     *
+     * @return the timestamps
+     */
+    public long[] getTimestamps() {
+        checkProcessed();
+        return timeline.getTimestamps();
+    }
+
+    /**
+     * Returns the names of the groups, in the order their first file was added.
+     *
+     * @return the names of the groups
+     */
+    public Set<String> getGroups() {
+        checkProcessed();
+        return Collections.unmodifiableSet(values.keySet());
+    }
+
+    /**
+     * Returns the number of files of a group.
+     *
+     * @param group name of the group
+     * @return the number of files
+     */
+    public int getFileCount(String group) {
+        checkProcessed();
+        return getGroup(group).fileCount;
+    }
+
+    /**
+     * Returns the values of a reduction for a group.
+     *
+     * @param group   name of the group
+     * @param reducer name of the reduction
+     * @return the values, one for each timestamp
+     */
+    public double[] getValues(String group, String reducer) {
+        checkProcessed();
+        getGroup(group);
+        double[] result = values.get(group).get(reducer);
+        if (result == null) {
+            throw new IllegalArgumentException("Unknown reducer: " + reducer);
+        }
+        return result;
+    }
+
+    private Group getGroup(String group) {
+        Group result = groups.get(group);
+        if (result == null) {
+            throw new IllegalArgumentException("Unknown group: " + group);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,194 @@
+package com.aerse.data;
+
+import java.util.Arrays;
+
+import com.aerse.core.Util;
+
+/**
+ * Reduces the values of the files of a group of a {@link GroupProcessor} into a single series: at each
+ * timestamp, the values of all the files are combined. Unknown values are ignored, a value is unknown when
+ * no file of the group has a known value at that timestamp.
+ * <p>
+ * A reducer only describes the calculation, the same one can be used for many groups and processors.
+ */
+public abstract class GroupReducer {
+
+    abstract Accumulator createAccumulator(int count);
+
+    /**
+     * Holds the partial result of a group, the values of each file are added as they are fetched.
+     */
+    abstract static class Accumulator {
+        abstract void add(double[] values);
+
+        abstract double[] getValues();
+    }
+
+    private static class Values extends Accumulator {
+        final double[] values;
+
+        Values(int count, double initial) {
+            values = new double[count];
+            Arrays.fill(values, initial);
+        }
+
+        @Override
+        void add(double[] added) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = reduce(values[i], added[i]);
+            }
+        }
+
+        double reduce(double value, double added) {
+            return Util.sum(value, added);
+        }
+
+        @Override
+        double[] getValues() {
+            return values;
+        }
+    }
+
+    /**
+     * The sum of the values.
+     */
+    public static class SUM extends GroupReducer {
+        @Override
+        Accumulator createAccumulator(int count) {
+            return new Values(count, Double.NaN);
+        }
+    }
+
+    /**
+     * The smallest of the values.
+     */
+    public static class MIN extends GroupReducer {
+        @Override
+        Accumulator createAccumulator(int count) {
+            return new Values(count, Double.NaN) {
+                @Override
+                double reduce(double value, double added) {
+                    return Util.min(value, added);
+                }
+            };
+        }
+    }
+
+    /**
+     * The biggest of the values.
+     */
+    public static class MAX extends GroupReducer {
+        @Override
+        Accumulator createAccumulator(int count) {
+            return new Values(count, Double.NaN) {
+                @Override
+                double reduce(double value, double added) {
+                    return Util.max(value, added);
+                }
+            };
+        }
+    }
+
+    /**
+     * The number of known values, 0 when there is none.
+     */
+    public static class COUNT extends GroupReducer {
+        @Override
+        Accumulator createAccumulator(int count) {
+            return new Values(count, 0) {
+                @Override
+                double reduce(double value, double added) {
+                    return Double.isNaN(added) ? value : value + 1;
+                }
+            };
+        }
+    }
+
+    /**
+     * The average of the known values.
+     */
+    public static class AVERAGE extends GroupReducer {
+        @Override
+        Accumulator createAccumulator(final int count) {
+            return new Accumulator() {
+                private final double[] sums = new double[count];
+                private final int[] counts = new int[count];
+
+                @Override
+                void add(double[] values) {
+                    for (int i = 0; i < count; i++) {
+                        if (!Double.isNaN(values[i])) {
+                            sums[i] += values[i];
+                            counts[i]++;
+                        }
+                    }
+                }
+
+                @Override
+                double[] getValues() {
+                    double[] values = new double[count];
+                    for (int i = 0; i < count; i++) {
+                        values[i] = counts[i] == 0 ? Double.NaN : sums[i] / counts[i];
+                    }
+                    return values;
+                }
+            };
+        }
+    }
+
+    /**
+     * The n-th percentile of the values, estimated with a {@link PercentileSketch} for each timestamp, so that
+     * the values of the files are not kept.
+     */
+    public static class PERCENTILE extends GroupReducer {
+        private final double percentile;
+        private final double accuracy;
+
+        /**
+         * @param percentile the percentile, between 0 and 100
+         */
+        public PERCENTILE(double percentile) {
+            this(percentile, PercentileSketch.DEFAULT_ACCURACY);
+        }
+
+        /**
+         * @param percentile the percentile, between 0 and 100
+         * @param accuracy the relative accuracy of the result
+         */
+        public PERCENTILE(double percentile, double accuracy) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("Invalid percentile: " + percentile);
+            }
+            this.percentile = percentile;
+            this.accuracy = accuracy;
+        }
+
+        @Override
+        Accumulator createAccumulator(final int count) {
+            return new Accumulator() {
+                private final PercentileSketch[] sketches = new PercentileSketch[count];
+
+                @Override
+                void add(double[] values) {
+                    for (int i = 0; i < count; i++) {
+                        if (!Double.isNaN(values[i])) {
+                            if (sketches[i] == null) {
+                                sketches[i] = new PercentileSketch(accuracy);
+                            }
+                            sketches[i].add(values[i]);
+                        }
+                    }
+                }
+
+                @Override
+                double[] getValues() {
+                    double[] values = new double[count];
+                    for (int i = 0; i < count; i++) {
+                        values[i] = sketches[i] == null ? Double.NaN : sketches[i].getPercentile(percentile);
+                    }
+                    return values;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.aerse.data;
+
+/**
+ * The statistics needed by the AVERAGE, MIN, MAX, STDDEV and least squares line variables, computed
+ * together in a single pass over a range of a source. Sums use a compensated (Neumaier) summation, the
+ * standard deviation the Welford recurrence.
+ * <p>
+ * As in the variables, x in the least squares line is the position of the point in the range, NaN included.
+ */
+class Moments {
+    private final long[] sourceTimestamps;
+    private final double[] sourceValues;
+    private final int first;
+    private final int last;
+
+    // count of values that are not NaN
+    final int count;
+    final double min;
+    final long minTimestamp;
+    final double max;
+    final long maxTimestamp;
+    final double sum;
+    // Welford's sum of squared differences from the mean
+    final double squaredDeviations;
+    final double sumX;
+    final double sumXX;
+    final double sumXY;
+    final double sumYY;
+
+    /**
+     * @param timestamps the timestamps for the value
+     * @param values the actual values
+     * @param first the first point of the range
+     * @param last the last point of the range, inclusive
+     */
+    Moments(long[] timestamps, double[] values, int first, int last) {
+        this(timestamps, values, first, last, new Accumulator());
+    }
+
+    /**
+     * @param accumulator the points of a range, added one at a time
+     */
+    Moments(Accumulator accumulator) {
+        this(null, null, 0, -1, accumulator);
+    }
+
+    private Moments(long[] timestamps, double[] values, int first, int last, Accumulator accumulator) {
+        this.sourceTimestamps = timestamps;
+        this.sourceValues = values;
+        this.first = first;
+        this.last = last;
+        for (int i = first; i <= last; i++) {
+            accumulator.add(timestamps[i], values[i]);
+        }
+        this.count = accumulator.count;
+        this.min = accumulator.min;
+        this.minTimestamp = accumulator.minTimestamp;
+        this.max = accumulator.max;
+        this.maxTimestamp = accumulator.maxTimestamp;
+        this.squaredDeviations = accumulator.squaredDeviations;
+        this.sum = accumulator.sum.value();
+        this.sumX = accumulator.sumX.value();
+        this.sumXX = accumulator.sumXX.value();
+        this.sumXY = accumulator.sumXY.value();
+        this.sumYY = accumulator.sumYY.value();
+    }
+
+    boolean isFor(long[] timestamps, double[] values, int first, int last) {
+        return sourceTimestamps == timestamps && sourceValues == values && this.first == first && this.last == last;
+    }
+
+    double getAverage() {
+        return count > 0 ? sum / count : Double.NaN;
+    }
+
+    double getStdDev() {
+        return count > 1 ? Math.sqrt(squaredDeviations / (count - 1)) : Double.NaN;
+    }
+
+    double getSlope() {
+        /* Bestfit line by linear least squares method */
+        return (sumX * sum - count * sumXY) / (sumX * sumX - count * sumXX);
+    }
+
+    double getIntercept() {
+        return (sum - getSlope() * sumX) / count;
+    }
+
+    double getCorrelation() {
+        return (sumXY - (sumX * sum) / count) /
+                Math.sqrt((sumXX - (sumX * sumX) / count) * (sumYY - (sum * sum) / count));
+    }
+
+    /**
+     * The running statistics of the points of a range, added in order, NaN included, so that a range can be
+     * given in consecutive chunks.
+     */
+    static final class Accumulator {
+        // the position of the next point in the range
+        private long position = 0;
+        private int count = 0;
+        private double min = Double.NaN;
+        private long minTimestamp = 0;
+        private double max = Double.NaN;
+        private long maxTimestamp = 0;
+        private double mean = 0;
+        private double squaredDeviations = 0;
+        private final CompensatedSum sum = new CompensatedSum();
+        private final CompensatedSum sumX = new CompensatedSum();
+        private final CompensatedSum sumXX = new CompensatedSum();
+        private final CompensatedSum sumXY = new CompensatedSum();
+        private final CompensatedSum sumYY = new CompensatedSum();
+
+        void add(long timestamp, double value) {
+            double x = position++;
+            if (Double.isNaN(value)) {
+                return;
+            }
+            count++;
+            // the last of equal extremes is kept
+            if (count == 1 || value <= min) {
+                min = value;
+                minTimestamp = timestamp;
+            }
+            if (count == 1 || value >= max) {
+                max = value;
+                maxTimestamp = timestamp;
+            }
+            // See Knuth TAOCP vol 2, 3rd edition, page 232 and http://www.johndcook.com/standard_deviation.html
+            if (count == 1) {
+                mean = value;
+            }
+            else {
+                double delta = value - mean;
+                mean += delta / count;
+                squaredDeviations += delta * (value - mean);
+            }
+            sum.add(value);
+            sumX.add(x);
+            sumXX.add(x * x);
+            sumXY.add(x * value);
+            sumYY.add(value * value);
+        }
+    }
+
+    /**
+     * Neumaier's variant of the Kahan summation, that also handles terms bigger than the running sum.
+     */
+    private static final class CompensatedSum {
+        private double sum = 0;
+        private double compensation = 0;
+
+        void add(double value) {
+            double t = sum + value;
+            if (Math.abs(sum) >= Math.abs(value)) {
+                compensation += (sum - t) + value;
+            }
+            else {
+                compensation += (value - t) + sum;
+            }
+            sum = t;
+        }
+
+        double value() {
+            // infinite sums have no meaningful compensation
+            return Double.isInfinite(sum) ? sum : sum + compensation;
+        }
+    }
+}
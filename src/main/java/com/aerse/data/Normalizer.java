@@ -1,60 +1,113 @@
 package com.aerse.data;
 
+import com.aerse.core.Timeline;
 import com.aerse.core.Util;
 
-import java.util.Arrays;
-
+/**
+ * Resamples values fetched with some step to the timestamps of a processor. Each value is the average of the
+ * raw values that are not NaN, weighted by the time they overlap its step.
+ * <p>
+ * When one step is a multiple of the other and the timestamps are aligned, each raw step falls in a single step
+ * or the reverse, and values are simply reduced or expanded. Other cases are resolved by merging both series of
+ * steps. A normalizer holds no state, so many DEFs can be normalized with it at the same time.
+ */
 class Normalizer {
-    private final long[] timestamps;
+    private final Timeline timeline;
     final int count;
     final long step;
 
-    Normalizer(long[] timestamps) {
-        this.timestamps = timestamps;
-        this.step = timestamps[1] - timestamps[0];
-        this.count = timestamps.length;
+    Normalizer(Timeline timeline) {
+        this.timeline = timeline;
+        this.step = timeline.getStep();
+        this.count = timeline.getCount();
     }
 
-    double[] normalize(long[] rawTimestamps, double[] rawValues) {
-        int rawCount = rawTimestamps.length;
-        long rawStep = rawTimestamps[1] - rawTimestamps[0];
+    double[] normalize(Timeline raw, double[] rawValues) {
+        long rawStep = raw.getStep();
         // check if we have a simple match
-        if (rawCount == count && rawStep == step && rawTimestamps[0] == timestamps[0]) {
+        if (raw.getCount() == count && rawStep == step && raw.getStart() == timeline.getStart()) {
             return getCopyOf(rawValues);
         }
-        // reset all normalized values to NaN
         double[] values = new double[count];
-        Arrays.fill(values, Double.NaN);
-        double[] weights = new double[count];
-        Arrays.fill(weights, Double.NaN);
-        for (int rawSeg = 0, seg = 0; rawSeg < rawCount && seg < count; rawSeg++) {
-            double rawValue = rawValues[rawSeg];
-            if (!Double.isNaN(rawValue)) {
-                long rawLeft = rawTimestamps[rawSeg] - rawStep;
-                while (seg < count && rawLeft >= timestamps[seg]) {
-                    seg++;
-                }
-                boolean overlap = true;
-                for (int fillSeg = seg; overlap && fillSeg < count; fillSeg++) {
-                    long left = timestamps[fillSeg] - step;
-                    long t1 = Math.max(rawLeft, left);
-                    long t2 = Math.min(rawTimestamps[rawSeg], timestamps[fillSeg]);
-                    if (t1 < t2) {
-                        values[fillSeg] = Util.sum(values[fillSeg], (t2 - t1) * rawValues[rawSeg]);
-                        weights[fillSeg] = Util.sum(weights[fillSeg], t2 - t1);
-                    }
-                    else {
-                        overlap = false;
-                    }
+        long offset = timeline.getStart() - raw.getStart();
+        if (step % rawStep == 0 && offset % rawStep == 0) {
+            reduce(raw, rawValues, values);
+        }
+        else if (rawStep % step == 0 && offset % step == 0) {
+            expand(raw, rawValues, values);
+        }
+        else {
+            merge(raw, rawValues, values);
+        }
+        return values;
+    }
+
+    /**
+     * Each step holds step / rawStep whole raw steps, the last one ending with it.
+     */
+    private void reduce(Timeline raw, double[] rawValues, double[] values) {
+        int rawCount = raw.getCount();
+        long rawStep = raw.getStep();
+        long ratio = step / rawStep;
+        long lastRaw = (timeline.getStart() - raw.getStart()) / rawStep;
+        for (int seg = 0; seg < count; seg++, lastRaw += ratio) {
+            int from = (int) Math.max(lastRaw - ratio + 1, 0);
+            int to = (int) Math.min(lastRaw, rawCount - 1);
+            double value = Double.NaN;
+            long weight = 0;
+            for (int rawSeg = from; rawSeg <= to; rawSeg++) {
+                double rawValue = rawValues[rawSeg];
+                if (!Double.isNaN(rawValue)) {
+                    value = Util.sum(value, rawStep * rawValue);
+                    weight += rawStep;
                 }
             }
+            values[seg] = weight > 0 ? value / weight : Double.NaN;
+        }
+    }
+
+    /**
+     * Each step is within a single raw step.
+     */
+    private void expand(Timeline raw, double[] rawValues, double[] values) {
+        int rawCount = raw.getCount();
+        long rawStep = raw.getStep();
+        for (int seg = 0; seg < count; seg++) {
+            // the raw step ending at or after this timestamp
+            long rawSeg = -Math.floorDiv(raw.getStart() - timeline.get(seg), rawStep);
+            double rawValue = rawSeg >= 0 && rawSeg < rawCount ? rawValues[(int) rawSeg] : Double.NaN;
+            // bit-identical to the old weighted division, where the product may round or overflow
+            values[seg] = Double.isNaN(rawValue) ? Double.NaN : (step * rawValue) / step;
         }
+    }
+
+    /**
+     * Walks both series of steps together, each step being the average of the raw steps it overlaps.
+     */
+    private void merge(Timeline raw, double[] rawValues, double[] values) {
+        int rawCount = raw.getCount();
+        long rawStep = raw.getStep();
+        int firstRaw = 0;
         for (int seg = 0; seg < count; seg++) {
-            if (!Double.isNaN(weights[seg])) {
-                values[seg] /= weights[seg];
+            long right = timeline.get(seg);
+            long left = right - step;
+            // skip the raw steps ending before this step
+            while (firstRaw < rawCount && raw.get(firstRaw) <= left) {
+                firstRaw++;
             }
+            double value = Double.NaN;
+            long weight = 0;
+            for (int rawSeg = firstRaw; rawSeg < rawCount && raw.get(rawSeg) - rawStep < right; rawSeg++) {
+                double rawValue = rawValues[rawSeg];
+                if (!Double.isNaN(rawValue)) {
+                    long t1 = Math.max(raw.get(rawSeg) - rawStep, left);
+                    long t2 = Math.min(raw.get(rawSeg), right);
+                    value = Util.sum(value, (t2 - t1) * rawValue);
+                    weight += t2 - t1;
+                }
+            }
+            values[seg] = weight > 0 ? value / weight : Double.NaN;
         }
-        return values;
     }
 
     private static double[] getCopyOf(double[] rawValues) {
@@ -64,4 +117,3 @@ class Normalizer {
         return values;
     }
 }
-
@@ -1,5 +1,7 @@
 package com.aerse.data;
 
+import com.aerse.core.Timeline;
+
 class PDef extends Source implements NonRrdSource  {
     private final Plottable plottable;
 
@@ -10,11 +12,25 @@ class PDef extends Source implements NonRrdSource  {
 
     /** {@inheritDoc} */
     public void calculate(long tStart, long tEnd, DataProcessor dataProcessor) {
-        long[] times = getTimestamps();
-        double[] vals = new double[times.length];
-        for (int i = 0; i < times.length; i++) {
-            vals[i] = plottable.getValue(times[i]);
+        Timeline timeline = getTimeline();
+        double[] vals = new double[timeline.getCount()];
+        for (int i = 0; i < vals.length; i++) {
+            vals[i] = plottable.getValue(timeline.get(i));
         }
         setValues(vals);
     }
+
+    /**
+     * Calculates the last values only, the first ones didn't change.
+     *
+     * @param known the values until from
+     * @param from the first value to calculate
+     */
+    void calculate(double[] known, int from) {
+        Timeline timeline = getTimeline();
+        for (int i = from; i < known.length; i++) {
+            known[i] = plottable.getValue(timeline.get(i));
+        }
+        setValues(known);
+    }
 }
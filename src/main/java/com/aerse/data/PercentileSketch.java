@@ -0,0 +1,300 @@
+package com.aerse.data;
+
+/**
+ * A streaming approximation of the distribution of values, used to compute percentiles of series too long to be
+ * sorted. Values are counted in buckets whose bounds grow geometrically, so any percentile is returned with a relative
+ * error bounded by the accuracy given at creation, whatever the number of values added.
+ * <p>
+ * The memory used is bounded by the maximum number of buckets: when the values span a wider range, the buckets of the
+ * smallest absolute values are merged together and only those lose their accuracy. With the default accuracy of 1%,
+ * 2048 buckets cover seventeen orders of magnitude.
+ * <p>
+ * Sketches with the same accuracy can be merged, so a percentile can be computed over many sources, or with values
+ * added from many threads, each thread filling its own sketch. A sketch itself is not thread safe.
+ * <p>
+ * NaN values are ignored, infinite values are counted and returned as such.
+ */
+public class PercentileSketch {
+    /**
+     * Default relative accuracy, 1%
+     */
+    public static final double DEFAULT_ACCURACY = 0.01;
+
+    /**
+     * The best relative accuracy allowed, so that bucket indexes stay in the range of an int
+     */
+    public static final double MIN_ACCURACY = 1e-6;
+
+    /**
+     * Default maximum number of buckets for each sign
+     */
+    public static final int DEFAULT_MAX_BUCKETS = 2048;
+
+    private final double accuracy;
+    private final double gamma;
+    private final double logGamma;
+    // smaller absolute values are counted as zero
+    private final double minIndexable;
+    private final Store positives;
+    private final Store negatives;
+    private long zeroCount = 0;
+    private long negativeInfinityCount = 0;
+    private long positiveInfinityCount = 0;
+
+    /**
+     * Creates a sketch with the default accuracy and maximum number of buckets.
+     */
+    public PercentileSketch() {
+        this(DEFAULT_ACCURACY, DEFAULT_MAX_BUCKETS);
+    }
+
+    /**
+     * Creates a sketch with the given accuracy and the default maximum number of buckets.
+     *
+     * @param accuracy the relative accuracy of the returned percentiles, from {@link #MIN_ACCURACY} to 1 (exclusive)
+     */
+    public PercentileSketch(double accuracy) {
+        this(accuracy, DEFAULT_MAX_BUCKETS);
+    }
+
+    /**
+     * Creates a sketch.
+     *
+     * @param accuracy the relative accuracy of the returned percentiles, from {@link #MIN_ACCURACY} to 1 (exclusive)
+     * @param maxBuckets the maximum number of buckets used for each sign
+     */
+    public PercentileSketch(double accuracy, int maxBuckets) {
+        if (!(accuracy >= MIN_ACCURACY && accuracy < 1)) {
+            throw new IllegalArgumentException("Invalid accuracy [" + accuracy + "], should be between " + MIN_ACCURACY + " and 1");
+        }
+        if (maxBuckets < 1) {
+            throw new IllegalArgumentException("Invalid bucket count [" + maxBuckets + "]");
+        }
+        this.accuracy = accuracy;
+        this.gamma = (1 + accuracy) / (1 - accuracy);
+        this.logGamma = Math.log(gamma);
+        this.minIndexable = Double.MIN_NORMAL * gamma;
+        this.positives = new Store(maxBuckets);
+        this.negatives = new Store(maxBuckets);
+    }
+
+    /**
+     * @return the relative accuracy of this sketch
+     */
+    public double getAccuracy() {
+        return accuracy;
+    }
+
+    /**
+     * @return the number of values counted, NaN excluded
+     */
+    public long getCount() {
+        return zeroCount + negativeInfinityCount + positiveInfinityCount + positives.count + negatives.count;
+    }
+
+    /**
+     * Adds a value.
+     *
+     * @param value the value, ignored if NaN
+     */
+    public void add(double value) {
+        if (value > minIndexable) {
+            if (value == Double.POSITIVE_INFINITY) {
+                positiveInfinityCount++;
+            }
+            else {
+                positives.add(index(value), 1);
+            }
+        }
+        else if (value < -minIndexable) {
+            if (value == Double.NEGATIVE_INFINITY) {
+                negativeInfinityCount++;
+            }
+            else {
+                negatives.add(index(-value), 1);
+            }
+        }
+        else if (!Double.isNaN(value)) {
+            zeroCount++;
+        }
+    }
+
+    /**
+     * Adds a chunk of values.
+     *
+     * @param values an array of values
+     * @param from the index of the first value to add, inclusive
+     * @param to the index of the last value to add, exclusive
+     */
+    public void add(double[] values, int from, int to) {
+        for (int i = from; i < to; i++) {
+            add(values[i]);
+        }
+    }
+
+    /**
+     * Adds all the values counted by another sketch.
+     *
+     * @param other a sketch with the same accuracy
+     */
+    public void merge(PercentileSketch other) {
+        if (other.gamma != gamma) {
+            throw new IllegalArgumentException("Can't merge sketches with different accuracies: " + accuracy + " and " + other.accuracy);
+        }
+        positives.merge(other.positives);
+        negatives.merge(other.negatives);
+        zeroCount += other.zeroCount;
+        negativeInfinityCount += other.negativeInfinityCount;
+        positiveInfinityCount += other.positiveInfinityCount;
+    }
+
+    /**
+     * Returns the approximate value at a percentile, the value at rank round(percentile * (count - 1) / 100)
+     * in the sorted values, like {@link Variable.PERCENTILENAN}.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the approximate value, or NaN if no values were added
+     */
+    public double getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Invalid percentile [" + percentile + "], should be between 0 and 100");
+        }
+        long count = getCount();
+        if (count == 0) {
+            return Double.NaN;
+        }
+        return valueAtRank(Math.round(percentile * (count - 1) / 100));
+    }
+
+    /**
+     * Returns the approximate highest value left when the top (100 - percentile)% of the values is discarded,
+     * the way {@link Aggregator} and {@link com.aerse.core.FetchData#get95Percentile(String)} do it.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the approximate value, or NaN if less than two values were added
+     */
+    public double getPercentileDiscardingTop(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Invalid percentile [" + percentile + "], should be between 0 and 100");
+        }
+        long count = getCount();
+        if (count > 1) {
+            // skip top (100% - percentile) values
+            count -= (long) Math.ceil(count * ((100.0 - percentile) / 100.0));
+            if (count > 0) {
+                return valueAtRank(count - 1);
+            }
+        }
+        return Double.NaN;
+    }
+
+    // the approximate value at a rank in the sorted values, there are more values than the rank
+    private double valueAtRank(long rank) {
+        if (rank < negativeInfinityCount) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        rank -= negativeInfinityCount;
+        if (rank < negatives.count) {
+            return -value(negatives.indexAtRank(negatives.count - 1 - rank));
+        }
+        rank -= negatives.count;
+        if (rank < zeroCount) {
+            return 0;
+        }
+        rank -= zeroCount;
+        if (rank < positives.count) {
+            return value(positives.indexAtRank(rank));
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    private int index(double value) {
+        return (int) Math.ceil(Math.log(value) / logGamma);
+    }
+
+    // the value with the smallest relative error to all the values in the bucket
+    private double value(int index) {
+        return 2 * Math.pow(gamma, index) / (gamma + 1);
+    }
+
+    /**
+     * Bucket counts for consecutive indexes, in an array grown on demand. When more than maxBuckets
+     * would be needed, the lowest indexes are collapsed into a single bucket.
+     */
+    private static final class Store {
+        private static final int SLACK = 64;
+
+        private final int maxBuckets;
+        private long[] counts = new long[0];
+        // the index of counts[0]
+        private int offset = 0;
+        private int minIndex = Integer.MAX_VALUE;
+        private int maxIndex = Integer.MIN_VALUE;
+        private long count = 0;
+
+        Store(int maxBuckets) {
+            this.maxBuckets = maxBuckets;
+        }
+
+        void add(int index, long n) {
+            if (index < offset || index >= offset + counts.length) {
+                boolean collapsed = counts.length == maxBuckets && maxIndex == offset + maxBuckets - 1;
+                if (!collapsed || index > maxIndex) {
+                    extend(index);
+                }
+            }
+            index = Math.max(index, offset);
+            counts[index - offset] += n;
+            minIndex = Math.min(minIndex, index);
+            maxIndex = Math.max(maxIndex, index);
+            count += n;
+        }
+
+        private void extend(int index) {
+            long lo = Math.min(index, minIndex);
+            long hi = Math.max(index, maxIndex);
+            int length = (int) Math.min(maxBuckets, hi - lo + 1 + SLACK);
+            // keep the slack on the side that is growing
+            int newOffset;
+            if (count == 0) {
+                newOffset = index - length / 2;
+            }
+            else if (index < minIndex) {
+                newOffset = (int) (hi - length + 1);
+            }
+            else {
+                newOffset = (int) Math.max(lo, hi - maxBuckets + 1);
+            }
+            long[] newCounts = new long[length];
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    newCounts[Math.max(offset + i, newOffset) - newOffset] += counts[i];
+                }
+            }
+            counts = newCounts;
+            offset = newOffset;
+            if (count > 0) {
+                minIndex = Math.max(minIndex, newOffset);
+            }
+        }
+
+        void merge(Store other) {
+            for (int i = 0; i < other.counts.length; i++) {
+                if (other.counts[i] != 0) {
+                    add(other.offset + i, other.counts[i]);
+                }
+            }
+        }
+
+        int indexAtRank(long rank) {
+            long cumulative = 0;
+            for (int i = minIndex - offset; i <= maxIndex - offset; i++) {
+                cumulative += counts[i];
+                if (cumulative > rank) {
+                    return offset + i;
+                }
+            }
+            return maxIndex;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.aerse.data;
+
+/**
+ * The values of a source within a time range, prepared for percentile selection. Values are copied to a
+ * primitive array with their timestamps in a parallel array, NaN are moved in front, and each percentile
+ * is found with a quickselect. The arrays stay partially ordered by previous selections, so several
+ * percentiles requested on the same range share the work.
+ * <p>
+ * The order is the one used by rrdtool for percent: NaN &lt; -INF &lt; finite values &lt; INF, and equal
+ * values are ordered by timestamp.
+ */
+class Percentiles {
+    private final long[] sourceTimestamps;
+    private final double[] sourceValues;
+    private final long tStart;
+    private final long tEnd;
+
+    private final long[] timestamps;
+    private final double[] values;
+    // values[0, nanCount[ are NaN, ordered by timestamp
+    private final int nanCount;
+
+    /**
+     * Prepares all the values of the arrays.
+     *
+     * @param timestamps the timestamps for the value
+     * @param values the actual values
+     */
+    Percentiles(long[] timestamps, double[] values) {
+        this(timestamps, values, Long.MIN_VALUE, Long.MAX_VALUE, false);
+    }
+
+    /**
+     * Prepares the values of the arrays whose step overlaps [tStart, tEnd].
+     *
+     * @param timestamps the timestamps for the value
+     * @param values the actual values
+     * @param tStart the start of the period
+     * @param tEnd the end of the period
+     */
+    Percentiles(long[] timestamps, double[] values, long tStart, long tEnd) {
+        this(timestamps, values, tStart, tEnd, true);
+    }
+
+    private Percentiles(long[] timestamps, double[] values, long tStart, long tEnd, boolean filter) {
+        this.sourceTimestamps = timestamps;
+        this.sourceValues = values;
+        this.tStart = tStart;
+        this.tEnd = tEnd;
+        long step = filter ? timestamps[1] - timestamps[0] : 0;
+        int count = 0;
+        int nanCount = 0;
+        for (int i = 0; i < timestamps.length; i++) {
+            if (!filter || isInRange(timestamps[i], step)) {
+                count++;
+                if (Double.isNaN(values[i])) {
+                    nanCount++;
+                }
+            }
+        }
+        this.timestamps = new long[count];
+        this.values = new double[count];
+        this.nanCount = nanCount;
+        // stable partition, NaN keeps their timestamp order
+        int nanPos = 0;
+        int pos = nanCount;
+        for (int i = 0; i < timestamps.length; i++) {
+            if (!filter || isInRange(timestamps[i], step)) {
+                int j = Double.isNaN(values[i]) ? nanPos++ : pos++;
+                this.timestamps[j] = timestamps[i];
+                this.values[j] = values[i];
+            }
+        }
+    }
+
+    private boolean isInRange(long timestamp, long step) {
+        return Math.min(timestamp, tEnd) > Math.max(timestamp - step, tStart);
+    }
+
+    boolean isFor(long[] timestamps, double[] values, long tStart, long tEnd) {
+        return sourceTimestamps == timestamps && sourceValues == values && this.tStart == tStart && this.tEnd == tEnd;
+    }
+
+    /**
+     * Find the point at the n-th percentile, the way {@link Variable.PERCENTILE} does it.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @param withNaN if NaN values are counted, as the lowest ones
+     * @return the value and its timestamp
+     */
+    Variable.Value getValue(float percentile, boolean withNaN) {
+        int count = withNaN ? values.length : values.length - nanCount;
+        int pos = Math.round(percentile * (count - 1) / 100);
+        if (pos < 0 || pos >= count) {
+            return new Variable.Value(0, Double.NaN);
+        }
+        if (withNaN && pos < nanCount) {
+            return new Variable.Value(timestamps[pos], Double.NaN);
+        }
+        int k = withNaN ? pos : pos + nanCount;
+        select(k);
+        return new Variable.Value(timestamps[k], values[k]);
+    }
+
+    /**
+     * The highest value left when the top (100 - percentile)% of the values that are not NaN is
+     * discarded, the way {@link Aggregator} does it.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the value, or NaN if there is not enough data
+     */
+    double getPercentile(double percentile) {
+        int count = values.length - nanCount;
+        if (count > 1) {
+            // skip top (100% - percentile) values
+            double topPercentile = (100.0 - percentile) / 100.0;
+            count -= (int) Math.ceil(count * topPercentile);
+            // if we have anything left...
+            if (count > 0) {
+                int k = nanCount + count - 1;
+                select(k);
+                return values[k];
+            }
+        }
+        // not enough data available
+        return Double.NaN;
+    }
+
+    /**
+     * Introselect: a quickselect with a median of three pivot, that falls back to a heap sort
+     * of the remaining range if it doesn't converge fast enough.
+     */
+    private void select(int k) {
+        int lo = nanCount;
+        int hi = values.length - 1;
+        int depth = 2 * (32 - Integer.numberOfLeadingZeros(hi - lo + 1));
+        while (hi > lo) {
+            if (depth-- == 0) {
+                heapSort(lo, hi);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            if (less(mid, lo)) {
+                swap(mid, lo);
+            }
+            if (less(hi, lo)) {
+                swap(hi, lo);
+            }
+            if (less(hi, mid)) {
+                swap(hi, mid);
+            }
+            // the pivot is kept at hi - 1, lo and hi are already on the right side
+            if (hi - lo < 3) {
+                return;
+            }
+            swap(mid, hi - 1);
+            int pivot = hi - 1;
+            int i = lo;
+            int j = hi - 1;
+            while (true) {
+                while (less(++i, pivot)) {
+                }
+                while (less(pivot, --j)) {
+                }
+                if (i >= j) {
+                    break;
+                }
+                swap(i, j);
+            }
+            swap(i, hi - 1);
+            if (k < i) {
+                hi = i - 1;
+            }
+            else if (k > i) {
+                lo = i + 1;
+            }
+            else {
+                return;
+            }
+        }
+    }
+
+    private void heapSort(int lo, int hi) {
+        int n = hi - lo + 1;
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            siftDown(lo, i, n);
+        }
+        for (int end = n - 1; end > 0; end--) {
+            swap(lo, lo + end);
+            siftDown(lo, 0, end);
+        }
+    }
+
+    private void siftDown(int lo, int i, int n) {
+        while (2 * i + 1 < n) {
+            int child = 2 * i + 1;
+            if (child + 1 < n && less(lo + child, lo + child + 1)) {
+                child++;
+            }
+            if (!less(lo + i, lo + child)) {
+                return;
+            }
+            swap(lo + i, lo + child);
+            i = child;
+        }
+    }
+
+    private boolean less(int i, int j) {
+        int compared = Double.compare(values[i], values[j]);
+        return compared < 0 || (compared == 0 && timestamps[i] < timestamps[j]);
+    }
+
+    private void swap(int i, int j) {
+        double value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+        long timestamp = timestamps[i];
+        timestamps[i] = timestamps[j];
+        timestamps[j] = timestamp;
+    }
+}
@@ -0,0 +1,229 @@
+package com.aerse.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.function.Supplier;
+
+import com.aerse.ConsolFun;
+import com.aerse.core.Util;
+
+/**
+ * A set of datasource definitions that are prepared once and processed for many time spans, as a dashboard
+ * does on each refresh. The RPN expressions are parsed and the RRD paths are resolved when the query is prepared
+ * and not for each {@link DataProcessor}.
+ * <p>
+ * Each call to {@link #execute(long, long)} builds its own {@link DataProcessor}, with its own sources, so that
+ * executions can run concurrently once all the datasources are defined. The archives are still chosen for each
+ * execution, as they depend on the time span.
+ * <pre>
+ * PreparedQuery query = new PreparedQuery();
+ * query.addDatasource("x", "demo.rrd", "sun", ConsolFun.AVERAGE);
+ * query.addDatasource("y", "x,1000,*");
+ * DataProcessor dp = query.execute(start, end);
+ * double[] y = dp.getValues("y");
+ * </pre>
+ */
+public class PreparedQuery {
+    private interface Definition {
+        Source create() throws IOException;
+    }
+
+    private final List<Definition> definitions = new ArrayList<Definition>();
+
+    private int pixelCount = DataProcessor.DEFAULT_PIXEL_COUNT;
+    private long step = 0;
+    private long fetchRequestResolution = 1;
+    private boolean poolUsed = DataProcessor.DEFAULT_POOL_USAGE_POLICY;
+    private TimeZone tz = TimeZone.getDefault();
+
+    private static class DefDefinition implements Definition {
+        private final String name, path, dsName, backend;
+        private final ConsolFun consolFun;
+        private volatile String canonicalPath;
+
+        DefDefinition(String name, String path, String dsName, ConsolFun consolFun, String backend) {
+            this.name = name;
+            this.path = path;
+            this.dsName = dsName;
+            this.consolFun = consolFun;
+            this.backend = backend;
+        }
+
+        public Source create() throws IOException {
+            // resolved on the first execution, a file that does not exist yet can still be defined
+            String resolved = canonicalPath;
+            if (resolved == null) {
+                resolved = Util.getCanonicalPath(path);
+                canonicalPath = resolved;
+            }
+            return new Def(name, path, dsName, consolFun, backend, resolved);
+        }
+    }
+
+    /**
+     * Adds a simple datasource (<b>DEF</b>), see
+     * {@link DataProcessor#addDatasource(String, String, String, ConsolFun)}.
+     *
+     * @param name       source name.
+     * @param file       Path to RRD file.
+     * @param dsName     Datasource name defined in the RRD file.
+     * @param consolFunc Consolidation function that will be used to extract data from the RRD
+     */
+    public void addDatasource(String name, String file, String dsName, ConsolFun consolFunc) {
+        definitions.add(new DefDefinition(name, file, dsName, consolFunc, null));
+    }
+
+    /**
+     * Adds a simple datasource (<b>DEF</b>), see
+     * {@link DataProcessor#addDatasource(String, String, String, ConsolFun, String)}.
+     *
+     * @param name       Source name.
+     * @param file       Path to RRD file.
+     * @param dsName     Data source name defined in the RRD file.
+     * @param consolFunc Consolidation function that will be used to extract data from the RRD
+     * @param backend    Name of the RrdBackendFactory that should be used for this RrdDb.
+     */
+    public void addDatasource(String name, String file, String dsName, ConsolFun consolFunc, String backend) {
+        definitions.add(new DefDefinition(name, file, dsName, consolFunc, backend));
+    }
+
+    /**
+     * Adds a complex source (<b>CDEF</b>), see {@link DataProcessor#addDatasource(String, String)}. The
+     * expression is parsed once, here.
+     *
+     * @param name          source name.
+     * @param rpnExpression RPN expression containing comma delimited simple and complex
+     *                      source names, RPN constants, functions and operators.
+     */
+    public void addDatasource(final String name, String rpnExpression) {
+        final RpnExpression expression = new RpnExpression(rpnExpression);
+        definitions.add(new Definition() {
+            public Source create() {
+                return new CDef(name, expression);
+            }
+        });
+    }
+
+    /**
+     * Adds a source that consolidates another one in a single value (<b>VDEF</b>).
+     *
+     * @param name      source name.
+     * @param defName   Name of the datasource to calculate the value from.
+     * @param consolFun Consolidation function to use for value calculation
+     */
+    public void addDatasource(String name, String defName, final ConsolFun consolFun) {
+        addDatasource(name, defName, new Supplier<Variable>() {
+            public Variable get() {
+                return consolFun.getVariable();
+            }
+        });
+    }
+
+    /**
+     * Adds a source that is the percentile of another one (<b>VDEF</b>).
+     *
+     * @param name       source name.
+     * @param defName    Name of the datasource to calculate the value from.
+     * @param percentile the percentile to extract from the source datasource
+     */
+    public void addDatasource(String name, String defName, final double percentile) {
+        addDatasource(name, defName, new Supplier<Variable>() {
+            public Variable get() {
+                return new Variable.PERCENTILE(percentile);
+            }
+        });
+    }
+
+    /**
+     * Adds a source that calculates a variable on another one (<b>VDEF</b>). A variable keeps the value it
+     * calculated, so each execution needs a new one.
+     *
+     * @param name     source name.
+     * @param defName  Name of the datasource to calculate the value from.
+     * @param variable creates the Variable used for each execution
+     */
+    public void addDatasource(final String name, final String defName, final Supplier<? extends Variable> variable) {
+        definitions.add(new Definition() {
+            public Source create() {
+                return new VDef(name, defName, variable.get());
+            }
+        });
+    }
+
+    /**
+     * Adds a custom, {@link com.aerse.data.Plottable plottable} datasource (<b>PDEF</b>). The plottable is
+     * shared by the executions, it must be thread-safe for concurrent ones.
+     *
+     * @param name      source name.
+     * @param plottable class that extends Plottable class and is suited for graphing.
+     */
+    public void addDatasource(final String name, final Plottable plottable) {
+        definitions.add(new Definition() {
+            public Source create() {
+                return new PDef(name, plottable);
+            }
+        });
+    }
+
+    /**
+     * @param pixelCount The number of pixels, see {@link DataProcessor#setPixelCount(int)}
+     */
+    public void setPixelCount(int pixelCount) {
+        this.pixelCount = pixelCount;
+    }
+
+    /**
+     * @param step Time step at which data should be fetched, see {@link DataProcessor#setStep(long)}
+     */
+    public void setStep(long step) {
+        this.step = step;
+    }
+
+    /**
+     * @param fetchRequestResolution Desired archive step, see {@link DataProcessor#setFetchRequestResolution(long)}
+     */
+    public void setFetchRequestResolution(long fetchRequestResolution) {
+        this.fetchRequestResolution = fetchRequestResolution;
+    }
+
+    /**
+     * @param poolUsed true, if the pool should be used to fetch data from RRD files, see
+     *                 {@link DataProcessor#setPoolUsed(boolean)}
+     */
+    public void setPoolUsed(boolean poolUsed) {
+        this.poolUsed = poolUsed;
+    }
+
+    /**
+     * @param tz The time zone of the calendar functions, see {@link DataProcessor#setTimeZone(TimeZone)}
+     */
+    public void setTimeZone(TimeZone tz) {
+        this.tz = tz;
+    }
+
+    /**
+     * Processes the datasources for a time span. It can be called concurrently, as long as no datasource is
+     * added meanwhile.
+     *
+     * @param tStart Starting timestamp in seconds without milliseconds
+     * @param tEnd   Ending timestamp in seconds without milliseconds, or zero, see
+     *               {@link DataProcessor#DataProcessor(long, long)}
+     * @return the processed data
+     * @throws java.io.IOException Thrown in case of I/O error (while fetching data from RRD files)
+     */
+    public DataProcessor execute(long tStart, long tEnd) throws IOException {
+        DataProcessor dp = new DataProcessor(tStart, tEnd);
+        dp.setPixelCount(pixelCount);
+        dp.setStep(step);
+        dp.setFetchRequestResolution(fetchRequestResolution);
+        dp.setPoolUsed(poolUsed);
+        dp.setTimeZone(tz);
+        for (Definition definition : definitions) {
+            dp.addSource(definition.create());
+        }
+        dp.processData();
+        return dp;
+    }
+}
@@ -0,0 +1,233 @@
+package com.aerse.data;
+
+/**
+ * An index over the values of a source, answering {@link Aggregator#getAggregates(long, long)} for any range
+ * without scanning it. It holds prefix sums of the values, as a compensated pair to keep the differences
+ * accurate, prefix counts of the values that are not NaN, and a sparse table of the minimum and maximum of blocks
+ * of values. A range is then aggregated in O(log n): binary searches for its bounds and its first and last values,
+ * and at most two partial blocks scanned for the extremes.
+ * <p>
+ * The aggregates have the same definition as in {@link Aggregator}: the total is the sum of the values, the average
+ * is the total divided by the seconds covered by values, and the last value is the last one whose step is entirely
+ * in the range.
+ */
+class RangeIndex {
+    private static final int BLOCK_BITS = 5;
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+
+    private final long[] timestamps;
+    private final double[] values;
+    private final long step;
+
+    // prefix sums of the finite values, sum[i] + sumError[i] for the values before i
+    private final double[] sum;
+    private final double[] sumError;
+    // prefix counts of the values that are not NaN
+    private final int[] count;
+    // prefix counts of infinite values, null when there are none
+    private final int[] positiveInfinities;
+    private final int[] negativeInfinities;
+    // min[k][b] is the minimum of the blocks b to b + 2^k - 1, NaN ignored
+    private final double[][] min;
+    private final double[][] max;
+
+    RangeIndex(long[] timestamps, double[] values) {
+        assert timestamps.length == values.length : "Incompatible timestamps/values arrays (unequal lengths)";
+        assert timestamps.length >= 2 : "At least two timestamps must be supplied";
+        this.timestamps = timestamps;
+        this.values = values;
+        this.step = timestamps[1] - timestamps[0];
+        int n = values.length;
+        sum = new double[n + 1];
+        sumError = new double[n + 1];
+        count = new int[n + 1];
+        boolean infinite = false;
+        double s = 0;
+        double c = 0;
+        for (int i = 0; i < n; i++) {
+            double value = values[i];
+            count[i + 1] = count[i];
+            if (!Double.isNaN(value)) {
+                count[i + 1]++;
+                if (Double.isInfinite(value)) {
+                    infinite = true;
+                }
+                else {
+                    // Neumaier summation
+                    double t = s + value;
+                    c += Math.abs(s) >= Math.abs(value) ? (s - t) + value : (value - t) + s;
+                    s = t;
+                }
+            }
+            sum[i + 1] = s;
+            sumError[i + 1] = c;
+        }
+        if (infinite) {
+            positiveInfinities = new int[n + 1];
+            negativeInfinities = new int[n + 1];
+            for (int i = 0; i < n; i++) {
+                positiveInfinities[i + 1] = positiveInfinities[i] + (values[i] == Double.POSITIVE_INFINITY ? 1 : 0);
+                negativeInfinities[i + 1] = negativeInfinities[i] + (values[i] == Double.NEGATIVE_INFINITY ? 1 : 0);
+            }
+        }
+        else {
+            positiveInfinities = null;
+            negativeInfinities = null;
+        }
+        int blocks = (n + BLOCK_SIZE - 1) >> BLOCK_BITS;
+        int levels = 32 - Integer.numberOfLeadingZeros(blocks);
+        min = new double[levels][];
+        max = new double[levels][];
+        min[0] = new double[blocks];
+        max[0] = new double[blocks];
+        for (int b = 0; b < blocks; b++) {
+            int from = b << BLOCK_BITS;
+            int to = Math.min(from + BLOCK_SIZE, n) - 1;
+            min[0][b] = scanMin(from, to);
+            max[0][b] = scanMax(from, to);
+        }
+        for (int k = 1; k < levels; k++) {
+            int length = blocks - (1 << k) + 1;
+            int half = 1 << (k - 1);
+            min[k] = new double[length];
+            max[k] = new double[length];
+            for (int b = 0; b < length; b++) {
+                min[k][b] = Math.min(min[k - 1][b], min[k - 1][b + half]);
+                max[k][b] = Math.max(max[k - 1][b], max[k - 1][b + half]);
+            }
+        }
+    }
+
+    boolean isFor(long[] timestamps, double[] values) {
+        return this.timestamps == timestamps && this.values == values;
+    }
+
+    /**
+     * The same as {@link Aggregator#getAggregates(long, long)}.
+     *
+     * @param tStart the start of the range
+     * @param tEnd the end of the range
+     * @return the aggregates of the values whose step overlaps the range
+     */
+    Aggregates getAggregates(long tStart, long tEnd) {
+        Aggregates agg = new Aggregates();
+        if (tEnd <= tStart) {
+            return agg;
+        }
+        // the points whose step overlaps ]tStart, tEnd]
+        int first = firstAfter(tStart);
+        int last = firstAfter(tEnd + step - 1) - 1;
+        if (first > last || count[last + 1] == count[first]) {
+            return agg;
+        }
+        int cnt = count[last + 1] - count[first];
+        int firstValid = validAtRank(count[first]);
+        int lastValid = validAtRank(count[last + 1] - 1);
+        agg.first = values[firstValid];
+        // the last value of a step that is entirely in the range
+        int lastFull = timestamps[last] <= tEnd ? last : last - 1;
+        int lastFullValid = count[lastFull + 1] > 0 ? validAtRank(count[lastFull + 1] - 1) : -1;
+        agg.last = lastFullValid > firstValid ? values[lastFullValid] : agg.first;
+        agg.total = getSum(first, last);
+        agg.min = getMin(first, last);
+        agg.max = getMax(first, last);
+        long totalSeconds = cnt * step;
+        totalSeconds -= step - overlap(firstValid, tStart, tEnd);
+        if (lastValid != firstValid) {
+            totalSeconds -= step - overlap(lastValid, tStart, tEnd);
+        }
+        agg.average = agg.total / totalSeconds;
+        return agg;
+    }
+
+    private long overlap(int i, long tStart, long tEnd) {
+        return Math.min(timestamps[i], tEnd) - Math.max(timestamps[i] - step, tStart);
+    }
+
+    // the first point with a timestamp strictly greater than t
+    private int firstAfter(long t) {
+        int lo = 0;
+        int hi = timestamps.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timestamps[mid] > t) {
+                hi = mid;
+            }
+            else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    // the point of the rank-th value that is not NaN, counted from 0
+    private int validAtRank(int rank) {
+        int lo = 0;
+        int hi = values.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (count[mid + 1] > rank) {
+                hi = mid;
+            }
+            else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    private double getSum(int from, int to) {
+        if (positiveInfinities != null) {
+            boolean positive = positiveInfinities[to + 1] > positiveInfinities[from];
+            boolean negative = negativeInfinities[to + 1] > negativeInfinities[from];
+            if (positive || negative) {
+                return positive && negative ? Double.NaN : positive ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+            }
+        }
+        return (sum[to + 1] - sum[from]) + (sumError[to + 1] - sumError[from]);
+    }
+
+    private double getMin(int from, int to) {
+        int firstBlock = (from + BLOCK_SIZE - 1) >> BLOCK_BITS;
+        int lastBlock = ((to + 1) >> BLOCK_BITS) - 1;
+        if (firstBlock > lastBlock) {
+            return scanMin(from, to);
+        }
+        int k = 31 - Integer.numberOfLeadingZeros(lastBlock - firstBlock + 1);
+        double value = Math.min(min[k][firstBlock], min[k][lastBlock - (1 << k) + 1]);
+        value = Math.min(value, scanMin(from, (firstBlock << BLOCK_BITS) - 1));
+        return Math.min(value, scanMin((lastBlock + 1) << BLOCK_BITS, to));
+    }
+
+    private double getMax(int from, int to) {
+        int firstBlock = (from + BLOCK_SIZE - 1) >> BLOCK_BITS;
+        int lastBlock = ((to + 1) >> BLOCK_BITS) - 1;
+        if (firstBlock > lastBlock) {
+            return scanMax(from, to);
+        }
+        int k = 31 - Integer.numberOfLeadingZeros(lastBlock - firstBlock + 1);
+        double value = Math.max(max[k][firstBlock], max[k][lastBlock - (1 << k) + 1]);
+        value = Math.max(value, scanMax(from, (firstBlock << BLOCK_BITS) - 1));
+        return Math.max(value, scanMax((lastBlock + 1) << BLOCK_BITS, to));
+    }
+
+    private double scanMin(int from, int to) {
+        double value = Double.POSITIVE_INFINITY;
+        for (int i = from; i <= to; i++) {
+            if (!Double.isNaN(values[i])) {
+                value = Math.min(value, values[i]);
+            }
+        }
+        return value;
+    }
+
+    private double scanMax(int from, int to) {
+        double value = Double.NEGATIVE_INFINITY;
+        for (int i = from; i <= to; i++) {
+            if (!Double.isNaN(values[i])) {
+                value = Math.max(value, values[i]);
+            }
+        }
+        return value;
+    }
+}
@@ -1,241 +1,431 @@
 package com.aerse.data;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Deque;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntToDoubleFunction;
 
+import com.aerse.core.Timeline;
 import com.aerse.core.Util;
 import com.tomgibara.crinch.hashing.PerfectStringHash;
 
 class RpnCalculator {
-    private enum Token_Symbol {
-        TKN_VAR("") {
+    enum Token_Symbol {
+        TKN_VAR("", 0) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(s.token.values[s.slot]);
                 s.token_rpi = s.rpi;
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.copy(token.values);
+            }
         },
-        TKN_NUM("") {
+        TKN_NUM("", 0) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(s.token.number);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.fill(token.number);
+            }
         },
 
         // Arithmetics
-        TKN_PLUS("+") {
+        TKN_PLUS("+", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(c.pop() + c.pop());
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                double[] x2 = c.columns.pop();
+                double[] x1 = c.columns.pop();
+                for (int i = 0; i < x1.length; i++) {
+                    x1[i] += x2[i];
+                }
+                c.columns.push(x1);
+                c.columns.release(x2);
+            }
         },
-        TKN_ADDNAN("ADDNAN") {
+        TKN_ADDNAN("ADDNAN", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x1 = c.pop();
                 double x2 = c.pop();
                 c.push(Double.isNaN(x1) ? x2 : (Double.isNaN(x2) ? x1 : x1 + x2));
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.binary((x1, x2) -> Double.isNaN(x1) ? x2 : (Double.isNaN(x2) ? x1 : x1 + x2));
+            }
         },
-        TKN_MINUS("-") {
+        TKN_MINUS("-", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x2 = c.pop();
                 double x1 = c.pop();
                 c.push(x1 - x2);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                double[] x2 = c.columns.pop();
+                double[] x1 = c.columns.pop();
+                for (int i = 0; i < x1.length; i++) {
+                    x1[i] -= x2[i];
+                }
+                c.columns.push(x1);
+                c.columns.release(x2);
+            }
         },
-        TKN_MULT("*") {
+        TKN_MULT("*", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(c.pop() * c.pop());
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                double[] x2 = c.columns.pop();
+                double[] x1 = c.columns.pop();
+                for (int i = 0; i < x1.length; i++) {
+                    x1[i] *= x2[i];
+                }
+                c.columns.push(x1);
+                c.columns.release(x2);
+            }
         },
-        TKN_DIV("/") {
+        TKN_DIV("/", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x2 = c.pop();
                 double x1 = c.pop();
                 c.push(x1 / x2);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                double[] x2 = c.columns.pop();
+                double[] x1 = c.columns.pop();
+                for (int i = 0; i < x1.length; i++) {
+                    x1[i] /= x2[i];
+                }
+                c.columns.push(x1);
+                c.columns.release(x2);
+            }
         },
-        TKN_MOD("%") {
+        TKN_MOD("%", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x2 = c.pop();
                 double x1 = c.pop();
                 c.push(x1 % x2);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.binary((x1, x2) -> x1 % x2);
+            }
         },
 
-        TKN_SIN("SIN") {
+        TKN_SIN("SIN", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Math.sin(c.pop()));
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.unary(Math::sin);
+            }
         },
-        TKN_COS("COS") {
+        TKN_COS("COS", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Math.cos(c.pop()));
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.unary(Math::cos);
+            }
         },
-        TKN_LOG("LOG") {
+        TKN_LOG("LOG", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Math.log(c.pop()));
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.unary(Math::log);
+            }
         },
-        TKN_EXP("EXP") {
+        TKN_EXP("EXP", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Math.exp(c.pop()));
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.unary(Math::exp);
+            }
         },
-        TKN_SQRT("SQRT") {
+        TKN_SQRT("SQRT", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Math.sqrt(c.pop()));
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.unary(Math::sqrt);
+            }
         },
-        TKN_ATAN("ATAN") {
+        TKN_ATAN("ATAN", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Math.atan(c.pop()));
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.unary(Math::atan);
+            }
         },
-        TKN_ATAN2("ATAN2") {
+        TKN_ATAN2("ATAN2", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x2 = c.pop();
                 double x1 = c.pop();
                 c.push(Math.atan2(x1, x2));
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.binary(Math::atan2);
+            }
         },
 
-        TKN_FLOOR("FLOOR") {
+        TKN_FLOOR("FLOOR", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Math.floor(c.pop()));
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.unary(Math::floor);
+            }
         },
-        TKN_CEIL("CEIL") {
+        TKN_CEIL("CEIL", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Math.ceil(c.pop()));
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.unary(Math::ceil);
+            }
         },
 
-        TKN_DEG2RAD("DEG2RAD") {
+        TKN_DEG2RAD("DEG2RAD", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Math.toRadians(c.pop()));
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.unary(Math::toRadians);
+            }
         },
-        TKN_RAD2DEG("RAD2DEG") {
+        TKN_RAD2DEG("RAD2DEG", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Math.toDegrees(c.pop()));
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.unary(Math::toDegrees);
+            }
         },
-        TKN_ROUND("ROUND") {
+        TKN_ROUND("ROUND", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Math.round(c.pop()));
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.unary(x1 -> Math.round(x1));
+            }
         },
-        TKN_POW("POW") {
+        TKN_POW("POW", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x2 = c.pop();
                 double x1 = c.pop();
                 c.push(Math.pow(x1, x2));
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.binary(Math::pow);
+            }
         },
-        TKN_ABS("ABS") {
+        TKN_ABS("ABS", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Math.abs(c.pop()));
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.unary(Math::abs);
+            }
         },
-        TKN_RANDOM("RANDOM") {
+        TKN_RANDOM("RANDOM", 0) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Math.random());
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.generate(i -> Math.random());
+            }
         },
-        TKN_RND("RND") {
+        TKN_RND("RND", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Math.floor(c.pop() * Math.random()));
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.unary(x1 -> Math.floor(x1 * Math.random()));
+            }
         },
 
         // Boolean operators
-        TKN_UN("UN") {
+        TKN_UN("UN", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Double.isNaN(c.pop()) ? 1 : 0);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.unary(x1 -> Double.isNaN(x1) ? 1 : 0);
+            }
         },
-        TKN_ISINF("ISINF") {
+        TKN_ISINF("ISINF", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Double.isInfinite(c.pop()) ? 1 : 0);
             }            
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.unary(x1 -> Double.isInfinite(x1) ? 1 : 0);
+            }
         },
-        TKN_LT("LT") {
+        TKN_LT("LT", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x2 = c.pop();
                 double x1 = c.pop();
                 c.push(x1 < x2 ? 1 : 0);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.binary((x1, x2) -> x1 < x2 ? 1 : 0);
+            }
         },
-        TKN_LE("LE") {
+        TKN_LE("LE", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x2 = c.pop();
                 double x1 = c.pop();
                 c.push(x1 <= x2 ? 1 : 0);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.binary((x1, x2) -> x1 <= x2 ? 1 : 0);
+            }
         },
-        TKN_GT("GT") {
+        TKN_GT("GT", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x2 = c.pop();
                 double x1 = c.pop();
                 c.push(x1 > x2 ? 1 : 0);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.binary((x1, x2) -> x1 > x2 ? 1 : 0);
+            }
         },
-        TKN_GE("GE") {
+        TKN_GE("GE", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x2 = c.pop();
                 double x1 = c.pop();
                 c.push(x1 >= x2 ? 1 : 0);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.binary((x1, x2) -> x1 >= x2 ? 1 : 0);
+            }
         },
-        TKN_EQ("EQ") {
+        TKN_EQ("EQ", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x2 = c.pop();
                 double x1 = c.pop();
                 c.push(x1 == x2 ? 1 : 0);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.binary((x1, x2) -> x1 == x2 ? 1 : 0);
+            }
         },
-        TKN_NE("NE") {
+        TKN_NE("NE", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x2 = c.pop();
                 double x1 = c.pop();
                 c.push(x1 != x2 ? 1 : 0);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.binary((x1, x2) -> x1 != x2 ? 1 : 0);
+            }
         },
-        TKN_IF("IF") {
+        TKN_IF("IF", 3) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x3 = c.pop();
@@ -243,38 +433,83 @@ class RpnCalculator {
                 double x1 = c.pop();
                 c.push(x1 != 0 ? x2 : x3);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                double[] x3 = c.columns.pop();
+                double[] x2 = c.columns.pop();
+                double[] x1 = c.columns.pop();
+                for (int i = 0; i < x1.length; i++) {
+                    x1[i] = x1[i] != 0 ? x2[i] : x3[i];
+                }
+                c.columns.push(x1);
+                c.columns.release(x2);
+                c.columns.release(x3);
+            }
         },
 
         // Comparing values
-        TKN_MIN("MIN") {
+        TKN_MIN("MIN", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Math.min(c.pop(), c.pop()));
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                double[] x2 = c.columns.pop();
+                double[] x1 = c.columns.pop();
+                for (int i = 0; i < x1.length; i++) {
+                    x1[i] = Math.min(x1[i], x2[i]);
+                }
+                c.columns.push(x1);
+                c.columns.release(x2);
+            }
         },
-        TKN_MAX("MAX") {
+        TKN_MAX("MAX", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Math.max(c.pop(), c.pop()));
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                double[] x2 = c.columns.pop();
+                double[] x1 = c.columns.pop();
+                for (int i = 0; i < x1.length; i++) {
+                    x1[i] = Math.max(x1[i], x2[i]);
+                }
+                c.columns.push(x1);
+                c.columns.release(x2);
+            }
         },
-        TKN_MINNAN("MINNAN") {
+        TKN_MINNAN("MINNAN", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x1 = c.pop();
                 double x2 = c.pop();
                 c.push(Double.isNaN(x1) ? x2 : (Double.isNaN(x2) ? x1 : Math.min(x1, x2)));
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.binary((x1, x2) -> Double.isNaN(x1) ? x2 : (Double.isNaN(x2) ? x1 : Math.min(x1, x2)));
+            }
         },
-        TKN_MAXNAN("MAXNAN") {
+        TKN_MAXNAN("MAXNAN", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x1 = c.pop();
                 double x2 = c.pop();
                 c.push(Double.isNaN(x1) ? x2 : (Double.isNaN(x2) ? x1 : Math.max(x1, x2)));
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.binary((x1, x2) -> Double.isNaN(x1) ? x2 : (Double.isNaN(x2) ? x1 : Math.max(x1, x2)));
+            }
         },
-        TKN_LIMIT("LIMIT") {
+        TKN_LIMIT("LIMIT", 3) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x3 = c.pop();
@@ -282,16 +517,34 @@ class RpnCalculator {
                 double x1 = c.pop();
                 c.push(x1 < x2 || x1 > x3 ? Double.NaN : x1);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                double[] x3 = c.columns.pop();
+                double[] x2 = c.columns.pop();
+                double[] x1 = c.columns.pop();
+                for (int i = 0; i < x1.length; i++) {
+                    x1[i] = x1[i] < x2[i] || x1[i] > x3[i] ? Double.NaN : x1[i];
+                }
+                c.columns.push(x1);
+                c.columns.release(x2);
+                c.columns.release(x3);
+            }
         },
 
         // Processing the stack directly
-        TKN_DUP("DUP") {
+        TKN_DUP("DUP", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(c.peek());
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.copy(c.columns.peek());
+            }
         },
-        TKN_EXC("EXC") {
+        TKN_EXC("EXC", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x2 = c.pop();
@@ -299,70 +552,123 @@ class RpnCalculator {
                 c.push(x2);
                 c.push(x1);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                double[] x2 = c.columns.pop();
+                double[] x1 = c.columns.pop();
+                c.columns.push(x2);
+                c.columns.push(x1);
+            }
         },
-        TKN_POP("POP") {
+        TKN_POP("POP", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.pop();
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.release(c.columns.pop());
+            }
         },
 
         // Special values
-        TKN_UNKN("UNKN") {
+        TKN_UNKN("UNKN", 0) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Double.NaN);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.fill(Double.NaN);
+            }
         },
-        TKN_PI("PI") {
+        TKN_PI("PI", 0) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Math.PI);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.fill(Math.PI);
+            }
         },
-        TKN_E("E") {
+        TKN_E("E", 0) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Math.E);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.fill(Math.E);
+            }
         },
-        TKN_INF("INF") {
+        TKN_INF("INF", 0) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Double.POSITIVE_INFINITY);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.fill(Double.POSITIVE_INFINITY);
+            }
         },
-        TKN_NEGINF("NEGINF") {
+        TKN_NEGINF("NEGINF", 0) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Double.NEGATIVE_INFINITY);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.fill(Double.NEGATIVE_INFINITY);
+            }
         },
 
         // Logical operator
-        TKN_AND("AND") {
+        TKN_AND("AND", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x2 = c.pop();
                 double x1 = c.pop();
                 c.push((x1 != 0 && x2 != 0) ? 1 : 0);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.binary((x1, x2) -> (x1 != 0 && x2 != 0) ? 1 : 0);
+            }
         },
-        TKN_OR("OR") {
+        TKN_OR("OR", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x2 = c.pop();
                 double x1 = c.pop();
                 c.push((x1 != 0 || x2 != 0) ? 1 : 0);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.binary((x1, x2) -> (x1 != 0 || x2 != 0) ? 1 : 0);
+            }
         },
-        TKN_XOR("XOR") {
+        TKN_XOR("XOR", 2) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x2 = c.pop();
                 double x1 = c.pop();
                 c.push(((x1 != 0 && x2 == 0) || (x1 == 0 && x2 != 0)) ? 1 : 0);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.binary((x1, x2) -> ((x1 != 0 && x2 == 0) || (x1 == 0 && x2 != 0)) ? 1 : 0);
+            }
         },
 
         TKN_PREV("PREV") {
@@ -373,79 +679,141 @@ class RpnCalculator {
         },
 
         //Time and date operator
-        TKN_STEP("STEP") {
+        TKN_STEP("STEP", 0) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(c.timeStep);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.fill(c.timeStep);
+            }
         },
-        TKN_NOW("NOW") {
+        TKN_NOW("NOW", 0) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(Util.getTime());
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.fill(Util.getTime());
+            }
         },
-        TKN_TIME("TIME") {
+        TKN_TIME("TIME", 0) {
             @Override
             void do_method(RpnCalculator c, State s) {
-                c.push(c.timestamps[s.slot]);
+                c.push(c.timeline.get(s.slot));
+            }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.generate(i -> c.timeline.get(i));
             }
         },
-        TKN_LTIME("LTIME") {
+        TKN_LTIME("LTIME", 0) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 TimeZone tz = s.getTimeZone();
-                c.push(c.timestamps[s.slot] + (long) (tz.getOffset(c.timestamps[s.slot]) / 1000L));
+                c.push(c.timeline.get(s.slot) + (long) (tz.getOffset(c.timeline.get(s.slot)) / 1000L));
+            }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                TimeZone tz = c.dataProcessor.getTimeZone();
+                c.columns.generate(i -> c.timeline.get(i) + tz.getOffset(c.timeline.get(i)) / 1000L);
             }
         },
-        TKN_YEAR("YEAR") {
+        TKN_YEAR("YEAR", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
-                c.push(c.getCalendarField(c.pop(), Calendar.YEAR));
+                c.push(c.getCalendarField(c.pop(), s.slot, Calendar.YEAR));
+            }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.calendarColumn(Calendar.YEAR);
             }
         },
-        TKN_MONTH("MONTH") {
+        TKN_MONTH("MONTH", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
-                c.push(c.getCalendarField(c.pop(), Calendar.MONTH) + 1);
+                c.push(c.getCalendarField(c.pop(), s.slot, Calendar.MONTH) + 1);
+            }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.calendarColumn(Calendar.MONTH);
+                c.columns.unary(x1 -> x1 + 1);
             }
         },
-        TKN_DATE("DATE") {
+        TKN_DATE("DATE", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
-                c.push(c.getCalendarField(c.pop(), Calendar.DAY_OF_MONTH));
+                c.push(c.getCalendarField(c.pop(), s.slot, Calendar.DAY_OF_MONTH));
+            }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.calendarColumn(Calendar.DAY_OF_MONTH);
             }
         },
-        TKN_HOUR("HOUR") {
+        TKN_HOUR("HOUR", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
-                c.push(c.getCalendarField(c.pop(), Calendar.HOUR_OF_DAY));
+                c.push(c.getCalendarField(c.pop(), s.slot, Calendar.HOUR_OF_DAY));
+            }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.calendarColumn(Calendar.HOUR_OF_DAY);
             }
         },
-        TKN_MINUTE("MINUTE") {
+        TKN_MINUTE("MINUTE", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
-                c.push(c.getCalendarField(c.pop(), Calendar.MINUTE));
+                c.push(c.getCalendarField(c.pop(), s.slot, Calendar.MINUTE));
+            }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.calendarColumn(Calendar.MINUTE);
             }
         },
-        TKN_SECOND("SECOND") {
+        TKN_SECOND("SECOND", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
-                c.push(c.getCalendarField(c.pop(), Calendar.SECOND));
+                c.push(c.getCalendarField(c.pop(), s.slot, Calendar.SECOND));
+            }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.calendarColumn(Calendar.SECOND);
             }
         },
-        TKN_WEEK("WEEK") {
+        TKN_WEEK("WEEK", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
-                c.push(c.getCalendarField(c.pop(), Calendar.WEEK_OF_YEAR));
+                c.push(c.getCalendarField(c.pop(), s.slot, Calendar.WEEK_OF_YEAR));
+            }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.calendarColumn(Calendar.WEEK_OF_YEAR);
             }
         },
-        TKN_SIGN("SIGN") {
+        TKN_SIGN("SIGN", 1) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 double x1 = c.pop();
                 c.push(Double.isNaN(x1) ? Double.NaN : x1 > 0 ? +1 : x1 < 0 ? -1 : 0);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.unary(x1 -> Double.isNaN(x1) ? Double.NaN : x1 > 0 ? +1 : x1 < 0 ? -1 : 0);
+            }
         },
         TKN_SORT("SORT") {
             @Override
@@ -497,11 +865,16 @@ class RpnCalculator {
                 }
             }
         },
-        TKN_COUNT("COUNT") {
+        TKN_COUNT("COUNT", 0) {
             @Override
             void do_method(RpnCalculator c, State s) {
                 c.push(s.slot+1);
             }
+
+            @Override
+            void do_column(RpnCalculator c, Token token) {
+                c.columns.generate(i -> i + 1);
+            }
         },
         TKN_TREND("TREND") {
             @Override
@@ -519,22 +892,15 @@ class RpnCalculator {
                 } else {
                     double[] vals = c.dataProcessor.getValues(c.tokens[s.token_rpi].variable);
                     boolean ignorenan = s.token.id == TKN_TRENDNAN;
-                    double accum = 0.0;
-                    int count = 0;
 
                     int start = (int) (Math.ceil(dur / c.timeStep));
-                    int row = 2;
-                    while ((s.slot + row) > vals.length) {
-                        row --;
-                    }
+                    int row = Math.min(2, vals.length - s.slot);
 
-                    for(; start > 0; start--) {
-                        double val = vals[s.slot + row - start];
-                        if (ignorenan || !Double.isNaN(val)) {
-                            accum = Util.sum(accum, val);
-                            ++count;
-                        }
-                    }
+                    // the window only slides by one slot, so the running sum is updated in O(1)
+                    SlidingSum window = s.token.getWindow(0, vals);
+                    window.moveTo(s.slot + row - start, s.slot + row);
+                    double accum = window.sum();
+                    int count = ignorenan ? Math.max(start, 0) : window.count();
                     c.push((count == 0) ? Double.NaN : (accum / count));
                 }
             }
@@ -594,21 +960,12 @@ class RpnCalculator {
                         throw new RuntimeException("negative shift step not allowed: " + shiftstep);
                     }
                     shiftstep = (int) Math.ceil((float) shiftstep / (float) c.timeStep);
-                    /* loop all local shifts */
-                    for (int i = 0; i <= locstep; i++) {
-                        int offset = shiftstep + i;
-                        if ((offset >= 0) && (offset < s.slot)) {
-                            /* get the value */
-                            val = vals[s.slot - offset];
-
-                            /* and handle the non NAN case only*/
-                            if (!Double.isNaN(val)) {
-                                sum = Util.sum(sum, val);
-                                sum2 = Util.sum(sum2, val * val);
-                                count++;
-                            }
-                        }
-                    }
+                    /* all local shifts, offsets from shiftstep to shiftstep + locstep that are in [0, slot[ */
+                    SlidingSum window = s.token.getWindow(loop, vals);
+                    window.moveTo(Math.max(1, s.slot - shiftstep - locstep), s.slot - shiftstep + 1);
+                    sum += window.sum();
+                    sum2 += window.sumOfSquares();
+                    count += window.count();
                 }
                 /* do the final calculations */
                 val = Double.NaN;
@@ -638,10 +995,28 @@ class RpnCalculator {
         };
 
         public final String token_string;
+        // number of operands taken from the stack, only meaningful for element-wise tokens
+        final int arity;
+        // true if the value at a slot only depends on the operands at the same slot
+        final boolean elementWise;
         Token_Symbol(String token_string) {
             this.token_string = token_string;
+            this.arity = -1;
+            this.elementWise = false;
+        }
+        Token_Symbol(String token_string, int arity) {
+            this.token_string = token_string;
+            this.arity = arity;
+            this.elementWise = true;
         }
         abstract void do_method(RpnCalculator c, State s);
+
+        /**
+         * Applies the token to whole columns at once, only used when {@link #elementWise} is set.
+         */
+        void do_column(RpnCalculator c, Token token) {
+            throw new UnsupportedOperationException(token_string + " can't be evaluated column-wise");
+        }
     }
 
     private static final Token_Symbol[] symbols;
@@ -673,30 +1048,78 @@ class RpnCalculator {
     private final Token[] tokens;
     private final RpnStack stack = new RpnStack();
     private final double[] calculatedValues;
-    private final long[] timestamps;
+    private final Timeline timeline;
     private final double timeStep;
     private final List<String> sourcesNames;
+    private final boolean elementWise;
+    private ColumnStack columns;
 
     RpnCalculator(String rpnExpression, String sourceName, DataProcessor dataProcessor) {
-        this.rpnExpression = rpnExpression;
+        this(new RpnExpression(rpnExpression), sourceName, dataProcessor);
+    }
+
+    RpnCalculator(RpnExpression expression, String sourceName, DataProcessor dataProcessor) {
+        this.rpnExpression = expression.text;
         this.sourceName = sourceName;
         this.dataProcessor = dataProcessor;
-        this.timestamps = dataProcessor.getTimestamps();
-        this.timeStep = this.timestamps[1] - this.timestamps[0];
-        this.calculatedValues = new double[this.timestamps.length];
+        this.timeline = dataProcessor.getTimeline();
+        this.timeStep = timeline.getStep();
+        this.calculatedValues = new double[timeline.getCount()];
         this.sourcesNames = Arrays.asList(dataProcessor.getSourceNames());
+        tokens = new Token[expression.tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = createToken(expression.tokens[i], expression.symbols[i], expression.numbers[i]);
+        }
+        boolean elementWise = true;
+        for (Token token : tokens) {
+            elementWise &= token.id.elementWise;
+        }
+        this.elementWise = elementWise;
+    }
+
+    /**
+     * Creates a calculator without an expression, only used to run column kernels for a {@link RpnPlanner}.
+     * Columns released by the kernels are not recycled, the planner does it once their last consumer is done.
+     *
+     * @param dataProcessor the processor providing the timestamps.
+     */
+    RpnCalculator(DataProcessor dataProcessor) {
+        this.rpnExpression = "";
+        this.sourceName = "";
+        this.dataProcessor = dataProcessor;
+        this.timeline = dataProcessor.getTimeline();
+        this.timeStep = timeline.getStep();
+        this.calculatedValues = null;
+        this.sourcesNames = Arrays.asList(dataProcessor.getSourceNames());
+        this.tokens = new Token[0];
+        this.elementWise = true;
+        this.columns = new ColumnStack(timeline.getCount(), false);
+    }
+
+    static String[] split(String rpnExpression) {
         String[] tokensString = rpnExpression.split(" *, *");
-        tokens = new Token[tokensString.length];
         for (int i = 0; i < tokensString.length; i++) {
-            tokens[i] = createToken(tokensString[i].trim());
+            tokensString[i] = tokensString[i].trim();
         }
+        return tokensString;
     }
 
-    private Token createToken(String parsedText) {
-        Token token;
+    /**
+     * @param parsedText a trimmed token
+     * @return the operator or constant named by the token, or null for numbers and variables
+     */
+    static Token_Symbol getSymbol(String parsedText) {
         int hash = perfect.hashAsInt(parsedText);
-        if (hash >= 0 ){
-            token = new Token(symbols[hash]);
+        return hash >= 0 ? symbols[hash] : null;
+    }
+
+    private Token createToken(String parsedText, Token_Symbol symbol, double number) {
+        Token token;
+        if (symbol == Token_Symbol.TKN_NUM) {
+            token = new Token(Token_Symbol.TKN_NUM, number);
+        }
+        else if (symbol != null){
+            token = new Token(symbol);
         }
         else if (parsedText.equals("PREV")) {
             token = new Token(Token_Symbol.TKN_PREV, sourceName, calculatedValues);
@@ -705,9 +1128,6 @@ class RpnCalculator {
             String variable = parsedText.substring(5, parsedText.length() - 1);
             token = new Token(Token_Symbol.TKN_PREV, variable, dataProcessor.getValues(variable));
         }
-        else if (Util.isDouble(parsedText)) {
-            token = new Token(Token_Symbol.TKN_NUM, Util.parseDouble(parsedText));
-        }
         else if (sourcesNames.contains(parsedText)){
             token = new Token(Token_Symbol.TKN_VAR, parsedText, dataProcessor.getValues(parsedText));
         }
@@ -718,8 +1138,85 @@ class RpnCalculator {
     }
 
     double[] calculateValues() {
+        if (elementWise) {
+            return calculateColumns();
+        }
+        else {
+            return calculateSlots();
+        }
+    }
+
+    /**
+     * Evaluates the expression one token at a time over whole columns. Only valid when each token is
+     * element-wise, the kernels are plain loops over double[] that the JIT can vectorize.
+     */
+    double[] calculateColumns() {
+        columns = new ColumnStack(timeline.getCount(), true);
+        try {
+            for (Token token: tokens) {
+                token.id.do_column(this, token);
+            }
+            double[] result = columns.pop();
+            if (!columns.isEmpty()) {
+                throw new IllegalArgumentException("Stack not empty at the end of calculation. " +
+                        "Probably bad RPN expression [" + rpnExpression + "]");
+            }
+            System.arraycopy(result, 0, calculatedValues, 0, calculatedValues.length);
+            return calculatedValues;
+        }
+        finally {
+            columns = null;
+        }
+    }
+
+    /**
+     * Applies an element-wise token to operand columns. The first operand is overwritten with the result,
+     * the other ones are left untouched.
+     *
+     * @param token an element-wise token
+     * @param operands as many columns as the token's arity, in stack order
+     * @return the result column
+     */
+    double[] applyColumns(Token token, double[]... operands) {
+        for (double[] operand : operands) {
+            columns.push(operand);
+        }
+        token.id.do_column(this, token);
+        return columns.pop();
+    }
+
+    double[] copyColumn(double[] column) {
+        columns.copy(column);
+        return columns.pop();
+    }
+
+    void recycleColumn(double[] column) {
+        columns.recycle(column);
+    }
+
+    /**
+     * Evaluates the expression slot by slot with the stack machine.
+     */
+    double[] calculateSlots() {
+        return calculateSlots(0);
+    }
+
+    /**
+     * Evaluates the expression for the last slots only, the first ones are already known. They are used
+     * by the tokens that look back, like PREV or TREND.
+     *
+     * @param known the values of the first slots
+     * @param from the first slot to evaluate
+     * @return the values of all the slots
+     */
+    double[] calculateValues(double[] known, int from) {
+        System.arraycopy(known, 0, calculatedValues, 0, from);
+        return calculateSlots(from);
+    }
+
+    private double[] calculateSlots(int from) {
         State s = new State();
-        for (int slot = 0; slot < timestamps.length; slot++) {
+        for (int slot = from; slot < timeline.getCount(); slot++) {
             resetStack();
             s.rpi = 0;
             s.token_rpi = -1;
@@ -731,7 +1228,7 @@ class RpnCalculator {
             }
             calculatedValues[slot] = pop();
             // check if stack is empty only on the first try
-            if (slot == 0 && !isStackEmpty()) {
+            if (slot == from && !isStackEmpty()) {
                 throw new IllegalArgumentException("Stack not empty at the end of calculation. " +
                         "Probably bad RPN expression [" + rpnExpression + "]");
             }
@@ -739,9 +1236,23 @@ class RpnCalculator {
         return calculatedValues;
     }
 
-    private double getCalendarField(double timestamp, int field) {
-        Calendar calendar = Util.getCalendar((long) (timestamp));
-        return calendar.get(field);
+    private double getCalendarField(double timestamp, int slot, int field) {
+        CalendarFields fields = dataProcessor.getCalendarFields();
+        // usually applied to TIME, whose fields are computed once for all the slots
+        if (timestamp == timeline.get(slot)) {
+            return fields.get(field)[slot];
+        }
+        return fields.get((long) timestamp, field);
+    }
+
+    private void calendarColumn(int field) {
+        CalendarFields fields = dataProcessor.getCalendarFields();
+        double[] cached = fields.get(field);
+        double[] x1 = columns.pop();
+        for (int i = 0; i < x1.length; i++) {
+            x1[i] = x1[i] == timeline.get(i) ? cached[i] : fields.get((long) x1[i], field);
+        }
+        columns.push(x1);
     }
 
     private void push(final double x) {
@@ -799,6 +1310,104 @@ class RpnCalculator {
         }
     }
 
+    /**
+     * A stack of columns, each one as long as the timestamps. Every column on the stack is owned by it,
+     * so kernels can write their result in place of their first operand. Released columns are recycled,
+     * so at most one buffer per stack level is allocated.
+     */
+    private static final class ColumnStack {
+        private final int length;
+        private final boolean recycleReleased;
+        private final double[][] stack = new double[RpnStack.MAX_STACK_SIZE][];
+        private int pos = 0;
+        private final Deque<double[]> free = new ArrayDeque<double[]>();
+
+        ColumnStack(int length, boolean recycleReleased) {
+            this.length = length;
+            this.recycleReleased = recycleReleased;
+        }
+
+        void push(double[] column) {
+            if (pos >= RpnStack.MAX_STACK_SIZE) {
+                throw new IllegalArgumentException("PUSH failed, RPN stack full [" + RpnStack.MAX_STACK_SIZE + "]");
+            }
+            stack[pos++] = column;
+        }
+
+        double[] pop() {
+            if (pos <= 0) {
+                throw new IllegalArgumentException("POP failed, RPN stack is empty");
+            }
+            double[] column = stack[--pos];
+            stack[pos] = null;
+            return column;
+        }
+
+        double[] peek() {
+            if (pos <= 0) {
+                throw new IllegalArgumentException("PEEK failed, RPN stack is empty");
+            }
+            return stack[pos - 1];
+        }
+
+        boolean isEmpty() {
+            return pos <= 0;
+        }
+
+        void release(double[] column) {
+            if (recycleReleased) {
+                free.push(column);
+            }
+        }
+
+        void recycle(double[] column) {
+            free.push(column);
+        }
+
+        private double[] allocate() {
+            double[] column = free.poll();
+            return column != null ? column : new double[length];
+        }
+
+        void copy(double[] values) {
+            double[] column = allocate();
+            System.arraycopy(values, 0, column, 0, length);
+            push(column);
+        }
+
+        void fill(double value) {
+            double[] column = allocate();
+            Arrays.fill(column, value);
+            push(column);
+        }
+
+        void generate(IntToDoubleFunction generator) {
+            double[] column = allocate();
+            for (int i = 0; i < length; i++) {
+                column[i] = generator.applyAsDouble(i);
+            }
+            push(column);
+        }
+
+        void unary(DoubleUnaryOperator op) {
+            double[] x1 = pop();
+            for (int i = 0; i < length; i++) {
+                x1[i] = op.applyAsDouble(x1[i]);
+            }
+            push(x1);
+        }
+
+        void binary(DoubleBinaryOperator op) {
+            double[] x2 = pop();
+            double[] x1 = pop();
+            for (int i = 0; i < length; i++) {
+                x1[i] = op.applyAsDouble(x1[i], x2[i]);
+            }
+            push(x1);
+            release(x2);
+        }
+    }
+
     private final class State {
         public int token_rpi;
         int rpi;
@@ -809,11 +1418,13 @@ class RpnCalculator {
         }
     }
 
-    private static final class Token {
+    static final class Token {
         final Token_Symbol id;
         final double number;
         final String variable;
         final double[] values;
+        // running sums of the window operators, kept from one slot to the next
+        private SlidingSum[] windows = new SlidingSum[0];
         Token(Token_Symbol id) {
             this.id = id;
             this.values = null;
@@ -832,5 +1443,15 @@ class RpnCalculator {
             this.variable = "";
             this.number = number;
         }
+
+        SlidingSum getWindow(int i, double[] values) {
+            if (i >= windows.length) {
+                windows = Arrays.copyOf(windows, i + 1);
+            }
+            if (windows[i] == null || !windows[i].isOver(values)) {
+                windows[i] = new SlidingSum(values);
+            }
+            return windows[i];
+        }
     }
 }
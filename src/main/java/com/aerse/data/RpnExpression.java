@@ -0,0 +1,39 @@
+package com.aerse.data;
+
+import java.util.Arrays;
+
+import com.aerse.core.Util;
+import com.aerse.data.RpnCalculator.Token_Symbol;
+
+/**
+ * An RPN expression split in tokens, with its operators looked up and its numbers parsed once. It holds no
+ * state of a calculation, so it can be shared by all the calculations of a CDEF, even concurrent ones.
+ */
+final class RpnExpression {
+    final String text;
+    final String[] tokens;
+    // the operator of each token, TKN_NUM for numbers and null for names
+    final Token_Symbol[] symbols;
+    // the value of number tokens
+    final double[] numbers;
+
+    RpnExpression(String text) {
+        this.text = text;
+        this.tokens = RpnCalculator.split(text);
+        this.symbols = new Token_Symbol[tokens.length];
+        this.numbers = new double[tokens.length];
+        Arrays.fill(numbers, Double.NaN);
+        for (int i = 0; i < tokens.length; i++) {
+            symbols[i] = RpnCalculator.getSymbol(tokens[i]);
+            if (symbols[i] == null && Util.isDouble(tokens[i])) {
+                symbols[i] = Token_Symbol.TKN_NUM;
+                numbers[i] = Util.parseDouble(tokens[i]);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,231 @@
+package com.aerse.data;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.aerse.data.RpnCalculator.Token;
+import com.aerse.data.RpnCalculator.Token_Symbol;
+
+/**
+ * Plans the evaluation of consecutive element-wise CDEFs as a single expression DAG. Common
+ * sub-expressions are hash-consed, so each of them is calculated only once, even if it's shared
+ * by many CDEFs. Nodes are evaluated in dependency order and the column of an intermediate node is
+ * recycled as soon as its last consumer is done.
+ */
+class RpnPlanner {
+    private final DataProcessor dataProcessor;
+    private final Set<String> sourceNames;
+
+    // the nodes in creation order, which is a dependency order
+    private final List<Node> order = new ArrayList<Node>();
+    private final Map<Node, Node> nodes = new HashMap<Node, Node>();
+    private final Map<CDef, Node> roots = new LinkedHashMap<CDef, Node>();
+    private final Map<String, Node> named = new HashMap<String, Node>();
+
+    RpnPlanner(DataProcessor dataProcessor) {
+        this.dataProcessor = dataProcessor;
+        this.sourceNames = new HashSet<String>(Arrays.asList(dataProcessor.getSourceNames()));
+    }
+
+    /**
+     * Adds a CDEF to the plan, if it can be evaluated column-wise.
+     *
+     * @param cdef the source to plan.
+     * @return false if the expression is not only made of element-wise tokens and must be calculated on its own.
+     */
+    boolean add(CDef cdef) {
+        RpnExpression expression = cdef.getExpression();
+        Token[] tokens = new Token[expression.tokens.length];
+        // first check that the whole expression can be planned, without touching the DAG
+        int depth = 0;
+        for (int i = 0; i < tokens.length; i++) {
+            String parsedText = expression.tokens[i];
+            Token_Symbol symbol = expression.symbols[i];
+            if (symbol == Token_Symbol.TKN_NUM) {
+                tokens[i] = new Token(Token_Symbol.TKN_NUM, expression.numbers[i]);
+                depth++;
+            }
+            else if (symbol != null) {
+                if (!symbol.elementWise || depth < symbol.arity) {
+                    return false;
+                }
+                tokens[i] = new Token(symbol);
+                if (symbol == Token_Symbol.TKN_DUP) {
+                    depth++;
+                }
+                else if (symbol == Token_Symbol.TKN_POP) {
+                    depth--;
+                }
+                else if (symbol != Token_Symbol.TKN_EXC) {
+                    depth += 1 - symbol.arity;
+                }
+            }
+            else if (sourceNames.contains(parsedText)) {
+                tokens[i] = new Token(Token_Symbol.TKN_VAR, parsedText, null);
+                depth++;
+            }
+            else {
+                return false;
+            }
+        }
+        if (depth != 1) {
+            return false;
+        }
+
+        Deque<Node> stack = new ArrayDeque<Node>();
+        for (Token token : tokens) {
+            switch (token.id) {
+            case TKN_DUP:
+                stack.push(stack.peek());
+                break;
+            case TKN_EXC:
+                Node x2 = stack.pop();
+                Node x1 = stack.pop();
+                stack.push(x2);
+                stack.push(x1);
+                break;
+            case TKN_POP:
+                stack.pop();
+                break;
+            case TKN_VAR:
+                // a CDEF already in the plan is linked, so its sub-expressions can be shared too
+                Node root = named.get(token.variable);
+                stack.push(root != null ? root : node(token));
+                break;
+            default:
+                Node[] children = new Node[token.id.arity];
+                for (int i = children.length - 1; i >= 0; i--) {
+                    children[i] = stack.pop();
+                }
+                stack.push(node(token, children));
+            }
+        }
+        Node root = stack.pop();
+        root.pinned = true;
+        roots.put(cdef, root);
+        named.put(cdef.getName(), root);
+        return true;
+    }
+
+    private Node node(Token token, Node... children) {
+        Node node = new Node(token, children);
+        // random values must not be shared
+        if (token.id != Token_Symbol.TKN_RANDOM && token.id != Token_Symbol.TKN_RND) {
+            Node existing = nodes.get(node);
+            if (existing != null) {
+                return existing;
+            }
+            nodes.put(node, node);
+        }
+        for (Node child : children) {
+            child.consumers++;
+        }
+        order.add(node);
+        return node;
+    }
+
+    /**
+     * Evaluates all the planned CDEFs, set their values and empty the plan.
+     */
+    void calculate() {
+        if (roots.isEmpty()) {
+            return;
+        }
+        RpnCalculator calc = new RpnCalculator(dataProcessor);
+        for (Node node : order) {
+            if (node.token.id == Token_Symbol.TKN_VAR) {
+                node.value = dataProcessor.getValues(node.token.variable);
+                node.borrowed = true;
+                continue;
+            }
+            double[][] operands = new double[node.children.length][];
+            for (int i = 0; i < operands.length; i++) {
+                Node child = node.children[i];
+                if (i == 0 && child.consumers == 1 && !child.pinned && !child.borrowed) {
+                    // the last consumer takes over the column, it will be overwritten with the result
+                    operands[i] = child.value;
+                    child.value = null;
+                }
+                else if (i == 0) {
+                    operands[i] = calc.copyColumn(child.value);
+                }
+                else {
+                    operands[i] = child.value;
+                }
+            }
+            node.value = calc.applyColumns(node.token, operands);
+            for (Node child : node.children) {
+                if (--child.consumers == 0 && !child.pinned && !child.borrowed && child.value != null) {
+                    calc.recycleColumn(child.value);
+                    child.value = null;
+                }
+            }
+        }
+        Set<Node> assigned = new HashSet<Node>();
+        for (Map.Entry<CDef, Node> e : roots.entrySet()) {
+            Node root = e.getValue();
+            // each CDEF gets its own array, even with identical expressions
+            double[] values = root.borrowed || !assigned.add(root) ? calc.copyColumn(root.value) : root.value;
+            e.getKey().setValues(values);
+        }
+        order.clear();
+        nodes.clear();
+        roots.clear();
+        named.clear();
+    }
+
+    private static final class Node {
+        final Token token;
+        final Node[] children;
+        // number of consumers not yet evaluated
+        int consumers;
+        // the values of CDEF must not be overwritten or recycled
+        boolean pinned;
+        // the values belongs to another source
+        boolean borrowed;
+        double[] value;
+
+        Node(Token token, Node[] children) {
+            this.token = token;
+            this.children = children;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = token.id.hashCode();
+            hash = 31 * hash + Long.valueOf(Double.doubleToLongBits(token.number)).hashCode();
+            hash = 31 * hash + token.variable.hashCode();
+            for (Node child : children) {
+                hash = 31 * hash + System.identityHashCode(child);
+            }
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null || getClass() != obj.getClass())
+                return false;
+            Node other = (Node) obj;
+            if (token.id != other.token.id
+                    || Double.doubleToLongBits(token.number) != Double.doubleToLongBits(other.token.number)
+                    || !token.variable.equals(other.token.variable)
+                    || children.length != other.children.length)
+                return false;
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] != other.children[i])
+                    return false;
+            }
+            return true;
+        }
+    }
+}
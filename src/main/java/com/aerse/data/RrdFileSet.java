@@ -0,0 +1,144 @@
+package com.aerse.data;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.aerse.core.FetchData;
+import com.aerse.core.FetchRequest;
+import com.aerse.core.RrdDb;
+import com.aerse.core.RrdDbPool;
+
+/**
+ * RRD files fetched by a bounded number of threads, each one taking the next file until all of them are
+ * processed. The files are opened through the {@link RrdDbPool} and released as soon as they are fetched, and
+ * each thread reuses the same {@link FetchData}.
+ */
+class RrdFileSet {
+    /**
+     * What is done with each file.
+     */
+    abstract static class Task {
+        /**
+         * Called while the file is held from the pool.
+         */
+        abstract FetchRequest createRequest(int index, RrdDb rrdDb) throws IOException;
+
+        /**
+         * Called once the file is released, the fetched data is reused for the next file of the thread.
+         */
+        abstract void process(int index, FetchData fetchData) throws IOException;
+    }
+
+    private final List<String> paths = new ArrayList<String>();
+    private final List<URI> uris = new ArrayList<URI>();
+
+    void add(String path) {
+        paths.add(path);
+        uris.add(null);
+    }
+
+    void add(URI uri) {
+        paths.add(null);
+        uris.add(uri);
+    }
+
+    int size() {
+        return paths.size();
+    }
+
+    String getName(int index) {
+        String path = paths.get(index);
+        return path != null ? path : uris.get(index).toString();
+    }
+
+    /**
+     * Processes the files of the given indexes.
+     *
+     * @param indexes     the indexes of the files
+     * @param concurrency the maximum number of threads
+     * @param task        what is done with each file
+     * @throws IOException the first error of a thread, the other threads stop after their current file
+     */
+    void process(final int[] indexes, int concurrency, final Task task) throws IOException {
+        final AtomicInteger next = new AtomicInteger();
+        int threads = Math.min(concurrency, indexes.length);
+        if (threads <= 1) {
+            process(indexes, next, task);
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> workers = new ArrayList<Future<Void>>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        try {
+                            process(indexes, next, task);
+                        }
+                        catch (IOException | RuntimeException e) {
+                            next.set(indexes.length);
+                            throw e;
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> worker : workers) {
+                worker.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing " + indexes.length + " files", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Processes all the files.
+     */
+    void process(int concurrency, Task task) throws IOException {
+        int[] indexes = new int[size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = i;
+        }
+        process(indexes, concurrency, task);
+    }
+
+    private void process(int[] indexes, AtomicInteger next, Task task) throws IOException {
+        RrdDbPool pool = RrdDbPool.getInstance();
+        FetchData fetchData = null;
+        for (int i = next.getAndIncrement(); i < indexes.length; i = next.getAndIncrement()) {
+            int index = indexes[i];
+            String path = paths.get(index);
+            RrdDb rrdDb = path != null ? pool.requestRrdDb(path) : pool.requestRrdDb(uris.get(index));
+            try {
+                fetchData = task.createRequest(index, rrdDb).fetchData(fetchData);
+            }
+            finally {
+                pool.release(rrdDb);
+            }
+            task.process(index, fetchData);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.aerse.data;
+
+/**
+ * Running sum and sum of squares over a window of an array, that can be moved along it in O(1)
+ * per slot. NaN values are counted but not summed, and infinities are counted separately so they can
+ * leave the window. The sums are compensated (Neumaier), so removing values doesn't accumulate errors.
+ */
+class SlidingSum {
+    private final double[] values;
+    // the window is [start, end)
+    private int start = 0;
+    private int end = 0;
+
+    private double sum;
+    private double sumCompensation;
+    private double sum2;
+    private double sum2Compensation;
+    private int nanCount;
+    private int positiveInfinities;
+    private int negativeInfinities;
+    private int infiniteSquares;
+
+    SlidingSum(double[] values) {
+        this.values = values;
+    }
+
+    boolean isOver(double[] values) {
+        return this.values == values;
+    }
+
+    /**
+     * Moves the window to [start, end), an empty window if end &lt;= start.
+     *
+     * @param start the first index in the window
+     * @param end the index after the last one in the window
+     */
+    void moveTo(int start, int end) {
+        end = Math.max(start, end);
+        int moves = (end - this.end) + (start - this.start);
+        if (start < this.start || end < this.end || start > this.end || moves > end - start) {
+            reset();
+            for (int i = start; i < end; i++) {
+                add(values[i], 1);
+            }
+        }
+        else {
+            for (int i = this.end; i < end; i++) {
+                add(values[i], 1);
+            }
+            for (int i = this.start; i < start; i++) {
+                add(values[i], -1);
+            }
+        }
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * @return the number of values in the window that are not NaN
+     */
+    int count() {
+        return end - start - nanCount;
+    }
+
+    /**
+     * @return the sum of the values in the window that are not NaN, 0 if there is none
+     */
+    double sum() {
+        if (positiveInfinities > 0 && negativeInfinities > 0) {
+            return Double.NaN;
+        }
+        else if (positiveInfinities > 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        else if (negativeInfinities > 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return sum + sumCompensation;
+    }
+
+    /**
+     * @return the sum of the squares of the values in the window that are not NaN, 0 if there is none
+     */
+    double sumOfSquares() {
+        if (infiniteSquares > 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return sum2 + sum2Compensation;
+    }
+
+    private void reset() {
+        sum = sumCompensation = 0;
+        sum2 = sum2Compensation = 0;
+        nanCount = positiveInfinities = negativeInfinities = infiniteSquares = 0;
+    }
+
+    private void add(double value, int sign) {
+        if (Double.isNaN(value)) {
+            nanCount += sign;
+        }
+        else if (value == Double.POSITIVE_INFINITY) {
+            positiveInfinities += sign;
+            infiniteSquares += sign;
+        }
+        else if (value == Double.NEGATIVE_INFINITY) {
+            negativeInfinities += sign;
+            infiniteSquares += sign;
+        }
+        else {
+            double x = sign * value;
+            double t = sum + x;
+            sumCompensation += Math.abs(sum) >= Math.abs(x) ? (sum - t) + x : (x - t) + sum;
+            sum = t;
+            double square = value * value;
+            if (Double.isInfinite(square)) {
+                infiniteSquares += sign;
+            }
+            else {
+                double x2 = sign * square;
+                double t2 = sum2 + x2;
+                sum2Compensation += Math.abs(sum2) >= Math.abs(x2) ? (sum2 - t2) + x2 : (x2 - t2) + sum2;
+                sum2 = t2;
+            }
+        }
+    }
+}
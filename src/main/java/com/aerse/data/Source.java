@@ -1,10 +1,15 @@
 package com.aerse.data;
 
+import com.aerse.core.Timeline;
+
 abstract class Source {
     private final String name;
 
     protected double[] values;
-    protected long[] timestamps;
+    private Timeline timeline;
+    private Percentiles percentiles;
+    private Moments moments;
+    private RangeIndex rangeIndex;
 
     Source(String name) {
         this.name = name;
@@ -18,8 +23,12 @@ abstract class Source {
         this.values = values;
     }
 
-    void setTimestamps(long[] timestamps) {
-        this.timestamps = timestamps;
+    void setTimeline(Timeline timeline) {
+        this.timeline = timeline;
+    }
+
+    Timeline getTimeline() {
+        return timeline;
     }
 
     double[] getValues() {
@@ -27,7 +36,41 @@ abstract class Source {
     }
 
     long[] getTimestamps() {
-        return timestamps;
+        return timeline.getTimestamps();
+    }
+
+    /**
+     * The values of the arrays within a period, prepared for percentile selection. The last one is
+     * kept, so that successive percentiles of the same period share their partial sort.
+     *
+     * @param timestamps the timestamps for the value
+     * @param values the actual values
+     * @param tStart the start of the period
+     * @param tEnd the end of the period
+     * @return the values prepared for percentile selection
+     */
+    Percentiles getPercentiles(long[] timestamps, double[] values, long tStart, long tEnd) {
+        if (percentiles == null || !percentiles.isFor(timestamps, values, tStart, tEnd)) {
+            percentiles = new Percentiles(timestamps, values, tStart, tEnd);
+        }
+        return percentiles;
+    }
+
+    /**
+     * The statistics of the points first to last. The last ones are kept, so that the variables
+     * calculated on the same range share a single pass over the values.
+     *
+     * @param first the first point of the range
+     * @param last the last point of the range, inclusive
+     * @return the statistics of the range
+     */
+    Moments getMoments(int first, int last) {
+        double[] values = getValues();
+        long[] timestamps = getTimestamps();
+        if (moments == null || !moments.isFor(timestamps, values, first, last)) {
+            moments = new Moments(timestamps, values, first, last);
+        }
+        return moments;
     }
 
     /**
@@ -38,8 +81,22 @@ abstract class Source {
      */
     @Deprecated
     Aggregates getAggregates(long tStart, long tEnd) {
-        Aggregator agg = new Aggregator(timestamps, values);
-        return agg.getAggregates(tStart, tEnd);
+        return getRangeIndex(getTimestamps(), values).getAggregates(tStart, tEnd);
+    }
+
+    /**
+     * An index of the arrays, built on first use and kept, so that the aggregates of many ranges
+     * don't need a scan each.
+     *
+     * @param timestamps the timestamps for the value
+     * @param values the actual values
+     * @return the index of the arrays
+     */
+    RangeIndex getRangeIndex(long[] timestamps, double[] values) {
+        if (rangeIndex == null || !rangeIndex.isFor(timestamps, values)) {
+            rangeIndex = new RangeIndex(timestamps, values);
+        }
+        return rangeIndex;
     }
 
     /**
@@ -0,0 +1,295 @@
+package com.aerse.data;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.aerse.ConsolFun;
+import com.aerse.core.FetchData;
+import com.aerse.core.FetchRequest;
+import com.aerse.core.RrdDb;
+import com.aerse.core.RrdDbPool;
+
+/**
+ * Finds the RRD files with the highest aggregate of a datasource over a time span, as "the 20 busiest
+ * interfaces of the last day":
+ * <pre>
+ * TopKProcessor top = new TopKProcessor(start, end, "bytes_in", ConsolFun.AVERAGE, ConsolFun.MAX, 20);
+ * for (String path : paths) {
+ *     top.addFile(path);
+ * }
+ * top.setPruning(3600, 100);
+ * top.processData();
+ * for (TopKProcessor.Ranking ranking : top.getRankings()) {
+ *     System.out.println(ranking.getFile() + " " + ranking.getValue());
+ * }
+ * </pre>
+ * The files are fetched through the {@link RrdDbPool} by a bounded number of threads and only the best files
+ * found so far are kept, in a heap of k entries.
+ * <p>
+ * With pruning, all the files are first ranked from an archive of the given resolution, usually much smaller
+ * than the finest one, and only the best candidates are fetched again at the finest resolution to be ranked.
+ * It is an approximation: a file that is not among the candidates from the coarse archive is never ranked,
+ * the number of candidates should leave a margin over k.
+ */
+public class TopKProcessor {
+    /**
+     * Default number of files fetched at the same time.
+     */
+    public static final int DEFAULT_CONCURRENCY = 8;
+
+    /**
+     * A ranked file and its aggregated value.
+     */
+    public static final class Ranking {
+        private final int index;
+        private final String file;
+        private final double value;
+
+        Ranking(int index, String file, double value) {
+            this.index = index;
+            this.file = file;
+            this.value = value;
+        }
+
+        /**
+         * @return the path or the URI of the file, as it was added
+         */
+        public String getFile() {
+            return file;
+        }
+
+        /**
+         * @return the aggregated value of the file
+         */
+        public double getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return file + ": " + value;
+        }
+    }
+
+    // the best ranking first, the first added file for equal values
+    private static final Comparator<Ranking> BEST_FIRST = new Comparator<Ranking>() {
+        public int compare(Ranking r1, Ranking r2) {
+            int result = Double.compare(r2.value, r1.value);
+            return result != 0 ? result : Integer.compare(r1.index, r2.index);
+        }
+    };
+
+    // the best rankings found so far, the worst of them on top of the heap
+    private static final class Heap {
+        private final int size;
+        private final PriorityQueue<Ranking> queue;
+
+        Heap(int size) {
+            this.size = size;
+            this.queue = new PriorityQueue<Ranking>(size, Collections.reverseOrder(BEST_FIRST));
+        }
+
+        synchronized void offer(Ranking ranking) {
+            if (queue.size() < size) {
+                queue.add(ranking);
+            }
+            else if (BEST_FIRST.compare(ranking, queue.peek()) < 0) {
+                queue.poll();
+                queue.add(ranking);
+            }
+        }
+
+        List<Ranking> getRankings() {
+            List<Ranking> rankings = new ArrayList<Ranking>(queue);
+            Collections.sort(rankings, BEST_FIRST);
+            return rankings;
+        }
+    }
+
+    private final long tStart;
+    private final long tEnd;
+    private final String dsName;
+    private final ConsolFun consolFun;
+    private final ConsolFun aggregate;
+    private final int k;
+    private final RrdFileSet files = new RrdFileSet();
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private long pruningResolution;
+    private int candidates;
+
+    private List<Ranking> rankings;
+
+    /**
+     * Creates a processor for the given time span and datasource.
+     *
+     * @param tStart    Starting timestamp in seconds
+     * @param tEnd      Ending timestamp in seconds
+     * @param dsName    Datasource name defined in each RRD file
+     * @param consolFun Consolidation function used to fetch the datasource
+     * @param aggregate How the values of a file are aggregated over the time span: AVERAGE, MIN, MAX or TOTAL
+     * @param k         Number of files to find
+     */
+    public TopKProcessor(long tStart, long tEnd, String dsName, ConsolFun consolFun, ConsolFun aggregate, int k) {
+        if (tStart < 0 || tStart >= tEnd) {
+            throw new IllegalArgumentException("Invalid timestamps specified: " + tStart + ", " + tEnd);
+        }
+        switch (aggregate) {
+        case AVERAGE:
+        case MIN:
+        case MAX:
+        case TOTAL:
+            break;
+        default:
+            throw new IllegalArgumentException("Unsupported aggregate: " + aggregate);
+        }
+        if (k <= 0) {
+            throw new IllegalArgumentException("Invalid number of files: " + k);
+        }
+        this.tStart = tStart;
+        this.tEnd = tEnd;
+        this.dsName = dsName;
+        this.consolFun = consolFun;
+        this.aggregate = aggregate;
+        this.k = k;
+    }
+
+    /**
+     * Adds a RRD file to rank.
+     *
+     * @param path path to the RRD file, opened with the default factory of the pool
+     */
+    public void addFile(String path) {
+        files.add(path);
+    }
+
+    /**
+     * Adds a RRD file to rank.
+     *
+     * @param uri URI of the RRD file
+     */
+    public void addFile(URI uri) {
+        files.add(uri);
+    }
+
+    /**
+     * Sets the number of files fetched at the same time, each one by its own thread. It should not be more
+     * than the capacity of the {@link RrdDbPool}.
+     *
+     * @param concurrency number of threads, {@link #DEFAULT_CONCURRENCY} by default
+     */
+    public void setConcurrency(int concurrency) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("Invalid concurrency: " + concurrency);
+        }
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Ranks all the files from a coarse archive first, then only the best candidates at the finest resolution.
+     *
+     * @param resolution the resolution of the first ranking, in seconds
+     * @param candidates the number of files ranked again, at least k
+     */
+    public void setPruning(long resolution, int candidates) {
+        if (resolution <= 0) {
+            throw new IllegalArgumentException("Invalid resolution: " + resolution);
+        }
+        if (candidates < k) {
+            throw new IllegalArgumentException("Less candidates than files to find: " + candidates);
+        }
+        this.pruningResolution = resolution;
+        this.candidates = candidates;
+    }
+
+    /**
+     * Fetches the files and ranks them.
+     *
+     * @throws java.io.IOException Thrown in case of I/O error, while fetching data from some RRD file
+     */
+    public void processData() throws IOException {
+        int[] indexes = new int[files.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = i;
+        }
+        if (pruningResolution > 0 && candidates < indexes.length) {
+            List<Ranking> pruned = rank(indexes, pruningResolution, candidates);
+            indexes = new int[pruned.size()];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = pruned.get(i).index;
+            }
+        }
+        rankings = rank(indexes, 1, k);
+    }
+
+    private List<Ranking> rank(int[] indexes, final long resolution, int size) throws IOException {
+        final Heap heap = new Heap(size);
+        files.process(indexes, concurrency, new RrdFileSet.Task() {
+            @Override
+            FetchRequest createRequest(int index, RrdDb rrdDb) {
+                FetchRequest request = rrdDb.createFetchRequest(consolFun, tStart, tEnd, resolution);
+                request.setFilter(dsName);
+                return request;
+            }
+
+            @Override
+            void process(int index, FetchData fetchData) {
+                double value = aggregate(fetchData);
+                if (!Double.isNaN(value)) {
+                    heap.offer(new Ranking(index, files.getName(index), value));
+                }
+            }
+        });
+        return heap.getRankings();
+    }
+
+    // aggregates the rows whose step overlaps the time span
+    private double aggregate(FetchData fetchData) {
+        long step = fetchData.getStep();
+        long[] timestamps = fetchData.getTimestamps();
+        double[] values = fetchData.getValues(0);
+        double result = Double.NaN;
+        int count = 0;
+        for (int i = 0; i < timestamps.length; i++) {
+            double value = values[i];
+            if (timestamps[i] > tStart && timestamps[i] - step < tEnd && !Double.isNaN(value)) {
+                switch (aggregate) {
+                case MIN:
+                    result = count == 0 ? value : Math.min(result, value);
+                    break;
+                case MAX:
+                    result = count == 0 ? value : Math.max(result, value);
+                    break;
+                default:
+                    result = count == 0 ? value : result + value;
+                    break;
+                }
+                count++;
+            }
+        }
+        if (aggregate == ConsolFun.AVERAGE && count > 0) {
+            result /= count;
+        }
+        else if (aggregate == ConsolFun.TOTAL) {
+            result *= step;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the files with the highest aggregated values, the highest first. Files without any known value in the
+     * time span are not ranked, so there can be less than k of them.
+     *
+     * @return the rankings
+     */
+    public List<Ranking> getRankings() {
+        if (rankings == null) {
+            throw new IllegalStateException("Data not processed yet");
+        }
+        return Collections.unmodifiableList(rankings);
+    }
+}
@@ -27,12 +27,20 @@ class VDef extends Source implements NonRrdSource  {
         return var.getValue();
     }
 
+    /**
+     * @return an accumulator of the points of the source, that sets the value when it ends, or null if the
+     * variable needs all the points at once
+     */
+    Variable.Accumulator accumulator() {
+        return var.accumulator();
+    }
+
     /* (non-Javadoc)
      * @see org.rrd4j.data.Source#getValues()
      */
     @Override
     double[] getValues() {
-        int count = getTimestamps().length;
+        int count = getTimeline().getCount();
         double[] values = new double[count];
         Arrays.fill(values, var.getValue().value);
         return values;
@@ -1,10 +1,6 @@
 package com.aerse.data;
 
-import java.io.Serializable;
-import java.util.Comparator;
-import java.util.SortedSet;
-import java.util.TreeSet;
-
+import com.aerse.core.Timeline;
 import com.aerse.core.Util;
 
 /**
@@ -39,23 +35,24 @@ public abstract class Variable {
      * @param end
      */
     void calculate(Source s, long start, long end) {
-        long step = s.timestamps[1] - s.timestamps[0];
+        Timeline timeline = s.getTimeline();
+        long step = timeline.getStep();
         int first = -1;
         int last = -1;
         // Iterate over array, stop then end cursor reach start or when both start and end has been found
         // It also stop if cursor cross other side boundary
-        for(int i = 0, j = s.timestamps.length - 1 ; ( last == -1 && j > first ) || ( first == -1 && ( last == -1 || i < last )  ) ; i++, j--) {
+        for(int i = 0, j = timeline.getCount() - 1 ; ( last == -1 && j > first ) || ( first == -1 && ( last == -1 || i < last )  ) ; i++, j--) {
             if(first == -1) {
-                long leftdown = Math.max(s.timestamps[i] - step, start);
-                long rightdown = Math.min(s.timestamps[i], end);
+                long leftdown = Math.max(timeline.get(i) - step, start);
+                long rightdown = Math.min(timeline.get(i), end);
                 if(rightdown > leftdown) {
                     first = i;
                 }                
             }
 
             if(last == -1) {
-                long leftup = Math.max(s.timestamps[j] - step, start);
-                long rightup = Math.min(s.timestamps[j], end);
+                long leftup = Math.max(timeline.get(j) - step, start);
+                long rightup = Math.min(timeline.get(j), end);
                 if(rightup > leftup ) {
                     last = j;
                 }                
@@ -81,19 +78,57 @@ public abstract class Variable {
             }
         }
         else {
-            long[] timestamps = new long[ last - first + 1];
-            System.arraycopy(s.timestamps, first, timestamps, 0, timestamps.length);
-            double[] values = new double[ last - first + 1];
-            System.arraycopy(s.getValues(), first, values, 0, values.length);
-            val = fill(timestamps, values, start, end);            
+            val = fill(s, first, last, start, end);
         }
     }
 
+    /**
+     * Calculate the value from the points first to last of a source, by default on a copy of them.
+     *
+     * @param s the source
+     * @param first the first point of the period
+     * @param last the last point of the period
+     * @param start the start of the period
+     * @param end the end of the period
+     * @return a filled Value object
+     */
+    Value fill(Source s, int first, int last, long start, long end) {
+        long[] timestamps = new long[ last - first + 1];
+        System.arraycopy(s.getTimestamps(), first, timestamps, 0, timestamps.length);
+        double[] values = new double[ last - first + 1];
+        System.arraycopy(s.getValues(), first, values, 0, values.length);
+        return fill(timestamps, values, start, end);
+    }
+
     public Value getValue() {
         assert val != null : "Used before calculation";
         return val;
     }
 
+    /**
+     * Returns an accumulator of the points of a period, for the variables that can be calculated without holding
+     * all of them, when a span is processed in chunks.
+     *
+     * @return a new accumulator, or null if the variable needs all the points at once
+     */
+    Accumulator accumulator() {
+        return null;
+    }
+
+    /**
+     * The points of a period given one at a time, in order, NaN included. Once they were all added, the value of
+     * the variable is set by {@link #end()}.
+     */
+    abstract class Accumulator {
+        abstract void add(long timestamp, double value);
+
+        abstract Value fill();
+
+        final void end() {
+            val = fill();
+        }
+    }
+
     /**
      * This method is call with the needed values, extracted from the datasource to do the calculation.
      * 
@@ -108,6 +143,41 @@ public abstract class Variable {
      */
     protected abstract Value fill(long timestamps[], double[] values, long start, long end);
 
+    /**
+     * A variable calculated from the {@link Moments} of the values, that are computed in one pass
+     * and shared by all such variables on the same source and range.
+     *
+     */
+    abstract static class MomentsVariable extends Variable {
+        @Override
+        Value fill(Source s, int first, int last, long start, long end) {
+            return fill(s.getMoments(first, last));
+        }
+
+        @Override
+        protected Value fill(long[] timestamps, double[] values, long start, long end) {
+            return fill(new Moments(timestamps, values, 0, values.length - 1));
+        }
+
+        @Override
+        Accumulator accumulator() {
+            final Moments.Accumulator moments = new Moments.Accumulator();
+            return new Accumulator() {
+                @Override
+                void add(long timestamp, double value) {
+                    moments.add(timestamp, value);
+                }
+
+                @Override
+                Value fill() {
+                    return MomentsVariable.this.fill(new Moments(moments));
+                }
+            };
+        }
+
+        abstract Value fill(Moments moments);
+    }
+
     /**
      * Find the first valid data point and it's timestamp
      *
@@ -141,46 +211,24 @@ public abstract class Variable {
     }
 
     /**
-     * The smallest of the data points and it's time stamp (the first one) is stored.
+     * The smallest of the data points and it's time stamp (the last one) is stored.
      *
      */
-    public static class MIN extends Variable {
+    public static class MIN extends MomentsVariable {
         @Override
-        protected Value fill(long[] timestamps, double[] values, long start, long end) {
-            long timestamp = 0;
-            double value = Double.NaN;
-            for(int i = values.length -1 ; i >=0 ; i--) {
-                if(! Double.isNaN(values[i]) && Double.isNaN(value)) {
-                    timestamp = timestamps[i];
-                    value = values[i];                    
-                } else if( ! Double.isNaN(values[i]) && value > values[i]) {
-                    timestamp = timestamps[i];
-                    value = values[i];
-                }
-            }
-            return new Value(timestamp, value);
+        Value fill(Moments moments) {
+            return new Value(moments.minTimestamp, moments.min);
         }
     }
 
     /**
-     * The biggest of the data points and it's time stamp (the first one) is stored.
+     * The biggest of the data points and it's time stamp (the last one) is stored.
      *
      */
-    public static  class MAX extends Variable {
+    public static class MAX extends MomentsVariable {
         @Override
-        protected Value fill(long[] timestamps, double[] values, long start, long end) {
-            long timestamp = 0;
-            double value = Double.NaN;
-            for(int i = values.length -1 ; i >=0 ; i--) {
-                if(! Double.isNaN(values[i]) && Double.isNaN(value)) {
-                    timestamp = timestamps[i];
-                    value = values[i];                    
-                } else if(!Double.isNaN(values[i]) && value < values[i]) {
-                    timestamp = timestamps[i];
-                    value = values[i];
-                }
-            }
-            return new Value(timestamp, value);
+        Value fill(Moments moments) {
+            return new Value(moments.maxTimestamp, moments.max);
         }
     }
 
@@ -198,124 +246,55 @@ public abstract class Variable {
             }
             return new Value(0, value * (timestamps[1] - timestamps[0]) );
         }
-    }
 
-    /**
-     * Calculate the average of the data points.
-     *
-     */
-    public static class AVERAGE extends Variable {
         @Override
-        protected Value fill(long[] timestamps, double[] values, long start, long end) {
-            double value = 0;
-            int count = 0;
-            for(int i = values.length - 1 ; i >= 0 ; i--) {
-                if( !Double.isNaN(values[i]) ) {
+        Accumulator accumulator() {
+            return new Accumulator() {
+                private double value = Double.NaN;
+                private int count = 0;
+                private long first = 0;
+                private long step = 0;
+
+                @Override
+                void add(long timestamp, double tempVal) {
+                    // the step is found from the first two points
+                    if (count == 0) {
+                        first = timestamp;
+                    }
+                    else if (count == 1) {
+                        step = timestamp - first;
+                    }
                     count++;
-                    value = Double.isNaN(value) ?  values[i] : values[i] + value;
+                    value = Util.sum(value, tempVal);
                 }
-            }
-            if(! Double.isNaN(value)) {
-                value = value / count;
-            }
-            else {
-                value = Double.NaN;
-            }
-            return new Value(0, value);
-        }
-    }
 
-    /**
-     * Calculate the standard deviation for the data point.
-     *
-     */
-    public static class STDDEV extends Variable {
-        @Override
-        protected Value fill(long[] timestamps, double[] values, long start, long end) {
-            double value = Double.NaN;
-            int count = 0;
-            double M = 0.0;
-            double S = 0.0;
-            // See Knuth TAOCP vol 2, 3rd edition, page 232 and http://www.johndcook.com/standard_deviation.html
-            for(double cursVal: values) {
-                if(Double.isNaN(cursVal))
-                    continue;
-                count++;
-                if(count == 1) {
-                    M = cursVal;
-                    S = 0;
-                }
-                else {
-                    double dM = cursVal - M;
-                    M += dM/count;
-                    S += dM * (cursVal - M);
+                @Override
+                Value fill() {
+                    return new Value(0, count > 1 ? value * step : Double.NaN);
                 }
-            }
-            if(count > 1) {
-                value = Math.sqrt( S/(count - 1) );
-            }
-            return new Value(0, value);
+            };
         }
     }
 
     /**
-     * Store all the informations about a datasource point, for predictive and consistent sorting
+     * Calculate the average of the data points.
      *
      */
-    static final class PercentElem {
-        long timestamp;
-        double value;
-
-        PercentElem(int pos, long timestamp, double value) {
-            this.timestamp = timestamp;
-            this.value = value;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            PercentElem other = (PercentElem) obj;
-            if (timestamp != other.timestamp)
-                return false;
-            return true;
-        }
-
-        @Override
-        public int hashCode() {
-            return Long.valueOf(timestamp).hashCode();
-        }
-
+    public static class AVERAGE extends MomentsVariable {
         @Override
-        public String toString() {
-            return String.format("[%d, %f]", timestamp, value);
+        Value fill(Moments moments) {
+            return new Value(0, moments.getAverage());
         }
     }
 
     /**
-     * The sort used by rrdtool for percent, where NaN &lt; -INF &lt; finite values &lt; INF
+     * Calculate the standard deviation for the data point.
      *
      */
-    static final class ComparPercentElemen implements Comparator<PercentElem>, Serializable {
+    public static class STDDEV extends MomentsVariable {
         @Override
-        public final int compare(PercentElem arg0, PercentElem arg1) {
-            if(Double.isNaN(arg0.value) && Double.isNaN(arg1.value))
-                return Long.signum(arg0.timestamp - arg1.timestamp);
-            else if(Double.isNaN(arg0.value))
-                return -1;
-            else if (Double.isNaN(arg1.value))
-                return +1;
-            else  {
-                int compared = Double.compare(arg0.value, arg1.value);
-                if (compared == 0) {
-                    compared = Long.signum(arg0.timestamp - arg1.timestamp);
-                }
-                return compared;
-            }
+        Value fill(Moments moments) {
+            return new Value(0, moments.getStdDev());
         }
     }
 
@@ -341,27 +320,13 @@ public abstract class Variable {
         }
 
         @Override
-        protected Value fill(long[] timestamps, double[] values, long start, long end) {
-            // valuesSet will be a set with NaN packet at the start
-            SortedSet<PercentElem> valuesSet = new TreeSet<PercentElem>(new ComparPercentElemen());
-            for(int i = 0 ; i < values.length ; i++) {
-                valuesSet.add(new PercentElem(i, timestamps[i], values[i]));
-            }
-
-            //If not with nan, just drop all nan (inferior to min value)
-            if( ! withNaN) {
-                valuesSet = valuesSet.tailSet(new PercentElem(0, 0, Double.NEGATIVE_INFINITY ));
-            }
+        Value fill(Source s, int first, int last, long start, long end) {
+            return s.getPercentiles(s.getTimestamps(), s.getValues(), start, end).getValue(percentile, withNaN);
+        }
 
-            PercentElem[] element = (PercentElem[]) valuesSet.toArray(new PercentElem[valuesSet.size()]);
-            int pos = Math.round(percentile * (element.length - 1) / 100);
-            // if we have anything left...
-            if (pos >= 0) {
-                double value = element[pos].value;
-                long timestamp = element[pos].timestamp;
-                return new Value(timestamp, value);
-            }
-            return new Value(0, Double.NaN);
+        @Override
+        protected Value fill(long[] timestamps, double[] values, long start, long end) {
+            return new Percentiles(timestamps, values).getValue(percentile, withNaN);
         }
     }
 
@@ -377,127 +342,101 @@ public abstract class Variable {
     }
 
     /**
-     * Calculate the slop of the least squares line.
+     * Find an approximation of the n-th percentile, without storing the values. NaN are ignored
+     * and the result has no timestamp.
+     * <p>
+     * The values are counted in a {@link PercentileSketch} that is kept, so it can be merged with the
+     * sketches of other sources.
      *
      */
-    public static class LSLSLOPE extends Variable {
+    public static class SKETCHPERCENTILE extends Variable {
+        private final double percentile;
+        private final double accuracy;
+        private PercentileSketch sketch;
 
-        @Override
-        protected Value fill(long[] timestamps, double[] values, long start, long end) {
-            int cnt = 0;
-            int lslstep = 0;
-            double SUMx = 0.0;
-            double SUMy = 0.0;
-            double SUMxy = 0.0;
-            double SUMxx = 0.0;
-            double lslslope;
+        public SKETCHPERCENTILE(double percentile) {
+            this(percentile, PercentileSketch.DEFAULT_ACCURACY);
+        }
 
-            for(int i = 0; i < values.length; i++) {
-                double value = values[i];
+        /**
+         * @param percentile the percentile, between 0 and 100
+         * @param accuracy the relative accuracy of the result
+         */
+        public SKETCHPERCENTILE(double percentile, double accuracy) {
+            this.percentile = percentile;
+            this.accuracy = accuracy;
+        }
 
-                if (!Double.isNaN(value)) {
-                    cnt++;
+        /**
+         * @return the sketch of the values used by the last calculation
+         */
+        public PercentileSketch getSketch() {
+            assert sketch != null : "Used before calculation";
+            return sketch;
+        }
 
-                    SUMx += lslstep;
-                    SUMxx += lslstep * lslstep;
-                    SUMy  += value;
-                    SUMxy += lslstep * value;
+        @Override
+        Value fill(Source s, int first, int last, long start, long end) {
+            sketch = new PercentileSketch(accuracy);
+            sketch.add(s.getValues(), first, last + 1);
+            return new Value(0, sketch.getPercentile(percentile));
+        }
 
+        @Override
+        protected Value fill(long[] timestamps, double[] values, long start, long end) {
+            sketch = new PercentileSketch(accuracy);
+            sketch.add(values, 0, values.length);
+            return new Value(0, sketch.getPercentile(percentile));
+        }
+
+        @Override
+        Accumulator accumulator() {
+            final PercentileSketch accumulated = new PercentileSketch(accuracy);
+            return new Accumulator() {
+                @Override
+                void add(long timestamp, double value) {
+                    accumulated.add(value);
                 }
-                lslstep++;
-            }
-            if(cnt > 0) {
-                /* Bestfit line by linear least squares method */
-                lslslope = (SUMx * SUMy - cnt * SUMxy) / (SUMx * SUMx - cnt * SUMxx);
-                return new Value(0, lslslope);
 
-            }
-            return new Value(0, Double.NaN);
+                @Override
+                Value fill() {
+                    sketch = accumulated;
+                    return new Value(0, sketch.getPercentile(percentile));
+                }
+            };
         }
+    }
 
+    /**
+     * Calculate the slop of the least squares line.
+     *
+     */
+    public static class LSLSLOPE extends MomentsVariable {
+        @Override
+        Value fill(Moments moments) {
+            return new Value(0, moments.count > 0 ? moments.getSlope() : Double.NaN);
+        }
     }
 
     /**
      * Calculate the y-intercept of the least squares line.
      *
      */
-    public static class LSLINT extends Variable {
-
+    public static class LSLINT extends MomentsVariable {
         @Override
-        protected Value fill(long[] timestamps, double[] values, long start, long end) {
-            int cnt = 0;
-            int lslstep = 0;
-            double SUMx = 0.0;
-            double SUMy = 0.0;
-            double SUMxy = 0.0;
-            double SUMxx = 0.0;
-            double lslslope;
-            double lslint;
-
-            for(int i = 0; i < values.length; i++) {
-                double value = values[i];
-
-                if (!Double.isNaN(value)) {
-                    cnt++;
-
-                    SUMx += lslstep;
-                    SUMxx += lslstep * lslstep;
-                    SUMy  += value;
-                    SUMxy += lslstep * value;
-                }
-                lslstep++;
-            }
-            if(cnt > 0) {
-                /* Bestfit line by linear least squares method */
-                lslslope = (SUMx * SUMy - cnt * SUMxy) / (SUMx * SUMx - cnt * SUMxx);
-                lslint = (SUMy - lslslope * SUMx) / cnt;
-                return new Value(0, lslint);
-            }
-            return new Value(0, Double.NaN);
+        Value fill(Moments moments) {
+            return new Value(0, moments.count > 0 ? moments.getIntercept() : Double.NaN);
         }
-
     }
 
     /**
      * Calculate the correlation coefficient of the least squares line.
      *
      */
-    public static class LSLCORREL extends Variable {
-
+    public static class LSLCORREL extends MomentsVariable {
         @Override
-        protected Value fill(long[] timestamps, double[] values, long start, long end) {
-            int cnt = 0;
-            int lslstep = 0;
-            double SUMx = 0.0;
-            double SUMy = 0.0;
-            double SUMxy = 0.0;
-            double SUMxx = 0.0;
-            double SUMyy = 0.0;
-            double lslcorrel;
-
-            for(int i = 0; i < values.length; i++) {
-                double value = values[i];
-
-                if (!Double.isNaN(value)) {
-                    cnt++;
-
-                    SUMx += lslstep;
-                    SUMxx += lslstep * lslstep;
-                    SUMy  += value;
-                    SUMxy += lslstep * value;
-                    SUMyy += value * value;
-                }
-                lslstep++;
-            }
-            if(cnt > 0) {
-                /* Bestfit line by linear least squares method */
-                lslcorrel =
-                        (SUMxy - (SUMx * SUMy) / cnt) /
-                        Math.sqrt((SUMxx - (SUMx * SUMx) / cnt) * (SUMyy - (SUMy * SUMy) / cnt));
-                return new Value(0, lslcorrel);
-            }
-            return new Value(0, Double.NaN);
+        Value fill(Moments moments) {
+            return new Value(0, moments.count > 0 ? moments.getCorrelation() : Double.NaN);
         }
-
     }
 }
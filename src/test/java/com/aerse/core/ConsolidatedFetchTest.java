@@ -0,0 +1,108 @@
+package com.aerse.core;
+
+import static com.aerse.core.RrdFixture.START;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.aerse.ConsolFun;
+
+public class ConsolidatedFetchTest {
+    private static final ConsolFun[] CONSOL_FUNS = {ConsolFun.AVERAGE, ConsolFun.MIN, ConsolFun.MAX, ConsolFun.LAST, ConsolFun.TOTAL};
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private RrdDb fine;
+    private RrdDb coarse;
+    private long end;
+
+    private RrdDb create(String name, int steps, int rows) throws IOException {
+        RrdDef rrdDef = RrdFixture.gaugeDef(new File(testFolder.getRoot(), name).getAbsolutePath(), 60, "a", "b");
+        for (ConsolFun consolFun : CONSOL_FUNS) {
+            rrdDef.addArchive(consolFun, 0.5, steps, rows);
+        }
+        RrdDb rrdDb = new RrdDb(rrdDef);
+        end = RrdFixture.fill(rrdDb, START + 60, START + 86400, 60, t -> {
+            long i = (t - START) / 60;
+            // runs of unknown values, some of them long enough to make a consolidated row unknown
+            return new double[] {i % 97 < 3 || i % 211 < 7 ? Double.NaN : (i * 7) % 23, Math.sin(i / 50.0)};
+        });
+        return rrdDb;
+    }
+
+    @Before
+    public void createRrds() throws IOException {
+        fine = create("fine.rrd", 1, 1440);
+        coarse = create("coarse.rrd", 5, 288);
+    }
+
+    @After
+    public void closeRrds() throws IOException {
+        fine.close();
+        coarse.close();
+    }
+
+    @Test
+    public void testAsArchived() throws IOException {
+        for (ConsolFun consolFun : CONSOL_FUNS) {
+            FetchRequest request = fine.createFetchRequest(consolFun, end - 12 * 3600 + 17, end - 3600 - 29, 300);
+            request.setConsolidated(true);
+            FetchData consolidated = request.fetchData();
+            FetchData expected = coarse.createFetchRequest(consolFun, end - 12 * 3600 + 17, end - 3600 - 29, 300).fetchData();
+            Assert.assertEquals(300, consolidated.getStep());
+            Assert.assertEquals(60, consolidated.getArcStep());
+            Assert.assertArrayEquals(expected.getTimestamps(), consolidated.getTimestamps());
+            for (int i = 0; i < expected.getColumnCount(); i++) {
+                Assert.assertArrayEquals(consolFun + " " + i, expected.getValues(i), consolidated.getValues(i), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testNotConsolidated() throws IOException {
+        FetchRequest request = fine.createFetchRequest(ConsolFun.AVERAGE, end - 3600, end, 300);
+        Assert.assertFalse(request.isConsolidated());
+        Assert.assertEquals(60, request.fetchData().getStep());
+    }
+
+    @Test
+    public void testResolutionNotMultiple() throws IOException {
+        FetchRequest request = fine.createFetchRequest(ConsolFun.MAX, end - 3 * 3600, end, 450);
+        request.setConsolidated(true);
+        FetchData fetchData = request.fetchData();
+        Assert.assertEquals(420, fetchData.getStep());
+        FetchData rows = fine.createFetchRequest(ConsolFun.MAX, end - 4 * 3600, end).fetchData();
+        long[] timestamps = fetchData.getTimestamps();
+        double[] values = fetchData.getValues("b");
+        for (int i = 0; i < timestamps.length; i++) {
+            Assert.assertEquals(0, timestamps[i] % 420);
+            double max = Double.NaN;
+            for (int row = 0; row < rows.getRowCount(); row++) {
+                long t = rows.getTimestamps()[row];
+                if (t > timestamps[i] - 420 && t <= timestamps[i]) {
+                    max = Util.max(max, rows.getValues("b")[row]);
+                }
+            }
+            Assert.assertEquals(max, values[i], 0);
+        }
+    }
+
+    @Test
+    public void testReused() throws IOException {
+        FetchRequest request = fine.createFetchRequest(ConsolFun.AVERAGE, end - 6 * 3600, end, 300);
+        request.setConsolidated(true);
+        FetchData reused = fine.createFetchRequest(ConsolFun.AVERAGE, end - 3600, end).fetchData();
+        reused = request.fetchData(reused);
+        FetchData expected = request.fetchData();
+        Assert.assertArrayEquals(expected.getTimestamps(), reused.getTimestamps());
+        Assert.assertArrayEquals(expected.getValues(), reused.getValues());
+    }
+}
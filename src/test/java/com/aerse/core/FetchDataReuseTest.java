@@ -0,0 +1,133 @@
+package com.aerse.core;
+
+import static com.aerse.core.RrdFixture.START;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.aerse.ConsolFun;
+
+public class FetchDataReuseTest {
+    private static final int ROWS = 600;
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private RrdDb create(int version) throws IOException {
+        RrdDef rrdDef = RrdFixture.gaugeDef(new File(testFolder.getRoot(), "reuse" + version + ".rrd").getAbsolutePath(), 60, version, "a", "b");
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 1, ROWS);
+        RrdDb rrdDb = new RrdDb(rrdDef);
+        // more rows than the archive holds, so that it wraps
+        RrdFixture.fill(rrdDb, START + 60, START + (ROWS + 250) * 60, 60, t -> {
+            long i = (t - START) / 60;
+            return new double[] {i % 17 == 0 ? Double.NaN : i, -i};
+        });
+        return rrdDb;
+    }
+
+    private static void assertSame(FetchData expected, FetchData actual) {
+        Assert.assertArrayEquals(expected.getDsNames(), actual.getDsNames());
+        Assert.assertArrayEquals(expected.getTimestamps(), actual.getTimestamps());
+        for (int i = 0; i < expected.getColumnCount(); i++) {
+            Assert.assertArrayEquals(expected.getValues(i), actual.getValues(i), 0);
+        }
+    }
+
+    private void checkAsFetched(int version) throws IOException {
+        try (RrdDb rrdDb = create(version)) {
+            long end = rrdDb.getLastUpdateTime();
+            long[][] ranges = {
+                    {end - 3600, end},
+                    {end - 3600 - 17, end - 17},
+                    {end - ROWS * 60, end},
+                    {end - 2 * ROWS * 60, end - ROWS * 30},
+                    {end - 1800, end + 1800},
+                    {START, START + 600},
+                    {end - 3600, end},
+            };
+            FetchData reused = null;
+            for (long[] range : ranges) {
+                FetchRequest request = rrdDb.createFetchRequest(ConsolFun.AVERAGE, range[0], range[1]);
+                reused = request.fetchData(reused);
+                assertSame(request.fetchData(), reused);
+                request.setFilter("b");
+                reused = request.fetchData(reused);
+                assertSame(request.fetchData(), reused);
+            }
+        }
+    }
+
+    @Test
+    public void testLinearAsFetched() throws IOException {
+        checkAsFetched(1);
+    }
+
+    @Test
+    public void testMatrixAsFetched() throws IOException {
+        checkAsFetched(2);
+    }
+
+    @Test
+    public void testArraysReused() throws IOException {
+        try (RrdDb rrdDb = create(2)) {
+            long end = rrdDb.getLastUpdateTime();
+            FetchData fetchData = rrdDb.createFetchRequest(ConsolFun.AVERAGE, end - 3600, end).fetchData();
+            double[] values = fetchData.getValues(0);
+            String[] dsNames = fetchData.getDsNames();
+            FetchRequest request = rrdDb.createFetchRequest(ConsolFun.AVERAGE, end - 7200, end - 3600);
+            FetchData reused = request.fetchData(fetchData);
+            Assert.assertSame(fetchData, reused);
+            Assert.assertSame(values, reused.getValues(0));
+            Assert.assertSame(dsNames, reused.getDsNames());
+            Assert.assertEquals(request.fetchData().getFirstTimestamp(), reused.getFirstTimestamp());
+        }
+    }
+
+    @Test
+    public void testNoAllocation() throws IOException {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+        try (RrdDb rrdDb = create(1)) {
+            long end = rrdDb.getLastUpdateTime();
+            // sliding ranges, some of them wrapping around the end of the archive
+            int count = 500;
+            FetchRequest[] requests = new FetchRequest[count];
+            for (int i = 0; i < count; i++) {
+                long t = end - i * 60;
+                requests[i] = rrdDb.createFetchRequest(ConsolFun.AVERAGE, t - 4 * 3600, t);
+            }
+            FetchData fetchData = null;
+            for (int warmup = 0; warmup < 20; warmup++) {
+                for (FetchRequest request : requests) {
+                    fetchData = request.fetchData(fetchData);
+                    request.fetchData();
+                }
+            }
+
+            long threadId = Thread.currentThread().getId();
+            long before = threadBean.getThreadAllocatedBytes(threadId);
+            for (FetchRequest request : requests) {
+                fetchData = request.fetchData(fetchData);
+            }
+            long reused = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+            before = threadBean.getThreadAllocatedBytes(threadId);
+            for (FetchRequest request : requests) {
+                request.fetchData();
+            }
+            long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+            // at most a Timeline for each new range, while each new FetchData holds 2 * 241 doubles
+            Assert.assertTrue("allocated " + reused + " bytes", reused < count * 64L);
+            Assert.assertTrue("allocated " + allocated + " bytes", allocated > count * 2 * 241 * 8L);
+        }
+    }
+}
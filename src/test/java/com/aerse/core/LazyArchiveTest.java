@@ -0,0 +1,147 @@
+package com.aerse.core;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.aerse.ConsolFun;
+import com.aerse.DsType;
+
+public class LazyArchiveTest {
+    private static final long START = 920804400L;
+    private static final int DS_COUNT = 100;
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    // the dump of the last file created, with all its archives
+    private String expectedDump;
+
+    // counts the reads from the storage
+    private static class CountingFactory extends RrdRandomAccessFileBackendFactory {
+        int reads;
+
+        @Override
+        protected RrdBackend open(String path, boolean readOnly) throws IOException {
+            return new RrdRandomAccessFileBackend(path, readOnly) {
+                @Override
+                protected void read(long offset, byte[] b) throws IOException {
+                    reads++;
+                    super.read(offset, b);
+                }
+
+                @Override
+                protected void read(long offset, byte[] b, int off, int len) throws IOException {
+                    reads++;
+                    super.read(offset, b, off, len);
+                }
+            };
+        }
+    }
+
+    private static String getDsName(int i, boolean longNames) {
+        return (longNames && i % 10 == 0 ? "a_datasource_with_a_long_name_" : "ds") + i;
+    }
+
+    private String create(int version, boolean longNames) throws IOException {
+        String path = new File(testFolder.getRoot(), "wide" + version + longNames + ".rrd").getPath();
+        RrdDef rrdDef = new RrdDef(path, START, 60, version);
+        for (int i = 0; i < DS_COUNT; i++) {
+            rrdDef.addDatasource(getDsName(i, longNames), DsType.GAUGE, 120, 0, Double.NaN);
+        }
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 1, 120);
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 10, 144);
+        rrdDef.addArchive(ConsolFun.MAX, 0.5, 10, 144);
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 60, 100);
+        try (RrdDb rrdDb = new RrdDb(rrdDef)) {
+            Sample sample = rrdDb.createSample();
+            double[] values = new double[DS_COUNT];
+            for (long t = START + 60; t <= START + 6 * 3600; t += 60) {
+                for (int i = 0; i < DS_COUNT; i++) {
+                    values[i] = (t / 60 + i) % 17;
+                }
+                sample.setTime(t);
+                sample.setValues(values);
+                sample.update();
+            }
+            expectedDump = rrdDb.dump();
+        }
+        return path;
+    }
+
+    private void assertAsWritten(int version, boolean longNames) throws IOException {
+        String path = create(version, longNames);
+        CountingFactory factory = new CountingFactory();
+        try (RrdDb rrdDb = new RrdDb(path, true, factory)) {
+            if (!longNames) {
+                // the header and a few datasources, then the other datasources, and one read for each archive
+                Assert.assertEquals(1 + 1 + rrdDb.getArcCount(), factory.reads);
+            }
+            Assert.assertEquals(version, rrdDb.getHeader().getVersion());
+            Assert.assertEquals(getDsName(90, longNames), rrdDb.getDatasource(90).getName());
+            Assert.assertEquals(144, rrdDb.getArchive(2).getRows());
+
+            FetchRequest request = rrdDb.createFetchRequest(ConsolFun.AVERAGE, START + 5 * 3600, START + 6 * 3600);
+            request.setFilter("ds7");
+            FetchData fetchData = request.fetchData();
+            Assert.assertEquals(60, fetchData.getArcStep());
+            long[] timestamps = fetchData.getTimestamps();
+            double[] values = fetchData.getValues("ds7");
+            for (int i = 0; i < timestamps.length; i++) {
+                Assert.assertEquals((timestamps[i] / 60 + 7) % 17, values[i], 0);
+            }
+        }
+        try (RrdDb rrdDb = new RrdDb(path, true)) {
+            Assert.assertEquals(expectedDump, rrdDb.dump());
+        }
+        try (RrdDb rrdDb = new RrdDb(path, true)) {
+            RrdDef rrdDef = rrdDb.getRrdDef();
+            rrdDef.setPath(new File(testFolder.getRoot(), "copy.rrd").getPath());
+            try (RrdDb copy = new RrdDb(rrdDef)) {
+                rrdDb.copyStateTo(copy);
+                for (int a = 0; a < rrdDb.getArcCount(); a++) {
+                    for (int i = 0; i < DS_COUNT; i++) {
+                        Assert.assertArrayEquals(rrdDb.getArchive(a).getRobin(i).getValues(), copy.getArchive(a).getRobin(i).getValues(), 0);
+                        Assert.assertEquals(rrdDb.getArchive(a).getArcState(i).dump(), copy.getArchive(a).getArcState(i).dump());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testVersion1() throws IOException {
+        assertAsWritten(1, false);
+    }
+
+    @Test
+    public void testVersion2() throws IOException {
+        assertAsWritten(2, false);
+    }
+
+    @Test
+    public void testVersion3() throws IOException {
+        assertAsWritten(3, false);
+    }
+
+    @Test
+    public void testLongNames() throws IOException {
+        assertAsWritten(2, true);
+    }
+
+    @Test
+    public void testUpdateAfterOpen() throws IOException {
+        String path = create(2, false);
+        try (RrdDb rrdDb = new RrdDb(path)) {
+            rrdDb.createSample(START + 6 * 3600 + 60).setValue("ds1", 42).update();
+        }
+        try (RrdDb rrdDb = new RrdDb(path, true)) {
+            Robin robin = rrdDb.getArchive(0).getRobin(rrdDb.getDsIndex("ds1"));
+            Assert.assertEquals(42, robin.getValue(robin.getSize() - 1), 0);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.aerse.core;
+
+import static com.aerse.core.RrdFixture.START;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.aerse.ConsolFun;
+
+public class MultiConsolFunFetchTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private RrdDb rrdDb;
+    private long end;
+
+    @Before
+    public void createRrd() throws IOException {
+        RrdDef rrdDef = RrdFixture.gaugeDef(new File(testFolder.getRoot(), "bands.rrd").getAbsolutePath(), 60, "a", "b");
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 1, 300);
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 5, 600);
+        rrdDef.addArchive(ConsolFun.MIN, 0.5, 5, 600);
+        rrdDef.addArchive(ConsolFun.MAX, 0.5, 1, 300);
+        rrdDef.addArchive(ConsolFun.MAX, 0.5, 5, 600);
+        rrdDb = new RrdDb(rrdDef);
+        end = RrdFixture.fill(rrdDb, START + 20, START + 86400, 20, t -> new double[] {(t / 20) % 31, Math.cos(t / 1000.0)});
+    }
+
+    @After
+    public void closeRrd() throws IOException {
+        rrdDb.close();
+    }
+
+    private void assertAsFetched(FetchRequest request, Map<ConsolFun, FetchData> fetched) throws IOException {
+        for (Map.Entry<ConsolFun, FetchData> entry : fetched.entrySet()) {
+            FetchData fetchData = entry.getValue();
+            Assert.assertEquals(entry.getKey(), fetchData.getRequest().getConsolFun());
+            FetchRequest single = rrdDb.createFetchRequest(entry.getKey(), request.getFetchStart(), request.getFetchEnd(),
+                    fetchData.getArcStep());
+            single.setFilter(request.getFilter());
+            FetchData expected = single.fetchData();
+            Assert.assertSame(expected.getMatchingArchive(), fetchData.getMatchingArchive());
+            Assert.assertArrayEquals(expected.getDsNames(), fetchData.getDsNames());
+            Assert.assertArrayEquals(expected.getTimestamps(), fetchData.getTimestamps());
+            Assert.assertArrayEquals(expected.getValues(), fetchData.getValues());
+        }
+    }
+
+    @Test
+    public void testAligned() throws IOException {
+        FetchRequest request = rrdDb.createFetchRequest(ConsolFun.AVERAGE, end - 6 * 3600, end - 3600);
+        Map<ConsolFun, FetchData> fetched = request.fetchData(ConsolFun.AVERAGE, ConsolFun.MIN, ConsolFun.MAX);
+        Assert.assertEquals(3, fetched.size());
+        // the fine archives do not cover the range
+        long[] timestamps = fetched.get(ConsolFun.AVERAGE).getTimestamps();
+        for (FetchData fetchData : fetched.values()) {
+            Assert.assertEquals(300, fetchData.getStep());
+            Assert.assertArrayEquals(timestamps, fetchData.getTimestamps());
+        }
+        assertAsFetched(request, fetched);
+    }
+
+    @Test
+    public void testFinestFirst() throws IOException {
+        FetchRequest request = rrdDb.createFetchRequest(ConsolFun.AVERAGE, end - 3600, end);
+        request.setFilter("b");
+        Map<ConsolFun, FetchData> fetched = request.fetchData(ConsolFun.MAX, ConsolFun.MIN, ConsolFun.MAX, ConsolFun.AVERAGE);
+        Assert.assertEquals(3, fetched.size());
+        Assert.assertEquals(60, fetched.get(ConsolFun.MAX).getStep());
+        Assert.assertEquals(60, fetched.get(ConsolFun.AVERAGE).getStep());
+        // no fine MIN archive
+        Assert.assertEquals(300, fetched.get(ConsolFun.MIN).getStep());
+        assertAsFetched(request, fetched);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMissingConsolFun() throws IOException {
+        rrdDb.createFetchRequest(ConsolFun.AVERAGE, end - 3600, end).fetchData(ConsolFun.AVERAGE, ConsolFun.LAST);
+    }
+}
@@ -0,0 +1,218 @@
+package com.aerse.core;
+
+import static com.aerse.core.RrdFixture.START;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.aerse.ConsolFun;
+import com.aerse.DsType;
+
+public class RrdCatalogTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private File root;
+
+    @Before
+    public void createRrds() throws IOException {
+        root = testFolder.newFolder("rrd");
+        for (int i = 0; i < 20; i++) {
+            File dir = new File(root, "host" + (i % 4));
+            dir.mkdirs();
+            create(new File(dir, "if" + i + ".rrd"), i % 2 == 0 ? "bytes_in" : "errors", 60 * (1 + i % 3));
+        }
+        Assert.assertTrue(new File(root, "notes.txt").createNewFile());
+    }
+
+    private static void create(File file, String dsName, long step) throws IOException {
+        RrdDef rrdDef = RrdFixture.gaugeDef(file.getAbsolutePath(), step, dsName, "status");
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 1, 100);
+        rrdDef.addArchive(ConsolFun.MAX, 0.5, 10, 50);
+        new RrdDb(rrdDef).close();
+    }
+
+    private static void update(File file, long time) throws IOException {
+        try (RrdDb rrdDb = new RrdDb(file.getAbsolutePath())) {
+            rrdDb.createSample(time).setValue("status", 1).update();
+        }
+        // a coarse file system clock would not see the modification
+        Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(file.lastModified() + 2000));
+    }
+
+    private static Set<String> paths(Iterable<RrdCatalog.Entry> entries) {
+        Set<String> result = new HashSet<String>();
+        for (RrdCatalog.Entry entry : entries) {
+            result.add(entry.getPath());
+        }
+        return result;
+    }
+
+    @Test
+    public void testRefresh() throws IOException {
+        RrdCatalog catalog = new RrdCatalog(root.getPath(), ".rrd", true);
+        Assert.assertEquals(20, catalog.refresh());
+        Assert.assertEquals(20, catalog.size());
+        Assert.assertEquals(10, catalog.findByDatasource("bytes_in").size());
+        Assert.assertEquals(20, catalog.findByDatasource("status").size());
+        Assert.assertTrue(catalog.findByDatasource("none").isEmpty());
+
+        File file = new File(root, "host1/if5.rrd");
+        RrdCatalog.Entry entry = catalog.getEntry(file.getPath());
+        try (RrdDb rrdDb = new RrdDb(file.getPath(), true)) {
+            RrdDef rrdDef = rrdDb.getRrdDef();
+            Assert.assertEquals(rrdDef.getStep(), entry.getStep());
+            Assert.assertArrayEquals(rrdDef.getDsDefs(), entry.getDsDefs());
+            Assert.assertArrayEquals(rrdDef.getArcDefs(), entry.getArcDefs());
+            Assert.assertEquals(rrdDb.getLastUpdateTime(), entry.getLastUpdateTime());
+        }
+        Assert.assertArrayEquals(new String[] {"errors", "status"}, entry.getDsNames());
+        Assert.assertTrue(entry.hasDatasource("errors"));
+        Assert.assertFalse(entry.hasDatasource("bytes_in"));
+
+        Assert.assertEquals(0, catalog.refresh());
+        update(file, START + 3600);
+        Assert.assertTrue(new File(root, "host0/if0.rrd").delete());
+        Assert.assertEquals(1, catalog.refresh());
+        Assert.assertEquals(START + 3600, catalog.getEntry(file.getPath()).getLastUpdateTime());
+        Assert.assertEquals(19, catalog.size());
+        Assert.assertNull(catalog.getEntry(new File(root, "host0/if0.rrd").getPath()));
+        Assert.assertEquals(9, catalog.findByDatasource("bytes_in").size());
+    }
+
+    @Test
+    public void testNotRecursive() throws IOException {
+        create(new File(root, "top.rrd"), "bytes_in", 300);
+        RrdCatalog catalog = new RrdCatalog(root.getPath(), ".rrd", false);
+        catalog.refresh();
+        Assert.assertEquals(1, catalog.size());
+        Assert.assertEquals(300, catalog.getEntries().iterator().next().getStep());
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        RrdCatalog catalog = new RrdCatalog(root.getPath(), ".rrd", true);
+        catalog.refresh();
+        String index = new File(testFolder.getRoot(), "catalog.idx").getPath();
+        catalog.save(index);
+
+        File file = new File(root, "host2/if2.rrd");
+        update(file, START + 600);
+        RrdCatalog loaded = new RrdCatalog(root.getPath(), ".rrd", true);
+        Assert.assertTrue(loaded.load(index));
+        Assert.assertEquals(paths(catalog.getEntries()), paths(loaded.getEntries()));
+        Assert.assertEquals(paths(catalog.findByDatasource("errors")), paths(loaded.findByDatasource("errors")));
+        RrdCatalog.Entry entry = loaded.getEntry(file.getPath());
+        Assert.assertEquals(catalog.getEntry(file.getPath()).getRrdDef(), entry.getRrdDef());
+        Assert.assertTrue(Double.isNaN(entry.getDsDefs()[0].getMaxValue()));
+        // only the modified file is opened
+        Assert.assertEquals(1, loaded.refresh());
+        Assert.assertEquals(START + 600, loaded.getEntry(file.getPath()).getLastUpdateTime());
+
+        Assert.assertFalse(new RrdCatalog(root.getPath(), ".rrd", true).load(new File(testFolder.getRoot(), "none.idx").getPath()));
+    }
+
+    @Test
+    public void testVersion() throws IOException {
+        for (int version = 1; version <= 3; version++) {
+            RrdDef rrdDef = new RrdDef(new File(root, "v" + version + ".rrd").getAbsolutePath(), START, 300, version);
+            rrdDef.addDatasource("status", DsType.GAUGE, 600, Double.NaN, Double.NaN);
+            rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 1, 100);
+            new RrdDb(rrdDef).close();
+        }
+        RrdCatalog catalog = new RrdCatalog(root.getPath(), ".rrd", false);
+        Assert.assertEquals(3, catalog.refresh());
+        String index = new File(testFolder.getRoot(), "catalog.idx").getPath();
+        catalog.save(index);
+        RrdCatalog loaded = new RrdCatalog(root.getPath(), ".rrd", false);
+        Assert.assertTrue(loaded.load(index));
+        for (int version = 1; version <= 3; version++) {
+            String path = new File(root, "v" + version + ".rrd").getPath();
+            Assert.assertEquals(version, catalog.getEntry(path).getVersion());
+            Assert.assertEquals(version, catalog.getEntry(path).getRrdDef().getVersion());
+            Assert.assertEquals(version, loaded.getEntry(path).getRrdDef().getVersion());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testLoadNotCatalog() throws IOException {
+        new RrdCatalog(root.getPath(), ".rrd", true).load(new File(root, "host0/if0.rrd").getPath());
+    }
+
+    private static void await(RrdCatalog catalog, int size) throws InterruptedException {
+        for (int i = 0; i < 200 && catalog.size() != size; i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(size, catalog.size());
+    }
+
+    @Test
+    public void testWatch() throws IOException, InterruptedException {
+        try (RrdCatalog catalog = new RrdCatalog(root.getPath(), ".rrd", true)) {
+            catalog.refresh();
+            catalog.watch();
+            File dir = new File(root, "newhost");
+            Assert.assertTrue(dir.mkdir());
+            File file = new File(dir, "new.rrd");
+            create(file, "bytes_out", 60);
+            await(catalog, 21);
+            for (int i = 0; i < 200 && catalog.findByDatasource("bytes_out").isEmpty(); i++) {
+                Thread.sleep(50);
+            }
+            Assert.assertEquals(file.getAbsolutePath(), catalog.findByDatasource("bytes_out").get(0).getPath());
+            Assert.assertTrue(new File(root, "host3/if3.rrd").delete());
+            await(catalog, 20);
+        }
+    }
+
+    @Test
+    public void testRefreshWhileWatched() throws Exception {
+        try (final RrdCatalog catalog = new RrdCatalog(root.getPath(), ".rrd", true)) {
+            catalog.refresh();
+            catalog.watch();
+            final AtomicBoolean done = new AtomicBoolean();
+            final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+            // the periodic refreshes must not forget the files cataloged by the watcher meanwhile
+            Thread refresher = new Thread() {
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            catalog.refresh();
+                        }
+                    }
+                    catch (IOException e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            refresher.start();
+            try {
+                for (int i = 0; i < 20; i++) {
+                    create(new File(root, "host" + (i % 4) + "/new" + i + ".rrd"), "bytes_out", 60);
+                }
+            }
+            finally {
+                done.set(true);
+                refresher.join();
+            }
+            Assert.assertNull(failure.get());
+            await(catalog, 40);
+            for (int i = 0; i < 200 && catalog.findByDatasource("bytes_out").size() != 20; i++) {
+                Thread.sleep(50);
+            }
+            Assert.assertEquals(20, catalog.findByDatasource("bytes_out").size());
+        }
+    }
+}
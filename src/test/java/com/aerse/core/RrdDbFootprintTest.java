@@ -0,0 +1,159 @@
+package com.aerse.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.aerse.ConsolFun;
+import com.aerse.DsType;
+
+public class RrdDbFootprintTest {
+    private static final long START = 920804400L;
+    private static final int DS_COUNT = 100;
+    private static final int ARC_COUNT = 8;
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private String create(int version) throws IOException {
+        String path = new File(testFolder.getRoot(), "wide" + version + ".rrd").getPath();
+        RrdDef rrdDef = new RrdDef(path, START, 60, version);
+        for (int i = 0; i < DS_COUNT; i++) {
+            rrdDef.addDatasource("ds" + i, DsType.GAUGE, 120, 0, Double.NaN);
+        }
+        for (int a = 0; a < ARC_COUNT; a++) {
+            rrdDef.addArchive(a % 2 == 0 ? ConsolFun.AVERAGE : ConsolFun.MAX, 0.5, 1 << a, 10);
+        }
+        new RrdDb(rrdDef).close();
+        return path;
+    }
+
+    private static void useArchives(RrdDb rrdDb) throws IOException {
+        for (int a = 0; a < ARC_COUNT; a++) {
+            Archive archive = rrdDb.getArchive(a);
+            for (int i = 0; i < DS_COUNT; i++) {
+                archive.getArcState(i).getNanSteps();
+                archive.getArcState(i).getAccumValue();
+                archive.getRobin(i).getValue(0);
+            }
+        }
+    }
+
+    // the objects of this library reachable from root, without going through the excluded classes
+    private static List<Object> reachable(Object root, Class<?>... excluded) throws IllegalAccessException {
+        Map<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+        List<Object> pending = new ArrayList<Object>();
+        List<Object> result = new ArrayList<Object>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            Object o = pending.remove(pending.size() - 1);
+            if (o == null || seen.put(o, Boolean.TRUE) != null) {
+                continue;
+            }
+            Class<?> type = o.getClass();
+            if (type.isArray()) {
+                if (!type.getComponentType().isPrimitive()) {
+                    for (int i = 0; i < Array.getLength(o); i++) {
+                        pending.add(Array.get(o, i));
+                    }
+                }
+                continue;
+            }
+            if (!type.getName().startsWith("com.aerse.") || (o != root && isExcluded(o, excluded))) {
+                continue;
+            }
+            result.add(o);
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers()) && !field.getType().isPrimitive()) {
+                        field.setAccessible(true);
+                        pending.add(field.get(o));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean isExcluded(Object o, Class<?>[] excluded) {
+        for (Class<?> c : excluded) {
+            if (c.isInstance(o)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int count(List<Object> objects, Class<?> type) {
+        int count = 0;
+        for (Object o : objects) {
+            if (type.isInstance(o)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void assertStructure(int version) throws IOException, IllegalAccessException {
+        try (RrdDb rrdDb = new RrdDb(create(version), true)) {
+            useArchives(rrdDb);
+            for (int a = 0; a < ARC_COUNT; a++) {
+                Archive archive = rrdDb.getArchive(a);
+                List<Object> objects = reachable(archive, RrdDb.class, RrdBackend.class);
+                // the definition and the values, and the number of rows written by a version 3 archive; the values
+                // of each robin of a version 1 archive are apart, between the states
+                int primitives = 4 + (version == 1 ? DS_COUNT : version >= 3 ? 2 : 1);
+                Assert.assertEquals(primitives, count(objects, RrdPrimitive.class));
+                Assert.assertEquals(1, count(objects, RrdIntColumn.class));
+                Assert.assertEquals(1, count(objects, RrdLongColumn.class));
+                Assert.assertEquals(1, count(objects, RrdDoubleColumn.class));
+
+                // the states and the robins are views of the columns of their archive
+                List<Object> state = reachable(archive.getArcState(7), Archive.class);
+                Assert.assertEquals(0, count(state, RrdPrimitive.class));
+                Assert.assertEquals(1, count(state, RrdLongColumn.class));
+                Assert.assertEquals(1, count(state, RrdDoubleColumn.class));
+                List<Object> robin = reachable(archive.getRobin(7), Archive.class);
+                Assert.assertEquals(version >= 3 ? 2 : 1, count(robin, RrdPrimitive.class));
+                Assert.assertEquals(1, count(robin, RrdIntColumn.class));
+                Assert.assertSame(archive.getRobin(7), archive.getRobin(7));
+            }
+        }
+    }
+
+    @Test
+    public void testStructureVersion1() throws IOException, IllegalAccessException {
+        assertStructure(1);
+    }
+
+    @Test
+    public void testStructureVersion2() throws IOException, IllegalAccessException {
+        assertStructure(2);
+    }
+
+    @Test
+    public void testStructureVersion3() throws IOException, IllegalAccessException {
+        assertStructure(3);
+    }
+
+    @Test
+    public void testNotUsed() throws IOException, IllegalAccessException {
+        try (RrdDb rrdDb = new RrdDb(create(2), true)) {
+            // only the definition of an archive that is not used
+            List<Object> objects = reachable(rrdDb.getArchive(3), RrdDb.class, RrdBackend.class);
+            Assert.assertEquals(4, count(objects, RrdPrimitive.class));
+            Assert.assertEquals(0, count(objects, RrdColumn.class));
+        }
+    }
+}
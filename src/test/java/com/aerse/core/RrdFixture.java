@@ -0,0 +1,99 @@
+package com.aerse.core;
+
+import java.io.IOException;
+
+import com.aerse.DsType;
+
+/**
+ * Creates and fills the RRD files used by the tests.
+ */
+public final class RrdFixture {
+    /**
+     * The start time of the test files
+     */
+    public static final long START = 920800000L;
+
+    /**
+     * The values of the datasources of a sample, in the order they were defined.
+     */
+    public interface Values {
+        double[] at(long time);
+    }
+
+    private RrdFixture() {
+    }
+
+    /**
+     * Returns a definition starting at {@link #START}, with GAUGE datasources without bounds and a heartbeat
+     * of two steps. The archives are added by the caller.
+     *
+     * @param path the path of the file
+     * @param step the step of the file, in seconds
+     * @param dsNames the names of the datasources
+     * @return the definition
+     */
+    public static RrdDef gaugeDef(String path, long step, String... dsNames) {
+        return gaugeDef(new RrdDef(path, START, step), dsNames);
+    }
+
+    /**
+     * Same as {@link #gaugeDef(String, long, String...)}, with a file format version.
+     *
+     * @param path the path of the file
+     * @param step the step of the file, in seconds
+     * @param version the version of the file format
+     * @param dsNames the names of the datasources
+     * @return the definition
+     */
+    public static RrdDef gaugeDef(String path, long step, int version, String... dsNames) {
+        return gaugeDef(new RrdDef(path, START, step, version), dsNames);
+    }
+
+    private static RrdDef gaugeDef(RrdDef rrdDef, String... dsNames) {
+        long step = rrdDef.getStep();
+        for (String dsName : dsNames) {
+            rrdDef.addDatasource(dsName, DsType.GAUGE, 2 * step, Double.NaN, Double.NaN);
+        }
+        return rrdDef;
+    }
+
+    /**
+     * Updates a file with a sample at each interval.
+     *
+     * @param rrdDb the file
+     * @param from the time of the first sample
+     * @param to the time after which there is no sample
+     * @param interval the time between two samples
+     * @param values the values of each sample
+     * @return the time of the last sample, or the time before the first one if there was none
+     * @throws IOException Thrown in case of I/O error
+     */
+    public static long fill(RrdDb rrdDb, long from, long to, long interval, Values values) throws IOException {
+        Sample sample = rrdDb.createSample();
+        long t = from;
+        for (; t <= to; t += interval) {
+            sample.setTime(t);
+            sample.setValues(values.at(t));
+            sample.update();
+        }
+        return t - interval;
+    }
+
+    /**
+     * Creates a file and updates it with a sample at each interval.
+     *
+     * @param rrdDef the definition of the file
+     * @param from the time of the first sample
+     * @param to the time after which there is no sample
+     * @param interval the time between two samples
+     * @param values the values of each sample
+     * @return the path of the file
+     * @throws IOException Thrown in case of I/O error
+     */
+    public static String create(RrdDef rrdDef, long from, long to, long interval, Values values) throws IOException {
+        try (RrdDb rrdDb = new RrdDb(rrdDef)) {
+            fill(rrdDb, from, to, interval, values);
+        }
+        return rrdDef.getPath();
+    }
+}
@@ -0,0 +1,122 @@
+package com.aerse.core;
+
+import static com.aerse.core.RrdFixture.START;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.aerse.ConsolFun;
+import com.aerse.DsType;
+
+public class RrdProvisionerTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private static RrdDef createDef(String path, long startTime, int version) {
+        RrdDef rrdDef = new RrdDef(path, startTime, 300, version);
+        rrdDef.addDatasource("input", DsType.COUNTER, 600, 0, Double.NaN);
+        rrdDef.addDatasource("temperature", DsType.GAUGE, 600, -40, 80);
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 1, 600);
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 6, 700);
+        rrdDef.addArchive(ConsolFun.MAX, 0.5, 24, 797);
+        rrdDef.addArchive(ConsolFun.MIN, 0.5, 288, 775);
+        return rrdDef;
+    }
+
+    private void assertAsCreated(int version) throws IOException {
+        long[] startTimes = {START, START + 1, START + 299, START + 301, START + 3 * 3600 + 17, START + 86399};
+        try (RrdProvisioner provisioner = new RrdProvisioner(createDef("unused", START + 42, version))) {
+            for (long startTime : startTimes) {
+                File expected = new File(testFolder.getRoot(), "expected" + version + "-" + startTime + ".rrd");
+                new RrdDb(createDef(expected.getPath(), startTime, version)).close();
+                File provisioned = new File(testFolder.getRoot(), "provisioned" + version + "-" + startTime + ".rrd");
+                provisioner.create(provisioned.getPath(), startTime);
+                Assert.assertArrayEquals("start " + startTime, Files.readAllBytes(expected.toPath()), Files.readAllBytes(provisioned.toPath()));
+            }
+        }
+    }
+
+    @Test
+    public void testAsCreatedVersion1() throws IOException {
+        assertAsCreated(1);
+    }
+
+    @Test
+    public void testAsCreatedVersion2() throws IOException {
+        assertAsCreated(2);
+    }
+
+    @Test
+    public void testAsCreatedVersion3() throws IOException {
+        assertAsCreated(3);
+    }
+
+    @Test
+    public void testReplaceExistingVersion3() throws IOException {
+        // the values are not copied, they must not be left from the replaced file
+        File file = testFolder.newFile("existing3.rrd");
+        byte[] garbage = new byte[1 << 20];
+        Arrays.fill(garbage, (byte) 0x5a);
+        Files.write(file.toPath(), garbage);
+        try (RrdProvisioner provisioner = new RrdProvisioner(createDef("unused", START, 3))) {
+            provisioner.create(file.getPath(), START);
+        }
+        File expected = new File(testFolder.getRoot(), "expected3.rrd");
+        new RrdDb(createDef(expected.getPath(), START, 3)).close();
+        Assert.assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void testReplaceExisting() throws IOException {
+        File file = testFolder.newFile("existing.rrd");
+        Files.write(file.toPath(), new byte[1 << 20]);
+        try (RrdProvisioner provisioner = new RrdProvisioner(createDef("unused", START, 2))) {
+            provisioner.create(file.getPath(), START);
+        }
+        try (RrdDb rrdDb = new RrdDb(file.getPath(), true)) {
+            Assert.assertEquals(START, rrdDb.getLastUpdateTime());
+            Assert.assertEquals(createDef(file.getPath(), START, 2).getEstimatedSize(), file.length());
+        }
+    }
+
+    @Test
+    public void testParallel() throws IOException {
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            paths.add(new File(testFolder.getRoot(), "if" + i + ".rrd").getPath());
+        }
+        try (RrdProvisioner provisioner = new RrdProvisioner(createDef("unused", START, 2))) {
+            provisioner.create(paths, START + 7, 4);
+        }
+        for (String path : paths) {
+            try (RrdDb rrdDb = new RrdDb(path)) {
+                Assert.assertEquals(START + 7, rrdDb.getLastUpdateTime());
+                for (long t = START + 300; t <= START + 3600; t += 300) {
+                    rrdDb.createSample(t).setValues(t, 20).update();
+                }
+                FetchData fetchData = rrdDb.createFetchRequest(ConsolFun.AVERAGE, START + 1800, START + 3600).fetchData();
+                Assert.assertEquals(1, fetchData.getValues("input")[1], 1e-9);
+                Assert.assertEquals(20, fetchData.getValues("temperature")[1], 1e-9);
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingDirectory() throws IOException {
+        try (RrdProvisioner provisioner = new RrdProvisioner(createDef("unused", START, 2))) {
+            List<String> paths = new ArrayList<String>();
+            paths.add(new File(testFolder.getRoot(), "ok.rrd").getPath());
+            paths.add(new File(testFolder.getRoot(), "none/ko.rrd").getPath());
+            provisioner.create(paths, START, 2);
+        }
+    }
+}
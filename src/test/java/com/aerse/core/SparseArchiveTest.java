@@ -0,0 +1,114 @@
+package com.aerse.core;
+
+import static com.aerse.core.RrdFixture.START;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.aerse.ConsolFun;
+import com.aerse.DsType;
+
+public class SparseArchiveTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private RrdDef createDef(String name, int version) {
+        RrdDef rrdDef = new RrdDef(new File(testFolder.getRoot(), name).getPath(), START, 60, version);
+        rrdDef.addDatasource("a", DsType.GAUGE, 120, Double.NaN, Double.NaN);
+        rrdDef.addDatasource("b", DsType.COUNTER, 120, 0, Double.NaN);
+        rrdDef.addDatasource("c", DsType.GAUGE, 120, Double.NaN, Double.NaN);
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 1, 50);
+        rrdDef.addArchive(ConsolFun.MAX, 0.5, 5, 30);
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 60, 1000);
+        return rrdDef;
+    }
+
+    private static void update(RrdDb rrdDb, long from, long to) throws IOException {
+        RrdFixture.fill(rrdDb, from, to, 60, t -> new double[] {t % 7, t * 3, t % 11 == 0 ? Double.NaN : Math.sin(t)});
+    }
+
+    private static void assertSameArchives(RrdDb expected, RrdDb actual) throws IOException {
+        for (int a = 0; a < expected.getArcCount(); a++) {
+            for (int i = 0; i < expected.getDsCount(); i++) {
+                Assert.assertArrayEquals(expected.getArchive(a).getRobin(i).getValues(), actual.getArchive(a).getRobin(i).getValues(), 0);
+            }
+        }
+        FetchData expectedData = expected.createFetchRequest(ConsolFun.AVERAGE, START, expected.getLastUpdateTime()).fetchData();
+        FetchData actualData = actual.createFetchRequest(ConsolFun.AVERAGE, START, actual.getLastUpdateTime()).fetchData();
+        Assert.assertArrayEquals(expectedData.getTimestamps(), actualData.getTimestamps());
+        Assert.assertArrayEquals(expectedData.getValues(), actualData.getValues());
+    }
+
+    @Test
+    public void testCreatedEmpty() throws IOException {
+        RrdDef rrdDef = createDef("sparse.rrd", 3);
+        Assert.assertEquals(createDef("dense.rrd", 2).getEstimatedSize() + 4 * 3, rrdDef.getEstimatedSize());
+        try (RrdDb rrdDb = new RrdDb(rrdDef)) {
+            Assert.assertEquals(3, rrdDb.getHeader().getVersion());
+            for (int a = 0; a < rrdDb.getArcCount(); a++) {
+                for (int i = 0; i < rrdDb.getDsCount(); i++) {
+                    for (double value : rrdDb.getArchive(a).getRobin(i).getValues()) {
+                        Assert.assertTrue(Double.isNaN(value));
+                    }
+                }
+            }
+        }
+        byte[] content = Files.readAllBytes(new File(rrdDef.getPath()).toPath());
+        Assert.assertEquals(rrdDef.getEstimatedSize(), content.length);
+        // the values of the last archive, 8 * 3 * 1000 bytes at the end, were never written
+        for (int i = content.length - 24000; i < content.length; i++) {
+            Assert.assertEquals(0, content[i]);
+        }
+    }
+
+    @Test
+    public void testAsDense() throws IOException {
+        try (RrdDb dense = new RrdDb(createDef("dense.rrd", 2)); RrdDb sparse = new RrdDb(createDef("sparse.rrd", 3))) {
+            // before the first archives wrap
+            update(dense, START + 60, START + 20 * 60);
+            update(sparse, START + 60, START + 20 * 60);
+            assertSameArchives(dense, sparse);
+            // after they wrap, with a gap
+            update(dense, START + 40 * 60, START + 300 * 60);
+            update(sparse, START + 40 * 60, START + 300 * 60);
+            assertSameArchives(dense, sparse);
+        }
+        try (RrdDb dense = new RrdDb(new File(testFolder.getRoot(), "dense.rrd").getPath(), true);
+                RrdDb sparse = new RrdDb(new File(testFolder.getRoot(), "sparse.rrd").getPath(), true)) {
+            Assert.assertEquals(3, sparse.getHeader().getVersion());
+            assertSameArchives(dense, sparse);
+            Assert.assertEquals(dense.getRrdDef().getArcDefs().length, sparse.getRrdDef().getArcDefs().length);
+            Assert.assertEquals(3, sparse.getRrdDef().getVersion());
+        }
+    }
+
+    @Test
+    public void testSetValues() throws IOException {
+        try (RrdDb rrdDb = new RrdDb(createDef("sparse.rrd", 3))) {
+            Robin robin = rrdDb.getArchive(2).getRobin(1);
+            robin.setValue(500, 42);
+            double[] values = robin.getValues();
+            for (int i = 0; i < values.length; i++) {
+                Assert.assertEquals(i == 500 ? 42 : Double.NaN, values[i], 0);
+            }
+            for (int ds : new int[] {0, 2}) {
+                for (double value : rrdDb.getArchive(2).getRobin(ds).getValues()) {
+                    Assert.assertTrue(Double.isNaN(value));
+                }
+            }
+            double[] newValues = new double[30];
+            for (int i = 0; i < newValues.length; i++) {
+                newValues[i] = i;
+            }
+            rrdDb.getArchive(1).getRobin(0).setValues(newValues);
+            Assert.assertArrayEquals(newValues, rrdDb.getArchive(1).getRobin(0).getValues(), 0);
+            Assert.assertTrue(Double.isNaN(rrdDb.getArchive(1).getRobin(2).getValue(29)));
+        }
+    }
+}
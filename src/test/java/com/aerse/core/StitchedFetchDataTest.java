@@ -0,0 +1,116 @@
+package com.aerse.core;
+
+import static com.aerse.core.RrdFixture.START;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.aerse.ConsolFun;
+
+public class StitchedFetchDataTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private RrdDb rrdDb;
+    private long end;
+
+    @Before
+    public void createRrd() throws IOException {
+        RrdDef rrdDef = RrdFixture.gaugeDef(new File(testFolder.getRoot(), "stitched.rrd").getAbsolutePath(), 60, "a", "b");
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 1, 120);
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 5, 144);
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 60, 100);
+        rrdDef.addArchive(ConsolFun.MAX, 0.5, 5, 50);
+        rrdDb = new RrdDb(rrdDef);
+        end = RrdFixture.fill(rrdDb, START + 30, START + 2 * 86400, 30, t -> new double[] {(t / 30) % 100, Math.sin(t / 3600.0)});
+    }
+
+    // compares each segment with a plain fetch from its archive
+    private void assertAsFetched(StitchedFetchData stitched) throws IOException {
+        Timeline[] segments = stitched.getSegments();
+        long[] timestamps = stitched.getTimestamps();
+        Assert.assertEquals(timestamps.length, stitched.getRowCount());
+        int pos = 0;
+        for (int i = 0; i < segments.length; i++) {
+            Timeline segment = segments[i];
+            Assert.assertEquals(segment.getStep(), stitched.getArchives()[i].getArcStep());
+            if (i > 0) {
+                // no gap and no overlap between the time covered by the segments
+                Assert.assertEquals(segments[i - 1].getEnd(), segment.getStart() - segment.getStep());
+                Assert.assertTrue(segment.getStep() < segments[i - 1].getStep());
+            }
+            FetchRequest request = rrdDb.createFetchRequest(ConsolFun.AVERAGE, segment.getStart(), segment.getEnd(), segment.getStep());
+            request.setFilter(stitched.getRequest().getFilter());
+            FetchData fetchData = request.fetchData();
+            Assert.assertSame(stitched.getArchives()[i], fetchData.getMatchingArchive());
+            for (int row = 0; row < segment.getCount(); row++) {
+                Assert.assertEquals(segment.get(row), timestamps[pos + row]);
+                Assert.assertEquals(segment.getStep(), stitched.getStep(pos + row));
+                for (int ds = 0; ds < stitched.getColumnCount(); ds++) {
+                    Assert.assertEquals(fetchData.getValues(ds)[row], stitched.getValues(ds)[pos + row], 0);
+                }
+            }
+            pos += segment.getCount();
+        }
+    }
+
+    @Test
+    public void testFinestArchivesFirst() throws IOException {
+        StitchedFetchData stitched = rrdDb.createFetchRequest(ConsolFun.AVERAGE, end - 86400, end).fetchStitchedData();
+        Timeline[] segments = stitched.getSegments();
+        Assert.assertEquals(3, segments.length);
+        Assert.assertEquals(3600, segments[0].getStep());
+        Assert.assertEquals(300, segments[1].getStep());
+        Assert.assertEquals(60, segments[2].getStep());
+        Assert.assertTrue(segments[2].getEnd() >= end && segments[2].getEnd() < end + 60);
+        Assert.assertTrue(segments[0].getStart() <= end - 86400);
+        Assert.assertArrayEquals(new String[] {"a", "b"}, stitched.getDsNames());
+        assertAsFetched(stitched);
+        // all the rows are known, but the last one which is not archived yet
+        double[] values = stitched.getValues("a");
+        for (int i = 0; i < values.length - 1; i++) {
+            Assert.assertFalse(Double.isNaN(values[i]));
+        }
+    }
+
+    @Test
+    public void testSingleArchive() throws IOException {
+        FetchRequest request = rrdDb.createFetchRequest(ConsolFun.AVERAGE, end - 1800 - 17, end - 7);
+        StitchedFetchData stitched = request.fetchStitchedData();
+        Assert.assertEquals(1, stitched.getSegments().length);
+        FetchData fetchData = request.fetchData();
+        Assert.assertArrayEquals(fetchData.getTimestamps(), stitched.getTimestamps());
+        Assert.assertArrayEquals(fetchData.getValues(), stitched.getValues());
+    }
+
+    @Test
+    public void testResolution() throws IOException {
+        FetchRequest request = rrdDb.createFetchRequest(ConsolFun.AVERAGE, end - 86400, end, 300);
+        request.setFilter("b");
+        StitchedFetchData stitched = request.fetchStitchedData();
+        Assert.assertEquals(2, stitched.getSegments().length);
+        Assert.assertEquals(300, stitched.getSegments()[1].getStep());
+        Assert.assertEquals(1, stitched.getColumnCount());
+        assertAsFetched(stitched);
+    }
+
+    @Test
+    public void testBeyondCoarsest() throws IOException {
+        StitchedFetchData stitched = rrdDb.createFetchRequest(ConsolFun.AVERAGE, START, end).fetchStitchedData();
+        Assert.assertEquals(3, stitched.getSegments().length);
+        Assert.assertEquals(Util.normalize(START, 3600), stitched.getTimestamps()[0]);
+        Assert.assertTrue(Double.isNaN(stitched.getValues(0)[0]));
+        assertAsFetched(stitched);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMissingConsolFun() throws IOException {
+        rrdDb.createFetchRequest(ConsolFun.MIN, end - 86400, end).fetchStitchedData();
+    }
+}
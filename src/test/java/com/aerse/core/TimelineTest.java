@@ -0,0 +1,23 @@
+package com.aerse.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimelineTest {
+
+    @Test
+    public void testTimestamps() {
+        Timeline timeline = new Timeline(1200, 300, 5);
+        Assert.assertEquals(1200, timeline.getStart());
+        Assert.assertEquals(2400, timeline.getEnd());
+        Assert.assertEquals(1800, timeline.get(2));
+        long[] timestamps = timeline.getTimestamps();
+        Assert.assertArrayEquals(new long[] {1200, 1500, 1800, 2100, 2400}, timestamps);
+        Assert.assertSame(timestamps, timeline.getTimestamps());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidStep() {
+        new Timeline(1200, 0, 5);
+    }
+}
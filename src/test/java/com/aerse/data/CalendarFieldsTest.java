@@ -0,0 +1,49 @@
+package com.aerse.data;
+
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CalendarFieldsTest {
+    private static final int[] FIELDS = {Calendar.YEAR, Calendar.MONTH, Calendar.DAY_OF_MONTH,
+            Calendar.HOUR_OF_DAY, Calendar.MINUTE, Calendar.SECOND, Calendar.WEEK_OF_YEAR};
+
+    private void checkAgainstCalendar(TimeZone tz, long[] timestamps) {
+        CalendarFields fields = new CalendarFields(timestamps, tz);
+        Calendar calendar = Calendar.getInstance(tz);
+        for (int field: FIELDS) {
+            double[] values = fields.get(field);
+            for (int i = 0; i < timestamps.length; i++) {
+                calendar.setTimeInMillis(timestamps[i] * 1000L);
+                String message = String.format("field %d of %d in %s", field, timestamps[i], tz.getID());
+                Assert.assertEquals(message, calendar.get(field), values[i], 0);
+            }
+        }
+    }
+
+    @Test
+    public void testDaylightSavingTransitions() {
+        // every 15 minutes over two years, crossing four transitions in each zone
+        long start = 1483228800L; // 2017-01-01 UTC
+        long[] timestamps = new long[2 * 366 * 96];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = start + i * 900L;
+        }
+        for (String id: new String[] {"UTC", "Europe/Paris", "America/New_York", "Australia/Lord_Howe", "Asia/Kolkata"}) {
+            checkAgainstCalendar(TimeZone.getTimeZone(id), timestamps);
+        }
+    }
+
+    @Test
+    public void testUnorderedTimestamps() {
+        Random r = new Random(1);
+        long[] timestamps = new long[5000];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = r.nextInt(Integer.MAX_VALUE);
+        }
+        checkAgainstCalendar(TimeZone.getTimeZone("Europe/Paris"), timestamps);
+    }
+}
@@ -2,9 +2,15 @@ package com.aerse.data;
 
 import static com.aerse.ConsolFun.AVERAGE;
 import static com.aerse.DsType.GAUGE;
+import static com.aerse.core.RrdFixture.START;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
+import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -14,13 +20,26 @@ import com.aerse.core.FetchRequest;
 import com.aerse.core.RrdBackendFactory;
 import com.aerse.core.RrdDb;
 import com.aerse.core.RrdDef;
+import com.aerse.core.RrdFixture;
 import com.aerse.data.DataProcessor;
 
 public class DataProcessorTest {
+    // the span of the processors moved forward
+    private static final long SPAN = 6 * 3600;
+    // the end of the file processed in chunks
+    private static final long CHUNKED_END = START + 3 * 86400;
 
     @Rule
     public TemporaryFolder testFolder = new TemporaryFolder();
 
+    // the files of the processors moved forward, updated until their last sample time
+    private String fast;
+    private String slow;
+    private long fastTime;
+    private long slowTime;
+
+    private String chunkedPath;
+
     @Test
     public void testMemoryDataprocess() throws IOException {
         RrdDef rrdDef = new RrdDef(testFolder.newFile("testBuild.rrd").getCanonicalPath());
@@ -34,4 +53,296 @@ public class DataProcessorTest {
         }
     }
 
+    private void createLiveRrds() throws IOException {
+        RrdDef rrdDef = RrdFixture.gaugeDef(new File(testFolder.getRoot(), "fast.rrd").getAbsolutePath(), 60, "a", "b");
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 1, 2000);
+        new RrdDb(rrdDef).close();
+        fast = rrdDef.getPath();
+        rrdDef = RrdFixture.gaugeDef(new File(testFolder.getRoot(), "slow.rrd").getAbsolutePath(), 300, "c");
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 1, 500);
+        new RrdDb(rrdDef).close();
+        slow = rrdDef.getPath();
+        fastTime = START;
+        slowTime = START;
+    }
+
+    // updates the files until t, in the middle of a step
+    private void update(long t) throws IOException {
+        try (RrdDb rrdDb = new RrdDb(fast)) {
+            fastTime = RrdFixture.fill(rrdDb, fastTime + 37, t, 37, time -> {
+                long i = (time - START) / 37;
+                return new double[] {i % 11 == 0 ? Double.NaN : Math.sin(i / 40.0) * 100, i % 7};
+            });
+        }
+        try (RrdDb rrdDb = new RrdDb(slow)) {
+            slowTime = RrdFixture.fill(rrdDb, slowTime + 250, t, 250, time -> new double[] {(time / 250) % 13});
+        }
+    }
+
+    private DataProcessor createLive(long tEnd) {
+        DataProcessor dp = new DataProcessor(tEnd - SPAN, tEnd);
+        dp.addDatasource("a", fast, "a", ConsolFun.AVERAGE);
+        dp.addDatasource("b", fast, "b", ConsolFun.AVERAGE);
+        dp.addDatasource("c", slow, "c", ConsolFun.AVERAGE);
+        dp.addDatasource("sum", "a,b,+,c,*");
+        dp.addDatasource("count", "COUNT,a,*");
+        dp.addDatasource("max", "a", ConsolFun.MAX);
+        dp.addDatasource("delta", "max,a,-");
+        dp.addDatasource("derive", "a,PREV(a),-");
+        dp.addDatasource("trend", "a,600,TRENDNAN");
+        dp.addDatasource("time", new Plottable() {
+            @Override
+            public double getValue(long timestamp) {
+                return timestamp % 3600;
+            }
+        });
+        return dp;
+    }
+
+    private static void assertSame(DataProcessor expected, DataProcessor actual) {
+        Assert.assertArrayEquals(expected.getTimestamps(), actual.getTimestamps());
+        for (String name : new String[] {"a", "b", "c", "sum", "count", "delta", "time"}) {
+            Assert.assertArrayEquals(name, expected.getValues(name), actual.getValues(name), 0);
+        }
+        Assert.assertEquals(expected.getVariable("max").value, actual.getVariable("max").value, 0);
+        Assert.assertEquals(expected.getAggregates("a").getAverage(), actual.getAggregates("a").getAverage(), 1e-9);
+        Assert.assertEquals(expected.getAggregates("c").getTotal(), actual.getAggregates("c").getTotal(), 1e-9);
+        // the values that look back are the same once the span holds their whole history
+        double[] expectedDerive = expected.getValues("derive");
+        double[] actualDerive = actual.getValues("derive");
+        double[] expectedTrend = expected.getValues("trend");
+        double[] actualTrend = actual.getValues("trend");
+        for (int i = 10; i < expectedDerive.length; i++) {
+            Assert.assertEquals("derive " + i, expectedDerive[i], actualDerive[i], 0);
+            Assert.assertEquals("trend " + i, expectedTrend[i], actualTrend[i], 1e-9);
+        }
+    }
+
+    @Test
+    public void testSlideAsProcessed() throws IOException {
+        createLiveRrds();
+        long tEnd = START + 2 * SPAN + 10;
+        update(tEnd);
+        DataProcessor live = createLive(tEnd);
+        live.processData();
+        long[] moves = {10, 60, 0, 130, 3600, 7, 290, 1800};
+        for (long move : moves) {
+            tEnd += move;
+            update(tEnd);
+            double[] before = live.getValues("sum").clone();
+            double[] previous = live.getValues("sum");
+            live.slideTo(tEnd);
+            Assert.assertArrayEquals("previous values are kept", before, previous, 0);
+            DataProcessor expected = createLive(tEnd);
+            expected.processData();
+            assertSame(expected, live);
+        }
+    }
+
+    @Test
+    public void testNowRecalculated() throws IOException, InterruptedException {
+        createLiveRrds();
+        long tEnd = START + 2 * SPAN + 10;
+        update(tEnd);
+        DataProcessor live = createLive(tEnd);
+        live.addDatasource("age", "NOW,TIME,-");
+        live.addDatasource("days", "age,86400,/");
+        live.processData();
+        // NOW changes
+        Thread.sleep(1100);
+        tEnd += 600;
+        update(tEnd);
+        live.slideTo(tEnd);
+        long[] timestamps = live.getTimestamps();
+        double[] age = live.getValues("age");
+        double[] days = live.getValues("days");
+        double now = age[0] + timestamps[0];
+        for (int i = 0; i < timestamps.length; i++) {
+            Assert.assertEquals("age " + i, now, age[i] + timestamps[i], 0);
+            Assert.assertEquals("days " + i, age[i] / 86400, days[i], 1e-12);
+        }
+    }
+
+    @Test
+    public void testSlideBeyondSpan() throws IOException {
+        createLiveRrds();
+        long tEnd = START + SPAN + 10;
+        update(tEnd);
+        DataProcessor live = createLive(tEnd);
+        live.processData();
+        tEnd += 2 * SPAN;
+        update(tEnd);
+        live.slideTo(tEnd);
+        DataProcessor expected = createLive(tEnd);
+        expected.processData();
+        assertSame(expected, live);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSlideBack() throws IOException {
+        createLiveRrds();
+        long tEnd = START + SPAN + 10;
+        update(tEnd);
+        DataProcessor live = createLive(tEnd);
+        live.processData();
+        live.slideTo(tEnd - 60);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSlideFetched() throws IOException {
+        long tEnd = START + SPAN + 10;
+        RrdDef rrdDef = RrdFixture.gaugeDef("fetched", 60, "a");
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 1, 2000);
+        try (RrdDb rrdDb = new RrdDb(rrdDef, RrdBackendFactory.getFactory("MEMORY"))) {
+            RrdFixture.fill(rrdDb, START + 60, tEnd, 60, t -> new double[] {t % 7});
+            DataProcessor live = new DataProcessor(tEnd - SPAN, tEnd);
+            live.addDatasource("a", rrdDb.createFetchRequest(ConsolFun.AVERAGE, tEnd - SPAN, tEnd).fetchData());
+            live.processData();
+            live.slideTo(tEnd + 600);
+        }
+    }
+
+    private void createChunkedRrd() throws IOException {
+        RrdDef rrdDef = RrdFixture.gaugeDef(new File(testFolder.getRoot(), "chunks.rrd").getAbsolutePath(), 60, "a", "b");
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 1, 5000);
+        chunkedPath = RrdFixture.create(rrdDef, START + 41, CHUNKED_END, 41, t -> {
+            long i = (t - START) / 41;
+            return new double[] {i % 13 == 0 ? Double.NaN : Math.cos(i / 70.0) * 50, i % 5};
+        });
+    }
+
+    private DataProcessor createChunked(long tStart, long tEnd) {
+        DataProcessor dp = new DataProcessor(tStart, tEnd);
+        dp.addDatasource("a", chunkedPath, "a", ConsolFun.AVERAGE);
+        dp.addDatasource("b", chunkedPath, "b", ConsolFun.AVERAGE);
+        dp.addDatasource("sum", "a,b,+,2,/");
+        dp.addDatasource("derive", "a,PREV(a),-,STEP,/");
+        dp.addDatasource("trend", "sum,1800,TREND");
+        return dp;
+    }
+
+    @Test
+    public void testChunksAsProcessed() throws IOException {
+        createChunkedRrd();
+        long tStart = START + 3600 + 17;
+        long tEnd = CHUNKED_END - 7200 - 29;
+        DataProcessor expected = createChunked(tStart, tEnd);
+        expected.processData();
+
+        final List<Long> timestamps = new ArrayList<>();
+        final Map<String, List<Double>> values = new java.util.LinkedHashMap<>();
+        DataProcessor chunked = createChunked(tStart, tEnd);
+        chunked.processData(4 * 3600, (chunk, chunkValues) -> {
+            Assert.assertEquals(5, chunkValues.size());
+            for (long t : chunk) {
+                timestamps.add(t);
+            }
+            for (Map.Entry<String, double[]> entry : chunkValues.entrySet()) {
+                Assert.assertEquals(chunk.length, entry.getValue().length);
+                List<Double> list = values.computeIfAbsent(entry.getKey(), k -> new ArrayList<>());
+                for (double v : entry.getValue()) {
+                    list.add(v);
+                }
+            }
+        });
+
+        long[] expectedTimestamps = expected.getTimestamps();
+        Assert.assertEquals(expectedTimestamps.length, timestamps.size());
+        for (int i = 0; i < expectedTimestamps.length; i++) {
+            Assert.assertEquals(expectedTimestamps[i], timestamps.get(i).longValue());
+        }
+        for (String name : expected.getSourceNames()) {
+            double[] expectedValues = expected.getValues(name);
+            List<Double> actual = values.get(name);
+            for (int i = 0; i < expectedValues.length; i++) {
+                Assert.assertEquals(name + " " + i, expectedValues[i], actual.get(i), 1e-9);
+            }
+        }
+        // only the last chunks are kept
+        Assert.assertTrue(chunked.getTimestamps().length <= 2 * 4 * 60 + 2);
+    }
+
+    @Test
+    public void testSingleChunk() throws IOException {
+        createChunkedRrd();
+        DataProcessor expected = createChunked(START + 600, START + 7200);
+        expected.processData();
+        final List<long[]> chunks = new ArrayList<>();
+        createChunked(START + 600, START + 7200).processData(86400, (chunk, chunkValues) -> chunks.add(chunk));
+        Assert.assertEquals(1, chunks.size());
+        Assert.assertArrayEquals(expected.getTimestamps(), chunks.get(0));
+    }
+
+    private static void addVariables(DataProcessor dp) {
+        dp.addDatasource("min", "a", new Variable.MIN());
+        dp.addDatasource("max", "a", new Variable.MAX());
+        dp.addDatasource("average", "sum", new Variable.AVERAGE());
+        dp.addDatasource("stddev", "a", new Variable.STDDEV());
+        dp.addDatasource("slope", "sum", new Variable.LSLSLOPE());
+        dp.addDatasource("intercept", "sum", new Variable.LSLINT());
+        dp.addDatasource("correlation", "sum", new Variable.LSLCORREL());
+        dp.addDatasource("total", "b", new Variable.TOTAL());
+        dp.addDatasource("percentile", "a", new Variable.SKETCHPERCENTILE(95));
+    }
+
+    @Test
+    public void testVariables() throws IOException {
+        createChunkedRrd();
+        long tStart = START + 3600 + 17;
+        long tEnd = CHUNKED_END - 7200 - 29;
+        DataProcessor expected = createChunked(tStart, tEnd);
+        addVariables(expected);
+        expected.processData();
+
+        final Map<String, Variable.Value> variables = new java.util.LinkedHashMap<>();
+        DataProcessor chunked = createChunked(tStart, tEnd);
+        addVariables(chunked);
+        chunked.processData(4 * 3600, new ChunkListener() {
+            public void chunk(long[] timestamps, Map<String, double[]> values) {
+                // the variables are not given with the chunks
+                Assert.assertEquals(5, values.size());
+                Assert.assertTrue(variables.isEmpty());
+            }
+
+            public void end(Map<String, Variable.Value> values) {
+                variables.putAll(values);
+            }
+        });
+
+        Assert.assertEquals(9, variables.size());
+        for (Map.Entry<String, Variable.Value> entry : variables.entrySet()) {
+            Variable.Value value = expected.getVariable(entry.getKey());
+            Assert.assertFalse(entry.getKey(), Double.isNaN(value.value));
+            Assert.assertEquals(entry.getKey(), value.value, entry.getValue().value, 1e-9 * Math.abs(value.value));
+            Assert.assertEquals(entry.getKey(), value.timestamp, entry.getValue().timestamp);
+            Assert.assertSame(entry.getValue(), chunked.getVariable(entry.getKey()));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWholeSpanSource() throws IOException {
+        createChunkedRrd();
+        DataProcessor dp = createChunked(START + 600, CHUNKED_END);
+        dp.addDatasource("median", "a", new Variable.PERCENTILE(50));
+        dp.processData(3600, (chunk, chunkValues) -> { });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testVariableUsed() throws IOException {
+        createChunkedRrd();
+        DataProcessor dp = createChunked(START + 600, CHUNKED_END);
+        dp.addDatasource("max", "a", new Variable.MAX());
+        dp.addDatasource("ratio", "a,max,/");
+        dp.processData(3600, (chunk, chunkValues) -> { });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFetchedSource() throws IOException {
+        createChunkedRrd();
+        DataProcessor dp = createChunked(START + 600, CHUNKED_END);
+        try (RrdDb rrdDb = new RrdDb(chunkedPath, true)) {
+            dp.addDatasource("fetched", "a", rrdDb.createFetchRequest(ConsolFun.AVERAGE, START + 600, CHUNKED_END).fetchData());
+        }
+        dp.processData(3600, (chunk, chunkValues) -> { });
+    }
 }
@@ -0,0 +1,117 @@
+package com.aerse.data;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.aerse.ConsolFun;
+import com.aerse.core.Timeline;
+
+public class DownsamplerTest {
+
+    private static long[] timestamps(long start, long step, int count) {
+        long[] timestamps = new long[count];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = start + i * step;
+        }
+        return timestamps;
+    }
+
+    @Test
+    public void testEnvelopeKeepsSpikes() {
+        // 10000 one minute steps on 100 pixels, with a single spike
+        long[] timestamps = timestamps(60, 60, 10000);
+        double[] values = new double[timestamps.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.sin(i / 100.0);
+        }
+        values[4321] = 50;
+        values[1234] = -50;
+        long[] pixels = timestamps(6000, 6000, 100);
+        Downsampler downsampler = new Downsampler(timestamps, values);
+        double[] max = downsampler.consolidate(pixels, ConsolFun.MAX);
+        double[] min = downsampler.consolidate(pixels, ConsolFun.MIN);
+        double[] average = downsampler.consolidate(pixels, ConsolFun.AVERAGE);
+        double[] total = downsampler.consolidate(pixels, ConsolFun.TOTAL);
+        double highest = Double.NEGATIVE_INFINITY;
+        double lowest = Double.POSITIVE_INFINITY;
+        double sum = 0;
+        for (int pix = 0; pix < pixels.length; pix++) {
+            highest = Math.max(highest, max[pix]);
+            lowest = Math.min(lowest, min[pix]);
+            Assert.assertTrue(min[pix] <= average[pix] && average[pix] <= max[pix]);
+            sum += total[pix];
+        }
+        Assert.assertEquals(50, highest, 0);
+        Assert.assertEquals(-50, lowest, 0);
+        // the pixels cover all the steps exactly once
+        double expected = 0;
+        for (double value : values) {
+            expected += value * 60;
+        }
+        Assert.assertEquals(expected, sum, 1e-6);
+    }
+
+    @Test
+    public void testConsolidateMatchesNormalizer() {
+        Random r = new Random(35);
+        long[] timestamps = timestamps(300, 300, 1000);
+        double[] values = new double[timestamps.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = r.nextInt(5) == 0 ? Double.NaN : r.nextGaussian();
+        }
+        // pixels on a multiple of the step are the same as a DEF with a bigger step
+        long[] pixels = timestamps(3600, 3600, 25);
+        double[] expected = new Normalizer(new Timeline(3600, 3600, 25)).normalize(new Timeline(300, 300, 1000), values);
+        double[] actual = new Downsampler(timestamps, values).consolidate(pixels, ConsolFun.AVERAGE);
+        Assert.assertArrayEquals(expected, actual, 1e-12);
+    }
+
+    @Test
+    public void testMorePixelsThanSteps() {
+        long[] timestamps = timestamps(600, 600, 3);
+        double[] values = {1, 2, 3};
+        long[] pixels = timestamps(100, 100, 18);
+        double[] sampled = new Downsampler(timestamps, values).consolidate(pixels, ConsolFun.LAST);
+        for (int pix = 0; pix < pixels.length; pix++) {
+            Assert.assertEquals(values[(int) ((pixels[pix] - 1) / 600)], sampled[pix], 0);
+        }
+    }
+
+    @Test
+    public void testLargestTriangles() {
+        Random r = new Random(36);
+        long[] timestamps = timestamps(60, 60, 5000);
+        double[] values = new double[timestamps.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = r.nextGaussian();
+        }
+        values[2500] = 100;
+        for (int i = 3000; i < 3100; i++) {
+            values[i] = Double.NaN;
+        }
+        int[] selected = new Downsampler(timestamps, values).largestTriangles(100);
+        Assert.assertEquals(100, selected.length);
+        Assert.assertEquals(0, selected[0]);
+        Assert.assertEquals(values.length - 1, selected[selected.length - 1]);
+        boolean spike = false;
+        boolean gap = false;
+        for (int i = 0; i < selected.length; i++) {
+            if (i > 0) {
+                Assert.assertTrue(selected[i] > selected[i - 1]);
+            }
+            spike |= selected[i] == 2500;
+            gap |= Double.isNaN(values[selected[i]]);
+        }
+        Assert.assertTrue("the spike is kept", spike);
+        Assert.assertTrue("the gap is kept", gap);
+    }
+
+    @Test
+    public void testLargestTrianglesFewPoints() {
+        long[] timestamps = timestamps(60, 60, 10);
+        double[] values = new double[10];
+        Assert.assertEquals(10, new Downsampler(timestamps, values).largestTriangles(600).length);
+    }
+}
@@ -0,0 +1,147 @@
+package com.aerse.data;
+
+import static com.aerse.core.RrdFixture.START;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.aerse.ConsolFun;
+import com.aerse.core.RrdDef;
+import com.aerse.core.RrdFixture;
+
+public class GroupProcessorTest {
+    private static final long END = START + 86400;
+    private static final int FILES = 12;
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private String[] paths = new String[FILES];
+
+    @Before
+    public void createRrds() throws IOException {
+        for (int f = 0; f < FILES; f++) {
+            final int file = f;
+            RrdDef rrdDef = RrdFixture.gaugeDef(new File(testFolder.getRoot(), "host" + f + ".rrd").getAbsolutePath(), 60, "bytes_in");
+            rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 1, 1440);
+            // each file misses some values
+            paths[f] = RrdFixture.create(rrdDef, START + 60, END, 60, t -> {
+                long i = (t - START) / 60;
+                return new double[] {(i + file) % (file + 5) == 0 ? Double.NaN : (i * (file + 1)) % 101};
+            });
+        }
+    }
+
+    private static String group(int f) {
+        return "rack" + (f % 3);
+    }
+
+    // the values of each file, processed one by one
+    private double[][] process(long tStart, long tEnd, long step) throws IOException {
+        double[][] values = new double[FILES][];
+        for (int f = 0; f < FILES; f++) {
+            DataProcessor dp = new DataProcessor(tStart, tEnd);
+            dp.setStep(step);
+            dp.addDatasource("in", paths[f], "bytes_in", ConsolFun.AVERAGE);
+            dp.processData();
+            values[f] = dp.getValues("in");
+        }
+        return values;
+    }
+
+    @Test
+    public void testGroupedAsProcessed() throws IOException {
+        long tStart = START + 3600 + 13;
+        long tEnd = END - 3600 - 7;
+        GroupProcessor gp = new GroupProcessor(tStart, tEnd, 300, "bytes_in", ConsolFun.AVERAGE);
+        for (int f = 0; f < FILES; f++) {
+            gp.addFile(group(f), paths[f]);
+        }
+        gp.addReducer("sum", new GroupReducer.SUM());
+        gp.addReducer("avg", new GroupReducer.AVERAGE());
+        gp.addReducer("min", new GroupReducer.MIN());
+        gp.addReducer("max", new GroupReducer.MAX());
+        gp.addReducer("count", new GroupReducer.COUNT());
+        gp.addReducer("median", new GroupReducer.PERCENTILE(50, 0.001));
+        gp.setConcurrency(4);
+        gp.processData();
+
+        double[][] expected = process(tStart, tEnd, 300);
+        Assert.assertEquals(Arrays.asList("rack0", "rack1", "rack2"), Arrays.asList(gp.getGroups().toArray()));
+        for (String group : gp.getGroups()) {
+            Assert.assertEquals(FILES / 3, gp.getFileCount(group));
+            double[] sum = gp.getValues(group, "sum");
+            Assert.assertEquals(gp.getTimestamps().length, sum.length);
+            for (int i = 0; i < sum.length; i++) {
+                double expectedSum = Double.NaN;
+                double expectedMin = Double.NaN;
+                double expectedMax = Double.NaN;
+                int count = 0;
+                double[] known = new double[FILES];
+                for (int f = 0; f < FILES; f++) {
+                    double value = expected[f][i];
+                    if (group(f).equals(group) && !Double.isNaN(value)) {
+                        expectedSum = Double.isNaN(expectedSum) ? value : expectedSum + value;
+                        expectedMin = Double.isNaN(expectedMin) ? value : Math.min(expectedMin, value);
+                        expectedMax = Double.isNaN(expectedMax) ? value : Math.max(expectedMax, value);
+                        known[count++] = value;
+                    }
+                }
+                Assert.assertEquals(expectedSum, sum[i], 1e-9);
+                Assert.assertEquals(expectedSum / count, gp.getValues(group, "avg")[i], 1e-9);
+                Assert.assertEquals(expectedMin, gp.getValues(group, "min")[i], 0);
+                Assert.assertEquals(expectedMax, gp.getValues(group, "max")[i], 0);
+                Assert.assertEquals(count, gp.getValues(group, "count")[i], 0);
+                Arrays.sort(known, 0, count);
+                double median = gp.getValues(group, "median")[i];
+                if (count == 0) {
+                    Assert.assertTrue(Double.isNaN(median));
+                }
+                else {
+                    Assert.assertTrue(median >= known[0] * 0.999 && median <= known[count - 1] * 1.001);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSingleThread() throws IOException {
+        GroupProcessor gp = new GroupProcessor(START + 600, END, 600, "bytes_in", ConsolFun.AVERAGE);
+        for (int f = 0; f < FILES; f++) {
+            gp.addFile("all", paths[f]);
+        }
+        gp.addReducer("count", new GroupReducer.COUNT());
+        gp.setConcurrency(1);
+        gp.processData();
+        Assert.assertEquals(FILES, gp.getFileCount("all"));
+        double[] count = gp.getValues("all", "count");
+        Assert.assertEquals(FILES, count[count.length / 2], 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingFile() throws IOException {
+        GroupProcessor gp = new GroupProcessor(START + 600, END, 600, "bytes_in", ConsolFun.AVERAGE);
+        for (int f = 0; f < FILES; f++) {
+            gp.addFile("all", paths[f]);
+        }
+        gp.addFile("all", new File(testFolder.getRoot(), "missing.rrd").getAbsolutePath());
+        gp.addReducer("sum", new GroupReducer.SUM());
+        gp.processData();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownGroup() throws IOException {
+        GroupProcessor gp = new GroupProcessor(START + 600, END, 600, "bytes_in", ConsolFun.AVERAGE);
+        gp.addFile("all", paths[0]);
+        gp.addReducer("sum", new GroupReducer.SUM());
+        gp.processData();
+        gp.getValues("none", "sum");
+    }
+}
@@ -0,0 +1,180 @@
+package com.aerse.data;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.aerse.core.Timeline;
+
+public class MomentsTest {
+
+    private static Source source(long[] timestamps, double[] values) {
+        Source source = new PDef("x", new Plottable() {});
+        source.setTimeline(new Timeline(timestamps[0], timestamps[1] - timestamps[0], timestamps.length));
+        source.setValues(values);
+        return source;
+    }
+
+    private static double[] randomValues(Random r, int n) {
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = r.nextInt(5) == 0 ? Double.NaN : r.nextInt(20) - 5 + r.nextGaussian();
+        }
+        return values;
+    }
+
+    @Test
+    public void testMatchesSeparatePasses() {
+        Random r = new Random(3);
+        for (int round = 0; round < 50; round++) {
+            int n = 2 + r.nextInt(500);
+            long[] timestamps = new long[n];
+            for (int i = 0; i < n; i++) {
+                timestamps[i] = 3600 + i * 300L;
+            }
+            double[] values = randomValues(r, n);
+            Moments m = new Moments(timestamps, values, 0, n - 1);
+
+            int count = 0;
+            double min = Double.NaN, max = Double.NaN, sum = 0;
+            long minTimestamp = 0, maxTimestamp = 0;
+            double sumX = 0, sumXX = 0, sumXY = 0, sumYY = 0;
+            for (int i = 0; i < n; i++) {
+                double v = values[i];
+                if (Double.isNaN(v)) {
+                    continue;
+                }
+                if (count == 0 || v <= min) {
+                    min = v;
+                    minTimestamp = timestamps[i];
+                }
+                if (count == 0 || v >= max) {
+                    max = v;
+                    maxTimestamp = timestamps[i];
+                }
+                count++;
+                sum += v;
+                sumX += i;
+                sumXX += (double) i * i;
+                sumXY += i * v;
+                sumYY += v * v;
+            }
+            double mean = sum / count;
+            double squares = 0;
+            for (double v : values) {
+                if (!Double.isNaN(v)) {
+                    squares += (v - mean) * (v - mean);
+                }
+            }
+            double slope = (sumX * sum - count * sumXY) / (sumX * sumX - count * sumXX);
+
+            Assert.assertEquals(count, m.count);
+            Assert.assertEquals(min, m.min, 0);
+            Assert.assertEquals(minTimestamp, m.minTimestamp);
+            Assert.assertEquals(max, m.max, 0);
+            Assert.assertEquals(maxTimestamp, m.maxTimestamp);
+            Assert.assertEquals(mean, m.getAverage(), 1e-9);
+            Assert.assertEquals(Math.sqrt(squares / (count - 1)), m.getStdDev(), 1e-9);
+            Assert.assertEquals(slope, m.getSlope(), 1e-9);
+            Assert.assertEquals((sum - slope * sumX) / count, m.getIntercept(), 1e-9);
+        }
+    }
+
+    // the MIN and MAX variables before they were computed from the moments: the last of equal extremes is kept
+    private static Variable.Value baselineMin(long[] timestamps, double[] values) {
+        long timestamp = 0;
+        double value = Double.NaN;
+        for (int i = values.length - 1; i >= 0; i--) {
+            if (!Double.isNaN(values[i]) && (Double.isNaN(value) || value > values[i])) {
+                timestamp = timestamps[i];
+                value = values[i];
+            }
+        }
+        return new Variable.Value(timestamp, value);
+    }
+
+    private static Variable.Value baselineMax(long[] timestamps, double[] values) {
+        long timestamp = 0;
+        double value = Double.NaN;
+        for (int i = values.length - 1; i >= 0; i--) {
+            if (!Double.isNaN(values[i]) && (Double.isNaN(value) || value < values[i])) {
+                timestamp = timestamps[i];
+                value = values[i];
+            }
+        }
+        return new Variable.Value(timestamp, value);
+    }
+
+    @Test
+    public void testExtremesAsBaseline() {
+        Random r = new Random(7);
+        for (int round = 0; round < 200; round++) {
+            int n = 2 + r.nextInt(50);
+            long[] timestamps = new long[n];
+            double[] values = new double[n];
+            for (int i = 0; i < n; i++) {
+                timestamps[i] = 300 + i * 300L;
+                // few distinct values, so that the extremes are often tied
+                values[i] = r.nextInt(4) == 0 ? Double.NaN : r.nextInt(3);
+            }
+            Source source = source(timestamps, values);
+            Variable.MIN min = new Variable.MIN();
+            Variable.MAX max = new Variable.MAX();
+            min.calculate(source, 0, timestamps[n - 1]);
+            max.calculate(source, 0, timestamps[n - 1]);
+            Variable.Value expectedMin = baselineMin(timestamps, values);
+            Variable.Value expectedMax = baselineMax(timestamps, values);
+            Assert.assertEquals(expectedMin.value, min.getValue().value, 0);
+            Assert.assertEquals(expectedMin.timestamp, min.getValue().timestamp);
+            Assert.assertEquals(expectedMax.value, max.getValue().value, 0);
+            Assert.assertEquals(expectedMax.timestamp, max.getValue().timestamp);
+        }
+    }
+
+    @Test
+    public void testCompensatedSum() {
+        // a naive sum loses all the small values
+        double[] values = new double[10001];
+        values[0] = 1e16;
+        for (int i = 1; i < values.length; i++) {
+            values[i] = 1;
+        }
+        long[] timestamps = new long[values.length];
+        Moments m = new Moments(timestamps, values, 0, values.length - 1);
+        Assert.assertEquals(1e16 + 10000, m.sum, 0);
+    }
+
+    @Test
+    public void testSharedBetweenVariables() {
+        long[] timestamps = {300, 600, 900, 1200, 1500};
+        double[] values = {3, Double.NaN, 1, 5, 1};
+        Source source = source(timestamps, values);
+        Variable.MIN min = new Variable.MIN();
+        Variable.MAX max = new Variable.MAX();
+        Variable.AVERAGE average = new Variable.AVERAGE();
+        min.calculate(source, 0, 1500);
+        Moments moments = source.getMoments(0, 4);
+        max.calculate(source, 0, 1500);
+        average.calculate(source, 0, 1500);
+        Assert.assertSame(moments, source.getMoments(0, 4));
+        Assert.assertEquals(1, min.getValue().value, 0);
+        Assert.assertEquals(1500, min.getValue().timestamp);
+        Assert.assertEquals(5, max.getValue().value, 0);
+        Assert.assertEquals(1200, max.getValue().timestamp);
+        Assert.assertEquals(2.5, average.getValue().value, 0);
+    }
+
+    @Test
+    public void testOnlyNaN() {
+        long[] timestamps = {300, 600, 900};
+        double[] values = {Double.NaN, Double.NaN, Double.NaN};
+        Source source = source(timestamps, values);
+        for (Variable v : new Variable[] {new Variable.MIN(), new Variable.MAX(), new Variable.AVERAGE(),
+                new Variable.STDDEV(), new Variable.LSLSLOPE(), new Variable.LSLINT(), new Variable.LSLCORREL()}) {
+            v.calculate(source, 0, 900);
+            Assert.assertTrue(Double.isNaN(v.getValue().value));
+            Assert.assertEquals(0, v.getValue().timestamp);
+        }
+    }
+}
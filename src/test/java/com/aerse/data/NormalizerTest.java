@@ -0,0 +1,102 @@
+package com.aerse.data;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.aerse.core.Timeline;
+import com.aerse.core.Util;
+
+public class NormalizerTest {
+
+    // The former implementation, with its nested loops and weights array
+    private static double[] reference(long[] timestamps, long[] rawTimestamps, double[] rawValues) {
+        int count = timestamps.length;
+        long step = timestamps[1] - timestamps[0];
+        int rawCount = rawTimestamps.length;
+        long rawStep = rawTimestamps[1] - rawTimestamps[0];
+        if (rawCount == count && rawStep == step && rawTimestamps[0] == timestamps[0]) {
+            return rawValues.clone();
+        }
+        double[] values = new double[count];
+        Arrays.fill(values, Double.NaN);
+        double[] weights = new double[count];
+        Arrays.fill(weights, Double.NaN);
+        for (int rawSeg = 0, seg = 0; rawSeg < rawCount && seg < count; rawSeg++) {
+            double rawValue = rawValues[rawSeg];
+            if (!Double.isNaN(rawValue)) {
+                long rawLeft = rawTimestamps[rawSeg] - rawStep;
+                while (seg < count && rawLeft >= timestamps[seg]) {
+                    seg++;
+                }
+                boolean overlap = true;
+                for (int fillSeg = seg; overlap && fillSeg < count; fillSeg++) {
+                    long left = timestamps[fillSeg] - step;
+                    long t1 = Math.max(rawLeft, left);
+                    long t2 = Math.min(rawTimestamps[rawSeg], timestamps[fillSeg]);
+                    if (t1 < t2) {
+                        values[fillSeg] = Util.sum(values[fillSeg], (t2 - t1) * rawValues[rawSeg]);
+                        weights[fillSeg] = Util.sum(weights[fillSeg], t2 - t1);
+                    }
+                    else {
+                        overlap = false;
+                    }
+                }
+            }
+        }
+        for (int seg = 0; seg < count; seg++) {
+            if (!Double.isNaN(weights[seg])) {
+                values[seg] /= weights[seg];
+            }
+        }
+        return values;
+    }
+
+    private static void check(Random r, long step, long rawStep, long offset) {
+        long start = 1_000_000 - 1_000_000 % step;
+        Timeline timeline = new Timeline(start, step, 2 + r.nextInt(100));
+        Timeline raw = new Timeline(start + offset, rawStep, 2 + r.nextInt((int) (200 * step / rawStep) + 10));
+        double[] rawValues = new double[raw.getCount()];
+        for (int i = 0; i < rawValues.length; i++) {
+            rawValues[i] = r.nextInt(4) == 0 ? Double.NaN : r.nextGaussian() * 1000;
+        }
+        double[] expected = reference(timeline.getTimestamps(), raw.getTimestamps(), rawValues);
+        double[] actual = new Normalizer(timeline).normalize(raw, rawValues);
+        String message = String.format("step %d, raw step %d, offset %d", step, rawStep, offset);
+        Assert.assertArrayEquals(message, expected, actual, 0);
+    }
+
+    @Test
+    public void testAlignedMultiples() {
+        Random r = new Random(11);
+        long[] steps = {1, 60, 300, 1800, 3600, 86400};
+        for (int round = 0; round < 500; round++) {
+            long step = steps[r.nextInt(steps.length)];
+            long rawStep = steps[r.nextInt(steps.length)];
+            long unit = Math.min(step, rawStep);
+            check(r, step, rawStep, unit * (r.nextInt(40) - 20));
+        }
+    }
+
+    @Test
+    public void testUnaligned() {
+        Random r = new Random(12);
+        for (int round = 0; round < 500; round++) {
+            long step = 1 + r.nextInt(1000);
+            long rawStep = 1 + r.nextInt(1000);
+            check(r, step, rawStep, r.nextInt(4000) - 2000);
+        }
+    }
+
+    @Test
+    public void testMultiplesUnaligned() {
+        Random r = new Random(13);
+        for (int round = 0; round < 500; round++) {
+            long step = 60 * (1 + r.nextInt(10));
+            long rawStep = r.nextBoolean() ? step * (1 + r.nextInt(5)) : step / (1 + r.nextInt(2));
+            check(r, step, rawStep, 1 + r.nextInt((int) Math.min(step, rawStep) - 1));
+        }
+    }
+}
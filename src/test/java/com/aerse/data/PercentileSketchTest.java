@@ -0,0 +1,179 @@
+package com.aerse.data;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.aerse.ConsolFun;
+import com.aerse.DsType;
+import com.aerse.core.FetchData;
+import com.aerse.core.RrdBackendFactory;
+import com.aerse.core.RrdDb;
+import com.aerse.core.RrdDef;
+import com.aerse.core.Sample;
+import com.aerse.core.Timeline;
+
+public class PercentileSketchTest {
+    private static final double[] PERCENTILES = {0, 1, 25, 50, 75, 90, 95, 99, 99.9, 100};
+
+    private static double exact(double[] sorted, double percentile) {
+        return sorted[(int) Math.round(percentile * (sorted.length - 1) / 100)];
+    }
+
+    private static void checkAccuracy(double[] values, PercentileSketch sketch, double accuracy) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for (double percentile : PERCENTILES) {
+            double expected = exact(sorted, percentile);
+            double actual = sketch.getPercentile(percentile);
+            String message = String.format("percentile %f, expected %f, got %f", percentile, expected, actual);
+            Assert.assertTrue(message, Math.abs(actual - expected) <= accuracy * Math.abs(expected));
+        }
+    }
+
+    @Test
+    public void testRelativeAccuracy() {
+        Random r = new Random(7);
+        double[] values = new double[100000];
+        for (int i = 0; i < values.length; i++) {
+            // log-normal, over several orders of magnitude, with some negative values
+            values[i] = Math.exp(r.nextGaussian() * 4) * (r.nextInt(10) == 0 ? -1 : 1);
+        }
+        for (double accuracy : new double[] {0.01, 0.001}) {
+            // enough buckets for the whole range of the values, nothing is collapsed
+            PercentileSketch sketch = new PercentileSketch(accuracy, 20000);
+            sketch.add(values, 0, values.length);
+            Assert.assertEquals(values.length, sketch.getCount());
+            checkAccuracy(values, sketch, accuracy);
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        Random r = new Random(8);
+        double[] values = new double[20000];
+        PercentileSketch merged = new PercentileSketch();
+        PercentileSketch[] parts = new PercentileSketch[4];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = r.nextDouble() * Math.pow(10, r.nextInt(6));
+        }
+        int chunk = values.length / parts.length;
+        for (int p = 0; p < parts.length; p++) {
+            parts[p] = new PercentileSketch();
+            parts[p].add(values, p * chunk, (p + 1) * chunk);
+            merged.merge(parts[p]);
+        }
+        PercentileSketch whole = new PercentileSketch();
+        whole.add(values, 0, values.length);
+        for (double percentile : PERCENTILES) {
+            Assert.assertEquals(whole.getPercentile(percentile), merged.getPercentile(percentile), 0);
+        }
+        checkAccuracy(values, merged, PercentileSketch.DEFAULT_ACCURACY);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeDifferentAccuracy() {
+        new PercentileSketch(0.01).merge(new PercentileSketch(0.02));
+    }
+
+    @Test
+    public void testSpecialValues() {
+        PercentileSketch sketch = new PercentileSketch();
+        Assert.assertTrue(Double.isNaN(sketch.getPercentile(50)));
+        double[] values = {Double.NaN, Double.NEGATIVE_INFINITY, -5, 0, 0, 5, Double.POSITIVE_INFINITY, Double.NaN};
+        sketch.add(values, 0, values.length);
+        Assert.assertEquals(6, sketch.getCount());
+        Assert.assertEquals(Double.NEGATIVE_INFINITY, sketch.getPercentile(0), 0);
+        Assert.assertEquals(-5, sketch.getPercentile(20), 0.05);
+        Assert.assertEquals(0, sketch.getPercentile(50), 0);
+        Assert.assertEquals(5, sketch.getPercentile(80), 0.05);
+        Assert.assertEquals(Double.POSITIVE_INFINITY, sketch.getPercentile(100), 0);
+    }
+
+    @Test
+    public void testCollapsedBuckets() {
+        // only a few buckets: the small values are merged, the high percentiles keep their accuracy
+        PercentileSketch sketch = new PercentileSketch(0.01, 100);
+        double[] values = new double[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.pow(1.001, i);
+        }
+        sketch.add(values, 0, values.length);
+        Arrays.sort(values);
+        Assert.assertEquals(exact(values, 99), sketch.getPercentile(99), 0.01 * exact(values, 99));
+        Assert.assertEquals(exact(values, 95), sketch.getPercentile(95), 0.01 * exact(values, 95));
+        Assert.assertTrue(sketch.getPercentile(1) > exact(values, 1));
+    }
+
+    @Test
+    public void testVariable() {
+        long[] timestamps = new long[1000];
+        double[] values = new double[timestamps.length];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = (i + 1) * 60;
+            values[i] = i % 7 == 0 ? Double.NaN : i;
+        }
+        Variable.SKETCHPERCENTILE sketch = new Variable.SKETCHPERCENTILE(95);
+        Variable.PERCENTILENAN exact = new Variable.PERCENTILENAN(95);
+        Source source = new PDef("x", new Plottable() {});
+        source.setTimeline(new Timeline(timestamps[0], timestamps[1] - timestamps[0], timestamps.length));
+        source.setValues(values);
+        sketch.calculate(source, 0, timestamps[timestamps.length - 1]);
+        exact.calculate(source, 0, timestamps[timestamps.length - 1]);
+        Assert.assertEquals(exact.getValue().value, sketch.getValue().value, 0.01 * exact.getValue().value);
+        Assert.assertEquals(0, sketch.getValue().timestamp);
+    }
+
+    @Test
+    public void testDiscardingTop() {
+        Random r = new Random(9);
+        for (int count : new int[] {0, 1, 2, 3, 19, 20, 21, 1000}) {
+            long[] timestamps = new long[count];
+            double[] values = new double[count];
+            PercentileSketch sketch = new PercentileSketch();
+            for (int i = 0; i < count; i++) {
+                timestamps[i] = i;
+                values[i] = r.nextDouble() * 1000;
+                sketch.add(values[i]);
+            }
+            for (double percentile : PERCENTILES) {
+                double expected = new Percentiles(timestamps, values.clone()).getPercentile(percentile);
+                double actual = sketch.getPercentileDiscardingTop(percentile);
+                if (Double.isNaN(expected)) {
+                    Assert.assertTrue(Double.isNaN(actual));
+                }
+                else {
+                    Assert.assertEquals(expected, actual, PercentileSketch.DEFAULT_ACCURACY * expected);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void testFetchData95Percentile() throws IOException {
+        long start = 920800000L;
+        RrdDef rrdDef = new RrdDef("percentile", start, 60);
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 1, 2000);
+        rrdDef.addDatasource("a", DsType.GAUGE, 120, Double.NaN, Double.NaN);
+        try (RrdDb rrdDb = new RrdDb(rrdDef, RrdBackendFactory.getFactory("MEMORY"))) {
+            Sample sample = rrdDb.createSample();
+            Random r = new Random(10);
+            for (long t = start + 60; t <= start + 86400; t += 60) {
+                sample.setTime(t);
+                sample.setValue("a", r.nextInt(20) == 0 ? Double.NaN : Math.exp(r.nextGaussian() * 2));
+                sample.update();
+            }
+            // spans of a few rows, where the rank rules differ, and of many rows
+            for (long span : new long[] {120, 300, 1260, 86400 - 600}) {
+                FetchData fetchData = rrdDb.createFetchRequest(ConsolFun.AVERAGE, start + 600, start + 600 + span).fetchData();
+                double expected = fetchData.get95Percentile("a");
+                double actual = fetchData.get95Percentile("a", PercentileSketch.DEFAULT_ACCURACY);
+                Assert.assertEquals(expected, actual, PercentileSketch.DEFAULT_ACCURACY * expected);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.aerse.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PercentilesTest {
+    private static final double[] SPECIALS = {Double.NaN, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, 0.0, -0.0, 1.0};
+
+    private static double[] randomValues(Random r, int n, boolean fewDistinct) {
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            int kind = r.nextInt(10);
+            if (kind == 0) {
+                values[i] = SPECIALS[r.nextInt(SPECIALS.length)];
+            }
+            else {
+                values[i] = fewDistinct ? r.nextInt(4) : r.nextGaussian() * 100;
+            }
+        }
+        return values;
+    }
+
+    private static long[] timestamps(int n, long step) {
+        long[] timestamps = new long[n];
+        for (int i = 0; i < n; i++) {
+            timestamps[i] = 1000 + (i + 1) * step;
+        }
+        return timestamps;
+    }
+
+    // The ordering used by the former TreeSet implementation
+    private static Variable.Value sortedValue(long[] timestamps, double[] values, float percentile, boolean withNaN) {
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < values.length; i++) {
+            if (withNaN || !Double.isNaN(values[i])) {
+                order.add(i);
+            }
+        }
+        Collections.sort(order, (a, b) -> {
+            boolean nanA = Double.isNaN(values[a]);
+            boolean nanB = Double.isNaN(values[b]);
+            if (nanA != nanB) {
+                return nanA ? -1 : 1;
+            }
+            int compared = nanA ? 0 : Double.compare(values[a], values[b]);
+            return compared != 0 ? compared : Long.compare(timestamps[a], timestamps[b]);
+        });
+        int pos = Math.round(percentile * (order.size() - 1) / 100);
+        if (pos < 0 || pos >= order.size()) {
+            return new Variable.Value(0, Double.NaN);
+        }
+        int i = order.get(pos);
+        return new Variable.Value(timestamps[i], values[i]);
+    }
+
+    // The former Aggregator implementation
+    private static double sortedPercentile(double[] values, double percentile) {
+        double[] copy = Arrays.stream(values).filter(v -> !Double.isNaN(v)).sorted().toArray();
+        int count = copy.length;
+        if (count > 1) {
+            count -= (int) Math.ceil(count * (100.0 - percentile) / 100.0);
+            if (count > 0) {
+                return copy[count - 1];
+            }
+        }
+        return Double.NaN;
+    }
+
+    @Test
+    public void testMatchesSort() {
+        Random r = new Random(42);
+        for (int round = 0; round < 300; round++) {
+            int n = r.nextInt(200);
+            double[] values = randomValues(r, n, round % 2 == 0);
+            long[] timestamps = timestamps(n, 300);
+            // one instance shared by all the percentiles, to check that earlier selections don't disturb later ones
+            Percentiles percentiles = new Percentiles(timestamps, values);
+            for (int p = 0; p < 10; p++) {
+                float percentile = p == 0 ? 100 : r.nextFloat() * 100;
+                for (boolean withNaN: new boolean[] {true, false}) {
+                    Variable.Value expected = sortedValue(timestamps, values, percentile, withNaN);
+                    Variable.Value actual = percentiles.getValue(percentile, withNaN);
+                    String message = String.format("round %d, percentile %f, withNaN %b", round, percentile, withNaN);
+                    Assert.assertEquals(message, expected.timestamp, actual.timestamp);
+                    Assert.assertEquals(message, expected.value, actual.value, 0);
+                }
+                Assert.assertEquals(sortedPercentile(values, percentile), percentiles.getPercentile(percentile), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testRange() {
+        long[] timestamps = timestamps(10, 300);
+        double[] values = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+        // the steps ending at timestamps[2] to timestamps[5]
+        Percentiles percentiles = new Percentiles(timestamps, values, timestamps[1], timestamps[5]);
+        Assert.assertEquals(5, percentiles.getPercentile(95), 0);
+        Assert.assertEquals(4, percentiles.getPercentile(50), 0);
+        Variable.Value min = percentiles.getValue(0, true);
+        Assert.assertEquals(timestamps[2], min.timestamp);
+        Assert.assertEquals(3, min.value, 0);
+    }
+
+    @Test
+    public void testOrderedInputs() {
+        // sorted and reverse sorted inputs must not degrade the selection
+        int n = 100000;
+        long[] timestamps = timestamps(n, 1);
+        double[] ascending = new double[n];
+        double[] descending = new double[n];
+        for (int i = 0; i < n; i++) {
+            ascending[i] = i;
+            descending[i] = n - i;
+        }
+        Assert.assertEquals(94999, new Percentiles(timestamps, ascending).getPercentile(95), 0);
+        Assert.assertEquals(95000, new Percentiles(timestamps, descending).getPercentile(95), 0);
+    }
+}
@@ -0,0 +1,102 @@
+package com.aerse.data;
+
+import static com.aerse.core.RrdFixture.START;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.aerse.ConsolFun;
+import com.aerse.core.RrdDef;
+import com.aerse.core.RrdFixture;
+
+public class PreparedQueryTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private String createRrd() throws IOException {
+        RrdDef rrdDef = RrdFixture.gaugeDef(new File(testFolder.getRoot(), "testPrepared.rrd").getAbsolutePath(), 60, "a", "b");
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 1, 2000);
+        rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 10, 200);
+        return RrdFixture.create(rrdDef, START + 60, START + 2000 * 60, 60, t -> {
+            long i = (t - START) / 60;
+            return new double[] {Math.sin(i / 50.0) * 100, i % 7};
+        });
+    }
+
+    private static DataProcessor classic(String path, long tStart, long tEnd) throws IOException {
+        DataProcessor dp = new DataProcessor(tStart, tEnd);
+        dp.addDatasource("a", path, "a", ConsolFun.AVERAGE);
+        dp.addDatasource("b", path, "b", ConsolFun.AVERAGE);
+        dp.addDatasource("c", "a,b,+,2,/");
+        dp.addDatasource("max", "c", ConsolFun.MAX);
+        dp.addDatasource("p95", "c", 95);
+        dp.processData();
+        return dp;
+    }
+
+    private static PreparedQuery prepare(String path) {
+        PreparedQuery query = new PreparedQuery();
+        query.addDatasource("a", path, "a", ConsolFun.AVERAGE);
+        query.addDatasource("b", path, "b", ConsolFun.AVERAGE);
+        query.addDatasource("c", "a,b,+,2,/");
+        query.addDatasource("max", "c", ConsolFun.MAX);
+        query.addDatasource("p95", "c", 95.0);
+        return query;
+    }
+
+    private static void assertSame(DataProcessor expected, DataProcessor actual) {
+        Assert.assertArrayEquals(expected.getTimestamps(), actual.getTimestamps());
+        for (String name : new String[] {"a", "b", "c"}) {
+            Assert.assertArrayEquals(name, expected.getValues(name), actual.getValues(name), 0);
+        }
+        for (String name : new String[] {"max", "p95"}) {
+            Assert.assertEquals(name, expected.getVariable(name).value, actual.getVariable(name).value, 0);
+        }
+    }
+
+    @Test
+    public void testSameAsDataProcessor() throws IOException {
+        String path = createRrd();
+        PreparedQuery query = prepare(path);
+        long[][] ranges = {{START + 600, START + 36000}, {START + 6000, START + 60000}, {START + 60, START + 120000}};
+        for (long[] range : ranges) {
+            assertSame(classic(path, range[0], range[1]), query.execute(range[0], range[1]));
+        }
+    }
+
+    @Test
+    public void testConcurrentExecutions() throws Exception {
+        String path = createRrd();
+        final PreparedQuery query = prepare(path);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<DataProcessor>> results = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                final long tStart = START + 600 + i * 1200;
+                results.add(executor.submit(new Callable<DataProcessor>() {
+                    public DataProcessor call() throws IOException {
+                        return query.execute(tStart, tStart + 36000);
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                long tStart = START + 600 + i * 1200;
+                assertSame(classic(path, tStart, tStart + 36000), results.get(i).get());
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.aerse.data;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RangeIndexTest {
+
+    private static void assertClose(String message, double expected, double actual) {
+        if (Double.isNaN(expected) || Double.isInfinite(expected)) {
+            Assert.assertEquals(message, expected, actual, 0);
+        }
+        else {
+            Assert.assertEquals(message, expected, actual, 1e-9 * Math.max(1, Math.abs(expected)));
+        }
+    }
+
+    private static void check(long[] timestamps, double[] values, Random r, int ranges) {
+        Aggregator aggregator = new Aggregator(timestamps, values);
+        RangeIndex index = new RangeIndex(timestamps, values);
+        long step = timestamps[1] - timestamps[0];
+        long span = timestamps[timestamps.length - 1] - timestamps[0] + 4 * step;
+        for (int i = 0; i < ranges; i++) {
+            long tStart = timestamps[0] - 2 * step + (long) (r.nextDouble() * span);
+            long tEnd = r.nextInt(10) == 0 ? tStart - r.nextInt(100) : tStart + (long) (r.nextDouble() * span / (1 + r.nextInt(20)));
+            if (r.nextBoolean()) {
+                // aligned on steps
+                tStart -= Math.floorMod(tStart, step);
+                tEnd -= Math.floorMod(tEnd, step);
+            }
+            Aggregates expected = aggregator.getAggregates(tStart, tEnd);
+            Aggregates actual = index.getAggregates(tStart, tEnd);
+            String message = String.format("range %d-%d", tStart, tEnd);
+            Assert.assertEquals(message, expected.getFirst(), actual.getFirst(), 0);
+            Assert.assertEquals(message, expected.getLast(), actual.getLast(), 0);
+            Assert.assertEquals(message, expected.getMin(), actual.getMin(), 0);
+            Assert.assertEquals(message, expected.getMax(), actual.getMax(), 0);
+            assertClose(message, expected.getTotal(), actual.getTotal());
+            assertClose(message, expected.getAverage(), actual.getAverage());
+        }
+    }
+
+    @Test
+    public void testMatchesAggregator() {
+        Random r = new Random(34);
+        for (int round = 0; round < 100; round++) {
+            int n = 2 + r.nextInt(round < 50 ? 40 : 2000);
+            long step = 1 + r.nextInt(600);
+            long[] timestamps = new long[n];
+            double[] values = new double[n];
+            for (int i = 0; i < n; i++) {
+                timestamps[i] = 100000 + i * step;
+                values[i] = r.nextInt(3) == 0 ? Double.NaN : r.nextGaussian() * 100;
+            }
+            check(timestamps, values, r, 200);
+        }
+    }
+
+    @Test
+    public void testInfiniteValues() {
+        Random r = new Random(35);
+        int n = 500;
+        long[] timestamps = new long[n];
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            timestamps[i] = 60 * (i + 1);
+            int kind = r.nextInt(50);
+            values[i] = kind == 0 ? Double.POSITIVE_INFINITY : kind == 1 ? Double.NEGATIVE_INFINITY : kind < 10 ? Double.NaN : r.nextInt(100);
+        }
+        check(timestamps, values, r, 2000);
+    }
+
+    @Test
+    public void testOnlyNaN() {
+        long[] timestamps = {60, 120, 180};
+        double[] values = {Double.NaN, Double.NaN, Double.NaN};
+        Aggregates agg = new RangeIndex(timestamps, values).getAggregates(0, 180);
+        Assert.assertTrue(Double.isNaN(agg.getTotal()));
+        Assert.assertTrue(Double.isNaN(agg.getMin()));
+        Assert.assertTrue(Double.isNaN(agg.getAverage()));
+    }
+}
@@ -2,6 +2,7 @@ package com.aerse.data;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Random;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -283,4 +284,125 @@ public class RpnCalculatorTest {
         expected(dp, "nothing, 1, +");
     }
 
+    @Test
+    public void testColumnsMatchSlots() throws IOException {
+        DataProcessor dp = new DataProcessor(1, 4);
+        dp.addDatasource("source1", new Myplottable(1.0, -2.5, Double.NaN, 4.0));
+        dp.addDatasource("source2", new Myplottable(0.0, 3.0, 1.0, Double.POSITIVE_INFINITY));
+        dp.processData();
+        String[] rpns = {
+                "source1, source2, +, 2, *, source2, -, 3, /",
+                "source1, source2, ADDNAN, source1, MINNAN, source2, MAXNAN",
+                "source1, 0, 3, LIMIT, UN, source1, source2, IF",
+                "source1, DUP, *, source2, EXC, -, ABS, SQRT, SIGN",
+                "source1, source2, MIN, source1, source2, MAX, POP, TIME, STEP, %, +, COUNT, GE",
+        };
+        for (String rpn: rpns) {
+            double[] slots = new RpnCalculator(rpn, "rpn name", dp).calculateSlots();
+            double[] columns = new RpnCalculator(rpn, "rpn name", dp).calculateColumns();
+            Assert.assertArrayEquals(rpn, slots, columns, 0);
+        }
+    }
+
+    // The window operators, as they were implemented before the running sums
+    private static double scanTrend(double[] vals, int slot, double timeStep, int dur, boolean ignorenan) {
+        if ((slot+1) < Math.ceil(dur / timeStep)) {
+            return Double.NaN;
+        }
+        double accum = 0.0;
+        int count = 0;
+        int start = (int) (Math.ceil(dur / timeStep));
+        int row = 2;
+        while ((slot + row) > vals.length) {
+            row --;
+        }
+        for(; start > 0; start--) {
+            double val = vals[slot + row - start];
+            if (ignorenan || !Double.isNaN(val)) {
+                accum = Util.sum(accum, val);
+                ++count;
+            }
+        }
+        return (count == 0) ? Double.NaN : (accum / count);
+    }
+
+    private static double scanPredict(double[] vals, int slot, double timeStep, int[] shifts, int locstepsize, boolean sigma) {
+        int locstep = (int) Math.ceil((float) locstepsize / (float) timeStep);
+        double sum = 0;
+        double sum2 = 0;
+        int count = 0;
+        for (int loop = 0; loop < shifts.length; loop++) {
+            int shiftstep = (int) Math.ceil((float) shifts[loop] / (float) timeStep);
+            for (int i = 0; i <= locstep; i++) {
+                int offset = shiftstep + i;
+                if ((offset >= 0) && (offset < slot)) {
+                    double val = vals[slot - offset];
+                    if (!Double.isNaN(val)) {
+                        sum = Util.sum(sum, val);
+                        sum2 = Util.sum(sum2, val * val);
+                        count++;
+                    }
+                }
+            }
+        }
+        double val = Double.NaN;
+        if (!sigma) {
+            if (count > 0) {
+                val = sum / (double) count;
+            }
+        } else if (count > 1) {
+            val = count * sum2 - sum * sum;
+            val = val < 0 ? Double.NaN : Math.sqrt(val / ((float) count * ((float) count - 1.0)));
+        }
+        return val;
+    }
+
+    @Test
+    public void testWindowsMatchScan() throws IOException {
+        Random r = new Random(42);
+        double[] values = new double[500];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = r.nextInt(10) == 0 ? Double.NaN : 1e6 + r.nextGaussian() * 1000;
+        }
+        DataProcessor dp = new DataProcessor(1, values.length);
+        dp.addDatasource("source1", new Myplottable(values));
+        dp.processData();
+        double[] vals = dp.getValues("source1");
+        double step = dp.getStep();
+
+        for (int dur: new int[] {1, 2, 7, 60, 499}) {
+            double[] trend = new RpnCalculator("source1," + dur + ",TREND", "rpn name", dp).calculateValues();
+            double[] trendnan = new RpnCalculator("source1," + dur + ",TRENDNAN", "rpn name", dp).calculateValues();
+            for (int slot = 0; slot < vals.length; slot++) {
+                Assert.assertEquals("TREND " + dur + " at " + slot, scanTrend(vals, slot, step, dur, false), trend[slot], 1e-6);
+                Assert.assertEquals("TRENDNAN " + dur + " at " + slot, scanTrend(vals, slot, step, dur, true), trendnan[slot], 1e-6);
+            }
+        }
+
+        int[][] shifts = {{0}, {5}, {10, 20, 20}, {3, 3, 3, 3}};
+        for (int[] shift: shifts) {
+            for (int window: new int[] {0, 4, 30}) {
+                StringBuilder rpn = new StringBuilder();
+                for (int i = shift.length - 1; i >= 0; i--) {
+                    rpn.append(shift[i]).append(',');
+                }
+                rpn.append(shift.length).append(',').append(window).append(",source1,");
+                double[] predict = new RpnCalculator(rpn + "PREDICT", "rpn name", dp).calculateValues();
+                double[] sigma = new RpnCalculator(rpn + "PREDICTSIGMA", "rpn name", dp).calculateValues();
+                for (int slot = 0; slot < vals.length; slot++) {
+                    String message = String.format("for '%s' at %d", rpn, slot);
+                    Assert.assertEquals(message, scanPredict(vals, slot, step, shift, window, false), predict[slot], 1e-6);
+                    double expected = scanPredict(vals, slot, step, shift, window, true);
+                    Assert.assertEquals(message, expected, sigma[slot], Math.abs(expected) * 1e-6);
+                }
+            }
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testColumnsStackNotEmpty() throws IOException {
+        DataProcessor dp = new DataProcessor(1, 2);
+        expected(dp, "1, 2, 3, +");
+    }
+
 }
@@ -0,0 +1,64 @@
+package com.aerse.data;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RpnPlannerTest {
+
+    private static class Ramp extends Plottable {
+        private final double factor;
+        Ramp(double factor) {
+            this.factor = factor;
+        }
+        @Override
+        public double getValue(long timestamp) {
+            return timestamp % 7 == 0 ? Double.NaN : timestamp * factor;
+        }
+    }
+
+    @Test
+    public void testSharedSubexpressions() throws IOException {
+        DataProcessor dp = new DataProcessor(1, 100);
+        dp.addDatasource("x", new Ramp(1.5));
+        dp.addDatasource("y", new Ramp(-0.25));
+        String[][] cdefs = {
+                {"sum", "x,y,+"},
+                {"double", "x,y,+,2,*"},
+                {"ratio", "sum,8,/,x,y,+,-"},
+                {"same", "x , y , +"},
+                {"square", "x,DUP,*,y,EXC,POP,y,ADDNAN"},
+                {"prev", "sum,PREV(x),+"},
+                {"after", "prev,sum,MAX"},
+        };
+        for (String[] cdef: cdefs) {
+            dp.addDatasource(cdef[0], cdef[1]);
+        }
+        dp.processData();
+        for (String[] cdef: cdefs) {
+            double[] expected = new RpnCalculator(cdef[1], cdef[0], dp).calculateSlots();
+            Assert.assertArrayEquals(cdef[0], expected, dp.getValues(cdef[0]), 0);
+        }
+        Assert.assertNotSame(dp.getValues("sum"), dp.getValues("same"));
+    }
+
+    @Test
+    public void testSingleVariable() throws IOException {
+        DataProcessor dp = new DataProcessor(1, 10);
+        dp.addDatasource("x", new Ramp(1.0));
+        dp.addDatasource("copy", "x");
+        dp.processData();
+        Assert.assertArrayEquals(dp.getValues("x"), dp.getValues("copy"), 0);
+        Assert.assertNotSame(dp.getValues("x"), dp.getValues("copy"));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testForwardReference() throws IOException {
+        DataProcessor dp = new DataProcessor(1, 10);
+        dp.addDatasource("x", new Ramp(1.0));
+        dp.addDatasource("a", "b,1,+");
+        dp.addDatasource("b", "x,1,+");
+        dp.processData();
+    }
+}
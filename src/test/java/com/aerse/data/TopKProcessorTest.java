@@ -0,0 +1,144 @@
+package com.aerse.data;
+
+import static com.aerse.core.RrdFixture.START;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.aerse.ConsolFun;
+import com.aerse.core.RrdDef;
+import com.aerse.core.RrdFixture;
+
+public class TopKProcessorTest {
+    private static final long END = START + 86400;
+    private static final int FILES = 30;
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private String[] paths = new String[FILES];
+
+    @Before
+    public void createRrds() throws IOException {
+        for (int f = 0; f < FILES; f++) {
+            final int file = f;
+            RrdDef rrdDef = RrdFixture.gaugeDef(new File(testFolder.getRoot(), "if" + f + ".rrd").getAbsolutePath(), 60, "bytes_in");
+            rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 1, 1440);
+            rrdDef.addArchive(ConsolFun.AVERAGE, 0.5, 60, 24);
+            // the last file is never known
+            paths[f] = RrdFixture.create(rrdDef, START + 60, END, 60, t -> new double[] {
+                    file == FILES - 1 ? Double.NaN : ((file * 37) % FILES) * 100 + (((t - START) / 60) * (file + 3)) % 89});
+        }
+    }
+
+    // the aggregate of each file from a full fetch, best first
+    private List<String> expected(long tStart, long tEnd, ConsolFun aggregate, int k) throws IOException {
+        final double[] aggregates = new double[FILES];
+        List<Integer> ranked = new ArrayList<Integer>();
+        for (int f = 0; f < FILES; f++) {
+            DataProcessor dp = new DataProcessor(tStart, tEnd);
+            dp.setStep(60);
+            dp.addDatasource("in", paths[f], "bytes_in", ConsolFun.AVERAGE);
+            dp.processData();
+            long[] timestamps = dp.getTimestamps();
+            double[] values = dp.getValues("in");
+            double sum = 0;
+            double max = Double.NEGATIVE_INFINITY;
+            int count = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (timestamps[i] > tStart && timestamps[i] - 60 < tEnd && !Double.isNaN(values[i])) {
+                    sum += values[i];
+                    max = Math.max(max, values[i]);
+                    count++;
+                }
+            }
+            if (count > 0) {
+                aggregates[f] = aggregate == ConsolFun.MAX ? max : sum / count;
+                ranked.add(f);
+            }
+        }
+        Collections.sort(ranked, new Comparator<Integer>() {
+            public int compare(Integer f1, Integer f2) {
+                return Double.compare(aggregates[f2], aggregates[f1]);
+            }
+        });
+        List<String> result = new ArrayList<String>();
+        for (int f : ranked.subList(0, Math.min(k, ranked.size()))) {
+            result.add(paths[f]);
+        }
+        return result;
+    }
+
+    private static List<String> files(TopKProcessor top) {
+        List<String> result = new ArrayList<String>();
+        for (TopKProcessor.Ranking ranking : top.getRankings()) {
+            result.add(ranking.getFile());
+        }
+        return result;
+    }
+
+    private TopKProcessor create(long tStart, long tEnd, ConsolFun aggregate, int k) {
+        TopKProcessor top = new TopKProcessor(tStart, tEnd, "bytes_in", ConsolFun.AVERAGE, aggregate, k);
+        for (String path : paths) {
+            top.addFile(path);
+        }
+        top.setConcurrency(4);
+        return top;
+    }
+
+    @Test
+    public void testAverage() throws IOException {
+        TopKProcessor top = create(END - 6 * 3600, END, ConsolFun.AVERAGE, 5);
+        top.processData();
+        Assert.assertEquals(expected(END - 6 * 3600, END, ConsolFun.AVERAGE, 5), files(top));
+        List<TopKProcessor.Ranking> rankings = top.getRankings();
+        for (int i = 1; i < rankings.size(); i++) {
+            Assert.assertTrue(rankings.get(i - 1).getValue() >= rankings.get(i).getValue());
+        }
+    }
+
+    @Test
+    public void testMaxPruned() throws IOException {
+        TopKProcessor top = create(END - 12 * 3600, END, ConsolFun.MAX, 3);
+        top.setPruning(3600, 10);
+        top.processData();
+        Assert.assertEquals(expected(END - 12 * 3600, END, ConsolFun.MAX, 3), files(top));
+    }
+
+    @Test
+    public void testPrunedAsNotPruned() throws IOException {
+        TopKProcessor pruned = create(END - 12 * 3600, END, ConsolFun.TOTAL, 4);
+        pruned.setPruning(3600, 8);
+        pruned.processData();
+        TopKProcessor top = create(END - 12 * 3600, END, ConsolFun.TOTAL, 4);
+        top.processData();
+        Assert.assertEquals(files(top), files(pruned));
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(top.getRankings().get(i).getValue(), pruned.getRankings().get(i).getValue(), 0);
+        }
+    }
+
+    @Test
+    public void testUnknownNotRanked() throws IOException {
+        TopKProcessor top = create(END - 3600, END, ConsolFun.AVERAGE, FILES);
+        top.setConcurrency(1);
+        top.processData();
+        Assert.assertEquals(FILES - 1, top.getRankings().size());
+        Assert.assertFalse(files(top).contains(paths[FILES - 1]));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedAggregate() {
+        new TopKProcessor(START, END, "bytes_in", ConsolFun.AVERAGE, ConsolFun.LAST, 5);
+    }
+}